@@ -49,6 +49,11 @@ android {
         }
     }
     
+    // Mesh protocol classes log through android.util.Log; let local unit tests run them
+    testOptions {
+        unitTests.isReturnDefaultValues = true
+    }
+    
     lint {
         abortOnError = false
         disable += "NotificationPermission"
@@ -8,12 +8,18 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.pm.PackageManager;
+import android.database.Cursor;
+import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.provider.OpenableColumns;
 import android.util.Log;
 import android.view.View;
+import android.widget.ImageButton;
 import android.widget.Toast;
 
+import androidx.activity.result.ActivityResultLauncher;
+import androidx.activity.result.contract.ActivityResultContracts;
 import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
@@ -24,7 +30,9 @@ import androidx.recyclerview.widget.RecyclerView;
 import com.example.hello.adapters.BluetoothDeviceAdapter;
 import com.example.hello.adapters.BluetoothMessageAdapter;
 import com.example.hello.models.BluetoothMessage;
+import com.example.hello.services.BluetoothChatFileTransfer;
 import com.example.hello.services.BluetoothChatService;
+import com.example.hello.services.ChatHistoryStore;
 import com.google.android.material.appbar.MaterialToolbar;
 import com.google.android.material.button.MaterialButton;
 import com.google.android.material.card.MaterialCardView;
@@ -32,14 +40,24 @@ import com.google.android.material.floatingactionbutton.FloatingActionButton;
 import com.google.android.material.progressindicator.CircularProgressIndicator;
 import com.google.android.material.textfield.TextInputEditText;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 public class BluetoothChatActivity extends AppCompatActivity {
     private static final String TAG = "BluetoothChatActivity";
     private static final int REQUEST_ENABLE_BT = 1;
     private static final int REQUEST_BLUETOOTH_PERMISSIONS = 2;
+    // Messages past this are trimmed from the far end and paged back in from the history
+    private static final int MAX_VISIBLE_MESSAGES = 200;
 
     private BluetoothAdapter bluetoothAdapter;
     private BluetoothChatService chatService;
@@ -58,16 +76,40 @@ public class BluetoothChatActivity extends AppCompatActivity {
     private CircularProgressIndicator progressIndicator;
     private TextInputEditText messageInput;
     private FloatingActionButton btnSendMessage;
+    private ImageButton btnAttachFile;
     private MaterialToolbar toolbar;
 
-    private boolean isConnected = false;
-    private String connectedDeviceName = "";
+    // Every session's history is kept on disk by address; messages is the window of it on screen
+    private ChatHistoryStore<BluetoothMessage> history;
+    private final Map<String, String> sessionNames = new HashMap<>();
+    private String activeSessionId;
+    private boolean hasOlderMessages;
+    // Stored messages newer than the window, trimmed while reading older history
+    private int skippedNewerMessages;
+    // One page load at a time, in either direction
+    private boolean loadingMessages;
+    // Bumped whenever the window is replaced, so late pages for an old window are dropped
+    private int windowGeneration;
+
+    // Picked photos and files are copied into the cache first so they can be streamed and resumed
+    private final ActivityResultLauncher<String> filePickerLauncher = registerForActivityResult(
+        new ActivityResultContracts.GetContent(),
+        uri -> {
+            if (uri != null) {
+                sendFile(uri);
+            }
+        }
+    );
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_bluetooth_chat);
 
+        history = new ChatHistoryStore<>(new File(getFilesDir(), "chat_history/bluetooth.log"),
+            ChatHistoryStore.BLUETOOTH_MESSAGES);
+        history.open();
+
         initializeViews();
         setupToolbar();
         initializeBluetooth();
@@ -87,6 +129,7 @@ public class BluetoothChatActivity extends AppCompatActivity {
         progressIndicator = findViewById(R.id.progressIndicator);
         messageInput = findViewById(R.id.messageInput);
         btnSendMessage = findViewById(R.id.btnSendMessage);
+        btnAttachFile = findViewById(R.id.btnAttachFile);
 
         // Initially show device discovery and hide chat
         deviceDiscoveryCard.setVisibility(View.VISIBLE);
@@ -122,12 +165,23 @@ public class BluetoothChatActivity extends AppCompatActivity {
         messagesRecyclerView.setLayoutManager(new LinearLayoutManager(this));
         messageAdapter = new BluetoothMessageAdapter(messages);
         messagesRecyclerView.setAdapter(messageAdapter);
+        messagesRecyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+                if (dy < 0 && !recyclerView.canScrollVertically(-1)) {
+                    loadOlderMessages();
+                } else if (dy > 0 && !recyclerView.canScrollVertically(1)) {
+                    loadNewerMessages();
+                }
+            }
+        });
     }
 
     private void setupClickListeners() {
         btnStartDiscovery.setOnClickListener(v -> startDeviceDiscovery());
         btnMakeDiscoverable.setOnClickListener(v -> makeDeviceDiscoverable());
         btnSendMessage.setOnClickListener(v -> sendMessage());
+        btnAttachFile.setOnClickListener(v -> filePickerLauncher.launch("*/*"));
     }
 
     private void requestBluetoothPermissions() {
@@ -182,44 +236,198 @@ public class BluetoothChatActivity extends AppCompatActivity {
     private void initializeChatService() {
         chatService = new BluetoothChatService(this, new BluetoothChatService.BluetoothChatListener() {
             @Override
-            public void onMessageReceived(BluetoothMessage message) {
+            public void onMessageReceived(String sessionId, BluetoothMessage message) {
                 runOnUiThread(() -> {
-                    messages.add(message);
-                    messageAdapter.notifyItemInserted(messages.size() - 1);
-                    messagesRecyclerView.scrollToPosition(messages.size() - 1);
+                    appendMessage(sessionId, message);
+                    if (!sessionId.equals(activeSessionId)) {
+                        Toast.makeText(BluetoothChatActivity.this,
+                            "New message from " + sessionNames.get(sessionId), Toast.LENGTH_SHORT).show();
+                    }
                 });
             }
 
             @Override
-            public void onConnectionEstablished(String deviceName) {
+            public void onSessionConnected(String sessionId, String deviceName) {
                 runOnUiThread(() -> {
-                    isConnected = true;
-                    connectedDeviceName = deviceName;
-                    updateUI();
+                    sessionNames.put(sessionId, deviceName);
+                    refreshConnectedDevices();
+                    if (activeSessionId == null) {
+                        openConversation(sessionId);
+                    }
                     Toast.makeText(BluetoothChatActivity.this, 
                         "Connected to " + deviceName, Toast.LENGTH_SHORT).show();
                 });
             }
 
             @Override
-            public void onConnectionLost() {
+            public void onSessionLost(String sessionId) {
                 runOnUiThread(() -> {
-                    isConnected = false;
-                    connectedDeviceName = "";
-                    updateUI();
+                    refreshConnectedDevices();
+                    if (sessionId.equals(activeSessionId)) {
+                        closeConversation();
+                    }
                     Toast.makeText(BluetoothChatActivity.this, 
-                        "Connection lost", Toast.LENGTH_SHORT).show();
+                        "Connection to " + sessionNames.get(sessionId) + " lost", Toast.LENGTH_SHORT).show();
                 });
             }
 
             @Override
-            public void onConnectionFailed() {
+            public void onConnectionFailed(String address) {
                 runOnUiThread(() -> {
                     Toast.makeText(BluetoothChatActivity.this, 
                         "Failed to connect", Toast.LENGTH_SHORT).show();
                 });
             }
+
+            @Override
+            public void onFileTransferProgress(String sessionId, BluetoothChatFileTransfer.FileInfo info, long bytesDone) {
+                runOnUiThread(() -> {
+                    if (sessionId.equals(activeSessionId) && info.getSize() > 0) {
+                        getSupportActionBar().setSubtitle((info.isOutgoing() ? "Sending " : "Receiving ")
+                            + info.getFileName() + ": " + (bytesDone * 100 / info.getSize()) + "%");
+                    }
+                });
+            }
+
+            @Override
+            public void onFileTransferFinished(String sessionId, BluetoothChatFileTransfer.FileInfo info, File file) {
+                Log.d(TAG, "Transfer " + info.getTransferId() + " finished: " + file);
+
+                runOnUiThread(() -> {
+                    if (sessionId.equals(activeSessionId)) {
+                        getSupportActionBar().setSubtitle(null);
+                    }
+                    if (file == null) {
+                        Toast.makeText(BluetoothChatActivity.this,
+                            "Transfer of " + info.getFileName() + " failed", Toast.LENGTH_SHORT).show();
+                    } else if (info.isOutgoing()) {
+                        appendMessage(sessionId, new BluetoothMessage(
+                            "Sent " + info.getFileName(), true, System.currentTimeMillis()));
+                    } else {
+                        appendMessage(sessionId, new BluetoothMessage(
+                            "Received " + info.getFileName(), false, System.currentTimeMillis(),
+                            sessionNames.get(sessionId)));
+                    }
+                });
+            }
         });
+        chatService.start();
+    }
+
+    private void appendMessage(String sessionId, BluetoothMessage message) {
+        history.append(sessionId, message);
+        if (!sessionId.equals(activeSessionId)) {
+            return;
+        }
+        if (skippedNewerMessages > 0) {
+            if (message.isOutgoing()) {
+                // Show what was just sent, with the latest messages around it
+                showLatestMessages();
+            } else {
+                // Paged in on the way back down
+                skippedNewerMessages++;
+            }
+            return;
+        }
+        messages.add(message);
+        messageAdapter.notifyItemInserted(messages.size() - 1);
+        trimOldestMessages();
+        messagesRecyclerView.scrollToPosition(messages.size() - 1);
+    }
+
+    private void trimOldestMessages() {
+        int excess = messages.size() - MAX_VISIBLE_MESSAGES;
+        if (excess > 0) {
+            messages.subList(0, excess).clear();
+            messageAdapter.notifyItemRangeRemoved(0, excess);
+            hasOlderMessages = true;
+            // A page already on its way was counted against the untrimmed window
+            windowGeneration++;
+            loadingMessages = false;
+        }
+    }
+
+    private void trimNewestMessages() {
+        int excess = messages.size() - MAX_VISIBLE_MESSAGES;
+        if (excess > 0) {
+            messages.subList(messages.size() - excess, messages.size()).clear();
+            messageAdapter.notifyItemRangeRemoved(messages.size(), excess);
+            skippedNewerMessages += excess;
+        }
+    }
+
+    private void openConversation(String sessionId) {
+        activeSessionId = sessionId;
+        showLatestMessages();
+        updateUI();
+    }
+
+    private void showLatestMessages() {
+        windowGeneration++;
+        messages.clear();
+        messageAdapter.notifyDataSetChanged();
+        hasOlderMessages = true;
+        skippedNewerMessages = 0;
+        loadingMessages = false;
+        loadOlderMessages();
+    }
+
+    // Prepends the next page of history; with an empty window that is the latest page
+    private void loadOlderMessages() {
+        if (activeSessionId == null || !hasOlderMessages || loadingMessages) {
+            return;
+        }
+        loadingMessages = true;
+        int generation = windowGeneration;
+        boolean latestPage = messages.isEmpty();
+        history.loadPage(activeSessionId, skippedNewerMessages + messages.size(), ChatHistoryStore.DEFAULT_PAGE_SIZE,
+            (page, hasMore) -> runOnUiThread(() -> {
+                if (generation != windowGeneration) {
+                    return;
+                }
+                loadingMessages = false;
+                hasOlderMessages = hasMore;
+                messages.addAll(0, page);
+                messageAdapter.notifyItemRangeInserted(0, page.size());
+                trimNewestMessages();
+                if (latestPage && !messages.isEmpty()) {
+                    messagesRecyclerView.scrollToPosition(messages.size() - 1);
+                }
+            }));
+    }
+
+    // Appends the page of history that was trimmed from below the window
+    private void loadNewerMessages() {
+        if (activeSessionId == null || skippedNewerMessages == 0 || loadingMessages) {
+            return;
+        }
+        loadingMessages = true;
+        int generation = windowGeneration;
+        int count = Math.min(ChatHistoryStore.DEFAULT_PAGE_SIZE, skippedNewerMessages);
+        history.loadPage(activeSessionId, skippedNewerMessages - count, count,
+            (page, hasMore) -> runOnUiThread(() -> {
+                if (generation != windowGeneration) {
+                    return;
+                }
+                loadingMessages = false;
+                // Messages that arrived since are counted in skippedNewerMessages and not in the page
+                skippedNewerMessages = Math.max(0, skippedNewerMessages - count);
+                int start = messages.size();
+                messages.addAll(page);
+                messageAdapter.notifyItemRangeInserted(start, page.size());
+                trimOldestMessages();
+            }));
+    }
+
+    private void closeConversation() {
+        activeSessionId = null;
+        windowGeneration++;
+        getSupportActionBar().setSubtitle(null);
+        updateUI();
+    }
+
+    private void refreshConnectedDevices() {
+        deviceAdapter.setConnectedAddresses(new HashSet<>(chatService.getSessionIds()));
     }
 
     private void loadPairedDevices() {
@@ -279,15 +487,20 @@ public class BluetoothChatActivity extends AppCompatActivity {
             bluetoothAdapter.cancelDiscovery();
         }
 
-        if (chatService != null) {
-            chatService.connect(device);
+        if (chatService == null) {
+            return;
+        }
+        // Already chatting: just switch to that conversation
+        if (chatService.isConnected(device.getAddress())) {
+            openConversation(device.getAddress());
+        } else if (chatService.connect(device)) {
             Toast.makeText(this, "Connecting to " + device.getName(), Toast.LENGTH_SHORT).show();
         }
     }
 
     private void sendMessage() {
         String messageText = messageInput.getText().toString().trim();
-        if (messageText.isEmpty() || !isConnected || chatService == null) {
+        if (messageText.isEmpty() || activeSessionId == null || chatService == null) {
             return;
         }
 
@@ -297,23 +510,87 @@ public class BluetoothChatActivity extends AppCompatActivity {
             System.currentTimeMillis()
         );
 
-        chatService.sendMessage(messageText);
-        messages.add(message);
-        messageAdapter.notifyItemInserted(messages.size() - 1);
-        messagesRecyclerView.scrollToPosition(messages.size() - 1);
+        if (!chatService.sendMessage(activeSessionId, messageText)) {
+            Toast.makeText(this, "Message not sent", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        appendMessage(activeSessionId, message);
         messageInput.setText("");
     }
 
+    private void sendFile(Uri uri) {
+        String sessionId = activeSessionId;
+        if (sessionId == null || chatService == null) {
+            return;
+        }
+
+        String mimeType = getContentResolver().getType(uri);
+        new Thread(() -> {
+            File file = copyToCache(uri);
+            runOnUiThread(() -> {
+                BluetoothChatFileTransfer.FileInfo info = file != null
+                    ? chatService.sendFile(sessionId, file, mimeType) : null;
+                if (info == null) {
+                    Toast.makeText(this, "Could not send file", Toast.LENGTH_SHORT).show();
+                } else if (sessionId.equals(activeSessionId)) {
+                    getSupportActionBar().setSubtitle("Sending " + info.getFileName());
+                }
+            });
+        }).start();
+    }
+
+    private File copyToCache(Uri uri) {
+        String name = "file_" + System.currentTimeMillis();
+        try (Cursor cursor = getContentResolver().query(uri,
+                new String[]{OpenableColumns.DISPLAY_NAME}, null, null, null)) {
+            if (cursor != null && cursor.moveToFirst() && cursor.getString(0) != null) {
+                name = cursor.getString(0);
+            }
+        }
+
+        File directory = new File(getCacheDir(), "bluetooth_outgoing");
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            return null;
+        }
+        File file = new File(directory, new File(name).getName());
+        try (InputStream in = getContentResolver().openInputStream(uri);
+             OutputStream out = new FileOutputStream(file)) {
+            if (in == null) {
+                return null;
+            }
+            byte[] buffer = new byte[BluetoothChatFileTransfer.CHUNK_SIZE];
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                out.write(buffer, 0, count);
+            }
+            return file;
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to copy " + uri, e);
+            return null;
+        }
+    }
+
     private void updateUI() {
-        if (isConnected) {
+        if (activeSessionId != null) {
             deviceDiscoveryCard.setVisibility(View.GONE);
             chatCard.setVisibility(View.VISIBLE);
-            getSupportActionBar().setTitle("Connected to " + connectedDeviceName);
+            getSupportActionBar().setTitle("Connected to " + sessionNames.get(activeSessionId));
         } else {
             deviceDiscoveryCard.setVisibility(View.VISIBLE);
             chatCard.setVisibility(View.GONE);
-            getSupportActionBar().setTitle("Chat Offline");
+            int sessionCount = chatService != null ? chatService.getSessionCount() : 0;
+            getSupportActionBar().setTitle(sessionCount > 0 ? "Chatting with " + sessionCount : "Chat Offline");
+        }
+    }
+
+    @Override
+    public void onBackPressed() {
+        // Leave the conversation open in the background and go back to the device list
+        if (activeSessionId != null) {
+            closeConversation();
+            return;
         }
+        super.onBackPressed();
     }
 
     private boolean hasBluetoothPermissions() {
@@ -398,5 +675,8 @@ public class BluetoothChatActivity extends AppCompatActivity {
         if (chatService != null) {
             chatService.stop();
         }
+
+        // Writes out anything still pending before the history is closed
+        history.close();
     }
 }
@@ -28,8 +28,13 @@ import androidx.recyclerview.widget.RecyclerView;
 import com.example.hello.adapters.BluetoothMeshMessageAdapter;
 import com.example.hello.adapters.BluetoothMeshNodeAdapter;
 import com.example.hello.models.BluetoothMeshMessage;
-import com.example.hello.models.BluetoothMeshNode;
+import com.example.hello.models.MeshNodeSnapshot;
 import com.example.hello.services.BluetoothMeshService;
+import com.example.hello.services.ChatHistoryStore;
+import com.example.hello.services.MeshChatWindow;
+import com.example.hello.services.mesh.MeshFileTransfer;
+import com.example.hello.services.mesh.MeshReliableDelivery;
+import com.example.hello.services.mesh.MeshTopologyNotifier;
 import com.google.android.material.appbar.MaterialToolbar;
 import com.google.android.material.button.MaterialButton;
 import com.google.android.material.card.MaterialCardView;
@@ -37,12 +42,15 @@ import com.google.android.material.dialog.MaterialAlertDialogBuilder;
 import com.google.android.material.floatingactionbutton.FloatingActionButton;
 import com.google.android.material.progressindicator.CircularProgressIndicator;
 
+import java.io.File;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * BluetoothMeshChatActivity - Advanced Bluetooth Mesh Chat Interface
@@ -64,14 +72,20 @@ public class BluetoothMeshChatActivity extends AppCompatActivity
     private static final int REQUEST_ENABLE_BT = 1;
     private static final int REQUEST_BLUETOOTH_PERMISSIONS = 2;
     private static final int REQUEST_DISCOVERABLE = 3;
+    // Group and direct messages share one history
+    private static final String MESH_CONVERSATION = "mesh";
 
     private BluetoothAdapter bluetoothAdapter;
     private BluetoothMeshService meshService;
     private BluetoothMeshNodeAdapter nodeAdapter;
     private BluetoothMeshMessageAdapter messageAdapter;
     private List<BluetoothDevice> discoveredDevices;
-    private List<BluetoothMeshMessage> messages;
-    private List<BluetoothMeshNode> networkNodes;
+    private List<MeshNodeSnapshot> networkNodes;
+
+    // The mesh chat kept on disk and the window of it on screen; both work on one thread
+    private ExecutorService historyExecutor;
+    private ChatHistoryStore<BluetoothMeshMessage> history;
+    private MeshChatWindow messageWindow;
 
     // UI Components
     private MaterialCardView deviceDiscoveryCard;
@@ -95,6 +109,11 @@ public class BluetoothMeshChatActivity extends AppCompatActivity
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_bluetooth_mesh_chat_simple);
 
+        historyExecutor = Executors.newSingleThreadExecutor();
+        history = new ChatHistoryStore<>(new File(getFilesDir(), "chat_history/mesh.log"),
+            ChatHistoryStore.MESH_MESSAGES, historyExecutor, ChatHistoryStore.DEFAULT_MAX_PER_CONVERSATION);
+        history.open();
+
         initializeViews();
         setupToolbar();
         initializeBluetooth();
@@ -120,7 +139,6 @@ public class BluetoothMeshChatActivity extends AppCompatActivity
 
         // Initialize data lists
         discoveredDevices = new ArrayList<>();
-        messages = new ArrayList<>();
         networkNodes = new ArrayList<>();
     }
 
@@ -153,8 +171,27 @@ public class BluetoothMeshChatActivity extends AppCompatActivity
         
         // Messages RecyclerView
         messagesRecyclerView.setLayoutManager(new LinearLayoutManager(this));
-        messageAdapter = new BluetoothMeshMessageAdapter(messages);
+        messageAdapter = new BluetoothMeshMessageAdapter();
         messagesRecyclerView.setAdapter(messageAdapter);
+        messagesRecyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+                if (dy < 0 && !recyclerView.canScrollVertically(-1)) {
+                    messageWindow.loadOlder();
+                } else if (dy > 0 && !recyclerView.canScrollVertically(1)) {
+                    messageWindow.loadNewer();
+                }
+            }
+        });
+        String localNodeId = meshService != null ? meshService.getLocalNodeId() : null;
+        messageWindow = new MeshChatWindow(history, MESH_CONVERSATION, localNodeId, historyExecutor,
+            (windowMessages, showNewest) -> runOnUiThread(() ->
+                messageAdapter.submitList(windowMessages, () -> {
+                    if (showNewest && !windowMessages.isEmpty()) {
+                        messagesRecyclerView.scrollToPosition(windowMessages.size() - 1);
+                    }
+                })));
+        messageWindow.loadLatest();
         
         // Network nodes RecyclerView
         nodesRecyclerView.setLayoutManager(new LinearLayoutManager(this, LinearLayoutManager.HORIZONTAL, false));
@@ -290,7 +327,7 @@ public class BluetoothMeshChatActivity extends AppCompatActivity
         Toast.makeText(this, "Connecting to " + device.getName() + "...", Toast.LENGTH_SHORT).show();
     }
 
-    private void connectToNode(BluetoothMeshNode node) {
+    private void connectToNode(MeshNodeSnapshot node) {
         // This is for connecting to nodes that are not directly connected
         // but reachable through the mesh network
         Toast.makeText(this, "Node: " + node.getDisplayName() + 
@@ -326,7 +363,7 @@ public class BluetoothMeshChatActivity extends AppCompatActivity
         StringBuilder topology = new StringBuilder();
         topology.append("Network Topology:\n\n");
         
-        for (BluetoothMeshNode node : networkNodes) {
+        for (MeshNodeSnapshot node : networkNodes) {
             topology.append("• ").append(node.getDisplayName()).append("\n");
             topology.append("  ").append(node.getConnectionInfo()).append("\n");
             topology.append("  Status: ").append(node.getStatus()).append("\n");
@@ -373,42 +410,40 @@ public class BluetoothMeshChatActivity extends AppCompatActivity
     public void onMessageReceived(BluetoothMeshMessage message) {
         Log.d(TAG, "Message received: " + message.getContent());
         
-        runOnUiThread(() -> {
-            messages.add(message);
-            messageAdapter.notifyItemInserted(messages.size() - 1);
-            messagesRecyclerView.scrollToPosition(messages.size() - 1);
-        });
+        messageWindow.add(message);
     }
 
     @Override
-    public void onNodeJoined(BluetoothMeshNode node) {
-        Log.d(TAG, "Node joined: " + node.getDisplayName());
+    public void onNetworkTopologyChanged(MeshTopologyNotifier.TopologyDiff diff) {
+        Log.d(TAG, "Network topology changed: " + diff);
         
         runOnUiThread(() -> {
-            Toast.makeText(this, node.getDisplayName() + " joined the network", Toast.LENGTH_SHORT).show();
-        });
-    }
-
-    @Override
-    public void onNodeLeft(BluetoothMeshNode node) {
-        Log.d(TAG, "Node left: " + node.getDisplayName());
-        
-        runOnUiThread(() -> {
-            Toast.makeText(this, node.getDisplayName() + " left the network", Toast.LENGTH_SHORT).show();
-        });
-    }
-
-    @Override
-    public void onNetworkTopologyChanged(List<BluetoothMeshNode> nodes) {
-        Log.d(TAG, "Network topology changed. Nodes: " + nodes.size());
-        
-        runOnUiThread(() -> {
-            networkNodes.clear();
-            networkNodes.addAll(nodes);
-            nodeAdapter.notifyDataSetChanged();
+            nodeAdapter.applyDiff(diff);
             updateUI();
+            
+            // One toast per diff, however many nodes came or went at once
+            String joined = describeNodes(diff.getAdded());
+            String left = describeNodes(diff.getRemoved());
+            if (joined != null) {
+                Toast.makeText(this, joined + " joined the network", Toast.LENGTH_SHORT).show();
+            } else if (left != null) {
+                Toast.makeText(this, left + " left the network", Toast.LENGTH_SHORT).show();
+            }
         });
     }
+    
+    private String describeNodes(List<MeshNodeSnapshot> nodes) {
+        List<MeshNodeSnapshot> others = new ArrayList<>();
+        for (MeshNodeSnapshot node : nodes) {
+            if (!node.getNodeId().equals(meshService.getLocalNodeId())) {
+                others.add(node);
+            }
+        }
+        if (others.isEmpty()) {
+            return null;
+        }
+        return others.size() == 1 ? others.get(0).getDisplayName() : others.size() + " nodes";
+    }
 
     @Override
     public void onConnectionStateChanged(int state) {
@@ -433,6 +468,35 @@ public class BluetoothMeshChatActivity extends AppCompatActivity
         });
     }
 
+    @Override
+    public void onDeliveryStatusChanged(String messageId, MeshReliableDelivery.DeliveryStatus status) {
+        Log.d(TAG, "Delivery status for " + messageId + ": " + status);
+        
+        if (status == MeshReliableDelivery.DeliveryStatus.FAILED) {
+            runOnUiThread(() -> {
+                Toast.makeText(this, "A direct message could not be delivered", Toast.LENGTH_SHORT).show();
+            });
+        }
+    }
+
+    @Override
+    public void onFileTransferProgress(MeshFileTransfer.FileInfo info, int chunksDone) {
+        Log.d(TAG, "Transfer " + info.getFileName() + ": " + chunksDone + "/" + info.getChunkCount());
+    }
+
+    @Override
+    public void onFileTransferFinished(MeshFileTransfer.FileInfo info, File file) {
+        Log.d(TAG, "Transfer " + info.getTransferId() + " finished: " + file);
+        
+        runOnUiThread(() -> {
+            if (file == null) {
+                Toast.makeText(this, "Transfer of " + info.getFileName() + " failed", Toast.LENGTH_SHORT).show();
+            } else if (!meshService.getLocalNodeId().equals(info.getSourceNodeId())) {
+                Toast.makeText(this, "Received " + info.getFileName(), Toast.LENGTH_SHORT).show();
+            }
+        });
+    }
+
     // BroadcastReceiver for device discovery
     private final BroadcastReceiver discoveryReceiver = new BroadcastReceiver() {
         public void onReceive(Context context, Intent intent) {
@@ -519,6 +583,10 @@ public class BluetoothMeshChatActivity extends AppCompatActivity
         if (meshService != null) {
             meshService.stop();
         }
+
+        // Writes out anything still pending before the history is closed
+        history.close();
+        historyExecutor.shutdown();
     }
 
     // Inner class for device adapter with mesh functionality
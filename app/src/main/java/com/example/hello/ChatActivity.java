@@ -13,10 +13,12 @@ import com.example.hello.models.Message;
 import com.example.hello.services.AIAssistantService;
 import com.google.android.material.appbar.MaterialToolbar;
 import com.google.firebase.auth.FirebaseAuth;
+import com.google.firebase.database.ChildEventListener;
 import com.google.firebase.database.DataSnapshot;
 import com.google.firebase.database.DatabaseError;
 import com.google.firebase.database.DatabaseReference;
 import com.google.firebase.database.FirebaseDatabase;
+import com.google.firebase.database.Query;
 import com.google.firebase.database.ValueEventListener;
 
 import java.util.ArrayList;
@@ -25,6 +27,11 @@ import java.util.List;
 import androidx.annotation.NonNull;
 
 public class ChatActivity extends AppCompatActivity {
+    // Messages are fetched a page at a time, newest first, by push key (which sorts by time)
+    private static final int PAGE_SIZE = 30;
+    // Rows past this are dropped from the far end; scrolling back fetches them again
+    private static final int MAX_LOADED_MESSAGES = 4 * PAGE_SIZE;
+
     private RecyclerView recyclerView;
     private MessageAdapter adapter;
     private List<Message> messageList;
@@ -35,6 +42,13 @@ public class ChatActivity extends AppCompatActivity {
     private String otherUserImageUrl;
     private AIAssistantService aiAssistant;
     private boolean isAIChat;
+    private Query newMessagesQuery;
+    private ChildEventListener newMessagesListener;
+    private boolean hasOlderMessages;
+    private boolean loadingOlderMessages;
+    // Set while the newest rows are trimmed for older history; new messages then wait to be fetched
+    private boolean hasNewerMessages;
+    private boolean loadingNewerMessages;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -78,6 +92,16 @@ public class ChatActivity extends AppCompatActivity {
         messageList = new ArrayList<>();
         adapter = new MessageAdapter(this, messageList, currentUserId, isGroup);
         recyclerView.setAdapter(adapter);
+        recyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+                if (dy < 0 && !recyclerView.canScrollVertically(-1)) {
+                    loadOlderMessages();
+                } else if (dy > 0 && !recyclerView.canScrollVertically(1)) {
+                    loadNewerMessages();
+                }
+            }
+        });
 
         // Set up send button
         sendButton.setOnClickListener(v -> sendMessage());
@@ -91,31 +115,206 @@ public class ChatActivity extends AppCompatActivity {
         }
     }
 
+    // Only the latest page is fetched up front; newer messages then stream in one by one
     private void loadMessages() {
-        messagesRef.addValueEventListener(new ValueEventListener() {
+        messagesRef.orderByKey().limitToLast(PAGE_SIZE).addListenerForSingleValueEvent(new ValueEventListener() {
             @Override
-            public void onDataChange(DataSnapshot snapshot) {
-                messageList.clear();
-                for (DataSnapshot messageSnapshot : snapshot.getChildren()) {
-                    Message message = messageSnapshot.getValue(Message.class);
-                    if (message != null) {
-                        messageList.add(message);
-                    }
-                }
-                adapter.notifyDataSetChanged();
+            public void onDataChange(@NonNull DataSnapshot snapshot) {
+                List<Message> page = readMessages(snapshot);
+                messageList.addAll(page);
+                adapter.notifyItemRangeInserted(0, page.size());
                 if (!messageList.isEmpty()) {
                     recyclerView.scrollToPosition(messageList.size() - 1);
                 }
+                hasOlderMessages = page.size() == PAGE_SIZE;
+                listenForNewMessages(page.isEmpty() ? null : page.get(page.size() - 1).getId());
             }
 
             @Override
-            public void onCancelled(DatabaseError error) {
+            public void onCancelled(@NonNull DatabaseError error) {
                 Toast.makeText(ChatActivity.this, 
                     "Error loading messages", Toast.LENGTH_SHORT).show();
             }
         });
     }
 
+    private void listenForNewMessages(String newestKey) {
+        newMessagesQuery = newestKey != null
+            ? messagesRef.orderByKey().startAfter(newestKey)
+            : messagesRef.orderByKey();
+        newMessagesListener = new ChildEventListener() {
+            @Override
+            public void onChildAdded(@NonNull DataSnapshot snapshot, String previousChildName) {
+                Message message = readMessage(snapshot);
+                if (message == null || hasNewerMessages) {
+                    // Older history is on screen; fetched with the rest on the way back down
+                    return;
+                }
+                messageList.add(message);
+                adapter.notifyItemInserted(messageList.size() - 1);
+                trimOldestMessages();
+                recyclerView.scrollToPosition(messageList.size() - 1);
+            }
+
+            @Override
+            public void onChildChanged(@NonNull DataSnapshot snapshot, String previousChildName) {
+                int position = indexOf(snapshot.getKey());
+                Message message = readMessage(snapshot);
+                if (position >= 0 && message != null) {
+                    messageList.set(position, message);
+                    adapter.notifyItemChanged(position);
+                }
+            }
+
+            @Override
+            public void onChildRemoved(@NonNull DataSnapshot snapshot) {
+                int position = indexOf(snapshot.getKey());
+                if (position >= 0) {
+                    messageList.remove(position);
+                    adapter.notifyItemRemoved(position);
+                }
+            }
+
+            @Override
+            public void onChildMoved(@NonNull DataSnapshot snapshot, String previousChildName) {
+                // Keys never change, so neither does the order
+            }
+
+            @Override
+            public void onCancelled(@NonNull DatabaseError error) {
+                Toast.makeText(ChatActivity.this, 
+                    "Error loading messages", Toast.LENGTH_SHORT).show();
+            }
+        };
+        newMessagesQuery.addChildEventListener(newMessagesListener);
+    }
+
+    // Fetches the page before the oldest message shown, when the list is scrolled to the top
+    private void loadOlderMessages() {
+        if (!hasOlderMessages || loadingOlderMessages || messageList.isEmpty()) {
+            return;
+        }
+        loadingOlderMessages = true;
+        String oldestKey = messageList.get(0).getId();
+        messagesRef.orderByKey().endBefore(oldestKey).limitToLast(PAGE_SIZE)
+            .addListenerForSingleValueEvent(new ValueEventListener() {
+                @Override
+                public void onDataChange(@NonNull DataSnapshot snapshot) {
+                    loadingOlderMessages = false;
+                    // Rows may have been trimmed while the page was on its way
+                    if (messageList.isEmpty() || !oldestKey.equals(messageList.get(0).getId())) {
+                        return;
+                    }
+                    List<Message> page = readMessages(snapshot);
+                    hasOlderMessages = page.size() == PAGE_SIZE;
+                    messageList.addAll(0, page);
+                    adapter.notifyItemRangeInserted(0, page.size());
+                    trimNewestMessages();
+                }
+
+                @Override
+                public void onCancelled(@NonNull DatabaseError error) {
+                    loadingOlderMessages = false;
+                    Toast.makeText(ChatActivity.this, 
+                        "Error loading messages", Toast.LENGTH_SHORT).show();
+                }
+            });
+    }
+
+    // Fetches the page after the newest message shown, when the list is scrolled back to the bottom
+    private void loadNewerMessages() {
+        if (!hasNewerMessages || loadingNewerMessages || messageList.isEmpty()) {
+            return;
+        }
+        loadingNewerMessages = true;
+        String newestKey = messageList.get(messageList.size() - 1).getId();
+        messagesRef.orderByKey().startAfter(newestKey).limitToFirst(PAGE_SIZE)
+            .addListenerForSingleValueEvent(new ValueEventListener() {
+                @Override
+                public void onDataChange(@NonNull DataSnapshot snapshot) {
+                    loadingNewerMessages = false;
+                    if (messageList.isEmpty() || !newestKey.equals(messageList.get(messageList.size() - 1).getId())) {
+                        return;
+                    }
+                    List<Message> page = readMessages(snapshot);
+                    // A short page reaches the newest message; the listener adds the ones after it
+                    hasNewerMessages = page.size() == PAGE_SIZE;
+                    int start = messageList.size();
+                    messageList.addAll(page);
+                    adapter.notifyItemRangeInserted(start, page.size());
+                    trimOldestMessages();
+                }
+
+                @Override
+                public void onCancelled(@NonNull DatabaseError error) {
+                    loadingNewerMessages = false;
+                    Toast.makeText(ChatActivity.this, 
+                        "Error loading messages", Toast.LENGTH_SHORT).show();
+                }
+            });
+    }
+
+    // Drops everything and starts again from the latest page
+    private void reloadLatestMessages() {
+        if (newMessagesListener != null) {
+            newMessagesQuery.removeEventListener(newMessagesListener);
+            newMessagesListener = null;
+        }
+        messageList.clear();
+        adapter.notifyDataSetChanged();
+        hasNewerMessages = false;
+        loadingNewerMessages = false;
+        loadingOlderMessages = false;
+        loadMessages();
+    }
+
+    private void trimNewestMessages() {
+        int excess = messageList.size() - MAX_LOADED_MESSAGES;
+        if (excess > 0) {
+            messageList.subList(messageList.size() - excess, messageList.size()).clear();
+            adapter.notifyItemRangeRemoved(messageList.size(), excess);
+            hasNewerMessages = true;
+        }
+    }
+
+    private void trimOldestMessages() {
+        int excess = messageList.size() - MAX_LOADED_MESSAGES;
+        if (excess > 0) {
+            messageList.subList(0, excess).clear();
+            adapter.notifyItemRangeRemoved(0, excess);
+            hasOlderMessages = true;
+        }
+    }
+
+    private List<Message> readMessages(DataSnapshot snapshot) {
+        List<Message> messages = new ArrayList<>();
+        for (DataSnapshot messageSnapshot : snapshot.getChildren()) {
+            Message message = readMessage(messageSnapshot);
+            if (message != null) {
+                messages.add(message);
+            }
+        }
+        return messages;
+    }
+
+    // The key is what pages are fetched by, so it is kept on the message
+    private Message readMessage(DataSnapshot snapshot) {
+        Message message = snapshot.getValue(Message.class);
+        if (message != null) {
+            message.setId(snapshot.getKey());
+        }
+        return message;
+    }
+
+    private int indexOf(String key) {
+        for (int i = messageList.size() - 1; i >= 0; i--) {
+            if (messageList.get(i).getId().equals(key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
     private void sendMessage() {
         String content = messageInput.getText().toString().trim();
         if (content.isEmpty()) return;
@@ -125,6 +324,10 @@ public class ChatActivity extends AppCompatActivity {
             Toast.makeText(this, "Could not create message", Toast.LENGTH_SHORT).show();
             return;
         }
+        if (hasNewerMessages) {
+            // Jump back to the latest messages so the one being sent shows up
+            reloadLatestMessages();
+        }
 
         // Get current user's name and profile image
         FirebaseDatabase.getInstance().getReference("Users")
@@ -191,6 +394,10 @@ public class ChatActivity extends AppCompatActivity {
     protected void onDestroy() {
         super.onDestroy();
         
+        if (newMessagesListener != null) {
+            newMessagesQuery.removeEventListener(newMessagesListener);
+        }
+        
         // Clean up AI Assistant resources if needed
         if (isAIChat && aiAssistant != null) {
             aiAssistant.shutdown();
@@ -15,7 +15,9 @@ import androidx.recyclerview.widget.RecyclerView;
 
 import com.example.hello.R;
 
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 public class BluetoothDeviceAdapter extends RecyclerView.Adapter<BluetoothDeviceAdapter.DeviceViewHolder> {
 
@@ -26,6 +28,7 @@ public class BluetoothDeviceAdapter extends RecyclerView.Adapter<BluetoothDevice
     private final List<BluetoothDevice> devices;
     private final OnDeviceClickListener listener;
     private final Context context;
+    private final Set<String> connectedAddresses = new HashSet<>();
 
     public BluetoothDeviceAdapter(List<BluetoothDevice> devices, OnDeviceClickListener listener) {
         this.devices = devices;
@@ -39,6 +42,15 @@ public class BluetoothDeviceAdapter extends RecyclerView.Adapter<BluetoothDevice
         this.context = context;
     }
 
+    /**
+     * Mark the devices that currently have an open chat session.
+     */
+    public void setConnectedAddresses(Set<String> addresses) {
+        connectedAddresses.clear();
+        connectedAddresses.addAll(addresses);
+        notifyDataSetChanged();
+    }
+
     @NonNull
     @Override
     public DeviceViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
@@ -50,7 +62,7 @@ public class BluetoothDeviceAdapter extends RecyclerView.Adapter<BluetoothDevice
     @Override
     public void onBindViewHolder(@NonNull DeviceViewHolder holder, int position) {
         BluetoothDevice device = devices.get(position);
-        holder.bind(device, listener);
+        holder.bind(device, connectedAddresses.contains(device.getAddress()), listener);
     }
 
     @Override
@@ -74,7 +86,7 @@ public class BluetoothDeviceAdapter extends RecyclerView.Adapter<BluetoothDevice
             deviceIcon = itemView.findViewById(R.id.deviceIcon);
         }
 
-        public void bind(BluetoothDevice device, OnDeviceClickListener listener) {
+        public void bind(BluetoothDevice device, boolean connected, OnDeviceClickListener listener) {
             // Set device name
             String name = null;
             if (ActivityCompat.checkSelfPermission(itemView.getContext(), android.Manifest.permission.BLUETOOTH_CONNECT) == PackageManager.PERMISSION_GRANTED) {
@@ -91,7 +103,10 @@ public class BluetoothDeviceAdapter extends RecyclerView.Adapter<BluetoothDevice
             deviceAddress.setText(device.getAddress());
 
             // Set device status
-            if (device.getBondState() == BluetoothDevice.BOND_BONDED) {
+            if (connected) {
+                deviceStatus.setText("Chatting");
+                deviceStatus.setTextColor(itemView.getContext().getColor(R.color.success));
+            } else if (device.getBondState() == BluetoothDevice.BOND_BONDED) {
                 deviceStatus.setText("Paired");
                 deviceStatus.setTextColor(itemView.getContext().getColor(R.color.success));
             } else {
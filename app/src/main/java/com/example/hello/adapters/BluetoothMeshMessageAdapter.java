@@ -1,52 +1,67 @@
 package com.example.hello.adapters;
 
-import android.content.Context;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.TextView;
 
 import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.AsyncListDiffer;
+import androidx.recyclerview.widget.DiffUtil;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.example.hello.R;
-import com.example.hello.models.BluetoothMeshMessage;
+import com.example.hello.models.MeshMessageSnapshot;
 
-import java.text.SimpleDateFormat;
-import java.util.Date;
 import java.util.List;
-import java.util.Locale;
 
 /**
  * BluetoothMeshMessageAdapter - RecyclerView adapter for mesh network messages
  * 
  * This adapter displays chat messages in the mesh network with different
  * layouts for incoming and outgoing messages, plus system messages.
+ *
+ * It shows immutable snapshots whose display strings were built off the main
+ * thread, and is handed a whole new list on every change; the difference to
+ * the list on screen is worked out in the background, so only the rows that
+ * changed are rebound.
  */
 public class BluetoothMeshMessageAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
     private static final int TYPE_OUTGOING = 1;
     private static final int TYPE_INCOMING = 2;
     private static final int TYPE_SYSTEM = 3;
 
-    private final List<BluetoothMeshMessage> messages;
-    private final SimpleDateFormat timeFormat;
+    private static final DiffUtil.ItemCallback<MeshMessageSnapshot> DIFF_CALLBACK =
+            new DiffUtil.ItemCallback<MeshMessageSnapshot>() {
+        @Override
+        public boolean areItemsTheSame(@NonNull MeshMessageSnapshot oldItem, @NonNull MeshMessageSnapshot newItem) {
+            return oldItem.isSameMessage(newItem);
+        }
+
+        @Override
+        public boolean areContentsTheSame(@NonNull MeshMessageSnapshot oldItem, @NonNull MeshMessageSnapshot newItem) {
+            return oldItem.equals(newItem);
+        }
+    };
 
-    public BluetoothMeshMessageAdapter(List<BluetoothMeshMessage> messages) {
-        this.messages = messages;
-        this.timeFormat = new SimpleDateFormat("HH:mm", Locale.getDefault());
+    private final AsyncListDiffer<MeshMessageSnapshot> differ = new AsyncListDiffer<>(this, DIFF_CALLBACK);
+
+    /**
+     * Show a new list of messages, oldest first. It must not be modified
+     * afterwards. {@code onCommitted} runs once it is on screen.
+     */
+    public void submitList(List<MeshMessageSnapshot> messages, Runnable onCommitted) {
+        differ.submitList(messages, onCommitted);
     }
 
     @Override
     public int getItemViewType(int position) {
-        BluetoothMeshMessage message = messages.get(position);
+        MeshMessageSnapshot message = differ.getCurrentList().get(position);
         
-        if (!message.isChatMessage()) {
+        if (message.isSystem()) {
             return TYPE_SYSTEM;
         }
-        
-        // For now, treat all messages as incoming since we don't have user identification
-        // In a real implementation, you'd check if sourceNodeId matches current user
-        return TYPE_INCOMING;
+        return message.isOutgoing() ? TYPE_OUTGOING : TYPE_INCOMING;
     }
 
     @NonNull
@@ -74,7 +89,7 @@ public class BluetoothMeshMessageAdapter extends RecyclerView.Adapter<RecyclerVi
 
     @Override
     public void onBindViewHolder(@NonNull RecyclerView.ViewHolder holder, int position) {
-        BluetoothMeshMessage message = messages.get(position);
+        MeshMessageSnapshot message = differ.getCurrentList().get(position);
         
         switch (holder.getItemViewType()) {
             case TYPE_OUTGOING:
@@ -91,65 +106,38 @@ public class BluetoothMeshMessageAdapter extends RecyclerView.Adapter<RecyclerVi
         }
     }
 
-    private void bindOutgoingMessage(OutgoingMessageViewHolder holder, BluetoothMeshMessage message) {
-        holder.messageContent.setText(message.getContent());
-        holder.timestamp.setText(timeFormat.format(new Date(message.getTimestamp())));
-        
-        // Show hop count if message was forwarded
-        if (message.getHopCount() > 0) {
-            holder.hopCount.setVisibility(View.VISIBLE);
-            holder.hopCount.setText(message.getHopCount() + " hop" + (message.getHopCount() > 1 ? "s" : ""));
-        } else {
-            holder.hopCount.setVisibility(View.GONE);
-        }
+    private void bindOutgoingMessage(OutgoingMessageViewHolder holder, MeshMessageSnapshot message) {
+        holder.messageContent.setText(message.getText());
+        holder.timestamp.setText(message.getTimeText());
+        bindHopCount(holder.hopCount, message);
     }
 
-    private void bindIncomingMessage(IncomingMessageViewHolder holder, BluetoothMeshMessage message) {
-        holder.messageContent.setText(message.getContent());
-        holder.timestamp.setText(timeFormat.format(new Date(message.getTimestamp())));
-        
-        // Show sender name if available
-        if (message.getSenderName() != null && !message.getSenderName().isEmpty()) {
-            holder.senderName.setText(message.getSenderName());
-            holder.senderName.setVisibility(View.VISIBLE);
-        } else {
-            holder.senderName.setText("Unknown Device");
-            holder.senderName.setVisibility(View.VISIBLE);
-        }
-        
-        // Show hop count if message was forwarded
-        if (message.getHopCount() > 0) {
-            holder.hopCount.setVisibility(View.VISIBLE);
-            holder.hopCount.setText("via " + message.getHopCount() + " hop" + (message.getHopCount() > 1 ? "s" : ""));
+    private void bindIncomingMessage(IncomingMessageViewHolder holder, MeshMessageSnapshot message) {
+        holder.messageContent.setText(message.getText());
+        holder.timestamp.setText(message.getTimeText());
+        holder.senderName.setText(message.getSenderText());
+        holder.senderName.setVisibility(View.VISIBLE);
+        bindHopCount(holder.hopCount, message);
+    }
+
+    // Shown only if the message was forwarded
+    private void bindHopCount(TextView hopCount, MeshMessageSnapshot message) {
+        if (message.getHopText() != null) {
+            hopCount.setVisibility(View.VISIBLE);
+            hopCount.setText(message.getHopText());
         } else {
-            holder.hopCount.setVisibility(View.GONE);
+            hopCount.setVisibility(View.GONE);
         }
     }
 
-    private void bindSystemMessage(SystemMessageViewHolder holder, BluetoothMeshMessage message) {
-        String systemText = "";
-        
-        switch (message.getType()) {
-            case "DISCOVERY":
-                systemText = "New device discovered in network";
-                break;
-            case "TOPOLOGY":
-                systemText = "Network topology updated";
-                break;
-            case "HEARTBEAT":
-                systemText = "Device heartbeat received";
-                break;
-            default:
-                systemText = "System message: " + message.getType();
-        }
-        
-        holder.systemMessage.setText(systemText);
-        holder.timestamp.setText(timeFormat.format(new Date(message.getTimestamp())));
+    private void bindSystemMessage(SystemMessageViewHolder holder, MeshMessageSnapshot message) {
+        holder.systemMessage.setText(message.getText());
+        holder.timestamp.setText(message.getTimeText());
     }
 
     @Override
     public int getItemCount() {
-        return messages.size();
+        return differ.getCurrentList().size();
     }
 
     // ViewHolder for outgoing messages
@@ -11,7 +11,8 @@ import androidx.core.content.ContextCompat;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.example.hello.R;
-import com.example.hello.models.BluetoothMeshNode;
+import com.example.hello.models.MeshNodeSnapshot;
+import com.example.hello.services.mesh.MeshTopologyNotifier;
 
 import java.util.List;
 
@@ -20,21 +21,59 @@ import java.util.List;
  * 
  * This adapter displays the nodes in the mesh network with their
  * connection status, hop distance, and other network information.
+ * Topology diffs are applied row by row, so only the nodes that changed
+ * are rebound.
  */
 public class BluetoothMeshNodeAdapter extends RecyclerView.Adapter<BluetoothMeshNodeAdapter.NodeViewHolder> {
     
     public interface OnNodeClickListener {
-        void onNodeClick(BluetoothMeshNode node);
+        void onNodeClick(MeshNodeSnapshot node);
     }
     
-    private final List<BluetoothMeshNode> nodes;
+    private final List<MeshNodeSnapshot> nodes;
     private final OnNodeClickListener listener;
 
-    public BluetoothMeshNodeAdapter(List<BluetoothMeshNode> nodes, OnNodeClickListener listener) {
+    public BluetoothMeshNodeAdapter(List<MeshNodeSnapshot> nodes, OnNodeClickListener listener) {
         this.nodes = nodes;
         this.listener = listener;
     }
 
+    /**
+     * Bring the list up to date with a topology diff, notifying only the
+     * rows that were removed, changed or inserted.
+     */
+    public void applyDiff(MeshTopologyNotifier.TopologyDiff diff) {
+        for (MeshNodeSnapshot node : diff.getRemoved()) {
+            int position = indexOf(node.getNodeId());
+            if (position >= 0) {
+                nodes.remove(position);
+                notifyItemRemoved(position);
+            }
+        }
+        for (MeshNodeSnapshot node : diff.getChanged()) {
+            int position = indexOf(node.getNodeId());
+            if (position >= 0) {
+                nodes.set(position, node);
+                notifyItemChanged(position);
+            }
+        }
+        for (MeshNodeSnapshot node : diff.getAdded()) {
+            if (indexOf(node.getNodeId()) < 0) {
+                nodes.add(node);
+                notifyItemInserted(nodes.size() - 1);
+            }
+        }
+    }
+
+    private int indexOf(String nodeId) {
+        for (int i = 0; i < nodes.size(); i++) {
+            if (nodes.get(i).getNodeId().equals(nodeId)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
     @NonNull
     @Override
     public NodeViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
@@ -45,7 +84,7 @@ public class BluetoothMeshNodeAdapter extends RecyclerView.Adapter<BluetoothMesh
 
     @Override
     public void onBindViewHolder(@NonNull NodeViewHolder holder, int position) {
-        BluetoothMeshNode node = nodes.get(position);
+        MeshNodeSnapshot node = nodes.get(position);
         
         // Set device name
         holder.deviceName.setText(node.getDisplayName());
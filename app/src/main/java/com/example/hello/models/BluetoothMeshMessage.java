@@ -9,6 +9,15 @@ import java.io.Serializable;
  * routing information, message content, and metadata for network operations.
  */
 public class BluetoothMeshMessage implements Serializable {
+    // Priority classes, least urgent first. PRIORITY_DEFAULT leaves the
+    // class to the message type: file chunks are bulk, routing and
+    // housekeeping are control, everything else is normal.
+    public static final int PRIORITY_DEFAULT = 0;
+    public static final int PRIORITY_BULK = 1;
+    public static final int PRIORITY_NORMAL = 2;
+    public static final int PRIORITY_CONTROL = 3;
+    public static final int PRIORITY_EMERGENCY = 4;
+
     private String messageId;
     private String type; // CHAT, DISCOVERY, TOPOLOGY, ROUTE_REQ, ROUTE_REPLY, HEARTBEAT
     private String sourceNodeId;
@@ -18,6 +27,9 @@ public class BluetoothMeshMessage implements Serializable {
     private int hopCount;
     private String senderName;
     private String senderAddress;
+    private byte[] payload; // raw bytes, e.g. one chunk of a file transfer
+    private int priority; // PRIORITY_*, kept by every relay
+    private transient int wireLength; // size of the frame it arrived in, 0 if built locally
 
     // Default constructor for Gson
     public BluetoothMeshMessage() {}
@@ -106,6 +118,30 @@ public class BluetoothMeshMessage implements Serializable {
         this.senderAddress = senderAddress;
     }
 
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    public void setPayload(byte[] payload) {
+        this.payload = payload;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
+    public int getWireLength() {
+        return wireLength;
+    }
+
+    public void setWireLength(int wireLength) {
+        this.wireLength = wireLength;
+    }
+
     // Utility methods
     public boolean isChatMessage() {
         return "CHAT".equals(type);
@@ -129,7 +165,9 @@ public class BluetoothMeshMessage implements Serializable {
                 ", content='" + content + '\'' +
                 ", timestamp=" + timestamp +
                 ", hopCount=" + hopCount +
+                ", priority=" + priority +
                 ", senderName='" + senderName + '\'' +
+                ", payloadLength=" + (payload != null ? payload.length : 0) +
                 '}';
     }
 }
@@ -0,0 +1,147 @@
+package com.example.hello.models;
+
+import java.text.DateFormat;
+import java.util.Date;
+
+/**
+ * MeshMessageSnapshot - Immutable copy of a mesh message as it should be displayed
+ *
+ * The text shown for a row (time, hop label, sender, system text) is worked
+ * out once when the snapshot is built, off the main thread, so binding a
+ * row is only a few setText calls. Two snapshots are equal when everything
+ * shown about the message is the same.
+ */
+public final class MeshMessageSnapshot {
+    private final String messageId;
+    private final boolean outgoing;
+    private final boolean system;
+    private final String text;
+    private final long timestamp;
+    private final String timeText;
+    private final String hopText;
+    private final String senderText;
+
+    /**
+     * @param localNodeId this device's node id; its own messages, including
+     *                    those sent under its node ids from earlier starts,
+     *                    show as outgoing
+     * @param timeFormat  not thread-safe, so one per building thread
+     */
+    public MeshMessageSnapshot(BluetoothMeshMessage message, String localNodeId, DateFormat timeFormat) {
+        this.messageId = message.getMessageId();
+        this.system = !message.isChatMessage();
+        this.outgoing = !system && localNodeId != null && message.getSourceNodeId() != null
+                && deviceIdOf(localNodeId).equals(deviceIdOf(message.getSourceNodeId()));
+        this.text = system ? systemText(message.getType()) : message.getContent();
+        this.timestamp = message.getTimestamp();
+        this.timeText = timeFormat.format(new Date(message.getTimestamp()));
+        this.hopText = hopText(message.getHopCount(), outgoing);
+        this.senderText = message.getSenderName() != null && !message.getSenderName().isEmpty()
+                ? message.getSenderName() : "Unknown Device";
+    }
+
+    // Node ids are a per-device id, then the time the mesh was started
+    private static String deviceIdOf(String nodeId) {
+        int separator = nodeId.lastIndexOf('_');
+        return separator > 0 ? nodeId.substring(0, separator) : nodeId;
+    }
+
+    private static String systemText(String type) {
+        if (type == null) {
+            return "System message";
+        }
+        switch (type) {
+            case "DISCOVERY":
+                return "New device discovered in network";
+            case "TOPOLOGY":
+                return "Network topology updated";
+            case "HEARTBEAT":
+                return "Device heartbeat received";
+            default:
+                return "System message: " + type;
+        }
+    }
+
+    // Null when the message came straight from a neighbour
+    private static String hopText(int hopCount, boolean outgoing) {
+        if (hopCount <= 0) {
+            return null;
+        }
+        String hops = hopCount + " hop" + (hopCount > 1 ? "s" : "");
+        return outgoing ? hops : "via " + hops;
+    }
+
+    public String getMessageId() {
+        return messageId;
+    }
+
+    public boolean isOutgoing() {
+        return outgoing;
+    }
+
+    public boolean isSystem() {
+        return system;
+    }
+
+    /** The message content, or the description of a system message. */
+    public String getText() {
+        return text;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public String getTimeText() {
+        return timeText;
+    }
+
+    public String getHopText() {
+        return hopText;
+    }
+
+    public String getSenderText() {
+        return senderText;
+    }
+
+    public boolean isSameMessage(MeshMessageSnapshot other) {
+        return equal(messageId, other.messageId);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) return true;
+        if (obj == null || getClass() != obj.getClass()) return false;
+        MeshMessageSnapshot that = (MeshMessageSnapshot) obj;
+        return outgoing == that.outgoing
+                && system == that.system
+                && timestamp == that.timestamp
+                && equal(messageId, that.messageId)
+                && equal(text, that.text)
+                && timeText.equals(that.timeText)
+                && equal(hopText, that.hopText)
+                && senderText.equals(that.senderText);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = messageId != null ? messageId.hashCode() : 0;
+        result = 31 * result + (text != null ? text.hashCode() : 0);
+        result = 31 * result + (int) (timestamp ^ (timestamp >>> 32));
+        return result;
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    @Override
+    public String toString() {
+        return "MeshMessageSnapshot{" +
+                "messageId='" + messageId + '\'' +
+                ", outgoing=" + outgoing +
+                ", system=" + system +
+                ", timestamp=" + timestamp +
+                '}';
+    }
+}
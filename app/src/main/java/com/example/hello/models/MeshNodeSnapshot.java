@@ -0,0 +1,122 @@
+package com.example.hello.models;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * MeshNodeSnapshot - Immutable copy of a node as it should be displayed
+ *
+ * The mesh keeps updating its BluetoothMeshNode objects on its own thread,
+ * so the UI is handed snapshots instead. Two snapshots are equal when
+ * everything shown about the node is the same; the last-seen time is left
+ * out so that heartbeats alone do not rebind a row.
+ */
+public final class MeshNodeSnapshot {
+    private final String nodeId;
+    private final String displayName;
+    private final String bluetoothAddress;
+    private final boolean directlyConnected;
+    private final int hopDistance;
+    private final String nextHopNodeId;
+    private final List<String> connectedNodes;
+    private final BluetoothMeshNode.NodeStatus status;
+    private final String connectionInfo;
+    private final long lastSeen;
+
+    public MeshNodeSnapshot(BluetoothMeshNode node) {
+        this.nodeId = node.getNodeId();
+        this.displayName = node.getDisplayName();
+        this.bluetoothAddress = node.getBluetoothAddress();
+        this.directlyConnected = node.isDirectlyConnected();
+        this.hopDistance = node.getHopDistance();
+        this.nextHopNodeId = node.getNextHopNodeId();
+        this.connectedNodes = Collections.unmodifiableList(new ArrayList<>(node.getConnectedNodes()));
+        this.status = node.getStatus();
+        this.connectionInfo = node.getConnectionInfo();
+        this.lastSeen = node.getLastSeen();
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public String getDisplayName() {
+        return displayName;
+    }
+
+    public String getBluetoothAddress() {
+        return bluetoothAddress;
+    }
+
+    public boolean isDirectlyConnected() {
+        return directlyConnected;
+    }
+
+    public int getHopDistance() {
+        return hopDistance;
+    }
+
+    public String getNextHopNodeId() {
+        return nextHopNodeId;
+    }
+
+    public List<String> getConnectedNodes() {
+        return connectedNodes;
+    }
+
+    public BluetoothMeshNode.NodeStatus getStatus() {
+        return status;
+    }
+
+    public String getConnectionInfo() {
+        return connectionInfo;
+    }
+
+    public long getLastSeen() {
+        return lastSeen;
+    }
+
+    public boolean isSameNode(MeshNodeSnapshot other) {
+        return nodeId.equals(other.nodeId);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) return true;
+        if (obj == null || getClass() != obj.getClass()) return false;
+        MeshNodeSnapshot that = (MeshNodeSnapshot) obj;
+        return directlyConnected == that.directlyConnected
+                && hopDistance == that.hopDistance
+                && nodeId.equals(that.nodeId)
+                && displayName.equals(that.displayName)
+                && equal(bluetoothAddress, that.bluetoothAddress)
+                && equal(nextHopNodeId, that.nextHopNodeId)
+                && connectedNodes.equals(that.connectedNodes)
+                && status == that.status;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = nodeId.hashCode();
+        result = 31 * result + displayName.hashCode();
+        result = 31 * result + hopDistance;
+        result = 31 * result + (status != null ? status.hashCode() : 0);
+        return result;
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    @Override
+    public String toString() {
+        return "MeshNodeSnapshot{" +
+                "nodeId='" + nodeId + '\'' +
+                ", displayName='" + displayName + '\'' +
+                ", hopDistance=" + hopDistance +
+                ", status=" + status +
+                ", connectedNodes=" + connectedNodes.size() +
+                '}';
+    }
+}
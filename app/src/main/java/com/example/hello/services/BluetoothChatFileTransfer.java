@@ -0,0 +1,675 @@
+package com.example.hello.services;
+
+import android.util.Log;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * BluetoothChatFileTransfer - Streaming, resumable file transfer with one peer
+ *
+ * The sender hashes the file with SHA-256 in the background and then
+ * announces it with a FILE_OFFER. The receiver answers with a FILE_ACCEPT carrying how many
+ * bytes it already holds in the part file from an earlier attempt, and the
+ * sender streams the rest as FILE_DATA frames straight from disk. RFCOMM is
+ * a reliable, ordered stream, so there are no per-chunk acknowledgements:
+ * the link is kept full and the receiver writes each chunk to the part file
+ * as it arrives. Once every byte is there the receiver checks the whole
+ * file against the hash from the offer and reports the result with a
+ * FILE_DONE.
+ *
+ * Both directions go through one fixed {@link #CHUNK_SIZE} buffer each, so
+ * a multi-megabyte photo never costs more heap than a chunk. Outgoing files
+ * are sent one after another; text frames queued in the meantime go out
+ * between chunks.
+ *
+ * One instance is kept per peer and outlives its sessions; each session
+ * receives through a {@link Receiver} of its own. When a session drops,
+ * incoming part files stay on disk and outgoing files are offered again on
+ * the next session, picking up at the receiver's offset.
+ *
+ * Chunks are written only by the session's writer thread and received only
+ * by its reader thread; the other methods may be called from any thread.
+ * Hashing a whole file takes seconds for the largest ones, so it runs
+ * through {@link TransferActions#runInBackground} and neither session
+ * thread, nor the text queued behind it, waits for it.
+ */
+public class BluetoothChatFileTransfer {
+    private static final String TAG = "BluetoothChatFileTransfer";
+
+    public static final int CHUNK_SIZE = 16 * 1024;
+    public static final long MAX_FILE_SIZE = 256L * 1024 * 1024;
+    // Report progress at most this often so a fast link does not flood the UI
+    public static final long PROGRESS_INTERVAL_BYTES = 64 * 1024;
+    private static final String PART_SUFFIX = ".part";
+
+    /**
+     * Operations the transfer needs from the session that carries it.
+     */
+    interface TransferActions {
+        /** Queue a control frame on the current session, never dropped; false if there is none. */
+        boolean send(BluetoothChatFrame frame);
+        /** Chunks are ready to write; wake the session's writer if it is idle. */
+        void wakeWriter();
+        /** Run blocking file work, such as hashing, off the session's threads. */
+        void runInBackground(Runnable task);
+        void onProgress(FileInfo info, long bytesDone);
+        /** The transfer ended; {@code file} is the received or sent file, or null if it failed. */
+        void onFinished(FileInfo info, File file);
+    }
+
+    /**
+     * Description of a file being transferred, sent as JSON in the offer.
+     */
+    public static final class FileInfo {
+        private String id;
+        private String name;
+        private String mime;
+        private long size;
+        private String sha256;
+        private transient boolean outgoing;
+
+        public String getTransferId() {
+            return id;
+        }
+
+        public String getFileName() {
+            return name;
+        }
+
+        public String getMimeType() {
+            return mime;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public boolean isOutgoing() {
+            return outgoing;
+        }
+    }
+
+    // Body of FILE_ACCEPT, FILE_DONE and FILE_CANCEL
+    static final class Reply {
+        String id;
+        long offset;
+        boolean ok;
+    }
+
+    private static final class Outgoing {
+        final FileInfo info;
+        final File file;
+        final RandomAccessFile input;
+        boolean offered;
+        boolean accepted;
+        long position;
+        long reportedAt;
+
+        Outgoing(FileInfo info, File file, RandomAccessFile input) {
+            this.info = info;
+            this.file = file;
+            this.input = input;
+        }
+    }
+
+    private static final class Incoming {
+        final FileInfo info;
+        final File partFile;
+        final RandomAccessFile output;
+        long received;
+        long reportedAt;
+
+        Incoming(FileInfo info, File partFile, RandomAccessFile output) {
+            this.info = info;
+            this.partFile = partFile;
+            this.output = output;
+        }
+    }
+
+    private final File directory;
+    private final TransferActions actions;
+    private final Gson gson;
+    // Writer thread only
+    private final byte[] sendBuffer = new byte[CHUNK_SIZE];
+
+    // In the order they were queued; only the first one streams
+    private final Map<String, Outgoing> outgoing = new LinkedHashMap<>();
+    // Received in full and being hashed; a repeated offer waits for the FILE_DONE
+    private final Set<String> verifying = new HashSet<>();
+
+    BluetoothChatFileTransfer(File directory, TransferActions actions, Gson gson) {
+        this.directory = directory;
+        this.actions = actions;
+        this.gson = gson;
+    }
+
+    // ---- Sender side ----
+
+    /**
+     * Queue a file for this peer. It is hashed in the background and then
+     * offered by the writer thread, so this returns at once.
+     *
+     * @return the queued file, or null if it cannot be read or is too large
+     */
+    public FileInfo send(File file, String mimeType) {
+        if (!file.isFile() || file.length() > MAX_FILE_SIZE) {
+            Log.w(TAG, "Not sending " + file + ": missing or larger than " + MAX_FILE_SIZE);
+            return null;
+        }
+        RandomAccessFile input;
+        try {
+            input = new RandomAccessFile(file, "r");
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to open " + file, e);
+            return null;
+        }
+
+        FileInfo info = new FileInfo();
+        info.id = UUID.randomUUID().toString();
+        info.name = file.getName();
+        info.mime = mimeType;
+        info.size = file.length();
+        info.outgoing = true;
+        Outgoing out = new Outgoing(info, file, input);
+        synchronized (this) {
+            outgoing.put(info.id, out);
+        }
+        actions.runInBackground(() -> hash(out));
+        return info;
+    }
+
+    /**
+     * Stop sending a file and tell the receiver, which drops its part file.
+     */
+    public void cancel(String transferId) {
+        Outgoing out;
+        synchronized (this) {
+            out = outgoing.remove(transferId);
+        }
+        if (out != null) {
+            closeQuietly(out.input);
+            actions.send(reply(BluetoothChatFrame.TYPE_FILE_CANCEL, transferId, 0, false));
+            actions.onFinished(out.info, null);
+        }
+    }
+
+    /**
+     * Whether {@link #writeNext} has anything to do: a hashed file to offer
+     * or accepted bytes to stream.
+     */
+    synchronized boolean hasPendingWrites() {
+        Outgoing out = head();
+        if (out == null) {
+            return false;
+        }
+        return out.offered ? out.accepted && out.position < out.info.size : out.info.sha256 != null;
+    }
+
+    /**
+     * Write the next offer or chunk for the file at the head of the queue.
+     * Writer thread only.
+     *
+     * @return false if there was nothing to write
+     */
+    boolean writeNext(DataOutputStream stream) throws IOException {
+        Outgoing out;
+        long position;
+        boolean offer;
+        synchronized (this) {
+            out = head();
+            if (out == null) {
+                return false;
+            }
+            offer = !out.offered;
+            position = out.position;
+            if (offer ? out.info.sha256 == null : !out.accepted || position >= out.info.size) {
+                return false;
+            }
+        }
+
+        if (offer) {
+            new BluetoothChatFrame(BluetoothChatFrame.TYPE_FILE_OFFER,
+                    gson.toJson(out.info).getBytes(StandardCharsets.UTF_8)).writeTo(stream);
+            synchronized (this) {
+                out.offered = true;
+            }
+            return true;
+        }
+
+        int count;
+        try {
+            out.input.seek(position);
+            count = out.input.read(sendBuffer, 0, (int) Math.min(CHUNK_SIZE, out.info.size - position));
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to read " + out.file, e);
+            count = -1;
+        }
+        if (count <= 0) {
+            // The file shrank or went away under us
+            fail(out);
+            return true;
+        }
+
+        byte[] id = out.info.id.getBytes(StandardCharsets.UTF_8);
+        BluetoothChatFrame.writeHeader(stream, BluetoothChatFrame.TYPE_FILE_DATA, 2 + id.length + count);
+        stream.writeShort(id.length);
+        stream.write(id);
+        stream.write(sendBuffer, 0, count);
+
+        boolean report;
+        synchronized (this) {
+            if (out.position != position) {
+                // Re-accepted at another offset while we were writing
+                return true;
+            }
+            out.position += count;
+            report = out.position - out.reportedAt >= PROGRESS_INTERVAL_BYTES || out.position == out.info.size;
+            if (report) {
+                out.reportedAt = out.position;
+            }
+        }
+        if (report) {
+            actions.onProgress(out.info, position + count);
+        }
+        return true;
+    }
+
+    /**
+     * A new session to this peer is open: offer every unfinished outgoing
+     * file again so it resumes from the receiver's offset.
+     */
+    void onSessionStarted() {
+        synchronized (this) {
+            for (Outgoing out : outgoing.values()) {
+                out.offered = false;
+                out.accepted = false;
+            }
+        }
+        actions.wakeWriter();
+    }
+
+    // ---- Receiver side ----
+
+    /**
+     * Start receiving files on a new session. Close the receiver when the
+     * session's reader ends.
+     */
+    Receiver newReceiver() {
+        return new Receiver();
+    }
+
+    /**
+     * Give up on everything, e.g. when the service stops. Part files are
+     * kept so a later session can still resume them.
+     */
+    void close() {
+        List<Outgoing> abandoned;
+        synchronized (this) {
+            abandoned = new ArrayList<>(outgoing.values());
+            outgoing.clear();
+        }
+        for (Outgoing out : abandoned) {
+            closeQuietly(out.input);
+        }
+    }
+
+    private void handleAccept(Reply reply) {
+        Outgoing out;
+        synchronized (this) {
+            out = reply != null ? outgoing.get(reply.id) : null;
+            if (out == null) {
+                return;
+            }
+            out.accepted = true;
+            out.position = Math.max(0, Math.min(reply.offset, out.info.size));
+            out.reportedAt = out.position;
+        }
+        actions.wakeWriter();
+    }
+
+    private void handleDone(Reply reply) {
+        Outgoing out;
+        synchronized (this) {
+            out = reply != null ? outgoing.remove(reply.id) : null;
+        }
+        if (out == null) {
+            return;
+        }
+        closeQuietly(out.input);
+        if (!reply.ok) {
+            Log.w(TAG, out.info.name + " failed verification at the receiver");
+        }
+        actions.onFinished(out.info, reply.ok ? out.file : null);
+        actions.wakeWriter();
+    }
+
+    // Only the outgoing half; a receiver cancels its own incoming file
+    private void cancelOutgoing(String id) {
+        Outgoing out;
+        synchronized (this) {
+            out = outgoing.remove(id);
+        }
+        if (out != null) {
+            closeQuietly(out.input);
+            actions.onFinished(out.info, null);
+            actions.wakeWriter();
+        }
+    }
+
+    // In the background, once a receiver has every byte
+    private void verify(Incoming in) {
+        String digest = null;
+        try (RandomAccessFile file = new RandomAccessFile(in.partFile, "r")) {
+            digest = sha256(file, new byte[CHUNK_SIZE]);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to verify " + in.partFile, e);
+        }
+
+        File target = uniqueTarget(in.info.name);
+        boolean ok = in.info.sha256.equalsIgnoreCase(digest) && in.partFile.renameTo(target);
+        if (!ok) {
+            Log.w(TAG, "Received " + in.info.name + " does not match its hash");
+            // A corrupt prefix would only fail again on resume
+            in.partFile.delete();
+        }
+        synchronized (this) {
+            verifying.remove(in.info.id);
+        }
+        actions.send(reply(BluetoothChatFrame.TYPE_FILE_DONE, in.info.id, in.received, ok));
+        actions.onProgress(in.info, in.received);
+        actions.onFinished(in.info, ok ? target : null);
+    }
+
+    /**
+     * Files arriving on one session. Only that session's reader thread uses
+     * it, so a reader still winding down after a reconnect can only close its
+     * own part files, never the next session's. Part files are kept for a
+     * resume.
+     */
+    final class Receiver {
+        private final Map<String, Incoming> incoming = new HashMap<>();
+        private final byte[] receiveBuffer = new byte[CHUNK_SIZE];
+
+        private Receiver() {
+        }
+
+        /**
+         * Handle a file control frame.
+         */
+        void receive(BluetoothChatFrame frame) {
+            try {
+                switch (frame.getType()) {
+                    case BluetoothChatFrame.TYPE_FILE_OFFER:
+                        handleOffer(gson.fromJson(frame.getText(), FileInfo.class));
+                        break;
+                    case BluetoothChatFrame.TYPE_FILE_ACCEPT:
+                        handleAccept(gson.fromJson(frame.getText(), Reply.class));
+                        break;
+                    case BluetoothChatFrame.TYPE_FILE_DONE:
+                        handleDone(gson.fromJson(frame.getText(), Reply.class));
+                        break;
+                    case BluetoothChatFrame.TYPE_FILE_CANCEL:
+                        handleCancel(gson.fromJson(frame.getText(), Reply.class));
+                        break;
+                    default:
+                        Log.w(TAG, "Not a file frame: " + frame.getType());
+                        break;
+                }
+            } catch (JsonParseException e) {
+                Log.w(TAG, "Malformed file frame of type " + frame.getType(), e);
+            }
+        }
+
+        /**
+         * Stream one FILE_DATA payload from the socket into its part file.
+         *
+         * @throws IOException only for socket errors; file errors fail the transfer
+         */
+        void receiveData(DataInputStream stream, int length) throws IOException {
+            int idLength = stream.readUnsignedShort();
+            if (idLength + 2 > length) {
+                throw new IOException("Bad file data header");
+            }
+            byte[] id = new byte[idLength];
+            stream.readFully(id);
+            int remaining = length - 2 - idLength;
+
+            Incoming in = incoming.get(new String(id, StandardCharsets.UTF_8));
+            if (in == null || in.received + remaining > in.info.size) {
+                // Cancelled or overrunning; keep the stream in step
+                while (remaining > 0) {
+                    int count = Math.min(remaining, receiveBuffer.length);
+                    stream.readFully(receiveBuffer, 0, count);
+                    remaining -= count;
+                }
+                return;
+            }
+
+            boolean ok = true;
+            while (remaining > 0) {
+                int count = Math.min(remaining, receiveBuffer.length);
+                stream.readFully(receiveBuffer, 0, count);
+                remaining -= count;
+                if (!ok) {
+                    continue;
+                }
+                try {
+                    in.output.write(receiveBuffer, 0, count);
+                    in.received += count;
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to write " + in.partFile, e);
+                    ok = false;
+                }
+            }
+            if (!ok) {
+                failIncoming(in, true);
+                return;
+            }
+
+            if (in.received == in.info.size) {
+                complete(in);
+            } else if (in.received - in.reportedAt >= PROGRESS_INTERVAL_BYTES) {
+                in.reportedAt = in.received;
+                actions.onProgress(in.info, in.received);
+            }
+        }
+
+        /**
+         * The session has ended. Part files are kept for a resume.
+         */
+        void close() {
+            for (Incoming in : incoming.values()) {
+                closeQuietly(in.output);
+            }
+            incoming.clear();
+        }
+
+        private void handleOffer(FileInfo info) {
+            if (info == null || !isSafeId(info.id) || info.name == null || info.sha256 == null
+                    || info.size < 0 || info.size > MAX_FILE_SIZE) {
+                Log.w(TAG, "Refusing file offer " + (info != null ? info.id : null));
+                if (info != null && info.id != null) {
+                    actions.send(reply(BluetoothChatFrame.TYPE_FILE_CANCEL, info.id, 0, false));
+                }
+                return;
+            }
+            info.outgoing = false;
+            synchronized (BluetoothChatFileTransfer.this) {
+                if (verifying.contains(info.id)) {
+                    return;
+                }
+            }
+
+            Incoming previous = incoming.remove(info.id);
+            if (previous != null) {
+                closeQuietly(previous.output);
+            }
+
+            File partFile = new File(directory, info.id + PART_SUFFIX);
+            RandomAccessFile output;
+            long offset;
+            try {
+                if (!directory.isDirectory() && !directory.mkdirs()) {
+                    throw new IOException("Cannot create " + directory);
+                }
+                output = new RandomAccessFile(partFile, "rw");
+                // Whatever an earlier attempt left behind is kept; the hash catches a mismatch
+                offset = Math.min(output.length(), info.size);
+                output.setLength(offset);
+                output.seek(offset);
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to open " + partFile, e);
+                actions.send(reply(BluetoothChatFrame.TYPE_FILE_CANCEL, info.id, 0, false));
+                actions.onFinished(info, null);
+                return;
+            }
+
+            Incoming in = new Incoming(info, partFile, output);
+            in.received = offset;
+            in.reportedAt = offset;
+            incoming.put(info.id, in);
+            if (offset > 0) {
+                Log.d(TAG, "Resuming " + info.name + " at " + offset + " of " + info.size);
+            }
+            actions.send(reply(BluetoothChatFrame.TYPE_FILE_ACCEPT, info.id, offset, true));
+            if (offset == info.size) {
+                complete(in);
+            }
+        }
+
+        private void handleCancel(Reply reply) {
+            if (reply == null) {
+                return;
+            }
+            cancelOutgoing(reply.id);
+            Incoming in = incoming.get(reply.id);
+            if (in != null) {
+                failIncoming(in, false);
+            }
+        }
+
+        // Every byte is in: verify the whole part file in the background, then move it into place
+        private void complete(Incoming in) {
+            incoming.remove(in.info.id);
+            closeQuietly(in.output);
+            synchronized (BluetoothChatFileTransfer.this) {
+                verifying.add(in.info.id);
+            }
+            actions.runInBackground(() -> verify(in));
+        }
+
+        private void failIncoming(Incoming in, boolean tellSender) {
+            incoming.remove(in.info.id);
+            closeQuietly(in.output);
+            in.partFile.delete();
+            if (tellSender) {
+                actions.send(reply(BluetoothChatFrame.TYPE_FILE_CANCEL, in.info.id, 0, false));
+            }
+            actions.onFinished(in.info, null);
+        }
+    }
+
+    private void fail(Outgoing out) {
+        synchronized (this) {
+            if (outgoing.remove(out.info.id) == null) {
+                return;
+            }
+        }
+        closeQuietly(out.input);
+        actions.send(reply(BluetoothChatFrame.TYPE_FILE_CANCEL, out.info.id, 0, false));
+        actions.onFinished(out.info, null);
+    }
+
+    // In the background; the writer leaves the file alone until it is offered
+    private void hash(Outgoing out) {
+        try {
+            out.input.seek(0);
+            String digest = sha256(out.input, new byte[CHUNK_SIZE]);
+            synchronized (this) {
+                out.info.sha256 = digest;
+            }
+        } catch (IOException e) {
+            // Also what a cancel while hashing looks like; fail() then does nothing
+            Log.e(TAG, "Unable to read " + out.file, e);
+            fail(out);
+            return;
+        }
+        actions.wakeWriter();
+    }
+
+    private Outgoing head() {
+        return outgoing.isEmpty() ? null : outgoing.values().iterator().next();
+    }
+
+    private BluetoothChatFrame reply(int type, String id, long offset, boolean ok) {
+        Reply reply = new Reply();
+        reply.id = id;
+        reply.offset = offset;
+        reply.ok = ok;
+        return new BluetoothChatFrame(type, gson.toJson(reply).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private File uniqueTarget(String name) {
+        // Never trust a path from the peer
+        String safeName = new File(name).getName();
+        if (safeName.isEmpty() || safeName.endsWith(PART_SUFFIX)) {
+            safeName = "file" + (safeName.isEmpty() ? "" : "_" + safeName);
+        }
+        File target = new File(directory, safeName);
+        int dot = safeName.lastIndexOf('.');
+        String stem = dot > 0 ? safeName.substring(0, dot) : safeName;
+        String extension = dot > 0 ? safeName.substring(dot) : "";
+        for (int i = 1; target.exists(); i++) {
+            target = new File(directory, stem + " (" + i + ")" + extension);
+        }
+        return target;
+    }
+
+    private static boolean isSafeId(String id) {
+        return id != null && !id.isEmpty() && id.length() <= 64 && id.matches("[A-Za-z0-9-]+");
+    }
+
+    static String sha256(RandomAccessFile file, byte[] buffer) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is always available", e);
+        }
+        int count;
+        while ((count = file.read(buffer)) > 0) {
+            digest.update(buffer, 0, count);
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b & 0xff));
+        }
+        return hex.toString();
+    }
+
+    private static void closeQuietly(RandomAccessFile file) {
+        try {
+            file.close();
+        } catch (IOException e) {
+            Log.e(TAG, "close() failed", e);
+        }
+    }
+}
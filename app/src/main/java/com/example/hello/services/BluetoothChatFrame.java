@@ -0,0 +1,118 @@
+package com.example.hello.services;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * BluetoothChatFrame - One unit of the 1:1 chat wire protocol
+ *
+ * Each frame is a one-byte type, a four-byte big-endian payload length and
+ * the payload itself, so the reader always knows where a message ends no
+ * matter how RFCOMM splits or joins the bytes. A length outside
+ * {@link #MAX_PAYLOAD} means the stream is out of step and the session is
+ * closed rather than resynchronised.
+ *
+ * File data frames are never materialised as objects: the writer streams
+ * them from disk and the reader streams them back to disk, both through
+ * {@link BluetoothChatFileTransfer}'s fixed buffers, using
+ * {@link #writeHeader} and {@link #readLength}.
+ */
+final class BluetoothChatFrame {
+    static final int TYPE_TEXT = 1;
+    // File transfer: JSON offer, accept (with resume offset), done and cancel; raw data
+    static final int TYPE_FILE_OFFER = 2;
+    static final int TYPE_FILE_ACCEPT = 3;
+    static final int TYPE_FILE_DATA = 4;
+    static final int TYPE_FILE_DONE = 5;
+    static final int TYPE_FILE_CANCEL = 6;
+
+    static final int HEADER_SIZE = 5;
+    static final int MAX_PAYLOAD = 64 * 1024;
+
+    private final int type;
+    private final byte[] payload;
+
+    BluetoothChatFrame(int type, byte[] payload) {
+        if (payload.length > MAX_PAYLOAD) {
+            throw new IllegalArgumentException("Payload of " + payload.length + " bytes exceeds " + MAX_PAYLOAD);
+        }
+        this.type = type;
+        this.payload = payload;
+    }
+
+    static BluetoothChatFrame text(String text) {
+        return new BluetoothChatFrame(TYPE_TEXT, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    int getType() {
+        return type;
+    }
+
+    byte[] getPayload() {
+        return payload;
+    }
+
+    int getLength() {
+        return HEADER_SIZE + payload.length;
+    }
+
+    String getText() {
+        return new String(payload, StandardCharsets.UTF_8);
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+        writeHeader(out, type, payload.length);
+        out.write(payload);
+    }
+
+    static void writeHeader(DataOutputStream out, int type, int length) throws IOException {
+        out.writeByte(type);
+        out.writeInt(length);
+    }
+
+    /**
+     * Block until a whole frame has arrived.
+     *
+     * @throws EOFException if the stream ends, even part way through a frame
+     * @throws IOException  if the length field is out of range
+     */
+    static BluetoothChatFrame readFrom(DataInputStream in) throws IOException {
+        int type = readType(in);
+        return readPayload(in, type, readLength(in, type));
+    }
+
+    /**
+     * Block until the next frame starts.
+     *
+     * @throws EOFException if the stream ends cleanly between frames
+     */
+    static int readType(DataInputStream in) throws IOException {
+        int type = in.read();
+        if (type < 0) {
+            throw new EOFException("Stream closed");
+        }
+        return type;
+    }
+
+    /**
+     * Read and check the length field that follows the type.
+     *
+     * @throws IOException if the length is out of range
+     */
+    static int readLength(DataInputStream in, int type) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_PAYLOAD) {
+            throw new IOException("Bad frame length " + length + " for type " + type);
+        }
+        return length;
+    }
+
+    static BluetoothChatFrame readPayload(DataInputStream in, int type, int length) throws IOException {
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return new BluetoothChatFrame(type, payload);
+    }
+}
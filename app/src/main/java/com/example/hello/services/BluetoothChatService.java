@@ -13,22 +13,64 @@ import android.util.Log;
 import androidx.core.app.ActivityCompat;
 
 import com.example.hello.models.BluetoothMessage;
+import com.google.gson.Gson;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
-
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BluetoothChatService - 1:1 chat with several nearby devices at once
+ *
+ * The service keeps listening for inbound connections for as long as it is
+ * started, and every connection, inbound or dialled, becomes a session of
+ * its own keyed by the peer's Bluetooth address. Each session has a reader
+ * thread that turns the stream back into {@link BluetoothChatFrame}s and a
+ * writer thread that drains a bounded outbound queue, so a slow peer only
+ * ever holds up its own conversation. File control replies skip that queue:
+ * a dropped FILE_ACCEPT or FILE_DONE would stall every file behind it. Losing one session leaves the others
+ * and the listener untouched.
+ *
+ * Files go through a {@link BluetoothChatFileTransfer} kept per peer, so an
+ * interrupted transfer resumes when the peer reconnects. The writer streams
+ * file chunks whenever no text is waiting. Files are hashed on one shared
+ * background thread that exits when idle.
+ *
+ * Listener callbacks are posted to the main thread.
+ */
 public class BluetoothChatService {
     private static final String TAG = "BluetoothChatService";
     private static final String NAME = "BluetoothChat";
     private static final UUID MY_UUID = UUID.fromString("8ce255c0-200a-11e0-ac64-0800200c9a66");
 
+    // A classic Bluetooth piconet has at most seven active peers
+    public static final int DEFAULT_MAX_SESSIONS = 7;
+    public static final int DEFAULT_QUEUE_CAPACITY = 64;
+    private static final String TRANSFER_DIRECTORY = "bluetooth_chat";
+
     public interface BluetoothChatListener {
-        void onMessageReceived(BluetoothMessage message);
-        void onConnectionEstablished(String deviceName);
-        void onConnectionLost();
-        void onConnectionFailed();
+        void onMessageReceived(String sessionId, BluetoothMessage message);
+        void onSessionConnected(String sessionId, String deviceName);
+        void onSessionLost(String sessionId);
+        void onConnectionFailed(String address);
+        void onFileTransferProgress(String sessionId, BluetoothChatFileTransfer.FileInfo info, long bytesDone);
+        /** {@code file} is the received or sent file, or null if the transfer failed. */
+        void onFileTransferFinished(String sessionId, BluetoothChatFileTransfer.FileInfo info, File file);
     }
 
     // Connection states
@@ -41,18 +83,27 @@ public class BluetoothChatService {
     private final BluetoothChatListener listener;
     private final Handler mainHandler;
     private final Context context;
-
+    private final File transferDirectory;
+    private final Gson gson = new Gson();
+    private final ThreadPoolExecutor fileWorker;
+
+    private final Map<String, ChatSession> sessions = new LinkedHashMap<>();
+    // Per peer rather than per session, so transfers survive a reconnect
+    private final Map<String, BluetoothChatFileTransfer> transfers = new HashMap<>();
+    private final Map<String, ConnectThread> connectThreads = new HashMap<>();
     private AcceptThread acceptThread;
-    private ConnectThread connectThread;
-    private ConnectedThread connectedThread;
     private int currentState;
-    private String connectedDeviceName;
+    private int maxSessions = DEFAULT_MAX_SESSIONS;
 
     public BluetoothChatService(Context context, BluetoothChatListener listener) {
         this.context = context;
         this.bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
         this.listener = listener;
         this.mainHandler = new Handler(Looper.getMainLooper());
+        this.transferDirectory = new File(context.getFilesDir(), TRANSFER_DIRECTORY);
+        this.fileWorker = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                runnable -> new Thread(runnable, "ChatFileWorker"));
+        this.fileWorker.allowCoreThreadTimeOut(true);
         this.currentState = STATE_NONE;
     }
 
@@ -61,24 +112,33 @@ public class BluetoothChatService {
         currentState = state;
     }
 
+    /**
+     * {@link #STATE_CONNECTED} while any session is open, otherwise
+     * {@link #STATE_CONNECTING} while any dial is in progress.
+     */
     public synchronized int getState() {
+        if (!sessions.isEmpty()) {
+            return STATE_CONNECTED;
+        }
+        if (!connectThreads.isEmpty()) {
+            return STATE_CONNECTING;
+        }
         return currentState;
     }
 
-    public synchronized void start() {
-        Log.d(TAG, "start");
+    public synchronized void setMaxSessions(int maxSessions) {
+        this.maxSessions = Math.max(1, maxSessions);
+    }
 
-        // Cancel any thread attempting to make a connection
-        if (connectThread != null) {
-            connectThread.cancel();
-            connectThread = null;
-        }
+    public synchronized int getMaxSessions() {
+        return maxSessions;
+    }
 
-        // Cancel any thread currently running a connection
-        if (connectedThread != null) {
-            connectedThread.cancel();
-            connectedThread = null;
-        }
+    /**
+     * Start listening for inbound connections. Open sessions are kept.
+     */
+    public synchronized void start() {
+        Log.d(TAG, "start");
 
         setState(STATE_LISTEN);
 
@@ -89,79 +149,100 @@ public class BluetoothChatService {
         }
     }
 
-    public synchronized void connect(BluetoothDevice device) {
+    /**
+     * Dial a device in the background. Success or failure is reported
+     * through the listener.
+     *
+     * @return false if there is already a session or dial for this device,
+     *         or every session slot is taken
+     */
+    public synchronized boolean connect(BluetoothDevice device) {
         Log.d(TAG, "connect to: " + device);
 
-        // Cancel any thread attempting to make a connection
-        if (currentState == STATE_CONNECTING) {
-            if (connectThread != null) {
-                connectThread.cancel();
-                connectThread = null;
-            }
+        String address = device.getAddress();
+        if (sessions.containsKey(address) || connectThreads.containsKey(address)) {
+            return false;
         }
-
-        // Cancel any thread currently running a connection
-        if (connectedThread != null) {
-            connectedThread.cancel();
-            connectedThread = null;
+        if (sessions.size() + connectThreads.size() >= maxSessions) {
+            Log.w(TAG, "Not dialling " + address + ", all " + maxSessions + " sessions in use");
+            return false;
         }
 
         // Start the thread to connect with the given device
-        connectThread = new ConnectThread(device);
+        ConnectThread connectThread = new ConnectThread(device);
+        connectThreads.put(address, connectThread);
         connectThread.start();
-        setState(STATE_CONNECTING);
+        return true;
     }
 
     public synchronized void connected(BluetoothSocket socket, BluetoothDevice device, final String socketType) {
         Log.d(TAG, "connected, Socket Type:" + socketType);
 
-        // Cancel the thread that completed the connection
-        if (connectThread != null) {
-            connectThread.cancel();
-            connectThread = null;
-        }
+        String address = device.getAddress();
+        connectThreads.remove(address);
 
-        // Cancel any thread currently running a connection
-        if (connectedThread != null) {
-            connectedThread.cancel();
-            connectedThread = null;
+        if (currentState == STATE_NONE) {
+            closeQuietly(socket);
+            return;
         }
-
-        // Cancel the accept thread because we only want to connect to one device
-        if (acceptThread != null) {
-            acceptThread.cancel();
-            acceptThread = null;
+        // Both sides may dial each other at once; the first socket wins
+        if (sessions.containsKey(address)) {
+            Log.w(TAG, "Already chatting with " + address + ", closing duplicate socket");
+            closeQuietly(socket);
+            return;
+        }
+        if (sessions.size() >= maxSessions) {
+            Log.w(TAG, "Rejecting " + address + ", all " + maxSessions + " sessions in use");
+            closeQuietly(socket);
+            return;
         }
-
-        // Start the thread to manage the connection and perform transmissions
-        connectedThread = new ConnectedThread(socket, socketType);
-        connectedThread.start();
 
         // Store the device name
+        final String deviceName;
         if (ActivityCompat.checkSelfPermission(context, android.Manifest.permission.BLUETOOTH_CONNECT) == PackageManager.PERMISSION_GRANTED) {
-            connectedDeviceName = device.getName();
+            deviceName = device.getName();
         } else {
-            connectedDeviceName = "Unknown Device";
+            deviceName = "Unknown Device";
         }
 
-        setState(STATE_CONNECTED);
+        BluetoothChatFileTransfer transfer = transferFor(address);
+        ChatSession session;
+        try {
+            session = new ChatSession(address, deviceName, socket, transfer);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to open streams for " + address, e);
+            closeQuietly(socket);
+            return;
+        }
+        sessions.put(address, session);
+        session.start();
+        transfer.onSessionStarted();
 
         // Send the name of the connected device back to the UI Activity
-        mainHandler.post(() -> listener.onConnectionEstablished(connectedDeviceName));
+        mainHandler.post(() -> listener.onSessionConnected(address, deviceName));
     }
 
+    /**
+     * Close every session, abandon dials and stop listening. No callbacks
+     * are made for the sessions closed here.
+     */
     public synchronized void stop() {
         Log.d(TAG, "stop");
 
-        if (connectThread != null) {
+        for (ConnectThread connectThread : connectThreads.values()) {
             connectThread.cancel();
-            connectThread = null;
         }
+        connectThreads.clear();
+
+        for (ChatSession session : sessions.values()) {
+            session.close();
+        }
+        sessions.clear();
 
-        if (connectedThread != null) {
-            connectedThread.cancel();
-            connectedThread = null;
+        for (BluetoothChatFileTransfer transfer : transfers.values()) {
+            transfer.close();
         }
+        transfers.clear();
 
         if (acceptThread != null) {
             acceptThread.cancel();
@@ -171,30 +252,120 @@ public class BluetoothChatService {
         setState(STATE_NONE);
     }
 
-    public void sendMessage(String message) {
-        ConnectedThread r;
+    /**
+     * Close one session; {@link BluetoothChatListener#onSessionLost} is not
+     * called for it.
+     */
+    public synchronized void disconnect(String sessionId) {
+        ChatSession session = sessions.remove(sessionId);
+        if (session != null) {
+            session.close();
+        }
+    }
+
+    /**
+     * Queue a text message on one session. Never blocks.
+     *
+     * @return false if there is no such session or its queue is full
+     */
+    public boolean sendMessage(String sessionId, String message) {
+        ChatSession session;
         synchronized (this) {
-            if (currentState != STATE_CONNECTED) return;
-            r = connectedThread;
+            session = sessions.get(sessionId);
         }
-        r.write(message.getBytes());
+        return session != null && session.send(BluetoothChatFrame.text(message));
     }
 
-    private void connectionFailed() {
-        setState(STATE_LISTEN);
-        mainHandler.post(() -> listener.onConnectionFailed());
-        BluetoothChatService.this.start();
+    /**
+     * Queue a file on one session. It streams from disk whenever no text is
+     * waiting; progress and the result arrive through the listener.
+     *
+     * @return the queued file, or null if there is no such session or the
+     *         file cannot be sent
+     */
+    public BluetoothChatFileTransfer.FileInfo sendFile(String sessionId, File file, String mimeType) {
+        BluetoothChatFileTransfer transfer;
+        synchronized (this) {
+            if (!sessions.containsKey(sessionId)) {
+                return null;
+            }
+            transfer = transferFor(sessionId);
+        }
+        return transfer.send(file, mimeType);
     }
 
-    private void connectionLost() {
-        setState(STATE_LISTEN);
-        mainHandler.post(() -> listener.onConnectionLost());
-        BluetoothChatService.this.start();
+    public void cancelFile(String sessionId, String transferId) {
+        BluetoothChatFileTransfer transfer;
+        synchronized (this) {
+            transfer = transfers.get(sessionId);
+        }
+        if (transfer != null) {
+            transfer.cancel(transferId);
+        }
+    }
+
+    public synchronized boolean isConnected(String sessionId) {
+        return sessions.containsKey(sessionId);
+    }
+
+    public synchronized List<String> getSessionIds() {
+        return new ArrayList<>(sessions.keySet());
+    }
+
+    public synchronized int getSessionCount() {
+        return sessions.size();
+    }
+
+    /** Peer name for a session, or null if there is no such session. */
+    public synchronized String getDeviceName(String sessionId) {
+        ChatSession session = sessions.get(sessionId);
+        return session != null ? session.deviceName : null;
+    }
+
+    private synchronized BluetoothChatFileTransfer transferFor(String address) {
+        BluetoothChatFileTransfer transfer = transfers.get(address);
+        if (transfer == null) {
+            transfer = new BluetoothChatFileTransfer(transferDirectory, new SessionTransferActions(address), gson);
+            transfers.put(address, transfer);
+        }
+        return transfer;
+    }
+
+    private synchronized ChatSession getSession(String address) {
+        return sessions.get(address);
+    }
+
+    private void connectionFailed(String address) {
+        synchronized (this) {
+            connectThreads.remove(address);
+        }
+        mainHandler.post(() -> listener.onConnectionFailed(address));
+    }
+
+    private void sessionLost(ChatSession session) {
+        synchronized (this) {
+            // Already closed on purpose through disconnect() or stop()
+            if (sessions.get(session.id) != session) {
+                return;
+            }
+            sessions.remove(session.id);
+        }
+        session.close();
+        mainHandler.post(() -> listener.onSessionLost(session.id));
+    }
+
+    private static void closeQuietly(BluetoothSocket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not close unwanted socket", e);
+        }
     }
 
     private class AcceptThread extends Thread {
         private final BluetoothServerSocket serverSocket;
         private String socketType;
+        private volatile boolean cancelled;
 
         public AcceptThread() {
             BluetoothServerSocket tmp = null;
@@ -214,33 +385,24 @@ public class BluetoothChatService {
             Log.d(TAG, "Socket Type: " + socketType + "BEGIN mAcceptThread" + this);
             setName("AcceptThread" + socketType);
 
-            BluetoothSocket socket = null;
+            if (serverSocket == null) {
+                return;
+            }
 
-            while (currentState != STATE_CONNECTED) {
+            // Keep accepting for as long as the service runs; each peer gets its own session
+            while (!cancelled) {
+                BluetoothSocket socket;
                 try {
                     socket = serverSocket.accept();
                 } catch (IOException e) {
-                    Log.e(TAG, "Socket Type: " + socketType + "accept() failed", e);
+                    if (!cancelled) {
+                        Log.e(TAG, "Socket Type: " + socketType + "accept() failed", e);
+                    }
                     break;
                 }
 
                 if (socket != null) {
-                    synchronized (BluetoothChatService.this) {
-                        switch (currentState) {
-                            case STATE_LISTEN:
-                            case STATE_CONNECTING:
-                                connected(socket, socket.getRemoteDevice(), socketType);
-                                break;
-                            case STATE_NONE:
-                            case STATE_CONNECTED:
-                                try {
-                                    socket.close();
-                                } catch (IOException e) {
-                                    Log.e(TAG, "Could not close unwanted socket", e);
-                                }
-                                break;
-                        }
-                    }
+                    connected(socket, socket.getRemoteDevice(), socketType);
                 }
             }
             Log.i(TAG, "END mAcceptThread, socket Type: " + socketType);
@@ -248,6 +410,10 @@ public class BluetoothChatService {
 
         public void cancel() {
             Log.d(TAG, "Socket Type" + socketType + "cancel " + this);
+            cancelled = true;
+            if (serverSocket == null) {
+                return;
+            }
             try {
                 serverSocket.close();
             } catch (IOException e) {
@@ -280,6 +446,11 @@ public class BluetoothChatService {
             Log.i(TAG, "BEGIN mConnectThread SocketType:" + socketType);
             setName("ConnectThread" + socketType);
 
+            if (socket == null) {
+                connectionFailed(device.getAddress());
+                return;
+            }
+
             // Always cancel discovery because it will slow down a connection
             if (ActivityCompat.checkSelfPermission(context, android.Manifest.permission.BLUETOOTH_SCAN) == PackageManager.PERMISSION_GRANTED) {
                 bluetoothAdapter.cancelDiscovery();
@@ -293,18 +464,17 @@ public class BluetoothChatService {
                 } catch (IOException e2) {
                     Log.e(TAG, "unable to close() " + socketType + " socket during connection failure", e2);
                 }
-                connectionFailed();
+                connectionFailed(device.getAddress());
                 return;
             }
 
-            synchronized (BluetoothChatService.this) {
-                connectThread = null;
-            }
-
             connected(socket, device, socketType);
         }
 
         public void cancel() {
+            if (socket == null) {
+                return;
+            }
             try {
                 socket.close();
             } catch (IOException e) {
@@ -313,66 +483,204 @@ public class BluetoothChatService {
         }
     }
 
-    private class ConnectedThread extends Thread {
-        private final BluetoothSocket socket;
-        private final InputStream inputStream;
-        private final OutputStream outputStream;
+    /**
+     * Routes one peer's file transfer through whichever session to it is open.
+     */
+    private class SessionTransferActions implements BluetoothChatFileTransfer.TransferActions {
+        private final String address;
 
-        public ConnectedThread(BluetoothSocket socket, String socketType) {
-            Log.d(TAG, "create ConnectedThread: " + socketType);
+        SessionTransferActions(String address) {
+            this.address = address;
+        }
+
+        @Override
+        public boolean send(BluetoothChatFrame frame) {
+            ChatSession session = getSession(address);
+            return session != null && session.sendControl(frame);
+        }
+
+        @Override
+        public void wakeWriter() {
+            ChatSession session = getSession(address);
+            if (session != null) {
+                session.wake();
+            }
+        }
+
+        @Override
+        public void runInBackground(Runnable task) {
+            fileWorker.execute(task);
+        }
+
+        @Override
+        public void onProgress(BluetoothChatFileTransfer.FileInfo info, long bytesDone) {
+            mainHandler.post(() -> listener.onFileTransferProgress(address, info, bytesDone));
+        }
+
+        @Override
+        public void onFinished(BluetoothChatFileTransfer.FileInfo info, File file) {
+            mainHandler.post(() -> listener.onFileTransferFinished(address, info, file));
+        }
+    }
+
+    // Queued only to wake an idle writer; never written
+    private static final BluetoothChatFrame WAKE = new BluetoothChatFrame(0, new byte[0]);
+
+    /**
+     * One open conversation: a reader thread, a writer thread and the
+     * bounded queue between the UI and the writer, plus an unbounded lane
+     * for file control replies, which come one per offer.
+     */
+    private class ChatSession {
+        private final String id;
+        private final String deviceName;
+        private final BluetoothSocket socket;
+        private final BluetoothChatFileTransfer transfer;
+        // This session's incoming files; the transfer itself outlives the session
+        private final BluetoothChatFileTransfer.Receiver receiver;
+        private final DataInputStream inputStream;
+        private final DataOutputStream outputStream;
+        private final BlockingQueue<BluetoothChatFrame> outboundQueue = new ArrayBlockingQueue<>(DEFAULT_QUEUE_CAPACITY);
+        private final ConcurrentLinkedQueue<BluetoothChatFrame> controlQueue = new ConcurrentLinkedQueue<>();
+        private final Thread readerThread;
+        private final Thread writerThread;
+
+        private volatile boolean closed;
+
+        ChatSession(String id, String deviceName, BluetoothSocket socket,
+                    BluetoothChatFileTransfer transfer) throws IOException {
+            Log.d(TAG, "create ChatSession: " + id);
+            this.id = id;
+            this.deviceName = deviceName;
             this.socket = socket;
-            InputStream tmpIn = null;
-            OutputStream tmpOut = null;
+            this.transfer = transfer;
+            this.receiver = transfer.newReceiver();
+            this.inputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            // Big enough that a whole file chunk goes out in one socket write
+            this.outputStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(),
+                    BluetoothChatFileTransfer.CHUNK_SIZE + 256));
+            this.readerThread = new Thread(this::readLoop, "ChatReader-" + id);
+            this.writerThread = new Thread(this::writeLoop, "ChatWriter-" + id);
+        }
 
-            try {
-                tmpIn = socket.getInputStream();
-                tmpOut = socket.getOutputStream();
-            } catch (IOException e) {
-                Log.e(TAG, "temp sockets not created", e);
+        void start() {
+            readerThread.start();
+            writerThread.start();
+        }
+
+        boolean send(BluetoothChatFrame frame) {
+            if (closed) {
+                return false;
             }
+            if (!outboundQueue.offer(frame)) {
+                Log.w(TAG, "Outbound queue full for " + id + ", dropping frame");
+                return false;
+            }
+            return true;
+        }
 
-            inputStream = tmpIn;
-            outputStream = tmpOut;
+        /** Queue a file control frame ahead of text. Never drops it. */
+        boolean sendControl(BluetoothChatFrame frame) {
+            if (closed) {
+                return false;
+            }
+            controlQueue.offer(frame);
+            wake();
+            return true;
         }
 
-        public void run() {
-            Log.i(TAG, "BEGIN mConnectedThread");
-            byte[] buffer = new byte[1024];
-            int bytes;
+        // A full queue means the writer is busy and checks the control lane next anyway
+        void wake() {
+            outboundQueue.offer(WAKE);
+        }
 
-            while (currentState == STATE_CONNECTED) {
-                try {
-                    bytes = inputStream.read(buffer);
-                    String receivedMessage = new String(buffer, 0, bytes);
-                    
+        private void readLoop() {
+            Log.i(TAG, "BEGIN reader for " + id);
+            try {
+                while (!closed) {
+                    int type = BluetoothChatFrame.readType(inputStream);
+                    int length = BluetoothChatFrame.readLength(inputStream, type);
+                    if (type == BluetoothChatFrame.TYPE_FILE_DATA) {
+                        // Straight to disk without holding the chunk as a frame
+                        receiver.receiveData(inputStream, length);
+                    } else {
+                        dispatch(BluetoothChatFrame.readPayload(inputStream, type, length));
+                    }
+                }
+            } catch (IOException e) {
+                if (!closed) {
+                    Log.e(TAG, "disconnected from " + id, e);
+                    sessionLost(this);
+                }
+            } finally {
+                receiver.close();
+            }
+        }
+
+        private void dispatch(BluetoothChatFrame frame) {
+            switch (frame.getType()) {
+                case BluetoothChatFrame.TYPE_TEXT:
                     BluetoothMessage message = new BluetoothMessage(
-                        receivedMessage,
+                        frame.getText(),
                         false, // isOutgoing
-                        System.currentTimeMillis()
+                        System.currentTimeMillis(),
+                        deviceName
                     );
-
-                    mainHandler.post(() -> listener.onMessageReceived(message));
-                } catch (IOException e) {
-                    Log.e(TAG, "disconnected", e);
-                    connectionLost();
+                    mainHandler.post(() -> listener.onMessageReceived(id, message));
+                    break;
+                case BluetoothChatFrame.TYPE_FILE_OFFER:
+                case BluetoothChatFrame.TYPE_FILE_ACCEPT:
+                case BluetoothChatFrame.TYPE_FILE_DONE:
+                case BluetoothChatFrame.TYPE_FILE_CANCEL:
+                    receiver.receive(frame);
+                    break;
+                default:
+                    // Sent by a newer version of the app; skip it and carry on
+                    Log.w(TAG, "Ignoring frame of unknown type " + frame.getType() + " from " + id);
                     break;
-                }
             }
         }
 
-        public void write(byte[] buffer) {
+        private void writeLoop() {
             try {
-                outputStream.write(buffer);
+                while (!closed) {
+                    // Control replies, then text; file chunks fill the gaps in between
+                    BluetoothChatFrame frame = controlQueue.poll();
+                    if (frame == null) {
+                        frame = transfer.hasPendingWrites() ? outboundQueue.poll() : outboundQueue.take();
+                    }
+                    if (frame == null) {
+                        transfer.writeNext(outputStream);
+                    } else if (frame != WAKE) {
+                        frame.writeTo(outputStream);
+                    }
+                    // Flush once there is nothing left to write so bursts share a socket write
+                    if (controlQueue.isEmpty() && outboundQueue.isEmpty() && !transfer.hasPendingWrites()) {
+                        outputStream.flush();
+                    }
+                }
+            } catch (InterruptedException e) {
+                // Closed while waiting for the next frame
             } catch (IOException e) {
-                Log.e(TAG, "Exception during write", e);
+                if (!closed) {
+                    Log.e(TAG, "Exception during write to " + id, e);
+                    sessionLost(this);
+                }
             }
         }
 
-        public void cancel() {
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            outboundQueue.clear();
+            controlQueue.clear();
+            writerThread.interrupt();
             try {
                 socket.close();
             } catch (IOException e) {
-                Log.e(TAG, "close() of connect socket failed", e);
+                Log.e(TAG, "close() of session " + id + " failed", e);
             }
         }
     }
@@ -2,33 +2,36 @@ package com.example.hello.services;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothServerSocket;
-import android.bluetooth.BluetoothSocket;
 import android.content.Context;
-import android.content.pm.PackageManager;
+import android.content.SharedPreferences;
 import android.os.Handler;
 import android.os.Looper;
 import android.util.Log;
 
-import androidx.core.app.ActivityCompat;
-
 import com.example.hello.models.BluetoothMeshMessage;
 import com.example.hello.models.BluetoothMeshNode;
+import com.example.hello.models.MeshNodeSnapshot;
+import com.example.hello.services.mesh.MeshBufferPool;
+import com.example.hello.services.mesh.MeshConnectionManager;
+import com.example.hello.services.mesh.MeshConnectionPlanner;
+import com.example.hello.services.mesh.MeshEngine;
+import com.example.hello.services.mesh.MeshFileTransfer;
+import com.example.hello.services.mesh.MeshFloodController;
+import com.example.hello.services.mesh.MeshFrameCodec;
+import com.example.hello.services.mesh.MeshMetrics;
+import com.example.hello.services.mesh.MeshRateLimiter;
+import com.example.hello.services.mesh.MeshReliableDelivery;
+import com.example.hello.services.mesh.MeshScheduler;
+import com.example.hello.services.mesh.MeshTopologyNotifier;
+import com.example.hello.services.mesh.MessageIdCache;
 import com.google.gson.Gson;
-import com.google.gson.JsonSyntaxException;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
-import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * BluetoothMeshService - Advanced Bluetooth Mesh Networking Service
@@ -43,11 +46,15 @@ import java.util.concurrent.CopyOnWriteArrayList;
  * - Automatic route optimization
  * - Duplicate message prevention
  * - Network healing (reconnection)
+ * 
+ * The protocol itself lives in {@link MeshEngine}; this class binds it to
+ * RFCOMM links through {@link BluetoothMeshTransport} and hands its
+ * callbacks to the UI thread.
  */
 public class BluetoothMeshService {
     private static final String TAG = "BluetoothMeshService";
-    private static final String SERVICE_NAME = "BluetoothMeshChat";
-    private static final UUID MESH_UUID = UUID.fromString("fa87c0d0-afac-11de-8a39-0800200c9a66");
+    private static final String PREFERENCES = "BluetoothMesh";
+    private static final String KEY_DEVICE_ID = "device_id";
     
     // Message types for mesh protocol
     public static final String MSG_TYPE_CHAT = "CHAT";
@@ -55,7 +62,20 @@ public class BluetoothMeshService {
     public static final String MSG_TYPE_TOPOLOGY = "TOPOLOGY";
     public static final String MSG_TYPE_ROUTE_REQUEST = "ROUTE_REQ";
     public static final String MSG_TYPE_ROUTE_REPLY = "ROUTE_REPLY";
+    public static final String MSG_TYPE_ROUTE_ERROR = "ROUTE_ERR";
     public static final String MSG_TYPE_HEARTBEAT = "HEARTBEAT";
+    public static final String MSG_TYPE_STORE_BATCH = "STORE_BATCH";
+    public static final String MSG_TYPE_ACK = "ACK";
+    public static final String MSG_TYPE_FILE_OFFER = "FILE_OFFER";
+    public static final String MSG_TYPE_FILE_CHUNK = "FILE_CHUNK";
+    public static final String MSG_TYPE_FILE_NACK = "FILE_NACK";
+    public static final String MSG_TYPE_HISTORY_DIGEST = "HISTORY_DIGEST";
+    public static final String MSG_TYPE_HISTORY_REQUEST = "HISTORY_REQ";
+    public static final String MSG_TYPE_HISTORY_BATCH = "HISTORY_BATCH";
+    public static final String MSG_TYPE_BACKPRESSURE = "BACKPRESSURE";
+    public static final String MSG_TYPE_LINK_PIN = "LINK_PIN";
+    
+    public static final int MAX_HOP_COUNT = 10;
     
     // Network states
     public static final int STATE_NONE = 0;
@@ -65,557 +85,315 @@ public class BluetoothMeshService {
     
     public interface BluetoothMeshListener {
         void onMessageReceived(BluetoothMeshMessage message);
-        void onNodeJoined(BluetoothMeshNode node);
-        void onNodeLeft(BluetoothMeshNode node);
-        void onNetworkTopologyChanged(List<BluetoothMeshNode> nodes);
+        /**
+         * Nodes added, removed or changed since the last call, gathered over
+         * the interval set with {@link #setTopologyUpdateInterval}.
+         */
+        void onNetworkTopologyChanged(MeshTopologyNotifier.TopologyDiff diff);
         void onConnectionStateChanged(int state);
+        void onDeliveryStatusChanged(String messageId, MeshReliableDelivery.DeliveryStatus status);
+        void onFileTransferProgress(MeshFileTransfer.FileInfo info, int chunksDone);
+        /** {@code file} is the received or sent file, or null if the transfer failed. */
+        void onFileTransferFinished(MeshFileTransfer.FileInfo info, File file);
     }
     
     private final BluetoothAdapter bluetoothAdapter;
     private final BluetoothMeshListener listener;
     private final Handler mainHandler;
-    private final Context context;
-    private final Gson gson;
+    private final MeshFrameCodec frameCodec;
     
     // Network state
     private int currentState;
-    private String localNodeId;
-    private BluetoothMeshNode localNode;
+    private final String localNodeId;
     
-    // Connection management
-    private AcceptThread acceptThread;
-    private final Map<String, ConnectedThread> connectedDevices;
-    private final Map<String, BluetoothMeshNode> networkNodes;
-    private final Set<String> seenMessageIds;
+    // RFCOMM links, each with a reader and a writer thread of its own
+    private final BluetoothMeshTransport transport;
     
-    // Routing table: nodeId -> next hop nodeId
-    private final Map<String, String> routingTable;
+    // Routing, topology and queue state is only touched on this thread;
+    // the main looper is left for listener callbacks
+    private final MeshScheduler meshScheduler;
     
-    // Message queues and handling
-    private final List<BluetoothMeshMessage> pendingMessages;
-    private final Handler networkHandler;
+    // The mesh protocol itself, shared with the simulator
+    private final MeshEngine engine;
     
     public BluetoothMeshService(Context context, BluetoothMeshListener listener) {
-        this.context = context;
         this.bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
         this.listener = listener;
         this.mainHandler = new Handler(Looper.getMainLooper());
-        this.gson = new Gson();
-        
-        // Initialize collections
-        this.connectedDevices = new ConcurrentHashMap<>();
-        this.networkNodes = new ConcurrentHashMap<>();
-        this.seenMessageIds = new HashSet<>();
-        this.routingTable = new ConcurrentHashMap<>();
-        this.pendingMessages = new CopyOnWriteArrayList<>();
-        
-        // Create background thread for network operations
-        this.networkHandler = new Handler(Looper.getMainLooper());
+        this.frameCodec = new MeshFrameCodec(new Gson(),
+                new MeshBufferPool(MeshFrameCodec.DEFAULT_MAX_FRAME_SIZE * 2));
+        this.transport = new BluetoothMeshTransport(context, bluetoothAdapter, frameCodec);
         
         // Initialize local node
-        this.localNodeId = generateNodeId();
-        this.localNode = new BluetoothMeshNode(localNodeId, bluetoothAdapter.getName(), 
+        this.localNodeId = generateNodeId(context);
+        BluetoothMeshNode localNode = new BluetoothMeshNode(localNodeId, bluetoothAdapter.getName(), 
                 bluetoothAdapter.getAddress(), System.currentTimeMillis());
         
-        // Add local node to network
-        networkNodes.put(localNodeId, localNode);
+        // Create background thread for network operations
+        this.meshScheduler = new MeshScheduler(this::onInbound, MeshScheduler.DEFAULT_MAX_INBOUND_BACKLOG);
+        this.engine = new MeshEngine(localNode, context.getFilesDir(), frameCodec, transport, meshScheduler,
+                new EngineListener());
+        // Balance the mesh instead of linking only to devices the user taps
+        engine.getConnectionPlanner().setEnabled(true);
         
         this.currentState = STATE_NONE;
         
         Log.d(TAG, "BluetoothMeshService initialized with node ID: " + localNodeId);
     }
     
-    private String generateNodeId() {
-        return bluetoothAdapter.getAddress().replace(":", "") + "_" + System.currentTimeMillis();
+    /**
+     * A device id that stays the same across restarts, then the start time.
+     * The suffix is new on every start so neighbours take the restarted
+     * node's sequence numbers as fresh; the prefix lets stored messages be
+     * recognised as this device's own. Apps are handed the same placeholder
+     * Bluetooth address on every phone, so the prefix is generated once and
+     * kept in preferences rather than taken from the adapter.
+     */
+    private static String generateNodeId(Context context) {
+        SharedPreferences preferences = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+        String deviceId = preferences.getString(KEY_DEVICE_ID, null);
+        if (deviceId == null) {
+            deviceId = UUID.randomUUID().toString().replace("-", "").substring(0, 12).toUpperCase(Locale.US);
+            preferences.edit().putString(KEY_DEVICE_ID, deviceId).apply();
+        }
+        return deviceId + "_" + System.currentTimeMillis();
     }
     
     public synchronized void startMeshNetwork() {
         Log.d(TAG, "Starting mesh network");
         
         setState(STATE_LISTENING);
-        
-        // Start accepting incoming connections
-        if (acceptThread == null) {
-            acceptThread = new AcceptThread();
-            acceptThread.start();
-        }
-        
-        // Start network maintenance tasks
-        startNetworkMaintenance();
+        meshScheduler.start();
+        engine.start();
     }
     
     public synchronized void connectToDevice(BluetoothDevice device) {
         Log.d(TAG, "Connecting to device: " + device.getName());
-        
-        // Check if already connected to this device
-        String deviceAddress = device.getAddress();
-        if (connectedDevices.containsKey(deviceAddress)) {
-            Log.w(TAG, "Already connected to device: " + device.getName());
-            return;
-        }
-        
-        // Start connection thread
-        ConnectThread connectThread = new ConnectThread(device);
-        connectThread.start();
+        engine.connect(device.getAddress());
     }
     
-    public void sendChatMessage(String messageText) {
-        BluetoothMeshMessage message = new BluetoothMeshMessage(
-                generateMessageId(),
-                MSG_TYPE_CHAT,
-                localNodeId,
-                null, // broadcast to all
-                messageText,
-                System.currentTimeMillis(),
-                0 // initial hop count
-        );
-        
-        broadcastMessage(message);
+    /**
+     * Flood a chat message to the whole mesh.
+     *
+     * @return the message ID
+     */
+    public String sendChatMessage(String messageText) {
+        return engine.sendChatMessage(messageText);
     }
     
-    private void broadcastMessage(BluetoothMeshMessage message) {
-        Log.d(TAG, "Broadcasting message: " + message.getMessageId());
-        
-        // Add to seen messages to prevent loops
-        seenMessageIds.add(message.getMessageId());
-        
-        // Send to all connected devices
-        for (ConnectedThread connectedThread : connectedDevices.values()) {
-            connectedThread.write(gson.toJson(message));
-        }
-        
-        // If it's a chat message from this node, notify UI
-        if (MSG_TYPE_CHAT.equals(message.getType()) && localNodeId.equals(message.getSourceNodeId())) {
-            mainHandler.post(() -> listener.onMessageReceived(message));
-        }
+    /**
+     * Flood a chat message in a priority class. Use
+     * {@link BluetoothMeshMessage#PRIORITY_EMERGENCY} for urgent requests such
+     * as a call for blood donors: they overtake queued traffic on every link,
+     * are relayed without delay and are the last to be dropped.
+     *
+     * @return the message ID
+     */
+    public String sendChatMessage(String messageText, int priority) {
+        return engine.sendChatMessage(messageText, priority);
     }
     
-    private void forwardMessage(BluetoothMeshMessage message, String fromDeviceId) {
-        // Increment hop count
-        message.setHopCount(message.getHopCount() + 1);
-        
-        // Check if we've seen this message before (loop prevention)
-        if (seenMessageIds.contains(message.getMessageId())) {
-            Log.d(TAG, "Dropping duplicate message: " + message.getMessageId());
-            return;
-        }
-        
-        // Check hop limit
-        if (message.getHopCount() > 10) { // Max 10 hops
-            Log.d(TAG, "Dropping message due to hop limit: " + message.getMessageId());
-            return;
-        }
-        
-        seenMessageIds.add(message.getMessageId());
-        
-        // Forward to all connected devices except the one it came from
-        for (Map.Entry<String, ConnectedThread> entry : connectedDevices.entrySet()) {
-            if (!entry.getKey().equals(fromDeviceId)) {
-                entry.getValue().write(gson.toJson(message));
-            }
-        }
-        
-        // If it's a chat message, notify UI
-        if (MSG_TYPE_CHAT.equals(message.getType())) {
-            mainHandler.post(() -> listener.onMessageReceived(message));
-        }
+    /**
+     * Send a chat message to a single node. The message follows the
+     * discovered route instead of being flooded to the whole mesh.
+     *
+     * @return the message ID used in delivery status callbacks
+     */
+    public String sendDirectMessage(String targetNodeId, String messageText) {
+        return sendDirectMessage(targetNodeId, messageText, true);
     }
     
-    private void handleIncomingMessage(String messageJson, String fromDeviceId) {
-        try {
-            BluetoothMeshMessage message = gson.fromJson(messageJson, BluetoothMeshMessage.class);
-            
-            switch (message.getType()) {
-                case MSG_TYPE_CHAT:
-                    handleChatMessage(message, fromDeviceId);
-                    break;
-                case MSG_TYPE_DISCOVERY:
-                    handleDiscoveryMessage(message, fromDeviceId);
-                    break;
-                case MSG_TYPE_TOPOLOGY:
-                    handleTopologyMessage(message, fromDeviceId);
-                    break;
-                case MSG_TYPE_HEARTBEAT:
-                    handleHeartbeatMessage(message, fromDeviceId);
-                    break;
-                default:
-                    Log.w(TAG, "Unknown message type: " + message.getType());
-            }
-        } catch (JsonSyntaxException e) {
-            Log.e(TAG, "Error parsing message JSON", e);
-        }
+    /**
+     * Send a chat message to a single node. When {@code reliable} is set the
+     * message is retransmitted until the target acknowledges it, and progress
+     * is reported through {@link BluetoothMeshListener#onDeliveryStatusChanged}.
+     *
+     * @return the message ID used in delivery status callbacks
+     */
+    public String sendDirectMessage(String targetNodeId, String messageText, boolean reliable) {
+        return engine.sendDirectMessage(targetNodeId, messageText, reliable);
     }
     
-    private void handleChatMessage(BluetoothMeshMessage message, String fromDeviceId) {
-        // If message is for us or broadcast, process it
-        if (message.getTargetNodeId() == null || localNodeId.equals(message.getTargetNodeId())) {
-            mainHandler.post(() -> listener.onMessageReceived(message));
-        }
-        
-        // Forward the message if it's not from us
-        if (!localNodeId.equals(message.getSourceNodeId())) {
-            forwardMessage(message, fromDeviceId);
-        }
+    /**
+     * As {@link #sendDirectMessage(String, String, boolean)}, in a priority class.
+     */
+    public String sendDirectMessage(String targetNodeId, String messageText, boolean reliable, int priority) {
+        return engine.sendDirectMessage(targetNodeId, messageText, reliable, priority);
     }
     
-    private void handleDiscoveryMessage(BluetoothMeshMessage message, String fromDeviceId) {
-        // Update network topology with discovered node
-        BluetoothMeshNode node = gson.fromJson(message.getContent(), BluetoothMeshNode.class);
-        
-        if (!networkNodes.containsKey(node.getNodeId())) {
-            networkNodes.put(node.getNodeId(), node);
-            updateRoutingTable();
-            
-            mainHandler.post(() -> listener.onNodeJoined(node));
-            mainHandler.post(() -> listener.onNetworkTopologyChanged(new ArrayList<>(networkNodes.values())));
-        }
-        
-        // Forward discovery message
-        forwardMessage(message, fromDeviceId);
+    /**
+     * Send a file to a single node in chunks. The file is read as it is sent,
+     * not loaded up front, and the transfer resumes by itself if the route
+     * drops for a while. Progress and the outcome are reported through
+     * {@link BluetoothMeshListener#onFileTransferProgress} and
+     * {@link BluetoothMeshListener#onFileTransferFinished}.
+     *
+     * @return the transfer ID used in those callbacks
+     */
+    public String sendFile(String targetNodeId, File file, String mimeType) {
+        return engine.sendFile(targetNodeId, file, mimeType);
     }
     
-    private void handleTopologyMessage(BluetoothMeshMessage message, String fromDeviceId) {
-        // Handle network topology updates
-        forwardMessage(message, fromDeviceId);
+    private void onInbound(BluetoothMeshMessage message, String linkId) {
+        engine.onInbound(message, linkId);
     }
     
-    private void handleHeartbeatMessage(BluetoothMeshMessage message, String fromDeviceId) {
-        // Update node last seen time
-        BluetoothMeshNode node = networkNodes.get(message.getSourceNodeId());
-        if (node != null) {
-            node.setLastSeen(System.currentTimeMillis());
-        }
+    private synchronized void setState(int state) {
+        Log.d(TAG, "setState() " + currentState + " -> " + state);
+        currentState = state;
+        mainHandler.post(() -> listener.onConnectionStateChanged(state));
     }
     
-    private void updateRoutingTable() {
-        // Simple routing: direct connections have priority
-        routingTable.clear();
-        
-        for (String deviceId : connectedDevices.keySet()) {
-            for (BluetoothMeshNode node : networkNodes.values()) {
-                if (node.getBluetoothAddress().equals(deviceId)) {
-                    routingTable.put(node.getNodeId(), deviceId);
-                    break;
-                }
-            }
-        }
+    public synchronized int getState() {
+        return currentState;
     }
     
-    private void startNetworkMaintenance() {
-        // Send periodic heartbeats
-        networkHandler.postDelayed(new Runnable() {
-            @Override
-            public void run() {
-                sendHeartbeat();
-                cleanupStaleNodes();
-                networkHandler.postDelayed(this, 10000); // Every 10 seconds
-            }
-        }, 10000);
-        
-        // Send discovery announcement
-        sendDiscoveryAnnouncement();
+    public String getLocalNodeId() {
+        return localNodeId;
     }
     
-    private void sendHeartbeat() {
-        BluetoothMeshMessage heartbeat = new BluetoothMeshMessage(
-                generateMessageId(),
-                MSG_TYPE_HEARTBEAT,
-                localNodeId,
-                null,
-                "",
-                System.currentTimeMillis(),
-                0
-        );
-        
-        broadcastMessage(heartbeat);
+    /**
+     * The nodes as last reported through
+     * {@link BluetoothMeshListener#onNetworkTopologyChanged}.
+     */
+    public List<MeshNodeSnapshot> getNetworkNodes() {
+        return engine.getNodeSnapshots();
     }
     
-    private void sendDiscoveryAnnouncement() {
-        BluetoothMeshMessage discovery = new BluetoothMeshMessage(
-                generateMessageId(),
-                MSG_TYPE_DISCOVERY,
-                localNodeId,
-                null,
-                gson.toJson(localNode),
-                System.currentTimeMillis(),
-                0
-        );
-        
-        broadcastMessage(discovery);
+    /**
+     * Recent group chat kept on this device and synced with the mesh,
+     * oldest first. It is also replayed through
+     * {@link BluetoothMeshListener#onMessageReceived} when the network starts.
+     */
+    public List<BluetoothMeshMessage> getChatHistory() {
+        return engine.getChatHistory();
     }
     
-    private void cleanupStaleNodes() {
-        long currentTime = System.currentTimeMillis();
-        long staleThreshold = 60000; // 1 minute
-        
-        List<String> staleNodes = new ArrayList<>();
-        for (BluetoothMeshNode node : networkNodes.values()) {
-            if (!node.getNodeId().equals(localNodeId) && 
-                (currentTime - node.getLastSeen()) > staleThreshold) {
-                staleNodes.add(node.getNodeId());
-            }
-        }
-        
-        for (String nodeId : staleNodes) {
-            BluetoothMeshNode removedNode = networkNodes.remove(nodeId);
-            if (removedNode != null) {
-                mainHandler.post(() -> listener.onNodeLeft(removedNode));
-                mainHandler.post(() -> listener.onNetworkTopologyChanged(new ArrayList<>(networkNodes.values())));
-            }
-        }
-        
-        if (!staleNodes.isEmpty()) {
-            updateRoutingTable();
-        }
+    public int getConnectedDeviceCount() {
+        return transport.getLinkCount();
     }
     
-    private String generateMessageId() {
-        return localNodeId + "_" + System.currentTimeMillis() + "_" + Math.random();
+    public MessageIdCache getDuplicateCache() {
+        return engine.getDuplicateCache();
     }
     
-    private synchronized void setState(int state) {
-        Log.d(TAG, "setState() " + currentState + " -> " + state);
-        currentState = state;
-        mainHandler.post(() -> listener.onConnectionStateChanged(state));
+    /**
+     * Flooding policies per message type and counters of redundant
+     * receptions and rebroadcasts avoided. For example, keep urgent
+     * traffic on full flooding with
+     * {@code getFloodController().setPolicy(type, FloodPolicy.FULL)}.
+     */
+    public MeshFloodController getFloodController() {
+        return engine.getFloodController();
     }
     
-    public synchronized int getState() {
-        return currentState;
+    /**
+     * Token-bucket limits per neighbour and per originating node. A node
+     * that floods faster than these is shed, least urgent traffic first, and
+     * asked to slow down with a BACKPRESSURE frame.
+     */
+    public MeshRateLimiter getRateLimiter() {
+        return engine.getRateLimiter();
     }
     
-    public List<BluetoothMeshNode> getNetworkNodes() {
-        return new ArrayList<>(networkNodes.values());
+    /**
+     * Chooses which devices found in range to link to, aiming for a few
+     * links each and shedding links when this phone becomes a hub; see
+     * {@link MeshConnectionPlanner}. Devices connected through
+     * {@link #connectToDevice} are always kept.
+     */
+    public MeshConnectionPlanner getConnectionPlanner() {
+        return engine.getConnectionPlanner();
     }
     
-    public int getConnectedDeviceCount() {
-        return connectedDevices.size();
+    /**
+     * Switch outgoing frames to the Gson body format. Incoming frames are
+     * decoded in either format, so this is only needed for debugging or when
+     * talking to peers that cannot parse binary bodies.
+     */
+    public void setJsonWireFormat(boolean useJson) {
+        frameCodec.setWireFormat(useJson ? MeshFrameCodec.FORMAT_JSON : MeshFrameCodec.FORMAT_BINARY);
     }
     
-    // Thread for accepting incoming connections
-    private class AcceptThread extends Thread {
-        private BluetoothServerSocket serverSocket;
-        
-        public AcceptThread() {
-            try {
-                if (ActivityCompat.checkSelfPermission(context, android.Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
-                    Log.e(TAG, "BLUETOOTH_CONNECT permission not granted");
-                    serverSocket = null;
-                    return;
-                }
-                serverSocket = bluetoothAdapter.listenUsingInsecureRfcommWithServiceRecord(SERVICE_NAME, MESH_UUID);
-            } catch (IOException e) {
-                Log.e(TAG, "listen() failed", e);
-                serverSocket = null;
-            }
-        }
-        
-        public void run() {
-            Log.d(TAG, "AcceptThread started");
-            setName("AcceptThread");
-            
-            if (serverSocket == null) {
-                Log.e(TAG, "ServerSocket is null, cannot accept connections");
-                return;
-            }
-            
-            BluetoothSocket socket;
-            
-            while (currentState != STATE_CONNECTED) {
-                try {
-                    socket = serverSocket.accept();
-                } catch (IOException e) {
-                    Log.e(TAG, "accept() failed", e);
-                    break;
-                }
-                
-                if (socket != null) {
-                    synchronized (BluetoothMeshService.this) {
-                        handleNewConnection(socket);
-                    }
-                }
-            }
-            Log.d(TAG, "AcceptThread ended");
-        }
-        
-        public void cancel() {
-            Log.d(TAG, "AcceptThread cancel");
-            try {
-                if (serverSocket != null) {
-                    serverSocket.close();
-                }
-            } catch (IOException e) {
-                Log.e(TAG, "close() of server failed", e);
-            }
-        }
+    /**
+     * Batch small frames into fewer RFCOMM writes. Helps busy group chats
+     * and discovery bursts at the cost of holding a frame for a few
+     * milliseconds when traffic is heavy; emergency messages are never held.
+     * Takes effect for links opened afterwards, so call it before
+     * {@link #startMeshNetwork()}.
+     */
+    public void setWriteCoalescing(boolean enabled) {
+        transport.setWriteCoalescing(enabled);
     }
     
-    // Thread for connecting to a device
-    private class ConnectThread extends Thread {
-        private BluetoothSocket socket;
-        private final BluetoothDevice device;
-        
-        public ConnectThread(BluetoothDevice device) {
-            this.device = device;
-            
-            try {
-                if (ActivityCompat.checkSelfPermission(context, android.Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
-                    Log.e(TAG, "BLUETOOTH_CONNECT permission not granted");
-                    socket = null;
-                    return;
-                }
-                socket = device.createInsecureRfcommSocketToServiceRecord(MESH_UUID);
-            } catch (IOException e) {
-                Log.e(TAG, "create() failed", e);
-                socket = null;
-            }
-        }
-        
-        public void run() {
-            Log.d(TAG, "ConnectThread started");
-            setName("ConnectThread");
-            
-            if (socket == null) {
-                Log.e(TAG, "Socket is null, cannot connect");
-                return;
-            }
-            
-            try {
-                if (ActivityCompat.checkSelfPermission(context, android.Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
-                    Log.e(TAG, "BLUETOOTH_CONNECT permission not granted");
-                    return;
-                }
-                socket.connect();
-            } catch (IOException e) {
-                Log.e(TAG, "unable to connect() socket", e);
-                try {
-                    socket.close();
-                } catch (IOException e2) {
-                    Log.e(TAG, "unable to close() socket during connection failure", e2);
-                }
-                return;
-            }
-            
-            synchronized (BluetoothMeshService.this) {
-                handleNewConnection(socket);
-            }
-        }
-        
-        public void cancel() {
-            try {
-                if (socket != null) {
-                    socket.close();
-                }
-            } catch (IOException e) {
-                Log.e(TAG, "close() of connect socket failed", e);
-            }
-        }
+    /**
+     * How long node changes are gathered into one
+     * {@link BluetoothMeshListener#onNetworkTopologyChanged} call; 0 reports
+     * each change at once. Defaults to
+     * {@link MeshTopologyNotifier#DEFAULT_INTERVAL_MS}.
+     */
+    public void setTopologyUpdateInterval(long intervalMillis) {
+        engine.setTopologyNotifyInterval(intervalMillis);
     }
     
-    private void handleNewConnection(BluetoothSocket socket) {
-        Log.d(TAG, "handleNewConnection");
-        
-        String deviceAddress = socket.getRemoteDevice().getAddress();
-        
-        // Check if already connected to this device
-        if (connectedDevices.containsKey(deviceAddress)) {
-            Log.w(TAG, "Already connected to device: " + deviceAddress);
-            try {
-                socket.close();
-            } catch (IOException e) {
-                Log.e(TAG, "Error closing duplicate socket", e);
-            }
-            return;
-        }
-        
-        // Create and start connected thread
-        ConnectedThread connectedThread = new ConnectedThread(socket);
-        connectedDevices.put(deviceAddress, connectedThread);
-        connectedThread.start();
-        
-        setState(STATE_CONNECTED);
-        
-        // Send discovery announcement to new connection
-        sendDiscoveryAnnouncement();
-        
-        // Update routing table
-        updateRoutingTable();
+    /**
+     * Last known state of each neighbour link, keyed by device address.
+     */
+    public Map<String, MeshConnectionManager.LinkState> getLinkStates() {
+        return transport.getLinkStates();
+    }
+    
+    /**
+     * Traffic per link and message type, drops by reason, relay fan-out,
+     * neighbour round trip times and delivery latency since start. Cheap
+     * enough to poll once a second from a diagnostics screen.
+     */
+    public MeshMetrics.Snapshot getMetricsSnapshot() {
+        return engine.getMetricsSnapshot();
     }
     
-    // Thread for managing connected socket
-    private class ConnectedThread extends Thread {
-        private final BluetoothSocket socket;
-        private final InputStream inputStream;
-        private final OutputStream outputStream;
-        private final String deviceAddress;
+    /**
+     * Write the current metrics to {@code file} as JSON.
+     */
+    public void exportMetrics(File file) throws IOException {
+        engine.exportMetrics(file);
+    }
+    
+    // Engine callbacks arrive on the mesh thread; the UI gets them on the main looper
+    private class EngineListener implements MeshEngine.Listener {
+        @Override
+        public void onMessageReceived(BluetoothMeshMessage message) {
+            mainHandler.post(() -> listener.onMessageReceived(message));
+        }
         
-        public ConnectedThread(BluetoothSocket socket) {
-            Log.d(TAG, "create ConnectedThread");
-            this.socket = socket;
-            this.deviceAddress = socket.getRemoteDevice().getAddress();
-            InputStream tmpIn = null;
-            OutputStream tmpOut = null;
-            
-            try {
-                tmpIn = socket.getInputStream();
-                tmpOut = socket.getOutputStream();
-            } catch (IOException e) {
-                Log.e(TAG, "temp sockets not created", e);
-            }
-            
-            inputStream = tmpIn;
-            outputStream = tmpOut;
+        @Override
+        public void onTopologyChanged(MeshTopologyNotifier.TopologyDiff diff) {
+            mainHandler.post(() -> listener.onNetworkTopologyChanged(diff));
         }
         
-        public void run() {
-            Log.d(TAG, "ConnectedThread started for device: " + deviceAddress);
-            byte[] buffer = new byte[1024];
-            int bytes;
-            
-            while (true) {
-                try {
-                    bytes = inputStream.read(buffer);
-                    String receivedMessage = new String(buffer, 0, bytes);
-                    
-                    // Handle the received message
-                    handleIncomingMessage(receivedMessage, deviceAddress);
-                    
-                } catch (IOException e) {
-                    Log.e(TAG, "disconnected from device: " + deviceAddress, e);
-                    connectionLost();
-                    break;
-                }
+        @Override
+        public void onLinkCountChanged(int linkCount) {
+            if (linkCount > 0) {
+                setState(STATE_CONNECTED);
+            } else if (getState() == STATE_CONNECTED) {
+                // No more connections, go back to listening
+                setState(STATE_LISTENING);
             }
         }
         
-        public void write(String message) {
-            try {
-                outputStream.write(message.getBytes());
-            } catch (IOException e) {
-                Log.e(TAG, "Exception during write", e);
-            }
+        @Override
+        public void onDeliveryStatusChanged(String messageId, MeshReliableDelivery.DeliveryStatus status) {
+            mainHandler.post(() -> listener.onDeliveryStatusChanged(messageId, status));
         }
         
-        public void cancel() {
-            try {
-                if (socket != null) {
-                    socket.close();
-                }
-            } catch (IOException e) {
-                Log.e(TAG, "close() of connect socket failed", e);
-            }
+        @Override
+        public void onFileTransferProgress(MeshFileTransfer.FileInfo info, int chunksDone) {
+            mainHandler.post(() -> listener.onFileTransferProgress(info, chunksDone));
         }
         
-        private void connectionLost() {
-            // Remove from connected devices
-            connectedDevices.remove(deviceAddress);
-            
-            // Update routing table
-            updateRoutingTable();
-            
-            // If no more connections, go back to listening
-            if (connectedDevices.isEmpty()) {
-                setState(STATE_LISTENING);
-            }
+        @Override
+        public void onFileTransferFinished(MeshFileTransfer.FileInfo info, File file) {
+            mainHandler.post(() -> listener.onFileTransferFinished(info, file));
         }
     }
     
@@ -624,18 +402,9 @@ public class BluetoothMeshService {
         
         setState(STATE_NONE);
         
-        if (acceptThread != null) {
-            acceptThread.cancel();
-            acceptThread = null;
-        }
-        
-        for (ConnectedThread connectedThread : connectedDevices.values()) {
-            connectedThread.cancel();
-        }
-        connectedDevices.clear();
-        
-        networkNodes.clear();
-        routingTable.clear();
-        seenMessageIds.clear();
+        // Closes every link, then clears protocol state behind whatever the
+        // mesh thread already has queued
+        engine.stop();
+        meshScheduler.shutdown();
     }
 }
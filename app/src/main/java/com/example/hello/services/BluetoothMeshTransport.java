@@ -0,0 +1,295 @@
+package com.example.hello.services;
+
+import android.annotation.SuppressLint;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothClass;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothServerSocket;
+import android.bluetooth.BluetoothSocket;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.os.ParcelUuid;
+import android.util.Log;
+
+import androidx.core.app.ActivityCompat;
+
+import com.example.hello.models.BluetoothMeshMessage;
+import com.example.hello.services.mesh.MeshConnectionManager;
+import com.example.hello.services.mesh.MeshFrameCodec;
+import com.example.hello.services.mesh.MeshTransport;
+import com.example.hello.services.mesh.OutboundFrame;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * BluetoothMeshTransport - Mesh links over insecure RFCOMM sockets
+ *
+ * Accepts incoming links on the mesh service record and dials peers by
+ * Bluetooth address. Link IDs are the peers' addresses. The sockets
+ * themselves are pumped by a {@link MeshConnectionManager}. Phones and
+ * computers found by any discovery, whether started here or by the user,
+ * are reported as peers in range, as is any device that has shown the mesh
+ * service record before. Headsets, watches and the like cannot run the app
+ * and are never dialled.
+ */
+public class BluetoothMeshTransport implements MeshTransport {
+    private static final String TAG = "BluetoothMeshTransport";
+    private static final String SERVICE_NAME = "BluetoothMeshChat";
+    private static final UUID MESH_UUID = UUID.fromString("fa87c0d0-afac-11de-8a39-0800200c9a66");
+
+    private final Context context;
+    private final BluetoothAdapter bluetoothAdapter;
+    private final MeshConnectionManager connectionManager;
+    private final DiscoveryReceiver discoveryReceiver = new DiscoveryReceiver();
+    private volatile Listener listener;
+
+    public BluetoothMeshTransport(Context context, BluetoothAdapter bluetoothAdapter, MeshFrameCodec frameCodec) {
+        this.context = context;
+        this.bluetoothAdapter = bluetoothAdapter;
+        this.connectionManager = new MeshConnectionManager(frameCodec, new LinkCallbacks());
+    }
+
+    @Override
+    public synchronized void start(Listener listener) {
+        this.listener = listener;
+        connectionManager.start();
+
+        // Keep accepting incoming connections up to the maximum degree
+        MeshConnectionManager.Acceptor acceptor = openAcceptor();
+        if (acceptor != null) {
+            connectionManager.startAccepting(acceptor);
+        }
+
+        context.registerReceiver(discoveryReceiver, new IntentFilter(BluetoothDevice.ACTION_FOUND));
+    }
+
+    @Override
+    public boolean connect(String address) {
+        if (!bluetoothAdapter.isEnabled()) {
+            return false;
+        }
+        BluetoothDevice device = bluetoothAdapter.getRemoteDevice(address);
+        return connectionManager.connect(address, a -> createLinkSocket(device));
+    }
+
+    @Override
+    public void disconnect(String linkId) {
+        connectionManager.disconnect(linkId);
+    }
+
+    @Override
+    public boolean startDiscovery() {
+        if (!bluetoothAdapter.isEnabled()) {
+            return false;
+        }
+        if (ActivityCompat.checkSelfPermission(context, android.Manifest.permission.BLUETOOTH_SCAN) != PackageManager.PERMISSION_GRANTED) {
+            Log.w(TAG, "BLUETOOTH_SCAN permission not granted");
+            return false;
+        }
+        return bluetoothAdapter.isDiscovering() || bluetoothAdapter.startDiscovery();
+    }
+
+    @Override
+    public boolean send(String linkId, OutboundFrame frame) {
+        return connectionManager.send(linkId, frame);
+    }
+
+    @Override
+    public List<String> getLinkIds() {
+        return connectionManager.getLinkIds();
+    }
+
+    @Override
+    public int getLinkCount() {
+        return connectionManager.getLinkCount();
+    }
+
+    @Override
+    public boolean isLinked(String linkId) {
+        return connectionManager.isLinked(linkId);
+    }
+
+    @Override
+    public int getQueueDepth(String linkId) {
+        return connectionManager.getQueueDepth(linkId);
+    }
+
+    /**
+     * Pack small frames into fewer RFCOMM writes on links opened from now on.
+     */
+    public void setWriteCoalescing(boolean enabled) {
+        connectionManager.setWriteCoalescing(enabled);
+    }
+
+    /**
+     * Last known state of each neighbour link, keyed by device address.
+     */
+    public Map<String, MeshConnectionManager.LinkState> getLinkStates() {
+        return connectionManager.getLinkStates();
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (listener != null) {
+            context.unregisterReceiver(discoveryReceiver);
+        }
+        // Closes the server socket and every link
+        connectionManager.stop();
+        listener = null;
+    }
+
+    private MeshConnectionManager.Acceptor openAcceptor() {
+        if (ActivityCompat.checkSelfPermission(context, android.Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
+            Log.e(TAG, "BLUETOOTH_CONNECT permission not granted");
+            return null;
+        }
+        try {
+            BluetoothServerSocket serverSocket =
+                    bluetoothAdapter.listenUsingInsecureRfcommWithServiceRecord(SERVICE_NAME, MESH_UUID);
+            return new MeshConnectionManager.Acceptor() {
+                @Override
+                public MeshConnectionManager.LinkSocket accept() throws IOException {
+                    return new BluetoothLinkSocket(serverSocket.accept());
+                }
+
+                @Override
+                public void close() throws IOException {
+                    serverSocket.close();
+                }
+            };
+        } catch (IOException e) {
+            Log.e(TAG, "listen() failed", e);
+            return null;
+        }
+    }
+
+    private MeshConnectionManager.LinkSocket createLinkSocket(BluetoothDevice device) throws IOException {
+        if (ActivityCompat.checkSelfPermission(context, android.Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
+            throw new IOException("BLUETOOTH_CONNECT permission not granted");
+        }
+        return new BluetoothLinkSocket(device.createInsecureRfcommSocketToServiceRecord(MESH_UUID));
+    }
+
+    // Passes link events through to whoever started the transport
+    private class LinkCallbacks implements MeshConnectionManager.Callbacks {
+        @Override
+        public void onLinkUp(String linkId, boolean outbound) {
+            Listener current = listener;
+            if (current != null) {
+                current.onLinkUp(linkId, outbound);
+            }
+        }
+
+        @Override
+        public void onFrame(BluetoothMeshMessage message, String linkId) {
+            Listener current = listener;
+            if (current != null) {
+                current.onFrame(message, linkId);
+            }
+        }
+
+        @Override
+        public void onLinkDown(String linkId) {
+            Listener current = listener;
+            if (current != null) {
+                current.onLinkDown(linkId);
+            }
+        }
+
+        @Override
+        public void onConnectFailed(String address) {
+            Listener current = listener;
+            if (current != null) {
+                current.onConnectFailed(address);
+            }
+        }
+
+        @Override
+        public void onFrameEvicted(String linkId, OutboundFrame frame) {
+            Listener current = listener;
+            if (current != null) {
+                current.onFrameEvicted(linkId, frame);
+            }
+        }
+    }
+
+    // Whether a device found in range could be running the mesh. Uses only
+    // what discovery already reported: an SDP query per device would stall
+    // discovery and the live links alike.
+    @SuppressLint("MissingPermission") // only called while discovery, which needs it, is running
+    private static boolean mayRunMesh(BluetoothDevice device) {
+        ParcelUuid[] uuids = device.getUuids();
+        if (uuids != null) {
+            for (ParcelUuid uuid : uuids) {
+                if (MESH_UUID.equals(uuid.getUuid())) {
+                    return true;
+                }
+            }
+        }
+        BluetoothClass bluetoothClass = device.getBluetoothClass();
+        if (bluetoothClass == null) {
+            // Class not reported; the planner gives up on it if it never answers
+            return true;
+        }
+        int major = bluetoothClass.getMajorDeviceClass();
+        return major == BluetoothClass.Device.Major.PHONE || major == BluetoothClass.Device.Major.COMPUTER;
+    }
+
+    // Hands every device found in range that could run the mesh to the planner
+    private class DiscoveryReceiver extends BroadcastReceiver {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+            Listener current = listener;
+            if (device != null && current != null && mayRunMesh(device)) {
+                short rssi = intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, Short.MIN_VALUE);
+                current.onPeerDiscovered(device.getAddress(), rssi);
+            }
+        }
+    }
+
+    // Adapts an RFCOMM socket to the connection manager
+    private static class BluetoothLinkSocket implements MeshConnectionManager.LinkSocket {
+        private final BluetoothSocket socket;
+
+        BluetoothLinkSocket(BluetoothSocket socket) {
+            this.socket = socket;
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return socket.getRemoteDevice().getAddress();
+        }
+
+        @Override
+        @SuppressLint("MissingPermission") // checked in createLinkSocket()
+        public void connect() throws IOException {
+            if (!socket.isConnected()) {
+                socket.connect();
+            }
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return socket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return socket.getOutputStream();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
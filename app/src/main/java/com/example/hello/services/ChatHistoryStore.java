@@ -0,0 +1,697 @@
+package com.example.hello.services;
+
+import android.util.Log;
+
+import com.example.hello.models.BluetoothMeshMessage;
+import com.example.hello.models.BluetoothMessage;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+
+/**
+ * ChatHistoryStore - Append-only local history of chat messages, read in pages
+ *
+ * Messages are appended to a log file; only a small index entry per message
+ * (timestamp, file offset, length) is kept in memory, grouped by
+ * conversation and ordered by timestamp. Screens hold just the page or two
+ * they show and read further pages back from disk as the user scrolls, so
+ * memory stays flat however long a session runs. The index is rebuilt by
+ * scanning the log when the store is opened, which is how history survives
+ * rotation and process death.
+ *
+ * Appends return at once: the message goes into the index straight away and
+ * is written together with everything else appended since the last write, on
+ * the store's own thread. Pages and the initial scan are read on that thread
+ * too. Disk work holds only a lock of its own; the index is locked just long
+ * enough to copy from it or update it, so an append on the main thread never
+ * waits for a read or a write. Each conversation keeps at most {@code maxPerConversation} messages;
+ * older ones are dropped and the log is rewritten once more than half of it
+ * is dropped records.
+ *
+ * Messages with a key (mesh message ids) are stored once: the keys of the
+ * most recent messages are remembered, so a message replayed by the mesh
+ * on every start or synced again from a neighbour is not appended twice.
+ *
+ * Record layout: {@code type(1) length(4) crc32(4) payload(length)}, where the
+ * payload is {@code conversationLength(2) conversationId timestamp(8)
+ * keyLength(2) key body} and the body is the message as JSON. A torn record
+ * at the tail is truncated on open.
+ */
+public class ChatHistoryStore<T> {
+    private static final String TAG = "ChatHistoryStore";
+
+    public static final int DEFAULT_MAX_PER_CONVERSATION = 10000;
+    public static final int DEFAULT_PAGE_SIZE = 50;
+
+    private static final byte RECORD_MESSAGE = 1;
+    private static final int RECORD_HEADER_SIZE = 9;
+    private static final long COMPACT_MIN_DEAD_BYTES = 256 * 1024;
+    static final int MAX_RECENT_KEYS = 4096;
+
+    /**
+     * How messages are turned into record bodies and back.
+     */
+    public interface MessageCodec<T> {
+        byte[] encode(T message);
+        /** @return the message, or null if the body cannot be decoded */
+        T decode(byte[] body);
+        long getTimestamp(T message);
+        /** @return an id to store the message once by, or null to keep every append */
+        String getKey(T message);
+    }
+
+    public interface PageCallback<T> {
+        /**
+         * Called on the store's thread.
+         *
+         * @param messages oldest first
+         * @param hasMore  whether older messages remain
+         */
+        void onPage(List<T> messages, boolean hasMore);
+    }
+
+    private static final Gson GSON = new Gson();
+
+    public static final MessageCodec<BluetoothMessage> BLUETOOTH_MESSAGES = new MessageCodec<BluetoothMessage>() {
+        @Override
+        public byte[] encode(BluetoothMessage message) {
+            return GSON.toJson(message).getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public BluetoothMessage decode(byte[] body) {
+            try {
+                return GSON.fromJson(new String(body, StandardCharsets.UTF_8), BluetoothMessage.class);
+            } catch (JsonParseException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public long getTimestamp(BluetoothMessage message) {
+            return message.getTimestamp();
+        }
+
+        @Override
+        public String getKey(BluetoothMessage message) {
+            return null;
+        }
+    };
+
+    public static final MessageCodec<BluetoothMeshMessage> MESH_MESSAGES = new MessageCodec<BluetoothMeshMessage>() {
+        @Override
+        public byte[] encode(BluetoothMeshMessage message) {
+            return GSON.toJson(message).getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public BluetoothMeshMessage decode(byte[] body) {
+            try {
+                return GSON.fromJson(new String(body, StandardCharsets.UTF_8), BluetoothMeshMessage.class);
+            } catch (JsonParseException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public long getTimestamp(BluetoothMeshMessage message) {
+            return message.getTimestamp();
+        }
+
+        @Override
+        public String getKey(BluetoothMeshMessage message) {
+            return message.getMessageId();
+        }
+    };
+
+    private static final class Entry {
+        final long timestamp;
+        long payloadOffset = -1;
+        int payloadLength;
+        // Order of the append that added it; 0 for entries read from the log
+        long sequence;
+        // Set until the entry has been written
+        Object pending;
+
+        Entry(long timestamp) {
+            this.timestamp = timestamp;
+        }
+
+        int recordLength() {
+            return RECORD_HEADER_SIZE + payloadLength;
+        }
+    }
+
+    private static final class PendingWrite {
+        final String conversationId;
+        final String key;
+        final Entry entry;
+
+        PendingWrite(String conversationId, String key, Entry entry) {
+            this.conversationId = conversationId;
+            this.key = key;
+            this.entry = entry;
+        }
+    }
+
+    private final File logFile;
+    private final MessageCodec<T> codec;
+    private final Executor executor;
+    private final boolean ownsExecutor;
+    private final int maxPerConversation;
+
+    // Per conversation, ordered by timestamp
+    private final Map<String, List<Entry>> index = new HashMap<>();
+    private final List<PendingWrite> pendingWrites = new ArrayList<>();
+    // Oldest first, at most MAX_RECENT_KEYS
+    private final Set<String> recentKeys = new LinkedHashSet<>();
+    // Guards the log file and the CRC; taken before this, never after
+    private final Object ioLock = new Object();
+    private final CRC32 crc = new CRC32();
+    private RandomAccessFile log;
+    private boolean flushScheduled;
+    private long appendSequence;
+    private long liveBytes;
+    private long writeCount;
+
+    public ChatHistoryStore(File logFile, MessageCodec<T> codec) {
+        this(logFile, codec, newStoreThread(), true, DEFAULT_MAX_PER_CONVERSATION);
+    }
+
+    public ChatHistoryStore(File logFile, MessageCodec<T> codec, Executor executor, int maxPerConversation) {
+        this(logFile, codec, executor, false, maxPerConversation);
+    }
+
+    private ChatHistoryStore(File logFile, MessageCodec<T> codec, Executor executor, boolean ownsExecutor,
+                             int maxPerConversation) {
+        this.logFile = logFile;
+        this.codec = codec;
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+        this.maxPerConversation = maxPerConversation;
+    }
+
+    private static ExecutorService newStoreThread() {
+        return Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "ChatHistoryStore");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Open the log and rebuild the index on the store's thread. Pages
+     * requested before it finishes are answered once it has.
+     */
+    public void open() {
+        executor.execute(() -> {
+            try {
+                openNow();
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to open chat history " + logFile, e);
+            }
+        });
+    }
+
+    void openNow() throws IOException {
+        synchronized (ioLock) {
+            if (log != null) {
+                return;
+            }
+            File directory = logFile.getParentFile();
+            if (directory != null && !directory.exists() && !directory.mkdirs()) {
+                throw new IOException("Cannot create " + directory);
+            }
+            log = new RandomAccessFile(logFile, "rw");
+            rebuildIndex();
+        }
+        Log.d(TAG, "Opened chat history with " + getConversationIds().size() + " conversations");
+    }
+
+    /**
+     * Write anything still pending and close the log, then let the store's
+     * own thread finish.
+     */
+    public void close() {
+        executor.execute(this::closeNow);
+        if (ownsExecutor) {
+            ((ExecutorService) executor).shutdown();
+        }
+    }
+
+    void closeNow() {
+        synchronized (ioLock) {
+            flushNow();
+            if (log == null) {
+                return;
+            }
+            try {
+                log.close();
+            } catch (IOException e) {
+                Log.e(TAG, "close() of chat history failed", e);
+            }
+            log = null;
+        }
+    }
+
+    /**
+     * Add a message to a conversation. Never blocks on disk: the write is
+     * batched with others on the store's thread.
+     *
+     * @return false if a message with the same key is stored already
+     */
+    public synchronized boolean append(String conversationId, T message) {
+        String key = codec.getKey(message);
+        if (key != null && !rememberKey(key)) {
+            return false;
+        }
+        Entry entry = new Entry(codec.getTimestamp(message));
+        entry.pending = message;
+        entry.sequence = ++appendSequence;
+        insert(conversationId, entry);
+        pendingWrites.add(new PendingWrite(conversationId, key, entry));
+
+        if (!flushScheduled) {
+            flushScheduled = true;
+            executor.execute(this::flushNow);
+        }
+        return true;
+    }
+
+    /**
+     * Read a page on the store's thread: up to {@code limit} messages older
+     * than the newest {@code skipNewest} ones, oldest first. A screen that
+     * shows the newest N messages asks for the next page with
+     * {@code skipNewest = N}. Messages appended after this call (which the
+     * screen shows already) do not shift the page.
+     */
+    public void loadPage(String conversationId, int skipNewest, int limit, PageCallback<T> callback) {
+        long requestedAfter = getAppendSequence();
+        executor.execute(() -> {
+            List<T> page = new ArrayList<>();
+            boolean hasMore = readPage(conversationId, skipNewest, limit, requestedAfter, page);
+            callback.onPage(page, hasMore);
+        });
+    }
+
+    /**
+     * Synchronous form of {@link #loadPage}. Reads from disk, so not for
+     * the main thread.
+     */
+    public List<T> getPage(String conversationId, int skipNewest, int limit) {
+        List<T> page = new ArrayList<>();
+        readPage(conversationId, skipNewest, limit, Long.MAX_VALUE, page);
+        return page;
+    }
+
+    public synchronized int size(String conversationId) {
+        List<Entry> entries = index.get(conversationId);
+        return entries != null ? entries.size() : 0;
+    }
+
+    public synchronized List<String> getConversationIds() {
+        return new ArrayList<>(index.keySet());
+    }
+
+    /** Batched writes made so far; a burst of appends costs one. */
+    public synchronized long getWriteCount() {
+        return writeCount;
+    }
+
+    // ---- Index ----
+
+    private void insert(String conversationId, Entry entry) {
+        List<Entry> entries = index.get(conversationId);
+        if (entries == null) {
+            entries = new ArrayList<>();
+            index.put(conversationId, entries);
+        }
+        // Almost always the newest, so search from the end
+        int position = entries.size();
+        while (position > 0 && entries.get(position - 1).timestamp > entry.timestamp) {
+            position--;
+        }
+        entries.add(position, entry);
+
+        if (entries.size() > maxPerConversation) {
+            // Oldest first; the log space is reclaimed by compaction
+            int excess = entries.size() - maxPerConversation;
+            for (Entry dropped : entries.subList(0, excess)) {
+                if (dropped.pending == null) {
+                    liveBytes -= dropped.recordLength();
+                }
+                dropped.pending = null;
+            }
+            entries.subList(0, excess).clear();
+        }
+    }
+
+    // Fills the page and returns whether older messages remain
+    @SuppressWarnings("unchecked")
+    private boolean readPage(String conversationId, int skipNewest, int limit, long appendedAfter, List<T> page) {
+        synchronized (ioLock) {
+            List<Entry> slice = new ArrayList<>();
+            List<Object> unwritten = new ArrayList<>();
+            boolean hasMore;
+            synchronized (this) {
+                List<Entry> entries = index.get(conversationId);
+                if (entries == null) {
+                    return false;
+                }
+                int skip = skipNewest + countAppendedAfter(conversationId, appendedAfter);
+                int end = Math.max(0, entries.size() - skip);
+                int start = Math.max(0, end - limit);
+                hasMore = start > 0;
+                for (Entry entry : entries.subList(start, end)) {
+                    slice.add(entry);
+                    unwritten.add(entry.pending);
+                }
+            }
+
+            for (int i = 0; i < slice.size(); i++) {
+                T message = unwritten.get(i) != null ? (T) unwritten.get(i) : read(slice.get(i));
+                if (message != null) {
+                    page.add(message);
+                }
+            }
+            return hasMore;
+        }
+    }
+
+    private synchronized long getAppendSequence() {
+        return appendSequence;
+    }
+
+    private int countAppendedAfter(String conversationId, long sequence) {
+        List<Entry> entries = index.get(conversationId);
+        int count = 0;
+        if (entries != null && sequence < appendSequence) {
+            for (Entry entry : entries) {
+                if (entry.sequence > sequence) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private boolean rememberKey(String key) {
+        if (!recentKeys.add(key)) {
+            return false;
+        }
+        if (recentKeys.size() > MAX_RECENT_KEYS) {
+            Iterator<String> oldest = recentKeys.iterator();
+            oldest.next();
+            oldest.remove();
+        }
+        return true;
+    }
+
+    // A written entry, from disk; called with ioLock held
+    private T read(Entry entry) {
+        if (log == null || entry.payloadOffset < 0) {
+            return null;
+        }
+        try {
+            byte[] payload = new byte[entry.payloadLength];
+            log.seek(entry.payloadOffset);
+            log.readFully(payload);
+            int keyOffset = 2 + readShort(payload, 0) + 8;
+            int bodyOffset = keyOffset + 2 + readShort(payload, keyOffset);
+            byte[] body = new byte[payload.length - bodyOffset];
+            System.arraycopy(payload, bodyOffset, body, 0, body.length);
+            return codec.decode(body);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read stored message at " + entry.payloadOffset, e);
+            return null;
+        }
+    }
+
+    // ---- Log handling ----
+
+    void flushNow() {
+        synchronized (ioLock) {
+            List<PendingWrite> batch;
+            List<Object> messages = new ArrayList<>();
+            synchronized (this) {
+                flushScheduled = false;
+                if (log == null || pendingWrites.isEmpty()) {
+                    return;
+                }
+                batch = new ArrayList<>(pendingWrites);
+                for (PendingWrite write : batch) {
+                    messages.add(write.entry.pending);
+                }
+            }
+
+            long[] offsets = new long[batch.size()];
+            int[] lengths = new int[batch.size()];
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(bytes);
+                long position = log.length();
+                for (int i = 0; i < batch.size(); i++) {
+                    @SuppressWarnings("unchecked")
+                    T message = (T) messages.get(i);
+                    if (message == null) {
+                        // Dropped from its conversation before it was ever written
+                        offsets[i] = -1;
+                        continue;
+                    }
+                    PendingWrite write = batch.get(i);
+                    byte[] payload = encodePayload(write.conversationId, write.entry.timestamp, write.key,
+                            codec.encode(message));
+                    out.writeByte(RECORD_MESSAGE);
+                    out.writeInt(payload.length);
+                    out.writeInt(checksum(payload, 0, payload.length));
+                    offsets[i] = position + out.size();
+                    lengths[i] = payload.length;
+                    out.write(payload);
+                }
+
+                // One write for the whole batch
+                log.seek(position);
+                log.write(bytes.toByteArray());
+            } catch (IOException e) {
+                // Entries keep their messages in memory and are retried with the next batch
+                Log.e(TAG, "Failed to write chat history", e);
+                return;
+            }
+
+            synchronized (this) {
+                writeCount++;
+                for (int i = 0; i < batch.size(); i++) {
+                    Entry entry = batch.get(i).entry;
+                    if (offsets[i] < 0) {
+                        continue;
+                    }
+                    entry.payloadOffset = offsets[i];
+                    entry.payloadLength = lengths[i];
+                    // Unless it was dropped while the batch was being written
+                    if (entry.pending != null) {
+                        entry.pending = null;
+                        liveBytes += entry.recordLength();
+                    }
+                }
+                // Appends only ever add to the end
+                pendingWrites.subList(0, batch.size()).clear();
+            }
+            maybeCompact();
+        }
+    }
+
+    // Reads the log into a fresh index; called with ioLock held
+    private void rebuildIndex() throws IOException {
+        List<String> conversationIds = new ArrayList<>();
+        List<String> keys = new ArrayList<>();
+        List<Entry> entries = new ArrayList<>();
+
+        long length = log.length();
+        long position = 0;
+        byte[] header = new byte[RECORD_HEADER_SIZE];
+
+        while (position + RECORD_HEADER_SIZE <= length) {
+            log.seek(position);
+            log.readFully(header);
+            byte type = header[0];
+            int payloadLength = readInt(header, 1);
+            int storedCrc = readInt(header, 5);
+
+            if (type != RECORD_MESSAGE || payloadLength < 12
+                    || position + RECORD_HEADER_SIZE + payloadLength > length) {
+                break;
+            }
+            byte[] payload = new byte[payloadLength];
+            log.readFully(payload);
+            if (checksum(payload, 0, payloadLength) != storedCrc) {
+                break;
+            }
+
+            int conversationLength = readShort(payload, 0);
+            int keyOffset = 2 + conversationLength + 8;
+            if (keyOffset + 2 > payloadLength || keyOffset + 2 + readShort(payload, keyOffset) > payloadLength) {
+                break;
+            }
+            conversationIds.add(new String(payload, 2, conversationLength, StandardCharsets.UTF_8));
+            int keyLength = readShort(payload, keyOffset);
+            keys.add(keyLength > 0 ? new String(payload, keyOffset + 2, keyLength, StandardCharsets.UTF_8) : null);
+            Entry entry = new Entry(readLong(payload, 2 + conversationLength));
+            entry.payloadOffset = position + RECORD_HEADER_SIZE;
+            entry.payloadLength = payloadLength;
+            entries.add(entry);
+
+            position = entry.payloadOffset + payloadLength;
+        }
+
+        if (position < length) {
+            Log.w(TAG, "Truncating " + (length - position) + " bytes of torn chat history");
+            log.setLength(position);
+        }
+
+        synchronized (this) {
+            index.clear();
+            recentKeys.clear();
+            liveBytes = 0;
+            for (int i = 0; i < entries.size(); i++) {
+                Entry entry = entries.get(i);
+                if (keys.get(i) != null) {
+                    rememberKey(keys.get(i));
+                }
+                liveBytes += entry.recordLength();
+                insert(conversationIds.get(i), entry);
+            }
+
+            // Appended before the log was open or while it was being read, so
+            // dropped with the index above; written with the next batch unless
+            // stored already
+            for (PendingWrite write : pendingWrites) {
+                if (write.key != null && !rememberKey(write.key)) {
+                    write.entry.pending = null;
+                }
+                if (write.entry.pending != null) {
+                    insert(write.conversationId, write.entry);
+                }
+            }
+        }
+    }
+
+    private static byte[] encodePayload(String conversationId, long timestamp, String key, byte[] body)
+            throws IOException {
+        byte[] conversation = conversationId.getBytes(StandardCharsets.UTF_8);
+        byte[] keyBytes = key != null ? key.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+                2 + conversation.length + 8 + 2 + keyBytes.length + body.length);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeShort(conversation.length);
+        out.write(conversation);
+        out.writeLong(timestamp);
+        out.writeShort(keyBytes.length);
+        out.write(keyBytes);
+        out.write(body);
+        return bytes.toByteArray();
+    }
+
+    // Rewrite the log with only live records once dropped records dominate;
+    // called with ioLock held
+    private void maybeCompact() {
+        try {
+            long length = log.length();
+            List<Entry> live = new ArrayList<>();
+            synchronized (this) {
+                long dead = length - liveBytes;
+                if (dead < COMPACT_MIN_DEAD_BYTES || dead < liveBytes) {
+                    return;
+                }
+                for (List<Entry> entries : index.values()) {
+                    for (Entry entry : entries) {
+                        if (entry.pending == null && entry.payloadOffset >= 0) {
+                            live.add(entry);
+                        }
+                    }
+                }
+            }
+
+            File compacted = new File(logFile.getPath() + ".compact");
+            long[] offsets = new long[live.size()];
+            try (RandomAccessFile out = new RandomAccessFile(compacted, "rw")) {
+                out.setLength(0);
+                for (int i = 0; i < live.size(); i++) {
+                    Entry entry = live.get(i);
+                    byte[] record = new byte[entry.recordLength()];
+                    log.seek(entry.payloadOffset - RECORD_HEADER_SIZE);
+                    log.readFully(record);
+                    offsets[i] = out.getFilePointer() + RECORD_HEADER_SIZE;
+                    out.write(record);
+                }
+                out.getFD().sync();
+            }
+
+            log.close();
+            if (!compacted.renameTo(logFile)) {
+                throw new IOException("Cannot replace " + logFile);
+            }
+            log = new RandomAccessFile(logFile, "rw");
+            synchronized (this) {
+                for (int i = 0; i < live.size(); i++) {
+                    live.get(i).payloadOffset = offsets[i];
+                }
+            }
+            Log.d(TAG, "Compacted chat history from " + length + " to " + log.length() + " bytes");
+        } catch (IOException e) {
+            Log.e(TAG, "Chat history compaction failed, reloading log", e);
+            try {
+                if (log != null) {
+                    log.close();
+                }
+                log = new RandomAccessFile(logFile, "rw");
+                rebuildIndex();
+            } catch (IOException reopenError) {
+                Log.e(TAG, "Unable to reopen chat history", reopenError);
+                log = null;
+                synchronized (this) {
+                    index.clear();
+                }
+            }
+        }
+    }
+
+    private int checksum(byte[] data, int offset, int length) {
+        crc.reset();
+        crc.update(data, offset, length);
+        return (int) crc.getValue();
+    }
+
+    private static int readShort(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xFF) << 8) | (bytes[offset + 1] & 0xFF);
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xFF) << 24) | ((bytes[offset + 1] & 0xFF) << 16)
+                | ((bytes[offset + 2] & 0xFF) << 8) | (bytes[offset + 3] & 0xFF);
+    }
+
+    private static long readLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (bytes[offset + i] & 0xFF);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,180 @@
+package com.example.hello.services;
+
+import com.example.hello.models.BluetoothMeshMessage;
+import com.example.hello.models.MeshMessageSnapshot;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+
+/**
+ * MeshChatWindow - The slice of the mesh chat history that is on screen
+ *
+ * Holds at most {@code maxMessages} snapshots of consecutive messages from a
+ * {@link ChatHistoryStore} conversation. Scrolling up pages older messages
+ * in and drops the newest ones past the limit; scrolling back down pages
+ * them in again. New messages are stored, and shown when they fall inside
+ * the window. Memory stays the same with 10k messages as with 100.
+ *
+ * All work, including building the snapshots and their display strings,
+ * runs on the given executor. Give it the executor the store was created
+ * with: the store is then open before the first page is read, and pages
+ * and appends never interleave. Every change hands the listener a new
+ * immutable list to diff against the one shown.
+ */
+public class MeshChatWindow {
+    public static final int DEFAULT_MAX_MESSAGES = 200;
+
+    public interface WindowListener {
+        /**
+         * Called on the window's executor.
+         *
+         * @param messages   oldest first; never modified afterwards
+         * @param showNewest whether the newest message was just loaded or
+         *                   arrived, so the list should scroll to it
+         */
+        void onWindowChanged(List<MeshMessageSnapshot> messages, boolean showNewest);
+    }
+
+    private final ChatHistoryStore<BluetoothMeshMessage> history;
+    private final String conversationId;
+    private final String localNodeId;
+    private final Executor executor;
+    private final WindowListener listener;
+    private final int maxMessages;
+    private final int pageSize;
+    private final DateFormat timeFormat = new SimpleDateFormat("HH:mm", Locale.getDefault());
+
+    // Only touched on the executor
+    private final List<MeshMessageSnapshot> window = new ArrayList<>();
+    // Stored messages newer than the window
+    private int skipNewest;
+    private boolean hasOlder = true;
+
+    public MeshChatWindow(ChatHistoryStore<BluetoothMeshMessage> history, String conversationId,
+                          String localNodeId, Executor executor, WindowListener listener) {
+        this(history, conversationId, localNodeId, executor, listener,
+                DEFAULT_MAX_MESSAGES, ChatHistoryStore.DEFAULT_PAGE_SIZE);
+    }
+
+    public MeshChatWindow(ChatHistoryStore<BluetoothMeshMessage> history, String conversationId,
+                          String localNodeId, Executor executor, WindowListener listener,
+                          int maxMessages, int pageSize) {
+        this.history = history;
+        this.conversationId = conversationId;
+        this.localNodeId = localNodeId;
+        this.executor = executor;
+        this.listener = listener;
+        this.maxMessages = maxMessages;
+        this.pageSize = pageSize;
+    }
+
+    /** Show the latest page. */
+    public void loadLatest() {
+        executor.execute(() -> {
+            window.clear();
+            skipNewest = 0;
+            hasOlder = true;
+            loadOlderNow();
+            publish(true);
+        });
+    }
+
+    /** Page older messages in at the top; for when the list is scrolled to it. */
+    public void loadOlder() {
+        executor.execute(() -> {
+            if (hasOlder) {
+                loadOlderNow();
+                publish(false);
+            }
+        });
+    }
+
+    /** Page newer messages back in at the bottom, if any were dropped. */
+    public void loadNewer() {
+        executor.execute(() -> {
+            if (skipNewest == 0) {
+                return;
+            }
+            int count = Math.min(pageSize, skipNewest);
+            List<BluetoothMeshMessage> page = history.getPage(conversationId, skipNewest - count, count);
+            skipNewest -= count;
+            for (BluetoothMeshMessage message : page) {
+                window.add(snapshot(message));
+            }
+            trimOldest();
+            publish(false);
+        });
+    }
+
+    /**
+     * Store a message and show it if it falls inside the window. Messages
+     * already stored (mesh replays and re-synced copies) are ignored.
+     */
+    public void add(BluetoothMeshMessage message) {
+        executor.execute(() -> {
+            if (!history.append(conversationId, message)) {
+                return;
+            }
+            MeshMessageSnapshot snapshot = snapshot(message);
+
+            // History synced from the mesh can be older than what is shown
+            int position = window.size();
+            while (position > 0 && window.get(position - 1).getTimestamp() > snapshot.getTimestamp()) {
+                position--;
+            }
+            if (position == window.size() && skipNewest > 0) {
+                // Reading older history: it is paged in on the way back down
+                skipNewest++;
+                return;
+            }
+            if (position == 0 && hasOlder && !window.isEmpty()) {
+                // Older than the window: it is paged in with the rest
+                return;
+            }
+            window.add(position, snapshot);
+            boolean newest = position == window.size() - 1;
+            if (newest) {
+                trimOldest();
+            }
+            publish(newest);
+        });
+    }
+
+    private void loadOlderNow() {
+        int skip = skipNewest + window.size();
+        List<BluetoothMeshMessage> page = history.getPage(conversationId, skip, pageSize);
+        hasOlder = skip + pageSize < history.size(conversationId);
+        List<MeshMessageSnapshot> snapshots = new ArrayList<>(page.size());
+        for (BluetoothMeshMessage message : page) {
+            snapshots.add(snapshot(message));
+        }
+        window.addAll(0, snapshots);
+
+        int excess = window.size() - maxMessages;
+        if (excess > 0) {
+            window.subList(window.size() - excess, window.size()).clear();
+            skipNewest += excess;
+        }
+    }
+
+    private void trimOldest() {
+        int excess = window.size() - maxMessages;
+        if (excess > 0) {
+            window.subList(0, excess).clear();
+            hasOlder = true;
+        }
+    }
+
+    private MeshMessageSnapshot snapshot(BluetoothMeshMessage message) {
+        return new MeshMessageSnapshot(message, localNodeId, timeFormat);
+    }
+
+    private void publish(boolean showNewest) {
+        listener.onWindowChanged(Collections.unmodifiableList(new ArrayList<>(window)), showNewest);
+    }
+}
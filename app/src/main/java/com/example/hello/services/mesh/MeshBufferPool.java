@@ -0,0 +1,97 @@
+package com.example.hello.services.mesh;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * MeshBufferPool - Size-classed pool of reusable byte arrays
+ *
+ * Frame encoders and decoders borrow their scratch buffers from here so that
+ * steady-state traffic on a mesh link does not allocate a fresh array per
+ * read or write. Buffers are bucketed by power-of-two size classes and each
+ * class only retains a bounded number of idle arrays.
+ */
+public class MeshBufferPool {
+    public static final int MIN_BUFFER_SIZE = 1024;
+    private static final int DEFAULT_MAX_IDLE_PER_CLASS = 8;
+
+    private final int maxBufferSize;
+    private final int maxIdlePerClass;
+    private final ConcurrentLinkedQueue<byte[]>[] freeLists;
+    private final AtomicInteger[] idleCounts;
+
+    public MeshBufferPool(int maxBufferSize) {
+        this(maxBufferSize, DEFAULT_MAX_IDLE_PER_CLASS);
+    }
+
+    @SuppressWarnings("unchecked")
+    public MeshBufferPool(int maxBufferSize, int maxIdlePerClass) {
+        this.maxBufferSize = roundUpToClass(maxBufferSize);
+        this.maxIdlePerClass = maxIdlePerClass;
+
+        int classCount = sizeClassIndex(this.maxBufferSize) + 1;
+        this.freeLists = (ConcurrentLinkedQueue<byte[]>[]) new ConcurrentLinkedQueue<?>[classCount];
+        this.idleCounts = new AtomicInteger[classCount];
+        for (int i = 0; i < classCount; i++) {
+            freeLists[i] = new ConcurrentLinkedQueue<>();
+            idleCounts[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * Borrow a buffer of at least {@code minSize} bytes. Requests larger than
+     * the pool's maximum are served with an unpooled array.
+     */
+    public byte[] acquire(int minSize) {
+        int size = roundUpToClass(minSize);
+        if (size > maxBufferSize) {
+            return new byte[minSize];
+        }
+
+        int index = sizeClassIndex(size);
+        byte[] buffer = freeLists[index].poll();
+        if (buffer != null) {
+            idleCounts[index].decrementAndGet();
+            return buffer;
+        }
+        return new byte[size];
+    }
+
+    /**
+     * Return a buffer obtained from {@link #acquire(int)}. Arrays that do not
+     * match a size class, or that would exceed the idle limit, are dropped.
+     */
+    public void release(byte[] buffer) {
+        if (buffer == null) {
+            return;
+        }
+
+        int size = buffer.length;
+        if (size < MIN_BUFFER_SIZE || size > maxBufferSize || Integer.bitCount(size) != 1) {
+            return;
+        }
+
+        int index = sizeClassIndex(size);
+        if (idleCounts[index].incrementAndGet() > maxIdlePerClass) {
+            idleCounts[index].decrementAndGet();
+            return;
+        }
+        freeLists[index].offer(buffer);
+    }
+
+    public int getMaxBufferSize() {
+        return maxBufferSize;
+    }
+
+    private static int roundUpToClass(int size) {
+        if (size <= MIN_BUFFER_SIZE) {
+            return MIN_BUFFER_SIZE;
+        }
+        int highest = Integer.highestOneBit(size - 1) << 1;
+        return highest > 0 ? highest : Integer.MAX_VALUE;
+    }
+
+    private static int sizeClassIndex(int size) {
+        return Integer.numberOfTrailingZeros(size) - Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE);
+    }
+}
@@ -0,0 +1,419 @@
+package com.example.hello.services.mesh;
+
+import android.util.Log;
+
+import com.example.hello.models.BluetoothMeshMessage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MeshConnectionManager - Owns every neighbour link of a mesh node
+ *
+ * Every link gets a blocking reader and a writer of its own (see
+ * {@link MeshLink}), so a neighbour that stops reading stalls only its own
+ * link, and the maximum degree caps the thread count. Inbound connections
+ * keep being accepted until the node reaches that degree, and outbound
+ * attempts run in parallel, each bounded by a timeout. The last known state
+ * of every link is kept for display and diagnostics.
+ *
+ * Threads: one accept thread, two per link (at most {@code 2 * maxDegree}),
+ * up to {@code maxParallelConnects} short-lived connect threads and one timer.
+ */
+public class MeshConnectionManager {
+    private static final String TAG = "MeshConnectionManager";
+
+    public static final int DEFAULT_MAX_DEGREE = 8;
+    public static final int DEFAULT_MAX_PARALLEL_CONNECTS = 3;
+    public static final long DEFAULT_CONNECT_TIMEOUT_MS = 15000;
+
+    public enum LinkState {
+        CONNECTING,
+        CONNECTED,
+        DISCONNECTED,
+        FAILED
+    }
+
+    /**
+     * A stream socket to one neighbour. Bluetooth sockets are adapted to
+     * this by the service.
+     */
+    public interface LinkSocket extends Closeable {
+        String getRemoteAddress();
+        /** Blocks until connected; a no-op for accepted sockets. */
+        void connect() throws IOException;
+        InputStream getInputStream() throws IOException;
+        OutputStream getOutputStream() throws IOException;
+    }
+
+    public interface Acceptor extends Closeable {
+        /** Blocks until a neighbour connects; throws once closed. */
+        LinkSocket accept() throws IOException;
+    }
+
+    public interface Connector {
+        /** Create an unconnected socket for {@code address}. */
+        LinkSocket create(String address) throws IOException;
+    }
+
+    public interface Callbacks {
+        void onLinkUp(String linkId, boolean outbound);
+        void onFrame(BluetoothMeshMessage message, String linkId);
+        void onLinkDown(String linkId);
+        void onConnectFailed(String address);
+        /** A queued frame was dropped to make room; called on the sending thread. */
+        void onFrameEvicted(String linkId, OutboundFrame frame);
+    }
+
+    private final MeshFrameCodec codec;
+    private final Callbacks callbacks;
+    private final int maxDegree;
+    private final int maxParallelConnects;
+    private final long connectTimeoutMs;
+
+    // Guarded by this
+    private final Map<String, MeshLink> links = new HashMap<>();
+    private final Set<String> pendingConnects = new HashSet<>();
+    private final Map<String, LinkState> linkStates = new ConcurrentHashMap<>();
+
+    private ThreadPoolExecutor connectPool;
+    private ScheduledExecutorService timer;
+    private AcceptLoop acceptLoop;
+    private boolean running;
+    private volatile int coalesceMaxBytes;
+    private volatile long coalesceMaxDelayNanos;
+
+    public MeshConnectionManager(MeshFrameCodec codec, Callbacks callbacks) {
+        this(codec, callbacks, DEFAULT_MAX_DEGREE, DEFAULT_MAX_PARALLEL_CONNECTS, DEFAULT_CONNECT_TIMEOUT_MS);
+    }
+
+    public MeshConnectionManager(MeshFrameCodec codec, Callbacks callbacks, int maxDegree,
+                                 int maxParallelConnects, long connectTimeoutMs) {
+        this.codec = codec;
+        this.callbacks = callbacks;
+        this.maxDegree = maxDegree;
+        this.maxParallelConnects = maxParallelConnects;
+        this.connectTimeoutMs = connectTimeoutMs;
+    }
+
+    /**
+     * Pack small frames into fewer socket writes on links opened from now
+     * on; see {@link MeshWriteCoalescer}. Off by default.
+     */
+    public void setWriteCoalescing(boolean enabled) {
+        setWriteCoalescing(enabled ? MeshWriteCoalescer.DEFAULT_MAX_BATCH_BYTES : 0,
+                MeshWriteCoalescer.DEFAULT_MAX_DELAY_MS);
+    }
+
+    /**
+     * @param maxBatchBytes largest single write; 0 turns coalescing off
+     * @param maxDelayMillis longest a frame is held waiting for company
+     */
+    public void setWriteCoalescing(int maxBatchBytes, long maxDelayMillis) {
+        coalesceMaxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        coalesceMaxBytes = maxBatchBytes;
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        connectPool = new ThreadPoolExecutor(maxParallelConnects, maxParallelConnects,
+                30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                runnable -> new Thread(runnable, "MeshConnect"));
+        connectPool.allowCoreThreadTimeOut(true);
+        ScheduledThreadPoolExecutor scheduled = new ScheduledThreadPoolExecutor(1,
+                runnable -> new Thread(runnable, "MeshConnectTimer"));
+        scheduled.setRemoveOnCancelPolicy(true);
+        timer = scheduled;
+    }
+
+    /**
+     * Accept inbound connections until {@link #stop()}. Connections beyond
+     * the maximum degree are closed straight away.
+     */
+    public synchronized void startAccepting(Acceptor acceptor) {
+        if (!running || acceptLoop != null) {
+            return;
+        }
+        acceptLoop = new AcceptLoop(acceptor);
+        acceptLoop.start();
+    }
+
+    /**
+     * Start an outbound connection attempt in the background.
+     *
+     * @return false if the address is already linked or being connected,
+     *         or the node has no room for another neighbour
+     */
+    public synchronized boolean connect(String address, Connector connector) {
+        if (!running || links.containsKey(address) || pendingConnects.contains(address)) {
+            return false;
+        }
+        if (links.size() + pendingConnects.size() >= maxDegree) {
+            Log.w(TAG, "Not connecting to " + address + ", at maximum degree " + maxDegree);
+            return false;
+        }
+        pendingConnects.add(address);
+        linkStates.put(address, LinkState.CONNECTING);
+        try {
+            connectPool.execute(() -> runConnect(address, connector));
+        } catch (RejectedExecutionException e) {
+            pendingConnects.remove(address);
+            linkStates.put(address, LinkState.FAILED);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Queue a frame on one link. Never blocks.
+     *
+     * @return false if there is no such link or its queue dropped the frame
+     */
+    public boolean send(String linkId, OutboundFrame frame) {
+        MeshLink link;
+        synchronized (this) {
+            link = links.get(linkId);
+        }
+        if (link == null) {
+            return false;
+        }
+        return offer(link, frame);
+    }
+
+    /**
+     * Queue a frame on every link except {@code exceptLinkId}, which may be null.
+     */
+    public void broadcast(OutboundFrame frame, String exceptLinkId) {
+        List<MeshLink> targets;
+        synchronized (this) {
+            targets = new ArrayList<>(links.values());
+        }
+        for (MeshLink link : targets) {
+            if (!link.getId().equals(exceptLinkId)) {
+                offer(link, frame);
+            }
+        }
+    }
+
+    public synchronized void disconnect(String linkId) {
+        MeshLink link = links.get(linkId);
+        if (link != null) {
+            // Its threads stop and report the link as down
+            link.close();
+        }
+    }
+
+    public synchronized List<String> getLinkIds() {
+        return new ArrayList<>(links.keySet());
+    }
+
+    public synchronized int getLinkCount() {
+        return links.size();
+    }
+
+    public synchronized boolean isLinked(String linkId) {
+        return links.containsKey(linkId);
+    }
+
+    /**
+     * Frames waiting in a link's outbound queue, or -1 if there is no such link.
+     */
+    public synchronized int getQueueDepth(String linkId) {
+        MeshLink link = links.get(linkId);
+        return link != null ? link.getOutboundQueue().size() : -1;
+    }
+
+    public int getMaxDegree() {
+        return maxDegree;
+    }
+
+    /**
+     * Last known state of every link this node has used since it started.
+     */
+    public Map<String, LinkState> getLinkStates() {
+        return new HashMap<>(linkStates);
+    }
+
+    public void stop() {
+        List<MeshLink> open;
+        AcceptLoop accepting;
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            open = new ArrayList<>(links.values());
+            links.clear();
+            pendingConnects.clear();
+            accepting = acceptLoop;
+            acceptLoop = null;
+            connectPool.shutdownNow();
+            timer.shutdownNow();
+        }
+
+        if (accepting != null) {
+            accepting.cancel();
+        }
+        for (MeshLink link : open) {
+            link.close();
+            linkStates.put(link.getId(), LinkState.DISCONNECTED);
+        }
+    }
+
+    private boolean offer(MeshLink link, OutboundFrame frame) {
+        if (!link.getOutboundQueue().offer(frame)) {
+            Log.w(TAG, "Outbound queue full for " + link.getId() + ", dropped " + frame.getMessageType());
+            return false;
+        }
+        return true;
+    }
+
+    private void runConnect(String address, Connector connector) {
+        LinkSocket socket = null;
+        ScheduledFuture<?> timeout = null;
+        try {
+            socket = connector.create(address);
+            // Closing the socket is the only way to abort a blocking connect
+            final LinkSocket attempt = socket;
+            timeout = timer.schedule(() -> closeQuietly(attempt), connectTimeoutMs, TimeUnit.MILLISECONDS);
+            socket.connect();
+            timeout.cancel(false);
+        } catch (IOException | RejectedExecutionException e) {
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+            Log.e(TAG, "Unable to connect to " + address, e);
+            closeQuietly(socket);
+            synchronized (this) {
+                pendingConnects.remove(address);
+                if (!links.containsKey(address)) {
+                    linkStates.put(address, LinkState.FAILED);
+                }
+            }
+            callbacks.onConnectFailed(address);
+            return;
+        }
+
+        synchronized (this) {
+            pendingConnects.remove(address);
+        }
+        register(socket, true);
+    }
+
+    private void register(LinkSocket socket, boolean outbound) {
+        String id = socket.getRemoteAddress();
+        MeshLink link;
+        synchronized (this) {
+            if (!running) {
+                closeQuietly(socket);
+                return;
+            }
+            if (links.containsKey(id)) {
+                Log.w(TAG, "Already linked to " + id + ", closing duplicate socket");
+                closeQuietly(socket);
+                return;
+            }
+            if (links.size() + pendingConnects.size() >= maxDegree) {
+                Log.w(TAG, "Rejecting " + id + ", at maximum degree " + maxDegree);
+                closeQuietly(socket);
+                return;
+            }
+
+            try {
+                link = new MeshLink(id, socket, codec,
+                        message -> callbacks.onFrame(message, id), outbound,
+                        new MeshWriteCoalescer(codec.getBufferPool(), coalesceMaxBytes, coalesceMaxDelayNanos));
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to open streams for " + id, e);
+                closeQuietly(socket);
+                linkStates.put(id, LinkState.FAILED);
+                return;
+            }
+            link.getOutboundQueue().setEvictionListener(frame -> callbacks.onFrameEvicted(id, frame));
+            links.put(id, link);
+            linkStates.put(id, LinkState.CONNECTED);
+        }
+        Log.d(TAG, "Link up: " + id + (outbound ? " (outbound)" : " (inbound)"));
+        callbacks.onLinkUp(id, outbound);
+        // Only now, so a link that fails at once is still reported down after it was reported up
+        link.start(this::onLinkClosed);
+    }
+
+    // Called from one of the link's threads once it has closed
+    private void onLinkClosed(MeshLink link, IOException cause) {
+        synchronized (this) {
+            if (links.get(link.getId()) != link) {
+                return;
+            }
+            links.remove(link.getId());
+            linkStates.put(link.getId(), LinkState.DISCONNECTED);
+        }
+        Log.d(TAG, "Link down: " + link.getId()
+                + (cause != null ? " (" + cause.getMessage() + ")" : ""));
+        callbacks.onLinkDown(link.getId());
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            Log.w(TAG, "close() failed", e);
+        }
+    }
+
+    private class AcceptLoop extends Thread {
+        private final Acceptor acceptor;
+        private volatile boolean cancelled;
+
+        AcceptLoop(Acceptor acceptor) {
+            super("MeshAccept");
+            this.acceptor = acceptor;
+        }
+
+        @Override
+        public void run() {
+            while (!cancelled) {
+                LinkSocket socket;
+                try {
+                    socket = acceptor.accept();
+                } catch (IOException e) {
+                    if (!cancelled) {
+                        Log.e(TAG, "accept() failed", e);
+                    }
+                    break;
+                }
+                if (socket != null) {
+                    register(socket, false);
+                }
+            }
+            Log.d(TAG, "Accept loop ended");
+        }
+
+        void cancel() {
+            cancelled = true;
+            closeQuietly(acceptor);
+        }
+    }
+}
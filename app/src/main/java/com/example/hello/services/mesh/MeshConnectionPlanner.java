@@ -0,0 +1,461 @@
+package com.example.hello.services.mesh;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * MeshConnectionPlanner - Chooses which peers in range to link to
+ *
+ * Left to itself the mesh links to whatever the user taps, which tends to
+ * produce hub phones that carry everyone's traffic and drain their
+ * batteries. The planner instead keeps each node near a target degree,
+ * using the peers found by discovery and the whole-mesh graph from
+ * {@link MeshTopology} to judge what a new link would add:
+ *
+ * - A peer that is not reachable at all bridges two clusters and is
+ *   always worth a link while below the maximum degree.
+ * - A peer three or more hops away is a shortcut, taken while below the
+ *   target degree; the farther the better.
+ * - A peer two hops away would only close a triangle with a neighbour we
+ *   share, so it is taken only while this node has fewer than
+ *   {@link #MIN_REDUNDANT_DEGREE} links.
+ * - A peer whose node ID is not known yet may not run the mesh at all. It
+ *   ranks below every known bridge and shortcut, is only taken while below
+ *   the target degree, and is given up on after
+ *   {@link #MAX_UNKNOWN_FAILURES} failed dials until it links up by itself.
+ *
+ * Peers that already have the maximum degree are left alone so hubs do not
+ * grow further. A node above the maximum sheds one redundant link per
+ * round: one to a neighbour that can still reach it another way, preferring
+ * the shortest detour and then the neighbour with the most links, so nobody
+ * is cut off. Links the user made by hand are never shed, on either end:
+ * the dialling side tells the peer with a LINK_PIN frame, since it would
+ * only dial a shed pinned link straight back.
+ *
+ * Discovery disturbs live links, so it runs every
+ * {@link #DISCOVERY_INTERVAL_MS} only while below the target degree, and
+ * every {@link #IDLE_DISCOVERY_INTERVAL_MS} otherwise to spot clusters
+ * that could be bridged. At most one new link is dialled at a time.
+ *
+ * The planner starts disabled, so an engine only links where it is told
+ * to; {@code BluetoothMeshService} turns it on.
+ *
+ * All methods are synchronized; they are called on the mesh thread.
+ */
+public class MeshConnectionPlanner {
+    private static final String TAG = "MeshPlanner";
+
+    public static final int DEFAULT_TARGET_DEGREE = 3;
+    public static final int DEFAULT_MAX_DEGREE = 5;
+    // Links into a triangle only help a node this poorly connected
+    public static final int MIN_REDUNDANT_DEGREE = 2;
+
+    public static final long DISCOVERY_INTERVAL_MS = 60 * 1000;
+    public static final long IDLE_DISCOVERY_INTERVAL_MS = 5 * 60 * 1000;
+    public static final long CANDIDATE_EXPIRY_MS = 10 * 60 * 1000;
+    // New links are not shed before the topology has caught up with them
+    static final long LINK_SETTLE_MS = 30000;
+    static final long RETRY_BACKOFF_MS = 30000;
+    private static final int MAX_BACKOFF_STEP = 4;
+    static final int MAX_UNKNOWN_FAILURES = 5;
+    private static final long PLAN_DELAY_MS = 1000;
+
+    // What a new link to a candidate would add, best last
+    private static final int VALUE_NONE = 0;
+    private static final int VALUE_TRIANGLE = 1;
+    private static final int VALUE_UNKNOWN = 2;
+    private static final int VALUE_SHORTCUT = 3;
+    private static final int VALUE_BRIDGE = 4;
+
+    /**
+     * Operations the planner needs from the engine.
+     */
+    public interface PlannerActions {
+        /** Start dialling a peer; false if the attempt could not be started. */
+        boolean connect(String address);
+        void disconnect(String address);
+        /** Look for peers in range; false if discovery could not be started. */
+        boolean startDiscovery();
+        List<String> getLinkIds();
+        /** The node ID behind a link or discovered address, or null if not known yet. */
+        String getNodeId(String address);
+        /** Hops from this node, or {@link MeshTopology#UNREACHABLE}. */
+        int getHopDistance(String nodeId);
+        List<String> getNeighbours(String nodeId);
+        /** Run a task later on the mesh thread. */
+        void schedule(Runnable task, long delayMillis);
+    }
+
+    private static final class Candidate {
+        final String address;
+        int rssi;
+        long lastSeen;
+        int failures;
+        long retryAt;
+        long attemptStartedAt = -1;
+
+        Candidate(String address) {
+            this.address = address;
+        }
+    }
+
+    private final String localNodeId;
+    private final PlannerActions actions;
+    private final Random random;
+    private final Map<String, Candidate> candidates = new HashMap<>();
+    private final Map<String, Long> linkedAt = new HashMap<>();
+    // Links the user asked for; kept no matter what
+    private final Set<String> pinned = new HashSet<>();
+    // Links the peer's user asked for; kept while they last
+    private final Set<String> pinnedByPeer = new HashSet<>();
+    // Unknown peers that never answered; ignored by discovery until they link up
+    private final Set<String> givenUp = new HashSet<>();
+    private int targetDegree = DEFAULT_TARGET_DEGREE;
+    private int maxDegree = DEFAULT_MAX_DEGREE;
+    private long lastDiscoveryAt = Long.MIN_VALUE / 2;
+    private boolean planPending;
+    private boolean enabled;
+    private int linksShed;
+
+    public MeshConnectionPlanner(String localNodeId, PlannerActions actions) {
+        this(localNodeId, actions, new Random());
+    }
+
+    public MeshConnectionPlanner(String localNodeId, PlannerActions actions, Random random) {
+        this.localNodeId = localNodeId;
+        this.actions = actions;
+        this.random = random;
+    }
+
+    // ---- Configuration ----
+
+    public synchronized void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public synchronized boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @param targetDegree links to aim for
+     * @param maxDegree    links above which this node sheds redundant ones
+     */
+    public synchronized void setDegree(int targetDegree, int maxDegree) {
+        this.targetDegree = targetDegree;
+        this.maxDegree = Math.max(targetDegree, maxDegree);
+    }
+
+    /**
+     * Never shed the link to this peer, and always get it back when lost.
+     */
+    public synchronized void pin(String address) {
+        pinned.add(address);
+    }
+
+    public synchronized boolean isPinned(String address) {
+        return pinned.contains(address);
+    }
+
+    // ---- Events ----
+
+    /**
+     * The peer on this link pinned it, so it must not be shed from here
+     * either. Lapses when the link goes down; the peer says so again on
+     * the next one.
+     */
+    public synchronized void onPeerPinned(String address) {
+        if (linkedAt.containsKey(address)) {
+            pinnedByPeer.add(address);
+        }
+    }
+
+    public synchronized void onPeerDiscovered(String address, int rssi) {
+        if (givenUp.contains(address)) {
+            return;
+        }
+        Candidate candidate = candidates.get(address);
+        if (candidate == null) {
+            candidate = new Candidate(address);
+            candidates.put(address, candidate);
+        }
+        candidate.rssi = rssi;
+        candidate.lastSeen = now();
+        schedulePlan();
+    }
+
+    public synchronized void onLinkUp(String address) {
+        linkedAt.put(address, now());
+        givenUp.remove(address);
+        Candidate candidate = candidates.get(address);
+        if (candidate != null) {
+            candidate.failures = 0;
+            candidate.attemptStartedAt = -1;
+        }
+        schedulePlan();
+    }
+
+    public synchronized void onLinkDown(String address) {
+        linkedAt.remove(address);
+        pinnedByPeer.remove(address);
+        schedulePlan();
+    }
+
+    public synchronized void onConnectFailed(String address) {
+        Candidate candidate = candidates.get(address);
+        if (candidate != null && backOff(candidate, now())) {
+            giveUp(candidate);
+        }
+        schedulePlan();
+    }
+
+    /**
+     * Whether a lost link should be redialled. Call after the topology has
+     * dropped the link. A peer that is still reachable another way is not
+     * worth a reconnect if it is a hub, which is how a shed link stays shed
+     * on the other side too, or while this node has enough links.
+     */
+    public synchronized boolean shouldReconnect(String address) {
+        if (!enabled || pinned.contains(address)) {
+            return true;
+        }
+        String nodeId = actions.getNodeId(address);
+        if (nodeId == null || actions.getHopDistance(nodeId) == MeshTopology.UNREACHABLE) {
+            return true;
+        }
+        if (actions.getNeighbours(nodeId).size() >= maxDegree) {
+            return false;
+        }
+        return actions.getLinkIds().size() < targetDegree;
+    }
+
+    // ---- Planning ----
+
+    /**
+     * One round: shed a link if this node is a hub, otherwise dial the
+     * most useful candidate, and start discovery if it is due.
+     */
+    public synchronized void plan() {
+        planPending = false;
+        if (!enabled) {
+            return;
+        }
+        long now = now();
+        List<String> links = actions.getLinkIds();
+        int connecting = expireAndCountAttempts(links, now);
+        int degree = links.size();
+
+        if (degree > maxDegree) {
+            shedOne(links, now);
+        } else if (degree < maxDegree && connecting == 0) {
+            Candidate best = pickCandidate(degree, now);
+            if (best != null) {
+                if (actions.connect(best.address)) {
+                    Log.d(TAG, "Linking to " + best.address + " (degree " + degree + ")");
+                    best.attemptStartedAt = now;
+                } else if (backOff(best, now)) {
+                    giveUp(best);
+                }
+            }
+        }
+
+        long interval = degree < targetDegree ? DISCOVERY_INTERVAL_MS : IDLE_DISCOVERY_INTERVAL_MS;
+        if (now - lastDiscoveryAt >= interval && connecting == 0 && actions.startDiscovery()) {
+            lastDiscoveryAt = now;
+        }
+    }
+
+    public synchronized int getCandidateCount() {
+        return candidates.size();
+    }
+
+    /** Links shed because this node had too many. */
+    public synchronized int getLinksShed() {
+        return linksShed;
+    }
+
+    public synchronized void clear() {
+        candidates.clear();
+        linkedAt.clear();
+        pinned.clear();
+        pinnedByPeer.clear();
+        givenUp.clear();
+        lastDiscoveryAt = Long.MIN_VALUE / 2;
+    }
+
+    // Overridable for tests
+    long now() {
+        return System.currentTimeMillis();
+    }
+
+    // ---- Internals ----
+
+    private void schedulePlan() {
+        if (planPending || !enabled) {
+            return;
+        }
+        planPending = true;
+        actions.schedule(this::plan, PLAN_DELAY_MS);
+    }
+
+    // Returns whether to give up on the candidate altogether
+    private boolean backOff(Candidate candidate, long now) {
+        candidate.attemptStartedAt = -1;
+        candidate.failures++;
+        candidate.retryAt = now + (RETRY_BACKOFF_MS << (Math.min(candidate.failures, MAX_BACKOFF_STEP) - 1));
+        return candidate.failures >= MAX_UNKNOWN_FAILURES && actions.getNodeId(candidate.address) == null;
+    }
+
+    private void giveUp(Candidate candidate) {
+        Log.d(TAG, "Giving up on " + candidate.address + " after " + candidate.failures + " failed attempts");
+        candidates.remove(candidate.address);
+        givenUp.add(candidate.address);
+    }
+
+    private int expireAndCountAttempts(List<String> links, long now) {
+        int connecting = 0;
+        Iterator<Candidate> iterator = candidates.values().iterator();
+        while (iterator.hasNext()) {
+            Candidate candidate = iterator.next();
+            boolean linked = links.contains(candidate.address);
+            if (!linked && now - candidate.lastSeen > CANDIDATE_EXPIRY_MS) {
+                iterator.remove();
+                continue;
+            }
+            if (candidate.attemptStartedAt < 0 || linked) {
+                continue;
+            }
+            if (now - candidate.attemptStartedAt < MeshReconnectSupervisor.ATTEMPT_TIMEOUT_MS) {
+                connecting++;
+            } else if (backOff(candidate, now)) {
+                // Ended without a word, once too often
+                iterator.remove();
+                givenUp.add(candidate.address);
+            }
+        }
+        return connecting;
+    }
+
+    private Candidate pickCandidate(int degree, long now) {
+        Candidate best = null;
+        int bestValue = VALUE_NONE;
+        int bestHops = 0;
+        int bestPeerDegree = 0;
+        int ties = 0;
+        for (Candidate candidate : candidates.values()) {
+            if (linkedAt.containsKey(candidate.address) || candidate.attemptStartedAt >= 0
+                    || candidate.retryAt > now) {
+                continue;
+            }
+            String nodeId = actions.getNodeId(candidate.address);
+            if (localNodeId.equals(nodeId)) {
+                continue;
+            }
+            int hops = nodeId != null ? actions.getHopDistance(nodeId) : MeshTopology.UNREACHABLE;
+            int peerDegree = nodeId != null ? actions.getNeighbours(nodeId).size() : 0;
+            if (hops <= 1 || peerDegree >= maxDegree) {
+                continue;
+            }
+            int value = nodeId == null ? VALUE_UNKNOWN
+                    : hops == MeshTopology.UNREACHABLE ? VALUE_BRIDGE
+                    : hops >= 3 ? VALUE_SHORTCUT
+                    : VALUE_TRIANGLE;
+            if (((value == VALUE_SHORTCUT || value == VALUE_UNKNOWN) && degree >= targetDegree)
+                    || (value == VALUE_TRIANGLE && degree >= MIN_REDUNDANT_DEGREE)) {
+                continue;
+            }
+            // Most useful first, then farthest, then least loaded, then strongest signal
+            int order = best == null ? 1
+                    : value != bestValue ? Integer.compare(value, bestValue)
+                    : hops != bestHops ? Integer.compare(hops, bestHops)
+                    : peerDegree != bestPeerDegree ? Integer.compare(bestPeerDegree, peerDegree)
+                    : Integer.compare(candidate.rssi, best.rssi);
+            // Among equals pick at random, so nodes that discovered the same
+            // peers do not all dial the same one
+            if (order == 0) {
+                ties++;
+                order = random.nextInt(ties + 1) == 0 ? 1 : -1;
+            } else if (order > 0) {
+                ties = 0;
+            }
+            if (order > 0) {
+                best = candidate;
+                bestValue = value;
+                bestHops = hops;
+                bestPeerDegree = peerDegree;
+            }
+        }
+        return best;
+    }
+
+    private void shedOne(List<String> links, long now) {
+        String shed = null;
+        int shedDetour = 0;
+        int shedDegree = 0;
+        for (String address : links) {
+            Long since = linkedAt.get(address);
+            if (pinned.contains(address) || pinnedByPeer.contains(address) || since == null || now - since < LINK_SETTLE_MS) {
+                continue;
+            }
+            String nodeId = actions.getNodeId(address);
+            if (nodeId == null) {
+                continue;
+            }
+            // Without another path the peer would be cut off
+            int detour = detour(nodeId);
+            if (detour == MeshTopology.UNREACHABLE) {
+                continue;
+            }
+            int degree = actions.getNeighbours(nodeId).size();
+            if (shed == null || detour < shedDetour || (detour == shedDetour && degree > shedDegree)) {
+                shed = address;
+                shedDetour = detour;
+                shedDegree = degree;
+            }
+        }
+        if (shed != null) {
+            Log.d(TAG, "Shedding link to " + shed + " (degree " + links.size() + ", detour " + shedDetour + ")");
+            linksShed++;
+            Candidate candidate = candidates.get(shed);
+            if (candidate != null) {
+                // Do not dial it straight back
+                candidate.retryAt = now + CANDIDATE_EXPIRY_MS;
+            }
+            actions.disconnect(shed);
+        }
+    }
+
+    /**
+     * Hops from a neighbour back to this node without using the direct
+     * link, or {@link MeshTopology#UNREACHABLE}.
+     */
+    private int detour(String neighbourId) {
+        Map<String, Integer> distance = new HashMap<>();
+        ArrayDeque<String> queue = new ArrayDeque<>();
+        distance.put(neighbourId, 0);
+        queue.add(neighbourId);
+        while (!queue.isEmpty()) {
+            String current = queue.poll();
+            int next = distance.get(current) + 1;
+            for (String neighbour : actions.getNeighbours(current)) {
+                if (neighbour.equals(localNodeId)) {
+                    if (!current.equals(neighbourId)) {
+                        return next;
+                    }
+                } else if (!distance.containsKey(neighbour)) {
+                    distance.put(neighbour, next);
+                    queue.add(neighbour);
+                }
+            }
+        }
+        return MeshTopology.UNREACHABLE;
+    }
+}
@@ -0,0 +1,1347 @@
+package com.example.hello.services.mesh;
+
+import android.util.Log;
+
+import com.example.hello.models.BluetoothMeshMessage;
+import com.example.hello.models.BluetoothMeshNode;
+import com.example.hello.models.MeshNodeSnapshot;
+import com.example.hello.services.BluetoothMeshService;
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+
+/**
+ * MeshEngine - The mesh protocol, independent of how links are made
+ *
+ * Everything between the links and the UI lives here: duplicate
+ * suppression, flooding, on-demand routing, topology gossip, reliable
+ * direct messages, file transfer, store-and-forward, chat history sync and
+ * reconnection. The
+ * engine reaches neighbours only through a {@link MeshTransport} and does
+ * all of its work on a {@link MeshExecutor}, so the same code runs over
+ * RFCOMM sockets on a phone and over the in-memory network of the
+ * simulator, where time is virtual.
+ *
+ * Listener callbacks are made on the executor thread; callers that need
+ * them elsewhere must hand them over themselves.
+ */
+public class MeshEngine {
+    private static final String TAG = "MeshEngine";
+
+    public static final long MAINTENANCE_INTERVAL_MS = 10000;
+    public static final long STALE_NODE_MS = 60000;
+
+    // Links that come up together share one discovery flood
+    private static final long ANNOUNCE_COALESCE_MS = 500;
+
+    // Store-and-forward tuning
+    private static final int STORED_DELIVERY_BATCH = 32;
+    private static final int STORED_ROUTE_PROBES = 4;
+    private static final int STORED_ROUTE_PROBE_TICKS = 6;
+    private static final int STORE_BATCH_MAX_BYTES = 64 * 1024;
+
+    // Anti-entropy: reconcile chat history with one random neighbour this often
+    private static final int HISTORY_SYNC_TICKS = 18;
+    private static final long HISTORY_SYNC_DELAY_MS = 2000;
+
+    // A link queue this deep means we are relaying more than we can send
+    private static final int CONGESTED_QUEUE_DEPTH = MeshOutboundQueue.DEFAULT_MAX_FRAMES / 2;
+
+    public interface Listener {
+        void onMessageReceived(BluetoothMeshMessage message);
+        /** Debounced; see {@link MeshTopologyNotifier}. */
+        void onTopologyChanged(MeshTopologyNotifier.TopologyDiff diff);
+        void onLinkCountChanged(int linkCount);
+        void onDeliveryStatusChanged(String messageId, MeshReliableDelivery.DeliveryStatus status);
+        void onFileTransferProgress(MeshFileTransfer.FileInfo info, int chunksDone);
+        /** {@code file} is the received or sent file, or null if the transfer failed. */
+        void onFileTransferFinished(MeshFileTransfer.FileInfo info, File file);
+    }
+
+    private final String localNodeId;
+    private final BluetoothMeshNode localNode;
+    private final MeshFrameCodec frameCodec;
+    private final MeshTransport transport;
+    private final MeshExecutor executor;
+    private final Listener listener;
+    private final Gson gson;
+    private final Random random;
+
+    private final Map<String, BluetoothMeshNode> networkNodes;
+    private final MessageIdCache seenMessageIds;
+
+    // On-demand unicast routing: nodeId -> next hop, discovered via ROUTE_REQ / ROUTE_REPLY
+    private final MeshRouter router;
+
+    // Whole-mesh graph learnt from TOPOLOGY deltas, used for display and hop distances
+    private final MeshTopology topology;
+
+    // Decides whether and where each flooded message is rebroadcast
+    private final MeshFloodController floodController;
+
+    // ACKs and retransmission for directed messages
+    private final MeshReliableDelivery reliableDelivery;
+
+    // Chunked file transfers to and from this node
+    private final MeshFileTransfer fileTransfer;
+
+    // Redials lost neighbours with backoff so relay chains heal by themselves
+    private final MeshReconnectSupervisor reconnectSupervisor;
+
+    // Messages held for targets that are not reachable yet
+    private final MeshStoreForwardQueue pendingMessages;
+
+    // Recent group chat, persisted and reconciled with neighbours so late joiners catch up
+    private final MeshHistorySync historySync;
+
+    // Picks which peers in range to link to and sheds links when we become a hub
+    private final MeshConnectionPlanner connectionPlanner;
+
+    // Per-link and per-origin limits on what we accept and relay
+    private final MeshRateLimiter rateLimiter;
+
+    // Gathers node changes into one diff per interval for the UI
+    private final MeshTopologyNotifier topologyNotifier;
+
+    // Traffic, drop and latency counters for diagnostics
+    private final MeshMetrics metrics = new MeshMetrics();
+
+    private Future<?> maintenanceTask;
+    private int maintenanceTicks;
+    private boolean announcementPending;
+
+    public MeshEngine(BluetoothMeshNode localNode, File dataDirectory, MeshFrameCodec frameCodec,
+                      MeshTransport transport, MeshExecutor executor, Listener listener) {
+        this(localNode, dataDirectory, frameCodec, transport, executor, listener, new Random());
+    }
+
+    /**
+     * @param random source of every random choice the engine and its
+     *               components make; seeded in the simulator so runs repeat
+     */
+    public MeshEngine(BluetoothMeshNode localNode, File dataDirectory, MeshFrameCodec frameCodec,
+                      MeshTransport transport, MeshExecutor executor, Listener listener, Random random) {
+        this.localNode = localNode;
+        this.localNodeId = localNode.getNodeId();
+        this.frameCodec = frameCodec;
+        this.transport = transport;
+        this.executor = executor;
+        this.listener = listener;
+        this.gson = new Gson();
+        this.random = random;
+
+        this.networkNodes = new ConcurrentHashMap<>();
+        this.seenMessageIds = new MessageIdCache();
+        networkNodes.put(localNodeId, localNode);
+
+        // Components read time from the executor so simulated runs stay on the virtual clock
+        this.pendingMessages = new MeshStoreForwardQueue(new File(dataDirectory, "mesh"), frameCodec) {
+            @Override
+            long now() {
+                return executor.now();
+            }
+        };
+        this.router = new MeshRouter(localNodeId, new RouterActions(), gson) {
+            @Override
+            long now() {
+                return executor.now();
+            }
+        };
+        this.topology = new MeshTopology(localNodeId, localNode.getDeviceName(), new TopologyActions(), gson) {
+            @Override
+            long now() {
+                return executor.now();
+            }
+        };
+        this.floodController = new MeshFloodController(new FloodActions(), random);
+        this.reliableDelivery = new MeshReliableDelivery(localNodeId, new DeliveryActions(), gson, random) {
+            @Override
+            long now() {
+                return executor.now();
+            }
+        };
+        this.fileTransfer = new MeshFileTransfer(localNodeId, new File(dataDirectory, "mesh_files"),
+                new TransferActions(), gson) {
+            @Override
+            long now() {
+                return executor.now();
+            }
+        };
+        this.reconnectSupervisor = new MeshReconnectSupervisor(new ReconnectActions(), random) {
+            @Override
+            long now() {
+                return executor.now();
+            }
+        };
+        this.rateLimiter = new MeshRateLimiter() {
+            @Override
+            long now() {
+                return executor.now();
+            }
+        };
+        this.historySync = new MeshHistorySync(localNodeId, new File(dataDirectory, "mesh"), frameCodec,
+                new SyncActions(), gson) {
+            @Override
+            long now() {
+                return executor.now();
+            }
+        };
+        this.connectionPlanner = new MeshConnectionPlanner(localNodeId, new PlannerActions(), random) {
+            @Override
+            long now() {
+                return executor.now();
+            }
+        };
+        this.topologyNotifier = new MeshTopologyNotifier(new NotifierActions());
+    }
+
+    // ---- Lifecycle ----
+
+    /**
+     * Start the transport and periodic maintenance. The executor must
+     * already be running.
+     */
+    public synchronized void start() {
+        // Reload messages still waiting for their targets
+        executor.execute(() -> {
+            try {
+                pendingMessages.open();
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to open store-and-forward queue", e);
+            }
+        });
+
+        // Reload recent chat and show it again before anything new arrives
+        executor.execute(this::openHistory);
+
+        transport.start(new TransportListener());
+
+        // Send periodic heartbeats
+        if (maintenanceTask == null) {
+            maintenanceTask = executor.scheduleAtFixedRate(this::runMaintenance,
+                    MAINTENANCE_INTERVAL_MS, MAINTENANCE_INTERVAL_MS);
+        }
+
+        // Send discovery announcement
+        executor.execute(this::sendDiscoveryAnnouncement);
+    }
+
+    /**
+     * Close every link and drop all protocol state. Cleanup is queued on
+     * the executor behind whatever it already has to do.
+     */
+    public synchronized void stop() {
+        // Closes the server socket and every link
+        transport.stop();
+
+        if (maintenanceTask != null) {
+            maintenanceTask.cancel(false);
+            maintenanceTask = null;
+        }
+
+        executor.execute(() -> {
+            networkNodes.clear();
+            networkNodes.put(localNodeId, localNode);
+            router.clear();
+            topology.clear();
+            floodController.clear();
+            reliableDelivery.clear();
+            fileTransfer.clear();
+            reconnectSupervisor.clear();
+            connectionPlanner.clear();
+            rateLimiter.clear();
+            seenMessageIds.clear();
+            announcementPending = false;
+            pendingMessages.close();
+            historySync.close();
+            // Tell the UI the other nodes are gone
+            topologyNotifier.flush();
+        });
+    }
+
+    // ---- Sending ----
+
+    public void connect(String address) {
+        // The user chose this peer; the planners at both ends keep the link
+        // whatever they think of it
+        executor.execute(() -> {
+            connectionPlanner.pin(address);
+            if (transport.isLinked(address)) {
+                sendLinkPin(address);
+            }
+        });
+        // Runs in parallel with other attempts and gives up after a timeout
+        if (!transport.connect(address)) {
+            Log.w(TAG, "Not connecting to " + address);
+        }
+    }
+
+    /**
+     * Flood a chat message to every node.
+     *
+     * @return the message ID
+     */
+    public String sendChatMessage(String messageText) {
+        return sendChatMessage(messageText, BluetoothMeshMessage.PRIORITY_DEFAULT);
+    }
+
+    /**
+     * Flood a chat message in the given priority class, e.g.
+     * {@link BluetoothMeshMessage#PRIORITY_EMERGENCY} for an urgent request
+     * that should overtake everything else on every hop.
+     *
+     * @return the message ID
+     */
+    public String sendChatMessage(String messageText, int priority) {
+        BluetoothMeshMessage message = newMessage(BluetoothMeshService.MSG_TYPE_CHAT, null, messageText);
+        message.setPriority(priority);
+        executor.execute(() -> broadcastMessage(message));
+        return message.getMessageId();
+    }
+
+    /**
+     * Send a chat message to a single node along the discovered route. When
+     * {@code reliable} is set the message is retransmitted until the target
+     * acknowledges it.
+     *
+     * @return the message ID used in delivery status callbacks
+     */
+    public String sendDirectMessage(String targetNodeId, String messageText, boolean reliable) {
+        return sendDirectMessage(targetNodeId, messageText, reliable, BluetoothMeshMessage.PRIORITY_DEFAULT);
+    }
+
+    /**
+     * As {@link #sendDirectMessage(String, String, boolean)}, in the given
+     * priority class.
+     */
+    public String sendDirectMessage(String targetNodeId, String messageText, boolean reliable, int priority) {
+        BluetoothMeshMessage message = newMessage(BluetoothMeshService.MSG_TYPE_CHAT, targetNodeId, messageText);
+        message.setPriority(priority);
+        executor.execute(() -> {
+            listener.onMessageReceived(message);
+            if (reliable) {
+                reliableDelivery.send(message);
+            } else {
+                seenMessageIds.markSeen(message.getMessageId(), executor.now());
+                routeMessage(message);
+            }
+        });
+        return message.getMessageId();
+    }
+
+    /**
+     * Send a file to a single node in chunks.
+     *
+     * @return the transfer ID used in transfer callbacks
+     */
+    public String sendFile(String targetNodeId, File file, String mimeType) {
+        String transferId = generateMessageId();
+        executor.execute(() -> fileTransfer.send(transferId, file, mimeType, targetNodeId));
+        return transferId;
+    }
+
+    // ---- State ----
+
+    public String getLocalNodeId() {
+        return localNodeId;
+    }
+
+    public List<BluetoothMeshNode> getNetworkNodes() {
+        return new ArrayList<>(networkNodes.values());
+    }
+
+    /**
+     * The nodes as last reported through {@link Listener#onTopologyChanged}.
+     */
+    public List<MeshNodeSnapshot> getNodeSnapshots() {
+        return topologyNotifier.getNodes();
+    }
+
+    /**
+     * How long node changes are gathered before the listener hears of them.
+     */
+    public void setTopologyNotifyInterval(long intervalMillis) {
+        topologyNotifier.setInterval(intervalMillis);
+    }
+
+    public MessageIdCache getDuplicateCache() {
+        return seenMessageIds;
+    }
+
+    public MeshFloodController getFloodController() {
+        return floodController;
+    }
+
+    public MeshTopology getTopology() {
+        return topology;
+    }
+
+    /**
+     * Recent group chat held for history sync, oldest first.
+     */
+    public List<BluetoothMeshMessage> getChatHistory() {
+        return historySync.getMessages();
+    }
+
+    /**
+     * Limits on what each neighbour and each origin may send through this
+     * node; adjustable, or disabled with {@code setEnabled(false)}.
+     */
+    public MeshRateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * Chooses which discovered peers to link to; adjustable, or disabled
+     * with {@code setEnabled(false)} to link only where asked.
+     */
+    public MeshConnectionPlanner getConnectionPlanner() {
+        return connectionPlanner;
+    }
+
+    public MeshMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Current metrics, with the depth of every link's outbound queue.
+     */
+    public MeshMetrics.Snapshot getMetricsSnapshot() {
+        return metrics.snapshot(transport);
+    }
+
+    public void exportMetrics(File file) throws IOException {
+        metrics.export(file, transport);
+    }
+
+    // ---- Outbound paths ----
+
+    private void broadcastMessage(BluetoothMeshMessage message) {
+        Log.d(TAG, "Broadcasting message: " + message.getMessageId());
+
+        // Add to seen messages to prevent loops
+        seenMessageIds.markSeen(message.getMessageId(), executor.now());
+
+        // Encode once and share the frame across every link
+        OutboundFrame frame = encodeFrame(message);
+        if (frame != null) {
+            for (String linkId : transport.getLinkIds()) {
+                sendFrame(linkId, frame);
+            }
+        }
+
+        // If it's a chat message from this node, keep it and notify UI
+        if (BluetoothMeshService.MSG_TYPE_CHAT.equals(message.getType())
+                && localNodeId.equals(message.getSourceNodeId())) {
+            historySync.record(message);
+            listener.onMessageReceived(message);
+        }
+    }
+
+    private void forwardMessage(BluetoothMeshMessage message, String fromLinkId) {
+        // Check hop limit before holding on to the message
+        if (message.getHopCount() + 1 > BluetoothMeshService.MAX_HOP_COUNT) {
+            Log.d(TAG, "Dropping message due to hop limit: " + message.getMessageId());
+            metrics.onDrop(MeshMetrics.Drop.HOP_LIMIT);
+            return;
+        }
+
+        // The flood policy for this type picks the links, possibly none
+        floodController.onFirstReception(message, fromLinkId);
+    }
+
+    private void relayFlooded(BluetoothMeshMessage message, List<String> linkIds) {
+        // Increment hop count
+        message.setHopCount(message.getHopCount() + 1);
+
+        OutboundFrame frame = encodeFrame(message);
+        if (frame == null) {
+            return;
+        }
+        int sent = 0;
+        for (String linkId : linkIds) {
+            // Neighbours that asked us to slow down get the least urgent traffic shed
+            if (!rateLimiter.allowRelay(linkId, frame.getPriorityClass())) {
+                metrics.onDrop(MeshMetrics.Drop.RATE_LIMITED);
+                continue;
+            }
+            sendFrame(linkId, frame);
+            sent++;
+        }
+        metrics.onForward(sent);
+        checkCongestion(linkIds);
+    }
+
+    private void forwardDirected(BluetoothMeshMessage message) {
+        message.setHopCount(message.getHopCount() + 1);
+
+        if (message.getHopCount() > BluetoothMeshService.MAX_HOP_COUNT) {
+            Log.d(TAG, "Dropping directed message due to hop limit: " + message.getMessageId());
+            metrics.onDrop(MeshMetrics.Drop.HOP_LIMIT);
+            return;
+        }
+
+        String linkId = router.resolveLink(message.getTargetNodeId());
+        if (linkId != null) {
+            if (!rateLimiter.allowRelay(linkId,
+                    OutboundFrame.priorityClass(message.getType(), message.getPriority()))) {
+                metrics.onDrop(MeshMetrics.Drop.RATE_LIMITED);
+                return;
+            }
+            sendOnLink(linkId, message);
+            checkCongestion(Collections.singletonList(linkId));
+            return;
+        }
+        routeMessage(message);
+    }
+
+    // Unicast along the known route, or hold the message while a route is discovered
+    private void routeMessage(BluetoothMeshMessage message) {
+        String linkId = router.resolveLink(message.getTargetNodeId());
+        if (linkId != null) {
+            sendOnLink(linkId, message);
+        } else if (BluetoothMeshService.MSG_TYPE_FILE_CHUNK.equals(message.getType())) {
+            // Chunks are never held; the receiver asks again for what it missed
+            metrics.onDrop(MeshMetrics.Drop.NO_ROUTE);
+            router.requestRoute(message.getTargetNodeId());
+        } else {
+            router.bufferUntilRouted(message);
+        }
+    }
+
+    private void sendOnLink(String linkId, BluetoothMeshMessage message) {
+        if (!transport.isLinked(linkId)) {
+            Log.w(TAG, "No link " + linkId + " for message " + message.getMessageId());
+            metrics.onDrop(MeshMetrics.Drop.NO_ROUTE);
+            return;
+        }
+        OutboundFrame frame = encodeFrame(message);
+        if (frame != null) {
+            sendFrame(linkId, frame);
+        }
+    }
+
+    private void sendFrame(String linkId, OutboundFrame frame) {
+        if (transport.send(linkId, frame)) {
+            metrics.onFrameOut(linkId, frame.getMessageType(), frame.getLength());
+        } else {
+            // Usually a full queue; a link that went down a moment ago looks the same
+            metrics.onLinkDrop(linkId);
+        }
+    }
+
+    private OutboundFrame encodeFrame(BluetoothMeshMessage message) {
+        try {
+            return new OutboundFrame(frameCodec.encode(message), message.getType(), message.getPriority());
+        } catch (MeshFrameException e) {
+            Log.e(TAG, "Unable to encode message: " + message.getMessageId(), e);
+            return null;
+        }
+    }
+
+    // ---- Inbound paths ----
+
+    private void handleIncomingMessage(BluetoothMeshMessage message, String fromLinkId) {
+        try {
+            if (message.getType() == null) {
+                Log.w(TAG, "Dropping message without type from " + fromLinkId);
+                metrics.onDrop(MeshMetrics.Drop.MALFORMED);
+                return;
+            }
+
+            // Loop prevention: each message is handled once per node, no
+            // matter how many neighbours relay it to us
+            if (seenMessageIds.markSeen(message.getMessageId(), executor.now())) {
+                Log.d(TAG, "Dropping duplicate message: " + message.getMessageId());
+                floodController.onDuplicate(message.getMessageId(), fromLinkId);
+                metrics.onDrop(MeshMetrics.Drop.DUPLICATE);
+                return;
+            }
+            metrics.onFirstReception(message.getType(),
+                    OutboundFrame.priorityClass(message.getType(), message.getPriority()),
+                    executor.now() - message.getTimestamp());
+
+            // Learn neighbours and reverse routes from whatever passes by
+            router.onMessageObserved(message, fromLinkId);
+            String neighbour = router.getNeighbourForLink(fromLinkId);
+            if (neighbour != null) {
+                topology.onNeighbourIdentified(fromLinkId, neighbour);
+                reconnectSupervisor.onPeerIdentified(fromLinkId, neighbour);
+            }
+
+            switch (message.getType()) {
+                case BluetoothMeshService.MSG_TYPE_CHAT:
+                    handleChatMessage(message, fromLinkId);
+                    break;
+                case BluetoothMeshService.MSG_TYPE_DISCOVERY:
+                    handleDiscoveryMessage(message, fromLinkId);
+                    break;
+                case BluetoothMeshService.MSG_TYPE_TOPOLOGY:
+                    handleTopologyMessage(message, fromLinkId);
+                    break;
+                case BluetoothMeshService.MSG_TYPE_HEARTBEAT:
+                    handleHeartbeatMessage(message);
+                    break;
+                case BluetoothMeshService.MSG_TYPE_ROUTE_REQUEST:
+                    router.handleRouteRequest(message, fromLinkId);
+                    break;
+                case BluetoothMeshService.MSG_TYPE_ROUTE_REPLY:
+                    router.handleRouteReply(message, fromLinkId);
+                    break;
+                case BluetoothMeshService.MSG_TYPE_ROUTE_ERROR:
+                    router.handleRouteError(message, fromLinkId);
+                    break;
+                case BluetoothMeshService.MSG_TYPE_STORE_BATCH:
+                    handleStoreBatch(message);
+                    break;
+                case BluetoothMeshService.MSG_TYPE_ACK:
+                    handleAckMessage(message);
+                    break;
+                case BluetoothMeshService.MSG_TYPE_FILE_OFFER:
+                case BluetoothMeshService.MSG_TYPE_FILE_CHUNK:
+                case BluetoothMeshService.MSG_TYPE_FILE_NACK:
+                    handleFileMessage(message);
+                    break;
+                // History sync stays on the link it arrived on
+                case BluetoothMeshService.MSG_TYPE_HISTORY_DIGEST:
+                    historySync.handleDigest(message, fromLinkId);
+                    break;
+                case BluetoothMeshService.MSG_TYPE_HISTORY_REQUEST:
+                    historySync.handleRequest(message, fromLinkId);
+                    break;
+                case BluetoothMeshService.MSG_TYPE_HISTORY_BATCH:
+                    historySync.handleBatch(message);
+                    break;
+                case BluetoothMeshService.MSG_TYPE_BACKPRESSURE:
+                    handleBackpressure(message, fromLinkId);
+                    break;
+                case BluetoothMeshService.MSG_TYPE_LINK_PIN:
+                    connectionPlanner.onPeerPinned(fromLinkId);
+                    break;
+                default:
+                    Log.w(TAG, "Unknown message type: " + message.getType());
+            }
+        } catch (JsonSyntaxException e) {
+            Log.e(TAG, "Error parsing message payload JSON", e);
+            metrics.onDrop(MeshMetrics.Drop.MALFORMED);
+        }
+    }
+
+    private void handleChatMessage(BluetoothMeshMessage message, String fromLinkId) {
+        String targetNodeId = message.getTargetNodeId();
+
+        // If message is for us or broadcast, process it; directed messages
+        // are acknowledged and retransmitted copies shown only once
+        if (targetNodeId == null
+                || (localNodeId.equals(targetNodeId) && reliableDelivery.onReceivedForUs(message))) {
+            historySync.record(message);
+            listener.onMessageReceived(message);
+        }
+
+        // Forward the message if it's not from us and not addressed to us
+        if (localNodeId.equals(message.getSourceNodeId()) || localNodeId.equals(targetNodeId)) {
+            return;
+        }
+        if (targetNodeId == null) {
+            forwardMessage(message, fromLinkId);
+        } else {
+            forwardDirected(message);
+        }
+    }
+
+    private void handleDiscoveryMessage(BluetoothMeshMessage message, String fromLinkId) {
+        // Update network topology with discovered node
+        BluetoothMeshNode node = message.getContent() != null
+                ? gson.fromJson(message.getContent(), BluetoothMeshNode.class) : null;
+        if (node == null || node.getNodeId() == null) {
+            Log.w(TAG, "Dropping discovery without a node id from " + fromLinkId);
+            metrics.onDrop(MeshMetrics.Drop.MALFORMED);
+            return;
+        }
+
+        BluetoothMeshNode known = networkNodes.get(node.getNodeId());
+        if (known == null) {
+            networkNodes.put(node.getNodeId(), node);
+            node.setConnectedNodes(topology.getNeighbours(node.getNodeId()));
+            applyRoute(node, router.getRoute(node.getNodeId()));
+            topologyNotifier.markChanged();
+        } else if (known.getBluetoothAddress() == null) {
+            // First heard of through topology gossip; fill in the details
+            known.setDeviceName(node.getDeviceName());
+            known.setBluetoothAddress(node.getBluetoothAddress());
+            topologyNotifier.markChanged();
+        }
+
+        // Forward discovery message
+        forwardMessage(message, fromLinkId);
+    }
+
+    private void handleTopologyMessage(BluetoothMeshMessage message, String fromLinkId) {
+        // Only deltas are flooded; snapshots and snapshot requests stay on their link
+        if (topology.handleUpdate(message, fromLinkId)) {
+            forwardMessage(message, fromLinkId);
+        }
+    }
+
+    // Bulk hand-off of queued messages from a neighbour that just connected
+    private void handleStoreBatch(BluetoothMeshMessage message) {
+        if (message.getContent() == null) {
+            Log.w(TAG, "Dropping store-and-forward batch without content");
+            metrics.onDrop(MeshMetrics.Drop.MALFORMED);
+            return;
+        }
+        byte[] batch;
+        try {
+            batch = Base64.getDecoder().decode(message.getContent());
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "Malformed store-and-forward batch", e);
+            metrics.onDrop(MeshMetrics.Drop.MALFORMED);
+            return;
+        }
+
+        List<BluetoothMeshMessage> forUs = pendingMessages.importBatch(batch, localNodeId, seenMessageIds);
+        for (BluetoothMeshMessage delivered : forUs) {
+            if (BluetoothMeshService.MSG_TYPE_CHAT.equals(delivered.getType())
+                    && reliableDelivery.onReceivedForUs(delivered)) {
+                // Same as a chat that arrived on its own, so sync never offers it back
+                historySync.record(delivered);
+                listener.onMessageReceived(delivered);
+            }
+        }
+
+        // Some of what we just took custody of may already be routable
+        deliverStoredMessages();
+    }
+
+    private void handleBackpressure(BluetoothMeshMessage message, String fromLinkId) {
+        MeshRateLimiter.Backpressure request = message.getContent() != null
+                ? gson.fromJson(message.getContent(), MeshRateLimiter.Backpressure.class) : null;
+        if (request == null || request.level <= 0) {
+            Log.w(TAG, "Dropping backpressure without a level from " + fromLinkId);
+            metrics.onDrop(MeshMetrics.Drop.MALFORMED);
+            return;
+        }
+        rateLimiter.onPressure(fromLinkId, request);
+    }
+
+    private void handleHeartbeatMessage(BluetoothMeshMessage message) {
+        // Update node last seen time
+        BluetoothMeshNode node = networkNodes.get(message.getSourceNodeId());
+        if (node != null) {
+            node.setLastSeen(executor.now());
+        }
+
+        // Neighbours piggyback the ACKs they owe us and echo our last heartbeat
+        long rtt = reliableDelivery.onHeartbeat(message);
+        if (rtt >= 0) {
+            metrics.onHeartbeatRtt(rtt);
+        }
+    }
+
+    private void handleAckMessage(BluetoothMeshMessage message) {
+        if (localNodeId.equals(message.getTargetNodeId())) {
+            reliableDelivery.handleAck(message);
+        } else if (message.getTargetNodeId() != null) {
+            forwardDirected(message);
+        }
+    }
+
+    // Relays pass transfer traffic straight on; nothing is reassembled on the way
+    private void handleFileMessage(BluetoothMeshMessage message) {
+        if (!localNodeId.equals(message.getTargetNodeId())) {
+            if (message.getTargetNodeId() != null) {
+                forwardDirected(message);
+            }
+            return;
+        }
+
+        switch (message.getType()) {
+            case BluetoothMeshService.MSG_TYPE_FILE_OFFER:
+                fileTransfer.handleOffer(message);
+                break;
+            case BluetoothMeshService.MSG_TYPE_FILE_CHUNK:
+                fileTransfer.handleChunk(message);
+                break;
+            default:
+                fileTransfer.handleReport(message);
+        }
+    }
+
+    // Mirror the router's view onto the node model shown in the UI
+    private void applyRoute(BluetoothMeshNode node, MeshRouter.Route route) {
+        if (route == null) {
+            // No unicast route in use; fall back to the gossiped graph
+            int distance = topology.getHopDistance(node.getNodeId());
+            node.setDirectlyConnected(distance == 1);
+            node.setHopDistance(distance);
+            node.setNextHopNodeId(null);
+        } else if (route.getHopCount() == 1) {
+            node.setDirectlyConnected(true);
+            node.setHopDistance(1);
+            node.setNextHopNodeId(null);
+        } else {
+            node.setDirectlyConnected(false);
+            node.setHopDistance(route.getHopCount());
+            node.setNextHopNodeId(route.getNextHopNodeId());
+        }
+    }
+
+    // ---- Store-and-forward ----
+
+    // Send queued messages whose targets have become reachable
+    private void deliverStoredMessages() {
+        Set<String> reachable = new HashSet<>();
+        for (String targetNodeId : pendingMessages.getPendingTargets()) {
+            if (router.resolveLink(targetNodeId) != null) {
+                reachable.add(targetNodeId);
+            }
+        }
+        if (reachable.isEmpty()) {
+            return;
+        }
+
+        for (BluetoothMeshMessage message : pendingMessages.takeForTargets(reachable, STORED_DELIVERY_BATCH)) {
+            routeMessage(message);
+        }
+    }
+
+    // Look for routes to a few of the targets still waiting in the queue
+    private void probeStoredTargets() {
+        int probes = 0;
+        for (String targetNodeId : pendingMessages.getPendingTargets()) {
+            if (probes++ >= STORED_ROUTE_PROBES) {
+                break;
+            }
+            router.requestRoute(targetNodeId);
+        }
+    }
+
+    private void sendStoredBatch(String linkId) {
+        byte[] batch = pendingMessages.exportBatch(STORE_BATCH_MAX_BYTES);
+        if (batch.length == 0) {
+            return;
+        }
+
+        BluetoothMeshMessage message = newMessage(BluetoothMeshService.MSG_TYPE_STORE_BATCH, null,
+                Base64.getEncoder().encodeToString(batch));
+        seenMessageIds.markSeen(message.getMessageId(), executor.now());
+        sendOnLink(linkId, message);
+    }
+
+    // Tell the peer not to shed a link the user asked for; it stays on the link
+    private void sendLinkPin(String linkId) {
+        BluetoothMeshMessage message = newMessage(BluetoothMeshService.MSG_TYPE_LINK_PIN, null, null);
+        seenMessageIds.markSeen(message.getMessageId(), executor.now());
+        sendOnLink(linkId, message);
+    }
+
+    // ---- Maintenance ----
+
+    private void runMaintenance() {
+        sendHeartbeat();
+        cleanupStaleNodes();
+        topology.maintain();
+        pendingMessages.purgeExpired();
+        historySync.maintain();
+        connectionPlanner.plan();
+        if (++maintenanceTicks % STORED_ROUTE_PROBE_TICKS == 0) {
+            probeStoredTargets();
+        }
+        if (maintenanceTicks % HISTORY_SYNC_TICKS == 0) {
+            syncHistoryWithRandomNeighbour();
+        }
+    }
+
+    // ---- Backpressure ----
+
+    // Relaying faster than a link drains: ask every other neighbour to slow down
+    private void checkCongestion(List<String> linkIds) {
+        for (String linkId : linkIds) {
+            if (transport.getQueueDepth(linkId) >= CONGESTED_QUEUE_DEPTH) {
+                for (String other : transport.getLinkIds()) {
+                    if (!other.equals(linkId)) {
+                        signalPressure(other, true);
+                    }
+                }
+                return;
+            }
+        }
+    }
+
+    private void signalPressure(String linkId, boolean congested) {
+        int level = rateLimiter.takeSignal(linkId, congested);
+        if (level == 0) {
+            return;
+        }
+        MeshRateLimiter.Backpressure request = new MeshRateLimiter.Backpressure();
+        request.level = level;
+        request.holdMillis = MeshRateLimiter.PRESSURE_HOLD_MS;
+        BluetoothMeshMessage message = newMessage(BluetoothMeshService.MSG_TYPE_BACKPRESSURE, null,
+                gson.toJson(request));
+        seenMessageIds.markSeen(message.getMessageId(), executor.now());
+        sendOnLink(linkId, message);
+    }
+
+    // ---- History sync ----
+
+    private void openHistory() {
+        try {
+            historySync.open();
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to open chat history", e);
+            return;
+        }
+        for (BluetoothMeshMessage message : historySync.getMessages()) {
+            seenMessageIds.markSeen(message.getMessageId(), executor.now());
+            listener.onMessageReceived(message);
+        }
+    }
+
+    // Periodic rounds repair history batches lost to congestion or cut links
+    private void syncHistoryWithRandomNeighbour() {
+        List<String> linkIds = transport.getLinkIds();
+        if (!linkIds.isEmpty()) {
+            historySync.startRound(linkIds.get(random.nextInt(linkIds.size())));
+        }
+    }
+
+    private void sendHeartbeat() {
+        broadcastMessage(newMessage(BluetoothMeshService.MSG_TYPE_HEARTBEAT, null,
+                reliableDelivery.takeHeartbeatAcks(topology.getNeighbours(localNodeId))));
+    }
+
+    private void sendDiscoveryAnnouncement() {
+        broadcastMessage(newMessage(BluetoothMeshService.MSG_TYPE_DISCOVERY, null, gson.toJson(localNode)));
+    }
+
+    // Every announcement is flooded to the whole mesh, so a burst of link-ups
+    // (start-up, a relay coming back) must not each send their own
+    private void scheduleDiscoveryAnnouncement() {
+        if (announcementPending) {
+            return;
+        }
+        announcementPending = true;
+        executor.schedule(() -> {
+            announcementPending = false;
+            sendDiscoveryAnnouncement();
+        }, ANNOUNCE_COALESCE_MS);
+    }
+
+    private void cleanupStaleNodes() {
+        long currentTime = executor.now();
+
+        List<String> staleNodes = new ArrayList<>();
+        for (BluetoothMeshNode node : networkNodes.values()) {
+            // Heartbeats only reach direct neighbours; further nodes stay while
+            // the gossiped graph still has a path to them
+            if (!node.getNodeId().equals(localNodeId)
+                    && (currentTime - node.getLastSeen()) > STALE_NODE_MS
+                    && topology.getHopDistance(node.getNodeId()) == MeshTopology.UNREACHABLE) {
+                staleNodes.add(node.getNodeId());
+            }
+        }
+
+        for (String nodeId : staleNodes) {
+            networkNodes.remove(nodeId);
+        }
+        if (!staleNodes.isEmpty()) {
+            // One diff for the lot, however many went at once
+            topologyNotifier.markChanged();
+        }
+    }
+
+    private BluetoothMeshMessage newMessage(String type, String targetNodeId, String content) {
+        return new BluetoothMeshMessage(generateMessageId(), type, localNodeId, targetNodeId, content,
+                executor.now(), 0);
+    }
+
+    private String generateMessageId() {
+        return localNodeId + "_" + executor.now() + "_" + random.nextDouble();
+    }
+
+    // ---- Component actions ----
+
+    private class TransportListener implements MeshTransport.Listener {
+        @Override
+        public void onLinkUp(String linkId, boolean outbound) {
+            executor.execute(() -> {
+                listener.onLinkCountChanged(transport.getLinkCount());
+                reconnectSupervisor.onLinkUp(linkId, outbound);
+                connectionPlanner.onLinkUp(linkId);
+                if (connectionPlanner.isPinned(linkId)) {
+                    sendLinkPin(linkId);
+                }
+
+                // Announce ourselves over the new connection; the neighbour's
+                // reply also gives the router its node ID
+                scheduleDiscoveryAnnouncement();
+
+                // Offer the new neighbour custody of everything we are holding
+                sendStoredBatch(linkId);
+
+                // One side of each new link catches the two up on group chat,
+                // once the start-up burst of announcements has gone out
+                if (outbound) {
+                    executor.schedule(() -> {
+                        if (transport.isLinked(linkId)) {
+                            historySync.startRound(linkId);
+                        }
+                    }, HISTORY_SYNC_DELAY_MS);
+                }
+            });
+        }
+
+        @Override
+        public void onFrameEvicted(String linkId, OutboundFrame frame) {
+            // Metrics are safe from any thread, and this runs with the queue locked
+            metrics.onLinkDrop(linkId);
+        }
+
+        @Override
+        public void onFrame(BluetoothMeshMessage message, String linkId) {
+            // Decoded messages are handed to the mesh thread; link readers only read
+            executor.submitInbound(message, linkId);
+        }
+
+        @Override
+        public void onLinkDown(String linkId) {
+            // Drop every route that used this link, then try to get it back
+            executor.execute(() -> {
+                router.onLinkLost(linkId);
+                topology.onLinkLost(linkId);
+                rateLimiter.onLinkLost(linkId);
+                connectionPlanner.onLinkDown(linkId);
+                if (connectionPlanner.shouldReconnect(linkId)) {
+                    reconnectSupervisor.onLinkDown(linkId);
+                } else {
+                    // Reachable another way, and the planner does not want the link back
+                    reconnectSupervisor.forget(linkId);
+                }
+                listener.onLinkCountChanged(transport.getLinkCount());
+            });
+        }
+
+        @Override
+        public void onConnectFailed(String address) {
+            Log.w(TAG, "Connection attempt to " + address + " failed");
+            executor.execute(() -> {
+                reconnectSupervisor.onConnectFailed(address);
+                connectionPlanner.onConnectFailed(address);
+            });
+        }
+
+        @Override
+        public void onPeerDiscovered(String address, int rssi) {
+            executor.execute(() -> connectionPlanner.onPeerDiscovered(address, rssi));
+        }
+    }
+
+    /**
+     * Entry point for messages drained from {@link MeshExecutor#submitInbound}.
+     */
+    public void onInbound(BluetoothMeshMessage message, String linkId) {
+        metrics.onFrameIn(linkId, message.getType(), message.getWireLength());
+        if (!rateLimiter.admit(message, linkId)) {
+            metrics.onDrop(MeshMetrics.Drop.RATE_LIMITED);
+            signalPressure(linkId, false);
+            return;
+        }
+        handleIncomingMessage(message, linkId);
+    }
+
+    private class RouterActions implements MeshRouter.RouteActions {
+        @Override
+        public void sendOnLink(String linkId, BluetoothMeshMessage message) {
+            MeshEngine.this.sendOnLink(linkId, message);
+        }
+
+        @Override
+        public void broadcast(BluetoothMeshMessage message) {
+            broadcastMessage(message);
+        }
+
+        @Override
+        public void schedule(Runnable task, long delayMillis) {
+            executor.schedule(task, delayMillis);
+        }
+
+        @Override
+        public String newMessageId() {
+            return generateMessageId();
+        }
+
+        @Override
+        public void onRouteChanged(String destinationNodeId, MeshRouter.Route route) {
+            BluetoothMeshNode node = networkNodes.get(destinationNodeId);
+            if (node != null) {
+                applyRoute(node, route);
+                topologyNotifier.markChanged();
+            }
+            if (route != null) {
+                // Posted so the queue is never touched while the router holds its lock
+                executor.execute(MeshEngine.this::deliverStoredMessages);
+            }
+        }
+
+        @Override
+        public void onUndeliverable(List<BluetoothMeshMessage> messages) {
+            executor.execute(() -> {
+                for (BluetoothMeshMessage message : messages) {
+                    if (pendingMessages.store(message, MeshStoreForwardQueue.DEFAULT_TTL_MS)) {
+                        Log.d(TAG, "Queued for store-and-forward: " + message.getMessageId());
+                    }
+                }
+            });
+        }
+    }
+
+    private class TopologyActions implements MeshTopology.TopologyActions {
+        @Override
+        public void sendOnLink(String linkId, BluetoothMeshMessage message) {
+            seenMessageIds.markSeen(message.getMessageId(), executor.now());
+            MeshEngine.this.sendOnLink(linkId, message);
+        }
+
+        @Override
+        public void broadcast(BluetoothMeshMessage message) {
+            broadcastMessage(message);
+        }
+
+        @Override
+        public String newMessageId() {
+            return generateMessageId();
+        }
+
+        @Override
+        public void onTopologyChanged(Set<String> nodeIds) {
+            long now = executor.now();
+            for (String nodeId : nodeIds) {
+                BluetoothMeshNode node = networkNodes.get(nodeId);
+                if (node == null) {
+                    if (topology.getHopDistance(nodeId) == MeshTopology.UNREACHABLE) {
+                        continue;
+                    }
+                    // Reachable but never announced to us directly
+                    node = new BluetoothMeshNode(nodeId, topology.getName(nodeId), null, now);
+                    networkNodes.put(nodeId, node);
+                }
+                node.setConnectedNodes(topology.getNeighbours(nodeId));
+                applyRoute(node, router.getRoute(nodeId));
+            }
+            localNode.setConnectedNodes(topology.getNeighbours(localNodeId));
+            topologyNotifier.markChanged();
+        }
+    }
+
+    private class PlannerActions implements MeshConnectionPlanner.PlannerActions {
+        @Override
+        public boolean connect(String address) {
+            return transport.connect(address);
+        }
+
+        @Override
+        public void disconnect(String address) {
+            // A link we dropped on purpose is not one to get back
+            reconnectSupervisor.forget(address);
+            transport.disconnect(address);
+        }
+
+        @Override
+        public boolean startDiscovery() {
+            return transport.startDiscovery();
+        }
+
+        @Override
+        public List<String> getLinkIds() {
+            return transport.getLinkIds();
+        }
+
+        @Override
+        public String getNodeId(String address) {
+            String nodeId = router.getNeighbourForLink(address);
+            if (nodeId != null) {
+                return nodeId;
+            }
+            // Announced nodes carry their address
+            for (BluetoothMeshNode node : networkNodes.values()) {
+                if (address.equals(node.getBluetoothAddress())) {
+                    return node.getNodeId();
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public int getHopDistance(String nodeId) {
+            return topology.getHopDistance(nodeId);
+        }
+
+        @Override
+        public List<String> getNeighbours(String nodeId) {
+            return topology.getNeighbours(nodeId);
+        }
+
+        @Override
+        public void schedule(Runnable task, long delayMillis) {
+            executor.schedule(task, delayMillis);
+        }
+    }
+
+    private class NotifierActions implements MeshTopologyNotifier.NotifierActions {
+        @Override
+        public Collection<BluetoothMeshNode> getNodes() {
+            return networkNodes.values();
+        }
+
+        @Override
+        public void schedule(Runnable task, long delayMillis) {
+            executor.schedule(task, delayMillis);
+        }
+
+        @Override
+        public void onTopologyChanged(MeshTopologyNotifier.TopologyDiff diff) {
+            listener.onTopologyChanged(diff);
+        }
+    }
+
+    private class FloodActions implements MeshFloodController.FloodActions {
+        @Override
+        public void relay(BluetoothMeshMessage message, List<String> linkIds) {
+            relayFlooded(message, linkIds);
+        }
+
+        @Override
+        public void schedule(Runnable task, long delayMillis) {
+            executor.schedule(task, delayMillis);
+        }
+
+        @Override
+        public List<String> getLinkIds() {
+            return transport.getLinkIds();
+        }
+
+        @Override
+        public String getNeighbourForLink(String linkId) {
+            return router.getNeighbourForLink(linkId);
+        }
+
+        @Override
+        public List<String> getNeighboursOf(String nodeId) {
+            return topology.getNeighbours(nodeId);
+        }
+    }
+
+    private class DeliveryActions implements MeshReliableDelivery.DeliveryActions {
+        @Override
+        public void transmit(BluetoothMeshMessage message) {
+            seenMessageIds.markSeen(message.getMessageId(), executor.now());
+            routeMessage(message);
+        }
+
+        @Override
+        public void schedule(Runnable task, long delayMillis) {
+            executor.schedule(task, delayMillis);
+        }
+
+        @Override
+        public String newMessageId() {
+            return generateMessageId();
+        }
+
+        @Override
+        public void onStatusChanged(String messageId, String targetNodeId,
+                                    MeshReliableDelivery.DeliveryStatus status) {
+            listener.onDeliveryStatusChanged(messageId, status);
+        }
+    }
+
+    private class TransferActions implements MeshFileTransfer.TransferActions {
+        @Override
+        public void transmit(BluetoothMeshMessage message) {
+            seenMessageIds.markSeen(message.getMessageId(), executor.now());
+            routeMessage(message);
+        }
+
+        @Override
+        public void schedule(Runnable task, long delayMillis) {
+            executor.schedule(task, delayMillis);
+        }
+
+        @Override
+        public void runInBackground(Runnable task) {
+            executor.executeInBackground(task);
+        }
+
+        @Override
+        public String newMessageId() {
+            return generateMessageId();
+        }
+
+        @Override
+        public void onProgress(MeshFileTransfer.FileInfo info, int chunksDone) {
+            listener.onFileTransferProgress(info, chunksDone);
+        }
+
+        @Override
+        public void onFinished(MeshFileTransfer.FileInfo info, File file) {
+            listener.onFileTransferFinished(info, file);
+        }
+    }
+
+    private class SyncActions implements MeshHistorySync.SyncActions {
+        @Override
+        public void sendOnLink(String linkId, BluetoothMeshMessage message) {
+            seenMessageIds.markSeen(message.getMessageId(), executor.now());
+            MeshEngine.this.sendOnLink(linkId, message);
+        }
+
+        @Override
+        public String newMessageId() {
+            return generateMessageId();
+        }
+
+        @Override
+        public boolean onSynced(BluetoothMeshMessage message) {
+            if (seenMessageIds.markSeen(message.getMessageId(), executor.now())) {
+                return false;
+            }
+            listener.onMessageReceived(message);
+            return true;
+        }
+    }
+
+    private class ReconnectActions implements MeshReconnectSupervisor.ReconnectActions {
+        @Override
+        public boolean connect(String address) {
+            return transport.connect(address);
+        }
+
+        @Override
+        public boolean isLinked(String address) {
+            return transport.isLinked(address);
+        }
+
+        @Override
+        public int countRestoredBy(String nodeId) {
+            return topology.countRestoredBy(nodeId);
+        }
+
+        @Override
+        public void schedule(Runnable task, long delayMillis) {
+            executor.schedule(task, delayMillis);
+        }
+    }
+}
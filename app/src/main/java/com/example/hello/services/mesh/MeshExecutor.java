@@ -0,0 +1,32 @@
+package com.example.hello.services.mesh;
+
+import com.example.hello.models.BluetoothMeshMessage;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+
+/**
+ * MeshExecutor - The single logical thread all mesh protocol state lives on
+ *
+ * On a phone this is the {@link MeshScheduler} thread and {@link #now()} is
+ * the wall clock. The simulator runs many engines on one virtual clock, so
+ * the engine and its components must take time from here rather than from
+ * {@link System#currentTimeMillis()} whenever it affects a decision.
+ */
+public interface MeshExecutor extends Executor {
+    /** Run a task after a delay; cancelling the returned future drops it. */
+    Future<?> schedule(Runnable task, long delayMillis);
+
+    Future<?> scheduleAtFixedRate(Runnable task, long initialDelayMillis, long periodMillis);
+
+    /** Hand a decoded message from a link over to the mesh thread. */
+    void submitInbound(BluetoothMeshMessage message, String linkId);
+
+    /**
+     * Run blocking work, such as hashing a whole file, off the mesh thread.
+     * The task hands its result back through {@link #execute}.
+     */
+    void executeInBackground(Runnable task);
+
+    long now();
+}
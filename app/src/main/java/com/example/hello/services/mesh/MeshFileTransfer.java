@@ -0,0 +1,755 @@
+package com.example.hello.services.mesh;
+
+import android.util.Log;
+
+import com.example.hello.models.BluetoothMeshMessage;
+import com.example.hello.services.BluetoothMeshService;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * MeshFileTransfer - Chunked, resumable file transfer between two nodes
+ *
+ * The sender announces a file with a FILE_OFFER and then streams it as
+ * FILE_CHUNK messages, each carrying its index and a CRC32 of its bytes in
+ * the content and the bytes themselves in the message payload. Chunks are
+ * read from the file with positional channel reads, so only the chunks in
+ * flight are ever held in memory, and relays route them like any other
+ * directed message without reassembling anything.
+ *
+ * The receiver writes each chunk straight into a preallocated part file
+ * and answers with FILE_NACK progress reports listing how many chunks it
+ * has and which ranges are missing. The sender keeps at most
+ * {@link #WINDOW_CHUNKS} unreported chunks in flight and resends exactly
+ * the missing ranges, so a transfer interrupted by a dropped link picks up
+ * where it stopped once a route is back: the receiver reports again when
+ * chunks stop arriving, and the sender re-offers when it stops hearing
+ * reports. The finished file is checked against the whole-file CRC32 from
+ * the offer before it is handed over.
+ *
+ * Chunks travel as bulk frames, which link queues interleave behind chat
+ * traffic and drop first under pressure. All methods run on the mesh thread,
+ * except hashing whole files, which can take seconds for the largest and
+ * runs through {@link TransferActions#runInBackground}.
+ */
+public class MeshFileTransfer {
+    private static final String TAG = "MeshFileTransfer";
+
+    public static final int DEFAULT_CHUNK_SIZE = 8 * 1024;
+    public static final int MAX_CHUNK_SIZE = 64 * 1024;
+    public static final long MAX_FILE_SIZE = 64L * 1024 * 1024;
+    public static final int WINDOW_CHUNKS = 16;
+    public static final int REPORT_INTERVAL_CHUNKS = 8;
+    public static final int MAX_REPORTED_RANGES = 32;
+    public static final int MAX_TRANSFERS = 8;
+    public static final long STALL_TIMEOUT_MS = 3000;
+    public static final long OFFER_RETRY_MS = 10000;
+    public static final long IDLE_TIMEOUT_MS = 5 * 60 * 1000;
+    private static final char HEADER_SEPARATOR = ':';
+    private static final String PART_SUFFIX = ".part";
+
+    /**
+     * Operations the transfer layer needs from the service that owns the links.
+     */
+    public interface TransferActions {
+        /** Send a directed message along its route; chunks may be dropped if there is none. */
+        void transmit(BluetoothMeshMessage message);
+        /** Run a task later on the mesh thread. */
+        void schedule(Runnable task, long delayMillis);
+        /** Run blocking file work off the mesh thread; it hands its result back through {@link #schedule}. */
+        void runInBackground(Runnable task);
+        String newMessageId();
+        void onProgress(FileInfo info, int chunksDone);
+        /** The transfer ended; {@code file} is the received or sent file, or null if it failed. */
+        void onFinished(FileInfo info, File file);
+    }
+
+    /**
+     * Description of a file being transferred, sent as JSON in the offer.
+     */
+    public static final class FileInfo {
+        private String id;
+        private String name;
+        private String mime;
+        private long size;
+        private int chunkSize;
+        private int chunks;
+        private long crc;
+        private transient String sourceNodeId;
+        private transient String targetNodeId;
+
+        public String getTransferId() {
+            return id;
+        }
+
+        public String getFileName() {
+            return name;
+        }
+
+        public String getMimeType() {
+            return mime;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public int getChunkCount() {
+            return chunks;
+        }
+
+        public String getSourceNodeId() {
+            return sourceNodeId;
+        }
+
+        public String getTargetNodeId() {
+            return targetNodeId;
+        }
+    }
+
+    // Receiver -> sender progress, carried as JSON in FILE_NACK content
+    static final class ProgressReport {
+        String id;
+        int have;
+        List<int[]> missing;
+        boolean done;
+        boolean cancel;
+    }
+
+    private static final class Outgoing {
+        final FileInfo info;
+        final File file;
+        final FileChannel channel;
+        final BitSet resend = new BitSet();
+        int nextIndex;
+        int inFlight;
+        long lastHeardAt;
+
+        Outgoing(FileInfo info, File file, FileChannel channel) {
+            this.info = info;
+            this.file = file;
+            this.channel = channel;
+        }
+    }
+
+    private static final class Incoming {
+        final FileInfo info;
+        final File partFile;
+        final FileChannel channel;
+        final BitSet received = new BitSet();
+        int highestIndex = -1;
+        int sinceReport;
+        long lastChunkAt;
+
+        Incoming(FileInfo info, File partFile, FileChannel channel) {
+            this.info = info;
+            this.partFile = partFile;
+            this.channel = channel;
+        }
+    }
+
+    private final String localNodeId;
+    private final File directory;
+    private final TransferActions actions;
+    private final Gson gson;
+    private final int chunkSize;
+
+    private final Map<String, Outgoing> outgoing = new HashMap<>();
+    private final Map<String, Incoming> incoming = new HashMap<>();
+    // Files being hashed in the background, before sending and after receiving
+    private final Map<String, Outgoing> hashingOutgoing = new HashMap<>();
+    private final Map<String, Incoming> hashingIncoming = new HashMap<>();
+    // Finished incoming transfers, so a repeated offer is answered with "done"
+    private final MessageIdCache completed = new MessageIdCache(16 * 1024, IDLE_TIMEOUT_MS);
+
+    public MeshFileTransfer(String localNodeId, File directory, TransferActions actions, Gson gson) {
+        this(localNodeId, directory, actions, gson, DEFAULT_CHUNK_SIZE);
+    }
+
+    public MeshFileTransfer(String localNodeId, File directory, TransferActions actions, Gson gson, int chunkSize) {
+        if (chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE) {
+            throw new IllegalArgumentException("Invalid chunk size: " + chunkSize);
+        }
+        this.localNodeId = localNodeId;
+        this.directory = directory;
+        this.actions = actions;
+        this.gson = gson;
+        this.chunkSize = chunkSize;
+    }
+
+    // ---- Sender side ----
+
+    /**
+     * Offer a file to a node and start streaming it once it has been hashed
+     * in the background. If the file cannot be read, is too large, or too
+     * many transfers are already running, the failure is reported through
+     * {@link TransferActions#onFinished}.
+     *
+     * @return the file to be offered, or null if the transfer could not start
+     */
+    public synchronized FileInfo send(String transferId, File file, String mimeType, String targetNodeId) {
+        FileInfo info = new FileInfo();
+        info.id = transferId;
+        info.name = file.getName();
+        info.mime = mimeType;
+        info.size = file.length();
+        info.chunkSize = chunkSize;
+        info.chunks = chunkCount(info.size, chunkSize);
+        info.sourceNodeId = localNodeId;
+        info.targetNodeId = targetNodeId;
+
+        if (outgoing.size() + hashingOutgoing.size() >= MAX_TRANSFERS || info.size > MAX_FILE_SIZE) {
+            Log.w(TAG, "Not sending " + file + ": too large or too many transfers");
+            actions.onFinished(info, null);
+            return null;
+        }
+
+        FileChannel channel;
+        try {
+            channel = new RandomAccessFile(file, "r").getChannel();
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to read " + file, e);
+            actions.onFinished(info, null);
+            return null;
+        }
+
+        Outgoing transfer = new Outgoing(info, file, channel);
+        hashingOutgoing.put(transferId, transfer);
+        actions.runInBackground(() -> {
+            long crc = checksumOrFail(channel, info.size, chunkSize, file);
+            actions.schedule(() -> startOutgoing(transfer, crc), 0);
+        });
+        return info;
+    }
+
+    private synchronized void startOutgoing(Outgoing transfer, long crc) {
+        FileInfo info = transfer.info;
+        if (hashingOutgoing.get(info.id) != transfer) {
+            // Cleared while hashing; failure was already reported
+            closeQuietly(transfer.channel);
+            return;
+        }
+        hashingOutgoing.remove(info.id);
+        if (crc < 0) {
+            closeQuietly(transfer.channel);
+            actions.onFinished(info, null);
+            return;
+        }
+
+        info.crc = crc;
+        transfer.lastHeardAt = now();
+        outgoing.put(info.id, transfer);
+        Log.d(TAG, "Sending " + info.name + " (" + info.size + " bytes, " + info.chunks + " chunks) to "
+                + info.targetNodeId);
+
+        sendOffer(transfer);
+        pump(transfer);
+        String transferId = info.id;
+        actions.schedule(() -> checkOutgoing(transferId), OFFER_RETRY_MS);
+    }
+
+    /**
+     * A progress report from the receiver of one of our transfers.
+     */
+    public synchronized void handleReport(BluetoothMeshMessage message) {
+        ProgressReport report;
+        try {
+            report = gson.fromJson(message.getContent(), ProgressReport.class);
+        } catch (JsonParseException e) {
+            Log.w(TAG, "Malformed transfer report from " + message.getSourceNodeId());
+            return;
+        }
+        if (report == null || report.id == null) {
+            return;
+        }
+        Outgoing transfer = outgoing.get(report.id);
+        if (transfer == null || !transfer.info.targetNodeId.equals(message.getSourceNodeId())) {
+            return;
+        }
+        transfer.lastHeardAt = now();
+
+        if (report.cancel) {
+            Log.w(TAG, "Receiver cancelled transfer " + report.id);
+            finishOutgoing(transfer, false);
+            return;
+        }
+        if (report.done) {
+            finishOutgoing(transfer, true);
+            return;
+        }
+
+        // Everything reported missing below what we have sent is lost, not in flight
+        if (report.missing != null) {
+            for (int[] range : report.missing) {
+                if (range == null || range.length != 2) {
+                    continue;
+                }
+                int from = Math.max(0, range[0]);
+                int to = Math.min(transfer.nextIndex, range[1] + 1);
+                if (from < to) {
+                    transfer.resend.set(from, to);
+                }
+            }
+        }
+        transfer.inFlight = Math.max(0, transfer.nextIndex - report.have - transfer.resend.cardinality());
+
+        actions.onProgress(transfer.info, report.have);
+        pump(transfer);
+    }
+
+    private void pump(Outgoing transfer) {
+        while (transfer.inFlight < WINDOW_CHUNKS) {
+            int index = transfer.resend.nextSetBit(0);
+            if (index >= 0) {
+                transfer.resend.clear(index);
+            } else if (transfer.nextIndex < transfer.info.chunks) {
+                index = transfer.nextIndex++;
+            } else {
+                return;
+            }
+
+            try {
+                sendChunk(transfer, index);
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to read " + transfer.file + " for transfer " + transfer.info.id, e);
+                finishOutgoing(transfer, false);
+                return;
+            }
+            transfer.inFlight++;
+        }
+    }
+
+    private void sendChunk(Outgoing transfer, int index) throws IOException {
+        FileInfo info = transfer.info;
+        long position = (long) index * info.chunkSize;
+        byte[] bytes = new byte[(int) Math.min(info.chunkSize, info.size - position)];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            if (transfer.channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("File shrank while sending");
+            }
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+
+        BluetoothMeshMessage chunk = newMessage(BluetoothMeshService.MSG_TYPE_FILE_CHUNK, info.targetNodeId,
+                info.id + HEADER_SEPARATOR + index + HEADER_SEPARATOR + Long.toHexString(crc.getValue()));
+        chunk.setPayload(bytes);
+        actions.transmit(chunk);
+    }
+
+    private void sendOffer(Outgoing transfer) {
+        actions.transmit(newMessage(BluetoothMeshService.MSG_TYPE_FILE_OFFER, transfer.info.targetNodeId,
+                gson.toJson(transfer.info)));
+    }
+
+    private synchronized void checkOutgoing(String transferId) {
+        Outgoing transfer = outgoing.get(transferId);
+        if (transfer == null) {
+            return;
+        }
+        long silence = now() - transfer.lastHeardAt;
+        if (silence >= IDLE_TIMEOUT_MS) {
+            Log.w(TAG, "No word from the receiver of " + transferId + ", giving up");
+            finishOutgoing(transfer, false);
+            return;
+        }
+        if (silence >= OFFER_RETRY_MS) {
+            // The offer or the receiver's reports went missing; a repeated offer asks for a fresh report
+            sendOffer(transfer);
+        }
+        actions.schedule(() -> checkOutgoing(transferId), OFFER_RETRY_MS);
+    }
+
+    private void finishOutgoing(Outgoing transfer, boolean delivered) {
+        outgoing.remove(transfer.info.id);
+        closeQuietly(transfer.channel);
+        actions.onFinished(transfer.info, delivered ? transfer.file : null);
+    }
+
+    // ---- Receiver side ----
+
+    /**
+     * An offer addressed to this node, either new or repeated by a sender
+     * that wants to know where we are.
+     */
+    public synchronized void handleOffer(BluetoothMeshMessage message) {
+        FileInfo info;
+        try {
+            info = gson.fromJson(message.getContent(), FileInfo.class);
+        } catch (JsonParseException e) {
+            Log.w(TAG, "Malformed file offer from " + message.getSourceNodeId());
+            return;
+        }
+        if (info == null || info.id == null || !isValid(info)) {
+            Log.w(TAG, "Rejecting invalid file offer from " + message.getSourceNodeId());
+            return;
+        }
+        info.sourceNodeId = message.getSourceNodeId();
+        info.targetNodeId = localNodeId;
+
+        if (completed.contains(info.id)) {
+            sendReport(info, 0, null, true, false);
+            return;
+        }
+        if (hashingIncoming.containsKey(info.id)) {
+            // Every chunk is in; the report follows once the file is checked
+            return;
+        }
+        Incoming transfer = incoming.get(info.id);
+        if (transfer != null) {
+            if (transfer.info.sourceNodeId.equals(info.sourceNodeId)) {
+                transfer.lastChunkAt = now();
+                sendReport(transfer, true);
+            }
+            return;
+        }
+        if (incoming.size() + hashingIncoming.size() >= MAX_TRANSFERS) {
+            sendReport(info, 0, null, false, true);
+            return;
+        }
+        if (info.chunks == 0) {
+            completeEmpty(info);
+            return;
+        }
+
+        File partFile = new File(directory, sanitize(info.id) + PART_SUFFIX);
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Unable to create " + directory);
+            }
+            RandomAccessFile file = new RandomAccessFile(partFile, "rw");
+            file.setLength(info.size);
+            transfer = new Incoming(info, partFile, file.getChannel());
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to accept " + info.name, e);
+            sendReport(info, 0, null, false, true);
+            return;
+        }
+
+        transfer.lastChunkAt = now();
+        incoming.put(info.id, transfer);
+        Log.d(TAG, "Receiving " + info.name + " (" + info.size + " bytes) from " + info.sourceNodeId);
+        String transferId = info.id;
+        actions.schedule(() -> checkIncoming(transferId), STALL_TIMEOUT_MS);
+    }
+
+    /**
+     * A chunk addressed to this node.
+     */
+    public synchronized void handleChunk(BluetoothMeshMessage message) {
+        String header = message.getContent();
+        byte[] bytes = message.getPayload();
+        if (header == null || bytes == null) {
+            return;
+        }
+        int crcAt = header.lastIndexOf(HEADER_SEPARATOR);
+        int indexAt = crcAt > 0 ? header.lastIndexOf(HEADER_SEPARATOR, crcAt - 1) : -1;
+        if (indexAt <= 0) {
+            return;
+        }
+
+        Incoming transfer = incoming.get(header.substring(0, indexAt));
+        if (transfer == null) {
+            // Unknown or already finished; the sender re-offers if it still cares
+            return;
+        }
+        if (!transfer.info.sourceNodeId.equals(message.getSourceNodeId())) {
+            // Transfer ids are chosen by senders, so another node may reuse one
+            return;
+        }
+        FileInfo info = transfer.info;
+
+        int index;
+        long expectedCrc;
+        try {
+            index = Integer.parseInt(header.substring(indexAt + 1, crcAt));
+            expectedCrc = Long.parseLong(header.substring(crcAt + 1), 16);
+        } catch (NumberFormatException e) {
+            return;
+        }
+        if (index < 0 || index >= info.chunks || transfer.received.get(index)) {
+            return;
+        }
+        long position = (long) index * info.chunkSize;
+        if (bytes.length != Math.min(info.chunkSize, info.size - position)) {
+            return;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        if (crc.getValue() != expectedCrc) {
+            // Treated as lost; the next report asks for it again
+            Log.w(TAG, "Checksum mismatch on chunk " + index + " of " + info.id);
+            return;
+        }
+
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining()) {
+                transfer.channel.write(buffer, position + buffer.position());
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write chunk of " + info.name, e);
+            abandonIncoming(transfer);
+            return;
+        }
+
+        transfer.received.set(index);
+        transfer.highestIndex = Math.max(transfer.highestIndex, index);
+        transfer.lastChunkAt = now();
+        transfer.sinceReport++;
+
+        if (transfer.received.cardinality() == info.chunks) {
+            completeIncoming(transfer);
+        } else if (transfer.sinceReport >= REPORT_INTERVAL_CHUNKS || index == info.chunks - 1) {
+            sendReport(transfer, false);
+        }
+    }
+
+    private synchronized void checkIncoming(String transferId) {
+        Incoming transfer = incoming.get(transferId);
+        if (transfer == null) {
+            return;
+        }
+        long silence = now() - transfer.lastChunkAt;
+        if (silence >= IDLE_TIMEOUT_MS) {
+            Log.w(TAG, "Transfer " + transferId + " stalled for too long, giving up");
+            abandonIncoming(transfer);
+            return;
+        }
+        if (silence >= STALL_TIMEOUT_MS) {
+            // Chunks stopped coming: ask for everything still missing, tail included
+            sendReport(transfer, true);
+        }
+        actions.schedule(() -> checkIncoming(transferId), STALL_TIMEOUT_MS);
+    }
+
+    private void completeIncoming(Incoming transfer) {
+        FileInfo info = transfer.info;
+        incoming.remove(info.id);
+        hashingIncoming.put(info.id, transfer);
+        actions.runInBackground(() -> {
+            long crc = -1;
+            try {
+                transfer.channel.force(false);
+                crc = checksumOrFail(transfer.channel, info.size, info.chunkSize, transfer.partFile);
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to flush " + transfer.partFile, e);
+            }
+            closeQuietly(transfer.channel);
+            long result = crc;
+            actions.schedule(() -> finishIncoming(transfer, result), 0);
+        });
+    }
+
+    private synchronized void finishIncoming(Incoming transfer, long crc) {
+        FileInfo info = transfer.info;
+        if (hashingIncoming.get(info.id) != transfer) {
+            // Cleared while hashing; failure was already reported
+            transfer.partFile.delete();
+            return;
+        }
+        hashingIncoming.remove(info.id);
+        try {
+            if (crc != info.crc) {
+                throw new IOException("Whole-file checksum mismatch");
+            }
+            File target = uniqueFile(directory, sanitize(info.name));
+            if (!transfer.partFile.renameTo(target)) {
+                throw new IOException("Unable to move " + transfer.partFile + " to " + target);
+            }
+            completed.markSeen(info.id);
+            sendReport(info, info.chunks, null, true, false);
+            Log.d(TAG, "Received " + info.name + " from " + info.sourceNodeId);
+            actions.onFinished(info, target);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to complete " + info.name, e);
+            transfer.partFile.delete();
+            sendReport(info, 0, null, false, true);
+            actions.onFinished(info, null);
+        }
+    }
+
+    // Nothing to wait for: no chunks will ever arrive
+    private void completeEmpty(FileInfo info) {
+        try {
+            if (info.crc != new CRC32().getValue()) {
+                throw new IOException("Whole-file checksum mismatch");
+            }
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Unable to create " + directory);
+            }
+            File target = uniqueFile(directory, sanitize(info.name));
+            if (!target.createNewFile()) {
+                throw new IOException("Unable to create " + target);
+            }
+            completed.markSeen(info.id);
+            sendReport(info, 0, null, true, false);
+            Log.d(TAG, "Received empty " + info.name + " from " + info.sourceNodeId);
+            actions.onFinished(info, target);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to complete " + info.name, e);
+            sendReport(info, 0, null, false, true);
+            actions.onFinished(info, null);
+        }
+    }
+
+    private void abandonIncoming(Incoming transfer) {
+        incoming.remove(transfer.info.id);
+        closeQuietly(transfer.channel);
+        transfer.partFile.delete();
+        sendReport(transfer.info, 0, null, false, true);
+        actions.onFinished(transfer.info, null);
+    }
+
+    private void sendReport(Incoming transfer, boolean wholeFile) {
+        transfer.sinceReport = 0;
+        int limit = wholeFile ? transfer.info.chunks : transfer.highestIndex + 1;
+        List<int[]> missing = new ArrayList<>();
+        int from = transfer.received.nextClearBit(0);
+        while (from < limit && missing.size() < MAX_REPORTED_RANGES) {
+            int to = Math.min(transfer.received.nextSetBit(from), limit);
+            if (to < 0) {
+                to = limit;
+            }
+            missing.add(new int[]{from, to - 1});
+            from = transfer.received.nextClearBit(to);
+        }
+        int have = transfer.received.cardinality();
+        sendReport(transfer.info, have, missing, false, false);
+        actions.onProgress(transfer.info, have);
+    }
+
+    private void sendReport(FileInfo info, int have, List<int[]> missing, boolean done, boolean cancel) {
+        ProgressReport report = new ProgressReport();
+        report.id = info.id;
+        report.have = have;
+        report.missing = missing;
+        report.done = done;
+        report.cancel = cancel;
+        actions.transmit(newMessage(BluetoothMeshService.MSG_TYPE_FILE_NACK, info.sourceNodeId, gson.toJson(report)));
+    }
+
+    // ---- State ----
+
+    public synchronized int getOutgoingCount() {
+        return outgoing.size() + hashingOutgoing.size();
+    }
+
+    public synchronized int getIncomingCount() {
+        return incoming.size() + hashingIncoming.size();
+    }
+
+    /**
+     * Abandon every transfer, reporting failure for each, and delete partial files.
+     */
+    public synchronized void clear() {
+        for (Outgoing transfer : new ArrayList<>(outgoing.values())) {
+            finishOutgoing(transfer, false);
+        }
+        for (Incoming transfer : incoming.values()) {
+            closeQuietly(transfer.channel);
+            transfer.partFile.delete();
+            actions.onFinished(transfer.info, null);
+        }
+        incoming.clear();
+        // Their background hashing finds them gone and cleans up after itself
+        for (Outgoing transfer : hashingOutgoing.values()) {
+            actions.onFinished(transfer.info, null);
+        }
+        hashingOutgoing.clear();
+        for (Incoming transfer : hashingIncoming.values()) {
+            actions.onFinished(transfer.info, null);
+        }
+        hashingIncoming.clear();
+        completed.clear();
+    }
+
+    // Overridable for tests
+    long now() {
+        return System.currentTimeMillis();
+    }
+
+    // ---- Internals ----
+
+    private BluetoothMeshMessage newMessage(String type, String targetNodeId, String content) {
+        return new BluetoothMeshMessage(actions.newMessageId(), type, localNodeId, targetNodeId, content,
+                now(), 0);
+    }
+
+    private static boolean isValid(FileInfo info) {
+        return info.size >= 0 && info.size <= MAX_FILE_SIZE
+                && info.chunkSize > 0 && info.chunkSize <= MAX_CHUNK_SIZE
+                && info.chunks == chunkCount(info.size, info.chunkSize);
+    }
+
+    private static int chunkCount(long size, int chunkSize) {
+        return (int) ((size + chunkSize - 1) / chunkSize);
+    }
+
+    // Streams the file through one chunk-sized buffer
+    private static long checksum(FileChannel channel, long size, int chunkSize) throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer buffer = ByteBuffer.allocate(chunkSize);
+        long position = 0;
+        while (position < size) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+            crc.update(buffer.array(), 0, read);
+            position += read;
+        }
+        return crc.getValue();
+    }
+
+    // -1 if the file cannot be read; a CRC32 is never negative
+    private static long checksumOrFail(FileChannel channel, long size, int chunkSize, File file) {
+        try {
+            return checksum(channel, size, chunkSize);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to read " + file, e);
+            return -1;
+        }
+    }
+
+    // Received names come from the network; never let them leave the directory
+    private static String sanitize(String name) {
+        String base = name == null ? "" : new File(name).getName();
+        String safe = base.replaceAll("[^A-Za-z0-9._ -]", "_");
+        return safe.isEmpty() || safe.startsWith(".") ? "file" + safe : safe;
+    }
+
+    private static File uniqueFile(File directory, String name) {
+        File file = new File(directory, name);
+        int dot = name.lastIndexOf('.');
+        String stem = dot > 0 ? name.substring(0, dot) : name;
+        String extension = dot > 0 ? name.substring(dot) : "";
+        for (int i = 1; file.exists(); i++) {
+            file = new File(directory, stem + " (" + i + ")" + extension);
+        }
+        return file;
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to close file channel", e);
+        }
+    }
+}
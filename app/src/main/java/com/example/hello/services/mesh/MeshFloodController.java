@@ -0,0 +1,275 @@
+package com.example.hello.services.mesh;
+
+import com.example.hello.models.BluetoothMeshMessage;
+import com.example.hello.services.BluetoothMeshService;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * MeshFloodController - Decides whether and where to rebroadcast flooded messages
+ *
+ * Blind flooding makes every node rebroadcast every new broadcast to every
+ * neighbour. In a dense room most of those writes reach phones that already
+ * have the message. The controller applies a per-message-type policy instead:
+ *
+ * - FULL: rebroadcast at once to every link except the one it came from.
+ * - COUNTER: wait a short random delay and count how many times the message
+ *   is heard again; rebroadcast only if that is below a threshold.
+ * - NEIGHBOUR_KNOWLEDGE: wait a short random delay, then send only to
+ *   neighbours that the topology graph says are not already covered by a
+ *   node we heard the message from.
+ * - GOSSIP: rebroadcast with a fixed probability; messages heard straight
+ *   from their origin are always relayed so a flood cannot die at hop one.
+ *
+ * Emergency messages are always flooded in full, whatever their type's
+ * policy, so neither a delay nor a suppression decision stands between them
+ * and the next hop.
+ *
+ * Links are point-to-point, so under every policy a link the message was
+ * already received on is skipped. All methods run on the mesh thread.
+ */
+public class MeshFloodController {
+    public static final int DEFAULT_COUNTER_THRESHOLD = 3;
+    public static final double DEFAULT_GOSSIP_PROBABILITY = 0.65;
+    public static final long DEFAULT_MAX_ASSESSMENT_DELAY_MS = 120;
+    public static final int MAX_PENDING = 512;
+
+    public enum FloodPolicy {
+        FULL,
+        COUNTER,
+        NEIGHBOUR_KNOWLEDGE,
+        GOSSIP
+    }
+
+    /**
+     * Operations the controller needs from the service that owns the links.
+     */
+    public interface FloodActions {
+        /** Rebroadcast on exactly these links (hop count handling is the caller's). */
+        void relay(BluetoothMeshMessage message, List<String> linkIds);
+        /** Run a task later on the mesh thread. */
+        void schedule(Runnable task, long delayMillis);
+        List<String> getLinkIds();
+        /** Node ID of the neighbour on a link, or null if not yet known. */
+        String getNeighbourForLink(String linkId);
+        /** Neighbours of a node according to the topology graph, empty if unknown. */
+        List<String> getNeighboursOf(String nodeId);
+    }
+
+    private static final class Pending {
+        final BluetoothMeshMessage message;
+        final FloodPolicy policy;
+        final String firstLinkId;
+        final Set<String> heardOnLinks = new HashSet<>();
+        int receptions = 1;
+
+        Pending(BluetoothMeshMessage message, FloodPolicy policy, String firstLinkId) {
+            this.message = message;
+            this.policy = policy;
+            this.firstLinkId = firstLinkId;
+            heardOnLinks.add(firstLinkId);
+        }
+    }
+
+    private final FloodActions actions;
+    private final Random random;
+    private final Map<String, FloodPolicy> policies = new HashMap<>();
+    private final Map<String, Pending> pending = new LinkedHashMap<>();
+
+    private FloodPolicy defaultPolicy = FloodPolicy.FULL;
+    private int counterThreshold = DEFAULT_COUNTER_THRESHOLD;
+    private double gossipProbability = DEFAULT_GOSSIP_PROBABILITY;
+    private long maxAssessmentDelayMs = DEFAULT_MAX_ASSESSMENT_DELAY_MS;
+
+    private final LongAdder relayed = new LongAdder();
+    private final LongAdder suppressed = new LongAdder();
+    private final LongAdder redundantReceptions = new LongAdder();
+    private final LongAdder linkSendsAvoided = new LongAdder();
+
+    public MeshFloodController(FloodActions actions) {
+        this(actions, new Random());
+    }
+
+    public MeshFloodController(FloodActions actions, Random random) {
+        this.actions = actions;
+        this.random = random;
+        policies.put(BluetoothMeshService.MSG_TYPE_CHAT, FloodPolicy.COUNTER);
+        policies.put(BluetoothMeshService.MSG_TYPE_DISCOVERY, FloodPolicy.COUNTER);
+        policies.put(BluetoothMeshService.MSG_TYPE_TOPOLOGY, FloodPolicy.NEIGHBOUR_KNOWLEDGE);
+    }
+
+    // ---- Configuration ----
+
+    public synchronized void setPolicy(String messageType, FloodPolicy policy) {
+        policies.put(messageType, policy);
+    }
+
+    public synchronized FloodPolicy getPolicy(String messageType) {
+        FloodPolicy policy = policies.get(messageType);
+        return policy != null ? policy : defaultPolicy;
+    }
+
+    public synchronized void setDefaultPolicy(FloodPolicy policy) {
+        defaultPolicy = policy;
+    }
+
+    public synchronized void setCounterThreshold(int threshold) {
+        counterThreshold = threshold;
+    }
+
+    public synchronized void setGossipProbability(double probability) {
+        gossipProbability = probability;
+    }
+
+    public synchronized void setMaxAssessmentDelayMs(long delayMs) {
+        maxAssessmentDelayMs = delayMs;
+    }
+
+    // ---- Receptions ----
+
+    /**
+     * A flooded message was received for the first time.
+     */
+    public synchronized void onFirstReception(BluetoothMeshMessage message, String fromLinkId) {
+        FloodPolicy policy = message.getPriority() == BluetoothMeshMessage.PRIORITY_EMERGENCY
+                ? FloodPolicy.FULL : getPolicy(message.getType());
+        Pending entry = new Pending(message, policy, fromLinkId);
+
+        switch (policy) {
+            case GOSSIP:
+                if (message.getHopCount() == 0 || random.nextDouble() < gossipProbability) {
+                    relay(entry, null);
+                } else {
+                    suppress(entry);
+                }
+                return;
+            case COUNTER:
+            case NEIGHBOUR_KNOWLEDGE:
+                if (pending.size() >= MAX_PENDING) {
+                    // Never hold more than we can track; fall back to flooding
+                    relay(entry, null);
+                    return;
+                }
+                pending.put(message.getMessageId(), entry);
+                long delay = maxAssessmentDelayMs > 0 ? (long) (random.nextDouble() * maxAssessmentDelayMs) : 0;
+                actions.schedule(() -> assess(message.getMessageId()), delay);
+                return;
+            case FULL:
+            default:
+                relay(entry, null);
+        }
+    }
+
+    /**
+     * A message we have already seen arrived again, possibly on another link.
+     */
+    public synchronized void onDuplicate(String messageId, String fromLinkId) {
+        redundantReceptions.increment();
+        Pending entry = pending.get(messageId);
+        if (entry != null) {
+            entry.receptions++;
+            entry.heardOnLinks.add(fromLinkId);
+        }
+    }
+
+    public synchronized void clear() {
+        pending.clear();
+    }
+
+    // ---- Metrics ----
+
+    public long getRelayedCount() {
+        return relayed.sum();
+    }
+
+    /** Messages we chose not to rebroadcast at all. */
+    public long getSuppressedCount() {
+        return suppressed.sum();
+    }
+
+    /** Copies of already-seen messages that reached this node. */
+    public long getRedundantReceptions() {
+        return redundantReceptions.sum();
+    }
+
+    /** Per-link writes skipped compared with blind flooding. */
+    public long getLinkSendsAvoided() {
+        return linkSendsAvoided.sum();
+    }
+
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    // ---- Internals ----
+
+    private synchronized void assess(String messageId) {
+        Pending entry = pending.remove(messageId);
+        if (entry == null) {
+            return;
+        }
+
+        if (entry.policy == FloodPolicy.COUNTER) {
+            if (entry.receptions >= counterThreshold) {
+                suppress(entry);
+                return;
+            }
+            relay(entry, null);
+            return;
+        }
+
+        // Neighbour knowledge: drop neighbours already covered by someone we heard it from
+        Set<String> covered = new HashSet<>();
+        for (String linkId : entry.heardOnLinks) {
+            String neighbour = actions.getNeighbourForLink(linkId);
+            if (neighbour != null) {
+                covered.add(neighbour);
+                covered.addAll(actions.getNeighboursOf(neighbour));
+            }
+        }
+        relay(entry, covered);
+    }
+
+    private void relay(Pending entry, Set<String> coveredNodes) {
+        List<String> links = actions.getLinkIds();
+        List<String> targets = new ArrayList<>();
+        for (String linkId : links) {
+            if (entry.heardOnLinks.contains(linkId)) {
+                continue;
+            }
+            if (coveredNodes != null) {
+                String neighbour = actions.getNeighbourForLink(linkId);
+                if (neighbour != null && coveredNodes.contains(neighbour)) {
+                    continue;
+                }
+            }
+            targets.add(linkId);
+        }
+        linkSendsAvoided.add(blindFloodLinks(entry, links) - targets.size());
+
+        if (targets.isEmpty()) {
+            suppressed.increment();
+            return;
+        }
+        relayed.increment();
+        actions.relay(entry.message, targets);
+    }
+
+    private void suppress(Pending entry) {
+        suppressed.increment();
+        linkSendsAvoided.add(blindFloodLinks(entry, actions.getLinkIds()));
+    }
+
+    // Writes blind flooding would have made: every link but the arrival link
+    private static int blindFloodLinks(Pending entry, List<String> links) {
+        return links.contains(entry.firstLinkId) ? links.size() - 1 : links.size();
+    }
+}
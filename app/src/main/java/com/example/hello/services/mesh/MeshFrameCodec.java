@@ -0,0 +1,501 @@
+package com.example.hello.services.mesh;
+
+import com.example.hello.models.BluetoothMeshMessage;
+import com.example.hello.services.BluetoothMeshService;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * MeshFrameCodec - Versioned, length-prefixed wire format for mesh messages
+ *
+ * Every frame starts with a fixed 8 byte header:
+ * <pre>
+ *   magic(1) version(1) format(1) priority(1) bodyLength(4, big endian)
+ * </pre>
+ * followed by {@code bodyLength} bytes of body. The priority byte holds the
+ * message's {@code PRIORITY_*} class; it used to be reserved and always
+ * zero, which still reads as the default for the message type.
+ *
+ * The default body format is a compact binary encoding of
+ * {@link BluetoothMeshMessage}; the JSON format carries the Gson
+ * representation inside the same header and is kept for debugging.
+ * Decoding accepts both formats regardless of which one is used for
+ * encoding. Neither interoperates with builds from before this codec,
+ * which wrote bare JSON with no header: they cannot read these frames,
+ * and what they write fails here on its magic byte, closing the link.
+ *
+ * Binary body layout:
+ * <pre>
+ *   presence(varint) typeCode(1) hopCount(varint) timestamp(8)
+ *   [messageId] [type] [sourceNodeId] [targetNodeId] [content] [senderName] [senderAddress] [payload]
+ * </pre>
+ * where each optional string is a varint byte length followed by UTF-8 bytes,
+ * the payload is a varint length followed by raw bytes, and each is only
+ * present when its bit is set in {@code presence}.
+ */
+public class MeshFrameCodec {
+    public static final byte MAGIC = (byte) 0xB5;
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 8;
+    public static final int DEFAULT_MAX_FRAME_SIZE = 256 * 1024;
+
+    // Body formats
+    public static final int FORMAT_BINARY = 0;
+    public static final int FORMAT_JSON = 1;
+
+    // Presence bits for optional fields
+    private static final int FIELD_MESSAGE_ID = 1;
+    private static final int FIELD_TYPE = 1 << 1;
+    private static final int FIELD_SOURCE = 1 << 2;
+    private static final int FIELD_TARGET = 1 << 3;
+    private static final int FIELD_CONTENT = 1 << 4;
+    private static final int FIELD_SENDER_NAME = 1 << 5;
+    private static final int FIELD_SENDER_ADDRESS = 1 << 6;
+    private static final int FIELD_PAYLOAD = 1 << 7;
+
+    // Well-known message types get a one byte code; code 0 means the type is
+    // sent as a string. New types must only ever be appended.
+    private static final String[] TYPE_CODES = {
+            null,
+            BluetoothMeshService.MSG_TYPE_CHAT,
+            BluetoothMeshService.MSG_TYPE_DISCOVERY,
+            BluetoothMeshService.MSG_TYPE_TOPOLOGY,
+            BluetoothMeshService.MSG_TYPE_ROUTE_REQUEST,
+            BluetoothMeshService.MSG_TYPE_ROUTE_REPLY,
+            BluetoothMeshService.MSG_TYPE_HEARTBEAT,
+            BluetoothMeshService.MSG_TYPE_STORE_BATCH,
+            BluetoothMeshService.MSG_TYPE_ACK,
+            BluetoothMeshService.MSG_TYPE_FILE_OFFER,
+            BluetoothMeshService.MSG_TYPE_FILE_CHUNK,
+            BluetoothMeshService.MSG_TYPE_FILE_NACK,
+            BluetoothMeshService.MSG_TYPE_ROUTE_ERROR,
+            BluetoothMeshService.MSG_TYPE_HISTORY_DIGEST,
+            BluetoothMeshService.MSG_TYPE_HISTORY_REQUEST,
+            BluetoothMeshService.MSG_TYPE_HISTORY_BATCH,
+            BluetoothMeshService.MSG_TYPE_BACKPRESSURE,
+            BluetoothMeshService.MSG_TYPE_LINK_PIN
+    };
+
+    private final Gson gson;
+    private final MeshBufferPool bufferPool;
+    private final int maxFrameSize;
+    private volatile int wireFormat = FORMAT_BINARY;
+
+    public MeshFrameCodec(Gson gson, MeshBufferPool bufferPool) {
+        this(gson, bufferPool, DEFAULT_MAX_FRAME_SIZE);
+    }
+
+    public MeshFrameCodec(Gson gson, MeshBufferPool bufferPool, int maxFrameSize) {
+        this.gson = gson;
+        this.bufferPool = bufferPool;
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    public void setWireFormat(int wireFormat) {
+        if (wireFormat != FORMAT_BINARY && wireFormat != FORMAT_JSON) {
+            throw new IllegalArgumentException("Unknown wire format: " + wireFormat);
+        }
+        this.wireFormat = wireFormat;
+    }
+
+    public int getWireFormat() {
+        return wireFormat;
+    }
+
+    public int getMaxFrameSize() {
+        return maxFrameSize;
+    }
+
+    public MeshBufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Encode a message into a standalone frame. The returned array is not
+     * pooled and may be shared between several links.
+     */
+    public byte[] encode(BluetoothMeshMessage message) throws MeshFrameException {
+        FrameWriter writer = new FrameWriter(bufferPool);
+        try {
+            encodeInto(message, writer);
+            byte[] frame = new byte[writer.position];
+            System.arraycopy(writer.buffer, 0, frame, 0, writer.position);
+            return frame;
+        } finally {
+            writer.release();
+        }
+    }
+
+    /**
+     * Encode a message straight onto a stream using a pooled scratch buffer.
+     */
+    public void writeTo(BluetoothMeshMessage message, OutputStream outputStream) throws IOException {
+        FrameWriter writer = new FrameWriter(bufferPool);
+        try {
+            encodeInto(message, writer);
+            outputStream.write(writer.buffer, 0, writer.position);
+        } finally {
+            writer.release();
+        }
+    }
+
+    private void encodeInto(BluetoothMeshMessage message, FrameWriter writer) throws MeshFrameException {
+        int format = wireFormat;
+
+        writer.ensure(HEADER_SIZE);
+        writer.buffer[0] = MAGIC;
+        writer.buffer[1] = (byte) VERSION;
+        writer.buffer[2] = (byte) format;
+        writer.buffer[3] = (byte) message.getPriority();
+        writer.position = HEADER_SIZE;
+
+        if (format == FORMAT_JSON) {
+            writer.writeUtf8(gson.toJson(message));
+        } else {
+            encodeBinaryBody(message, writer);
+        }
+
+        int bodyLength = writer.position - HEADER_SIZE;
+        if (bodyLength > maxFrameSize) {
+            throw new MeshFrameException("Frame body of " + bodyLength + " bytes exceeds limit of " + maxFrameSize);
+        }
+        writeInt(writer.buffer, 4, bodyLength);
+    }
+
+    private void encodeBinaryBody(BluetoothMeshMessage message, FrameWriter writer) {
+        int typeCode = typeCode(message.getType());
+
+        int presence = 0;
+        if (message.getMessageId() != null) presence |= FIELD_MESSAGE_ID;
+        if (typeCode == 0 && message.getType() != null) presence |= FIELD_TYPE;
+        if (message.getSourceNodeId() != null) presence |= FIELD_SOURCE;
+        if (message.getTargetNodeId() != null) presence |= FIELD_TARGET;
+        if (message.getContent() != null) presence |= FIELD_CONTENT;
+        if (message.getSenderName() != null) presence |= FIELD_SENDER_NAME;
+        if (message.getSenderAddress() != null) presence |= FIELD_SENDER_ADDRESS;
+        if (message.getPayload() != null) presence |= FIELD_PAYLOAD;
+
+        writer.writeVarInt(presence);
+        writer.writeByte(typeCode);
+        writer.writeVarInt(message.getHopCount());
+        writer.writeLong(message.getTimestamp());
+
+        if ((presence & FIELD_MESSAGE_ID) != 0) writer.writeString(message.getMessageId());
+        if ((presence & FIELD_TYPE) != 0) writer.writeString(message.getType());
+        if ((presence & FIELD_SOURCE) != 0) writer.writeString(message.getSourceNodeId());
+        if ((presence & FIELD_TARGET) != 0) writer.writeString(message.getTargetNodeId());
+        if ((presence & FIELD_CONTENT) != 0) writer.writeString(message.getContent());
+        if ((presence & FIELD_SENDER_NAME) != 0) writer.writeString(message.getSenderName());
+        if ((presence & FIELD_SENDER_ADDRESS) != 0) writer.writeString(message.getSenderAddress());
+        if ((presence & FIELD_PAYLOAD) != 0) writer.writeBytes(message.getPayload());
+    }
+
+    /**
+     * Decode one complete frame held in its own array, as produced by
+     * {@link #encode(BluetoothMeshMessage)}.
+     */
+    public BluetoothMeshMessage decode(byte[] frame) throws MeshFrameException {
+        if (frame.length < HEADER_SIZE) {
+            throw new MeshFrameException("Frame shorter than header");
+        }
+        int bodyLength = readHeader(frame, 0);
+        if (frame.length != HEADER_SIZE + bodyLength) {
+            throw new MeshFrameException("Frame length mismatch");
+        }
+        return decodeFrame(frame, 0, bodyLength);
+    }
+
+    /**
+     * Validate the header at {@code offset} and return the body length.
+     */
+    int readHeader(byte[] buffer, int offset) throws MeshFrameException {
+        if (buffer[offset] != MAGIC) {
+            throw new MeshFrameException("Bad frame magic: " + (buffer[offset] & 0xFF));
+        }
+        int version = buffer[offset + 1] & 0xFF;
+        if (version != VERSION) {
+            throw new MeshFrameException("Unsupported frame version: " + version);
+        }
+        int format = buffer[offset + 2] & 0xFF;
+        if (format != FORMAT_BINARY && format != FORMAT_JSON) {
+            throw new MeshFrameException("Unknown frame format: " + format);
+        }
+        int bodyLength = readInt(buffer, offset + 4);
+        if (bodyLength < 0 || bodyLength > maxFrameSize) {
+            throw new MeshFrameException("Invalid frame length: " + bodyLength);
+        }
+        return bodyLength;
+    }
+
+    /**
+     * Decode a complete frame whose header starts at {@code offset}.
+     */
+    BluetoothMeshMessage decodeFrame(byte[] buffer, int offset, int bodyLength) throws MeshFrameException {
+        int format = buffer[offset + 2] & 0xFF;
+        int bodyStart = offset + HEADER_SIZE;
+
+        BluetoothMeshMessage message = format == FORMAT_JSON
+                ? decodeJsonBody(buffer, bodyStart, bodyLength)
+                : decodeBinaryBody(buffer, bodyStart, bodyLength);
+        int priority = buffer[offset + 3] & 0xFF;
+        message.setPriority(priority <= BluetoothMeshMessage.PRIORITY_EMERGENCY
+                ? priority : BluetoothMeshMessage.PRIORITY_DEFAULT);
+        message.setWireLength(HEADER_SIZE + bodyLength);
+        return message;
+    }
+
+    private BluetoothMeshMessage decodeJsonBody(byte[] buffer, int offset, int length) throws MeshFrameException {
+        try {
+            String json = new String(buffer, offset, length, StandardCharsets.UTF_8);
+            BluetoothMeshMessage message = gson.fromJson(json, BluetoothMeshMessage.class);
+            if (message == null) {
+                throw new MeshFrameException("Empty JSON frame");
+            }
+            return message;
+        } catch (JsonParseException e) {
+            throw new MeshFrameException("Malformed JSON frame", e);
+        }
+    }
+
+    private BluetoothMeshMessage decodeBinaryBody(byte[] buffer, int offset, int length) throws MeshFrameException {
+        FrameReader reader = new FrameReader(buffer, offset, offset + length);
+
+        int presence = reader.readVarInt();
+        int typeCode = reader.readByte();
+        int hopCount = reader.readVarInt();
+        long timestamp = reader.readLong();
+
+        if (typeCode >= TYPE_CODES.length) {
+            throw new MeshFrameException("Unknown message type code: " + typeCode);
+        }
+
+        BluetoothMeshMessage message = new BluetoothMeshMessage();
+        message.setType(TYPE_CODES[typeCode]);
+        message.setHopCount(hopCount);
+        message.setTimestamp(timestamp);
+
+        if ((presence & FIELD_MESSAGE_ID) != 0) message.setMessageId(reader.readString());
+        if ((presence & FIELD_TYPE) != 0) message.setType(reader.readString());
+        if ((presence & FIELD_SOURCE) != 0) message.setSourceNodeId(reader.readString());
+        if ((presence & FIELD_TARGET) != 0) message.setTargetNodeId(reader.readString());
+        if ((presence & FIELD_CONTENT) != 0) message.setContent(reader.readString());
+        if ((presence & FIELD_SENDER_NAME) != 0) message.setSenderName(reader.readString());
+        if ((presence & FIELD_SENDER_ADDRESS) != 0) message.setSenderAddress(reader.readString());
+        if ((presence & FIELD_PAYLOAD) != 0) message.setPayload(reader.readBytes());
+
+        if (reader.position != reader.limit) {
+            throw new MeshFrameException("Trailing bytes in frame body");
+        }
+        return message;
+    }
+
+    private static int typeCode(String type) {
+        if (type == null) {
+            return 0;
+        }
+        for (int i = 1; i < TYPE_CODES.length; i++) {
+            if (TYPE_CODES[i].equals(type)) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    static int readInt(byte[] buffer, int offset) {
+        return ((buffer[offset] & 0xFF) << 24)
+                | ((buffer[offset + 1] & 0xFF) << 16)
+                | ((buffer[offset + 2] & 0xFF) << 8)
+                | (buffer[offset + 3] & 0xFF);
+    }
+
+    static void writeInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    // Growable write cursor over a pooled buffer
+    private static final class FrameWriter {
+        private final MeshBufferPool pool;
+        byte[] buffer;
+        int position;
+
+        FrameWriter(MeshBufferPool pool) {
+            this.pool = pool;
+            this.buffer = pool.acquire(MeshBufferPool.MIN_BUFFER_SIZE);
+        }
+
+        void ensure(int additional) {
+            int required = position + additional;
+            if (required <= buffer.length) {
+                return;
+            }
+            byte[] larger = pool.acquire(Math.max(required, buffer.length * 2));
+            System.arraycopy(buffer, 0, larger, 0, position);
+            pool.release(buffer);
+            buffer = larger;
+        }
+
+        void writeByte(int value) {
+            ensure(1);
+            buffer[position++] = (byte) value;
+        }
+
+        void writeVarInt(int value) {
+            ensure(5);
+            while ((value & ~0x7F) != 0) {
+                buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[position++] = (byte) value;
+        }
+
+        void writeLong(long value) {
+            ensure(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                buffer[position++] = (byte) (value >>> shift);
+            }
+        }
+
+        void writeBytes(byte[] value) {
+            writeVarInt(value.length);
+            ensure(value.length);
+            System.arraycopy(value, 0, buffer, position, value.length);
+            position += value.length;
+        }
+
+        void writeString(String value) {
+            writeVarInt(utf8Length(value));
+            writeUtf8(value);
+        }
+
+        // Encodes without an intermediate byte[]; unpaired surrogates become '?'
+        // to match String.getBytes(UTF_8).
+        void writeUtf8(String value) {
+            ensure(utf8Length(value));
+            int length = value.length();
+            for (int i = 0; i < length; i++) {
+                char c = value.charAt(i);
+                if (c < 0x80) {
+                    buffer[position++] = (byte) c;
+                } else if (c < 0x800) {
+                    buffer[position++] = (byte) (0xC0 | (c >> 6));
+                    buffer[position++] = (byte) (0x80 | (c & 0x3F));
+                } else if (Character.isHighSurrogate(c) && i + 1 < length
+                        && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                    buffer[position++] = (byte) (0xF0 | (codePoint >> 18));
+                    buffer[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                    buffer[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                    buffer[position++] = (byte) (0x80 | (codePoint & 0x3F));
+                } else if (Character.isSurrogate(c)) {
+                    buffer[position++] = (byte) '?';
+                } else {
+                    buffer[position++] = (byte) (0xE0 | (c >> 12));
+                    buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                    buffer[position++] = (byte) (0x80 | (c & 0x3F));
+                }
+            }
+        }
+
+        void release() {
+            pool.release(buffer);
+            buffer = null;
+        }
+
+        private static int utf8Length(String value) {
+            int length = value.length();
+            int bytes = 0;
+            for (int i = 0; i < length; i++) {
+                char c = value.charAt(i);
+                if (c < 0x80) {
+                    bytes += 1;
+                } else if (c < 0x800) {
+                    bytes += 2;
+                } else if (Character.isHighSurrogate(c) && i + 1 < length
+                        && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    bytes += 4;
+                    i++;
+                } else if (Character.isSurrogate(c)) {
+                    bytes += 1;
+                } else {
+                    bytes += 3;
+                }
+            }
+            return bytes;
+        }
+    }
+
+    // Bounds-checked read cursor over a frame body
+    private static final class FrameReader {
+        private final byte[] buffer;
+        private final int limit;
+        private int position;
+
+        FrameReader(byte[] buffer, int position, int limit) {
+            this.buffer = buffer;
+            this.position = position;
+            this.limit = limit;
+        }
+
+        int readByte() throws MeshFrameException {
+            require(1);
+            return buffer[position++] & 0xFF;
+        }
+
+        int readVarInt() throws MeshFrameException {
+            int result = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                int b = readByte();
+                result |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return result;
+                }
+            }
+            throw new MeshFrameException("Malformed varint");
+        }
+
+        long readLong() throws MeshFrameException {
+            require(8);
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) | (buffer[position++] & 0xFF);
+            }
+            return value;
+        }
+
+        String readString() throws MeshFrameException {
+            int length = readVarInt();
+            if (length < 0) {
+                throw new MeshFrameException("Negative string length");
+            }
+            require(length);
+            String value = new String(buffer, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+
+        byte[] readBytes() throws MeshFrameException {
+            int length = readVarInt();
+            if (length < 0) {
+                throw new MeshFrameException("Negative payload length");
+            }
+            require(length);
+            byte[] value = new byte[length];
+            System.arraycopy(buffer, position, value, 0, length);
+            position += length;
+            return value;
+        }
+
+        private void require(int count) throws MeshFrameException {
+            if (count > limit - position) {
+                throw new MeshFrameException("Truncated frame body");
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.example.hello.services.mesh;
+
+import com.example.hello.models.BluetoothMeshMessage;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * MeshFrameDecoder - Streaming reassembly of mesh frames from a byte stream
+ *
+ * RFCOMM reads do not respect message boundaries: one read may hold half a
+ * frame or several frames back to back. The decoder accumulates bytes in a
+ * pooled buffer, emits every complete frame it finds and keeps any trailing
+ * partial frame for the next read. One decoder belongs to one link and is not
+ * thread-safe.
+ */
+public class MeshFrameDecoder {
+    private static final int MIN_READ_SPACE = 512;
+
+    public interface FrameListener {
+        void onFrame(BluetoothMeshMessage message);
+    }
+
+    private final MeshFrameCodec codec;
+    private final MeshBufferPool bufferPool;
+
+    private byte[] buffer;
+    private int start;
+    private int end;
+
+    public MeshFrameDecoder(MeshFrameCodec codec) {
+        this.codec = codec;
+        this.bufferPool = codec.getBufferPool();
+        this.buffer = bufferPool.acquire(MeshBufferPool.MIN_BUFFER_SIZE * 4);
+    }
+
+    /**
+     * Read once from the stream directly into the reassembly buffer and
+     * dispatch any frames that became complete.
+     *
+     * @return the number of bytes read, or -1 at end of stream
+     */
+    public int readFrom(InputStream inputStream, FrameListener listener) throws IOException {
+        ensureWritable(MIN_READ_SPACE);
+        int count = inputStream.read(buffer, end, buffer.length - end);
+        if (count > 0) {
+            end += count;
+            drainFrames(listener);
+        }
+        return count;
+    }
+
+    /**
+     * Feed bytes that were read elsewhere and dispatch any complete frames.
+     */
+    public void feed(byte[] data, int offset, int length, FrameListener listener) throws MeshFrameException {
+        ensureWritable(length);
+        System.arraycopy(data, offset, buffer, end, length);
+        end += length;
+        drainFrames(listener);
+    }
+
+    /**
+     * Number of bytes held for a frame that has not fully arrived yet.
+     */
+    public int getBufferedBytes() {
+        return end - start;
+    }
+
+    /**
+     * Hand the reassembly buffer back to the pool. The decoder must not be
+     * used afterwards.
+     */
+    public void release() {
+        bufferPool.release(buffer);
+        buffer = null;
+        start = 0;
+        end = 0;
+    }
+
+    private void drainFrames(FrameListener listener) throws MeshFrameException {
+        while (end - start >= MeshFrameCodec.HEADER_SIZE) {
+            int bodyLength = codec.readHeader(buffer, start);
+            int frameLength = MeshFrameCodec.HEADER_SIZE + bodyLength;
+            if (end - start < frameLength) {
+                // Make sure the rest of this frame will fit on the next read
+                ensureWritable(frameLength - (end - start));
+                break;
+            }
+
+            BluetoothMeshMessage message = codec.decodeFrame(buffer, start, bodyLength);
+            start += frameLength;
+            listener.onFrame(message);
+        }
+
+        if (start == end) {
+            start = 0;
+            end = 0;
+        }
+    }
+
+    private void ensureWritable(int required) {
+        if (buffer.length - end >= required) {
+            return;
+        }
+
+        int pending = end - start;
+        if (start > 0 && buffer.length - pending >= required) {
+            // Compact in place
+            System.arraycopy(buffer, start, buffer, 0, pending);
+        } else {
+            byte[] larger = bufferPool.acquire(pending + required);
+            System.arraycopy(buffer, start, larger, 0, pending);
+            bufferPool.release(buffer);
+            buffer = larger;
+        }
+        start = 0;
+        end = pending;
+    }
+}
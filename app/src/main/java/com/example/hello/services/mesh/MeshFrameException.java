@@ -0,0 +1,19 @@
+package com.example.hello.services.mesh;
+
+import java.io.IOException;
+
+/**
+ * MeshFrameException - Raised when bytes on a mesh link do not form a valid frame
+ *
+ * The stream position is unrecoverable once this is thrown, so callers are
+ * expected to drop the link rather than try to resynchronise.
+ */
+public class MeshFrameException extends IOException {
+    public MeshFrameException(String message) {
+        super(message);
+    }
+
+    public MeshFrameException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
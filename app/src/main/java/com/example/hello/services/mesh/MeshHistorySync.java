@@ -0,0 +1,576 @@
+package com.example.hello.services.mesh;
+
+import android.util.Log;
+
+import com.example.hello.models.BluetoothMeshMessage;
+import com.example.hello.services.BluetoothMeshService;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * MeshHistorySync - Recent group chat, kept on disk and reconciled with neighbours
+ *
+ * Every node keeps the broadcast chat messages of the last
+ * {@code windowMillis}, at most {@code maxMessages} of them, grouped into
+ * fixed time buckets by their timestamp. Past the cap the oldest message by
+ * timestamp, then ID, goes first, so two nodes that have seen the same
+ * messages keep the same ones whatever order they arrived in. Each bucket is summarised by its
+ * message count and the sum of 64-bit hashes of its message IDs, which does
+ * not depend on the order messages arrived in.
+ *
+ * Reconciliation runs between two neighbours at a time. One sends a
+ * HISTORY_DIGEST with the summary of every bucket it holds; the other
+ * answers with a HISTORY_REQUEST listing, for each bucket whose summary
+ * differs, the ID hashes it already has, and with its own digest so the
+ * exchange runs both ways. Only the messages missing from each side then
+ * travel, packed into HISTORY_BATCH frames. None of this is flooded: a node
+ * that catches up passes the messages on when its own neighbours reconcile
+ * with it. The dialing side of every new link starts a round, and each node
+ * also reconciles with one random neighbour every few minutes, which repairs
+ * batches lost to congestion.
+ *
+ * History is appended to a log of checksummed frames and reloaded on open.
+ * Messages that fall out of the window are only dropped from memory; the
+ * log is rewritten once it holds more dead records than live ones.
+ *
+ * All methods are synchronized. Messages are only ever sent on the link a
+ * round is running on.
+ */
+public class MeshHistorySync {
+    private static final String TAG = "MeshHistorySync";
+
+    public static final long DEFAULT_WINDOW_MS = 24 * 60 * 60 * 1000L;
+    public static final int DEFAULT_MAX_MESSAGES = 500;
+    public static final long BUCKET_MS = 10 * 60 * 1000L;
+
+    // Keeps each HISTORY_BATCH well below the frame limit once Base64 encoded
+    static final int MAX_BATCH_BYTES = 32 * 1024;
+
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int COMPACT_MIN_DEAD_RECORDS = 128;
+
+    /**
+     * Operations history sync needs from the engine.
+     */
+    public interface SyncActions {
+        void sendOnLink(String linkId, BluetoothMeshMessage message);
+        String newMessageId();
+        /**
+         * A message arrived through reconciliation.
+         *
+         * @return false if this node had already handled it
+         */
+        boolean onSynced(BluetoothMeshMessage message);
+    }
+
+    // HISTORY_DIGEST payload: {bucket, count, hash sum} for each non-empty bucket
+    static final class Digest {
+        List<long[]> buckets;
+        // Set on the digest sent back during a round, which must not start another
+        boolean reply;
+    }
+
+    // HISTORY_REQUEST payload: for each differing bucket, the ID hashes the requester has
+    static final class Request {
+        List<BucketIds> buckets;
+    }
+
+    static final class BucketIds {
+        long bucket;
+        long[] ids;
+    }
+
+    private static final class Bucket {
+        final LinkedHashMap<String, BluetoothMeshMessage> messages = new LinkedHashMap<>();
+        long hash;
+    }
+
+    private final String localNodeId;
+    private final File logFile;
+    private final MeshFrameCodec codec;
+    private final SyncActions actions;
+    private final Gson gson;
+    private final long windowMillis;
+    private final int maxMessages;
+
+    private final TreeMap<Long, Bucket> buckets = new TreeMap<>();
+    private final CRC32 crc = new CRC32();
+    private RandomAccessFile log;
+    private int size;
+    private int logRecords;
+
+    public MeshHistorySync(String localNodeId, File directory, MeshFrameCodec codec, SyncActions actions,
+                           Gson gson) {
+        this(localNodeId, directory, codec, actions, gson, DEFAULT_WINDOW_MS, DEFAULT_MAX_MESSAGES);
+    }
+
+    public MeshHistorySync(String localNodeId, File directory, MeshFrameCodec codec, SyncActions actions,
+                           Gson gson, long windowMillis, int maxMessages) {
+        this.localNodeId = localNodeId;
+        this.logFile = new File(directory, "chat_history.log");
+        this.codec = codec;
+        this.actions = actions;
+        this.gson = gson;
+        this.windowMillis = windowMillis;
+        this.maxMessages = maxMessages;
+    }
+
+    // ---- Lifecycle ----
+
+    /**
+     * Open the log and load the messages still inside the window.
+     */
+    public synchronized void open() throws IOException {
+        if (log != null) {
+            return;
+        }
+        File directory = logFile.getParentFile();
+        if (directory != null && !directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        log = new RandomAccessFile(logFile, "rw");
+        load();
+        maintain();
+        Log.d(TAG, "Opened chat history with " + size + " messages");
+    }
+
+    public synchronized void close() {
+        if (log == null) {
+            return;
+        }
+        try {
+            log.close();
+        } catch (IOException e) {
+            Log.e(TAG, "close() of chat history log failed", e);
+        }
+        log = null;
+        buckets.clear();
+        size = 0;
+        logRecords = 0;
+    }
+
+    // ---- History ----
+
+    /**
+     * Keep a broadcast chat message this node sent or received. Anything
+     * else, and anything older than the window, is ignored.
+     *
+     * @return true if the message was added, and not at once evicted as the
+     *         oldest past the cap
+     */
+    public synchronized boolean record(BluetoothMeshMessage message) {
+        if (!isSyncable(message) || !insert(message)) {
+            return false;
+        }
+        if (log != null) {
+            try {
+                append(codec.encode(message));
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to persist " + message.getMessageId(), e);
+            }
+        }
+        while (size > maxMessages) {
+            evictOldest();
+        }
+        return contains(message.getMessageId(), message.getTimestamp());
+    }
+
+    public synchronized boolean contains(String messageId, long timestamp) {
+        Bucket bucket = buckets.get(bucketOf(timestamp));
+        return bucket != null && bucket.messages.containsKey(messageId);
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Every message held, oldest first.
+     */
+    public synchronized List<BluetoothMeshMessage> getMessages() {
+        List<BluetoothMeshMessage> messages = new ArrayList<>(size);
+        for (Bucket bucket : buckets.values()) {
+            messages.addAll(bucket.messages.values());
+        }
+        Collections.sort(messages, (a, b) -> Long.compare(a.getTimestamp(), b.getTimestamp()));
+        return messages;
+    }
+
+    /**
+     * Drop messages that have left the window and compact the log if it is
+     * mostly dead records.
+     */
+    public synchronized void maintain() {
+        long oldest = bucketOf(now() - windowMillis);
+        Iterator<Map.Entry<Long, Bucket>> iterator = buckets.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Long, Bucket> entry = iterator.next();
+            if (entry.getKey() >= oldest) {
+                break;
+            }
+            size -= entry.getValue().messages.size();
+            iterator.remove();
+        }
+        maybeCompact();
+    }
+
+    // ---- Reconciliation ----
+
+    /**
+     * Start a round with the neighbour on {@code linkId}.
+     */
+    public synchronized void startRound(String linkId) {
+        sendDigest(linkId, false);
+    }
+
+    public synchronized void handleDigest(BluetoothMeshMessage message, String fromLinkId) {
+        Digest digest = parse(message, Digest.class);
+        if (digest == null || digest.buckets == null) {
+            return;
+        }
+
+        long oldest = firstSyncedBucket();
+        List<BucketIds> wanted = new ArrayList<>();
+        Set<Long> theirs = new HashSet<>();
+        for (long[] summary : digest.buckets) {
+            if (summary == null || summary.length < 3 || summary[0] < oldest) {
+                continue;
+            }
+            theirs.add(summary[0]);
+            Bucket bucket = buckets.get(summary[0]);
+            int count = bucket == null ? 0 : bucket.messages.size();
+            long hash = bucket == null ? 0 : bucket.hash;
+            if (count == summary[1] && hash == summary[2]) {
+                continue;
+            }
+            BucketIds ids = new BucketIds();
+            ids.bucket = summary[0];
+            ids.ids = idHashes(bucket);
+            wanted.add(ids);
+        }
+
+        if (!wanted.isEmpty()) {
+            Request request = new Request();
+            request.buckets = wanted;
+            actions.sendOnLink(fromLinkId, newMessage(BluetoothMeshService.MSG_TYPE_HISTORY_REQUEST,
+                    gson.toJson(request)));
+        }
+
+        // The sender cannot know what it is missing until it sees our side
+        if (!digest.reply && (!wanted.isEmpty() || !theirs.containsAll(buckets.tailMap(oldest).keySet()))) {
+            sendDigest(fromLinkId, true);
+        }
+    }
+
+    public synchronized void handleRequest(BluetoothMeshMessage message, String fromLinkId) {
+        Request request = parse(message, Request.class);
+        if (request == null || request.buckets == null) {
+            return;
+        }
+
+        List<BluetoothMeshMessage> missing = new ArrayList<>();
+        for (BucketIds ids : request.buckets) {
+            Bucket bucket = ids == null ? null : buckets.get(ids.bucket);
+            if (bucket == null) {
+                continue;
+            }
+            Set<Long> known = new HashSet<>();
+            if (ids.ids != null) {
+                for (long id : ids.ids) {
+                    known.add(id);
+                }
+            }
+            for (BluetoothMeshMessage held : bucket.messages.values()) {
+                if (!known.contains(idHash(held.getMessageId()))) {
+                    missing.add(held);
+                }
+            }
+        }
+        Collections.sort(missing, (a, b) -> Long.compare(a.getTimestamp(), b.getTimestamp()));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            for (BluetoothMeshMessage held : missing) {
+                byte[] frame = codec.encode(held);
+                if (out.size() > 0 && out.size() + 4 + frame.length > MAX_BATCH_BYTES) {
+                    sendBatch(fromLinkId, bytes);
+                }
+                out.writeInt(frame.length);
+                out.write(frame);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to encode history batch", e);
+        }
+        if (out.size() > 0) {
+            sendBatch(fromLinkId, bytes);
+        }
+    }
+
+    /**
+     * Take in messages a neighbour sent because we were missing them.
+     *
+     * @return how many were new to this node
+     */
+    public synchronized int handleBatch(BluetoothMeshMessage message) {
+        byte[] batch;
+        try {
+            batch = Base64.getDecoder().decode(message.getContent());
+        } catch (IllegalArgumentException | NullPointerException e) {
+            Log.e(TAG, "Malformed history batch", e);
+            return 0;
+        }
+
+        int added = 0;
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(batch));
+        try {
+            while (in.available() > 0) {
+                int frameLength = in.readInt();
+                if (frameLength < MeshFrameCodec.HEADER_SIZE || frameLength > in.available()) {
+                    throw new MeshFrameException("Bad history entry length: " + frameLength);
+                }
+                byte[] frame = new byte[frameLength];
+                in.readFully(frame);
+
+                BluetoothMeshMessage synced = codec.decode(frame);
+                if (isSyncable(synced) && actions.onSynced(synced)) {
+                    added++;
+                }
+                record(synced);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Malformed history batch", e);
+        }
+        return added;
+    }
+
+    // ---- Internals ----
+
+    private boolean isSyncable(BluetoothMeshMessage message) {
+        return BluetoothMeshService.MSG_TYPE_CHAT.equals(message.getType())
+                && message.getTargetNodeId() == null
+                && message.getMessageId() != null
+                && message.getTimestamp() >= now() - windowMillis;
+    }
+
+    private boolean insert(BluetoothMeshMessage message) {
+        long key = bucketOf(message.getTimestamp());
+        Bucket bucket = buckets.get(key);
+        if (bucket == null) {
+            bucket = new Bucket();
+            buckets.put(key, bucket);
+        } else if (bucket.messages.containsKey(message.getMessageId())) {
+            return false;
+        }
+        bucket.messages.put(message.getMessageId(), message);
+        bucket.hash += idHash(message.getMessageId());
+        size++;
+        return true;
+    }
+
+    // By (timestamp, ID) rather than arrival, or capped nodes would never agree on a bucket
+    private void evictOldest() {
+        Map.Entry<Long, Bucket> oldest = buckets.firstEntry();
+        BluetoothMeshMessage evicted = null;
+        for (BluetoothMeshMessage message : oldest.getValue().messages.values()) {
+            if (evicted == null || message.getTimestamp() < evicted.getTimestamp()
+                    || (message.getTimestamp() == evicted.getTimestamp()
+                    && message.getMessageId().compareTo(evicted.getMessageId()) < 0)) {
+                evicted = message;
+            }
+        }
+        oldest.getValue().messages.remove(evicted.getMessageId());
+        oldest.getValue().hash -= idHash(evicted.getMessageId());
+        size--;
+        if (oldest.getValue().messages.isEmpty()) {
+            buckets.remove(oldest.getKey());
+        }
+    }
+
+    private void sendDigest(String linkId, boolean reply) {
+        Digest digest = new Digest();
+        digest.reply = reply;
+        digest.buckets = new ArrayList<>();
+        for (Map.Entry<Long, Bucket> entry : buckets.tailMap(firstSyncedBucket()).entrySet()) {
+            digest.buckets.add(new long[]{entry.getKey(), entry.getValue().messages.size(), entry.getValue().hash});
+        }
+        actions.sendOnLink(linkId, newMessage(BluetoothMeshService.MSG_TYPE_HISTORY_DIGEST, gson.toJson(digest)));
+    }
+
+    private void sendBatch(String linkId, ByteArrayOutputStream bytes) {
+        actions.sendOnLink(linkId, newMessage(BluetoothMeshService.MSG_TYPE_HISTORY_BATCH,
+                Base64.getEncoder().encodeToString(bytes.toByteArray())));
+        bytes.reset();
+    }
+
+    // The bucket the window starts in is only partly inside it, so two nodes
+    // may legitimately disagree about it; leave it out of reconciliation
+    private long firstSyncedBucket() {
+        return bucketOf(now() - windowMillis) + 1;
+    }
+
+    private BluetoothMeshMessage newMessage(String type, String content) {
+        return new BluetoothMeshMessage(actions.newMessageId(), type, localNodeId, null, content, now(), 0);
+    }
+
+    private <T> T parse(BluetoothMeshMessage message, Class<T> payloadType) {
+        try {
+            return gson.fromJson(message.getContent(), payloadType);
+        } catch (JsonParseException e) {
+            Log.e(TAG, "Malformed " + message.getType() + " payload", e);
+            return null;
+        }
+    }
+
+    private static long[] idHashes(Bucket bucket) {
+        if (bucket == null) {
+            return new long[0];
+        }
+        long[] ids = new long[bucket.messages.size()];
+        int i = 0;
+        for (String messageId : bucket.messages.keySet()) {
+            ids[i++] = idHash(messageId);
+        }
+        return ids;
+    }
+
+    // 64-bit FNV-1a; bucket summaries add these up so arrival order does not matter
+    static long idHash(String messageId) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < messageId.length(); i++) {
+            hash ^= messageId.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    static long bucketOf(long timestamp) {
+        return Math.floorDiv(timestamp, BUCKET_MS);
+    }
+
+    // ---- Log handling ----
+
+    // Record layout: length(4) crc32(4) frame(length)
+    private void load() throws IOException {
+        buckets.clear();
+        size = 0;
+        logRecords = 0;
+
+        long length = log.length();
+        long position = 0;
+        byte[] header = new byte[RECORD_HEADER_SIZE];
+        while (position + RECORD_HEADER_SIZE <= length) {
+            log.seek(position);
+            log.readFully(header);
+            int frameLength = MeshFrameCodec.readInt(header, 0);
+            if (frameLength < MeshFrameCodec.HEADER_SIZE || position + RECORD_HEADER_SIZE + frameLength > length) {
+                break;
+            }
+            byte[] frame = new byte[frameLength];
+            log.readFully(frame);
+            if (checksum(frame) != MeshFrameCodec.readInt(header, 4)) {
+                break;
+            }
+            position += RECORD_HEADER_SIZE + frameLength;
+            logRecords++;
+
+            try {
+                BluetoothMeshMessage message = codec.decode(frame);
+                if (isSyncable(message)) {
+                    insert(message);
+                }
+            } catch (MeshFrameException e) {
+                Log.w(TAG, "Skipping undecodable history frame", e);
+            }
+        }
+
+        if (position < length) {
+            Log.w(TAG, "Truncating " + (length - position) + " bytes of torn chat history log");
+            log.setLength(position);
+        }
+        while (size > maxMessages) {
+            evictOldest();
+        }
+    }
+
+    private void append(byte[] frame) throws IOException {
+        byte[] header = new byte[RECORD_HEADER_SIZE];
+        MeshFrameCodec.writeInt(header, 0, frame.length);
+        MeshFrameCodec.writeInt(header, 4, checksum(frame));
+        log.seek(log.length());
+        log.write(header);
+        log.write(frame);
+        logRecords++;
+    }
+
+    private void maybeCompact() {
+        int dead = logRecords - size;
+        if (log == null || dead < COMPACT_MIN_DEAD_RECORDS || dead < size) {
+            return;
+        }
+        try {
+            File compacted = new File(logFile.getPath() + ".compact");
+            try (RandomAccessFile out = new RandomAccessFile(compacted, "rw")) {
+                out.setLength(0);
+                byte[] header = new byte[RECORD_HEADER_SIZE];
+                for (BluetoothMeshMessage message : getMessages()) {
+                    byte[] frame = codec.encode(message);
+                    MeshFrameCodec.writeInt(header, 0, frame.length);
+                    MeshFrameCodec.writeInt(header, 4, checksum(frame));
+                    out.write(header);
+                    out.write(frame);
+                }
+                out.getFD().sync();
+            }
+
+            log.close();
+            if (!compacted.renameTo(logFile)) {
+                throw new IOException("Cannot replace " + logFile);
+            }
+            log = new RandomAccessFile(logFile, "rw");
+            logRecords = size;
+        } catch (IOException e) {
+            Log.e(TAG, "Chat history compaction failed, reloading log", e);
+            try {
+                if (log != null) {
+                    log.close();
+                }
+                log = new RandomAccessFile(logFile, "rw");
+                load();
+            } catch (IOException reopenError) {
+                Log.e(TAG, "Unable to reopen chat history log", reopenError);
+                log = null;
+            }
+        }
+    }
+
+    private int checksum(byte[] data) {
+        crc.reset();
+        crc.update(data, 0, data.length);
+        return (int) crc.getValue();
+    }
+
+    // Overridable for tests
+    long now() {
+        return System.currentTimeMillis();
+    }
+}
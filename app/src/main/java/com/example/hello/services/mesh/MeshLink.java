@@ -0,0 +1,166 @@
+package com.example.hello.services.mesh;
+
+import android.util.Log;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * MeshLink - One open connection to a neighbour, with a reader and a writer of its own
+ *
+ * The reader thread blocks in {@code read()} and dispatches frames as they
+ * complete, so it costs nothing while the link is quiet and sees a remote
+ * disconnect as soon as the socket does. Outbound frames wait in a bounded
+ * {@link MeshOutboundQueue}; the writer thread sleeps until one arrives and
+ * writes it, optionally packed into fewer socket writes by a
+ * {@link MeshWriteCoalescer}. A peer that stops reading blocks only its own
+ * writer, and its queue drops by policy instead of holding up other links.
+ *
+ * Either thread closes the link when its side fails, and the listener hears
+ * about it exactly once.
+ */
+final class MeshLink {
+    private static final String TAG = "MeshLink";
+
+    // Frames written between flushes
+    private static final int WRITE_BUDGET = 8;
+
+    interface CloseListener {
+        /**
+         * Called once, from one of the link's threads.
+         *
+         * @param cause the failure, or null if the link was closed locally
+         */
+        void onLinkClosed(MeshLink link, IOException cause);
+    }
+
+    private final String id;
+    private final MeshConnectionManager.LinkSocket socket;
+    private final InputStream inputStream;
+    private final OutputStream outputStream;
+    private final MeshFrameDecoder frameDecoder;
+    private final MeshFrameDecoder.FrameListener frameListener;
+    private final MeshOutboundQueue outboundQueue = new MeshOutboundQueue();
+    private final MeshWriteCoalescer writeCoalescer;
+    private final boolean outbound;
+    private final AtomicBoolean finished = new AtomicBoolean();
+
+    private CloseListener closeListener;
+    private volatile boolean closed;
+
+    MeshLink(String id, MeshConnectionManager.LinkSocket socket, MeshFrameCodec codec,
+             MeshFrameDecoder.FrameListener frameListener, boolean outbound) throws IOException {
+        this(id, socket, codec, frameListener, outbound, new MeshWriteCoalescer(codec.getBufferPool(), 0, 0));
+    }
+
+    MeshLink(String id, MeshConnectionManager.LinkSocket socket, MeshFrameCodec codec,
+             MeshFrameDecoder.FrameListener frameListener, boolean outbound,
+             MeshWriteCoalescer writeCoalescer) throws IOException {
+        this.id = id;
+        this.socket = socket;
+        this.inputStream = socket.getInputStream();
+        this.outputStream = socket.getOutputStream();
+        this.frameDecoder = new MeshFrameDecoder(codec);
+        this.frameListener = frameListener;
+        this.outbound = outbound;
+        this.writeCoalescer = writeCoalescer;
+    }
+
+    String getId() {
+        return id;
+    }
+
+    boolean isOutbound() {
+        return outbound;
+    }
+
+    MeshOutboundQueue getOutboundQueue() {
+        return outboundQueue;
+    }
+
+    /**
+     * Start the reader and writer threads. The link runs until it is closed
+     * or either side of the socket fails.
+     */
+    void start(CloseListener listener) {
+        closeListener = listener;
+        new Thread(this::readLoop, "MeshRead-" + id).start();
+        new Thread(this::writeLoop, "MeshWrite-" + id).start();
+    }
+
+    private void readLoop() {
+        IOException cause = null;
+        try {
+            while (!closed) {
+                if (frameDecoder.readFrom(inputStream, frameListener) < 0) {
+                    throw new EOFException("Stream closed by " + id);
+                }
+            }
+        } catch (MeshFrameException e) {
+            Log.e(TAG, "Corrupt frame from " + id, e);
+            cause = e;
+        } catch (IOException e) {
+            // Closing the socket is also how a local close stops the read
+            cause = closed ? null : e;
+        } finally {
+            frameDecoder.release();
+        }
+        finish(cause);
+    }
+
+    private void writeLoop() {
+        IOException cause = null;
+        try {
+            while (!closed) {
+                // Never sleep past a batch that is waiting to be written
+                outboundQueue.awaitFrame(writeCoalescer.nanosUntilDue(System.nanoTime()));
+                pumpWrites(WRITE_BUDGET);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            cause = closed ? null : e;
+        } finally {
+            writeCoalescer.release();
+        }
+        finish(cause);
+    }
+
+    /**
+     * Write up to {@code maxFrames} queued frames, flushing once at the end.
+     * With coalescing some of them may be held back for a few milliseconds.
+     *
+     * @return frames taken from the queue
+     */
+    private int pumpWrites(int maxFrames) throws IOException {
+        long writesBefore = writeCoalescer.getWriteCount();
+        int taken = writeCoalescer.drain(outboundQueue, maxFrames, System.nanoTime(), outputStream);
+        if (writeCoalescer.getWriteCount() != writesBefore) {
+            outputStream.flush();
+        }
+        return taken;
+    }
+
+    private void finish(IOException cause) {
+        close();
+        if (finished.compareAndSet(false, true) && closeListener != null) {
+            closeListener.onLinkClosed(this, cause);
+        }
+    }
+
+    /**
+     * Close the socket and drop anything still queued. Safe from any thread.
+     */
+    void close() {
+        closed = true;
+        outboundQueue.close();
+        try {
+            socket.close();
+        } catch (IOException e) {
+            Log.e(TAG, "close() of link " + id + " failed", e);
+        }
+    }
+}
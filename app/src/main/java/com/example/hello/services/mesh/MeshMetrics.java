@@ -0,0 +1,463 @@
+package com.example.hello.services.mesh;
+
+import com.example.hello.models.BluetoothMeshMessage;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * MeshMetrics - Counters and histograms describing what the mesh is doing
+ *
+ * Everything is cumulative since construction or the last {@link #reset()}.
+ * Recording only adds to {@link LongAdder}s, so it is cheap, never blocks
+ * and allocates nothing once a link or message type has been seen. Entries
+ * for links and types are created on first use, up to a fixed number; after
+ * that new ones are only counted in the totals.
+ *
+ * {@link #snapshot(MeshTransport)} copies the current values into a plain
+ * object that the UI can show and {@link #export(File, MeshTransport)}
+ * writes as JSON, e.g. to attach to a bug report.
+ */
+public class MeshMetrics {
+    public static final int MAX_LINKS = 64;
+    public static final int MAX_TYPES = 32;
+
+    // Upper bounds of histogram buckets; the last bucket is open-ended
+    static final long[] LATENCY_BOUNDS_MS = {10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000};
+    static final long[] FAN_OUT_BOUNDS = {0, 1, 2, 3, 4, 6, 8};
+
+    // Snapshot keys for priority classes, indexed by class
+    private static final String[] PRIORITY_NAMES = {null, "BULK", "NORMAL", "CONTROL", "EMERGENCY"};
+
+    public enum Drop {
+        /** Already handled; another neighbour relayed it first. */
+        DUPLICATE,
+        /** Would have exceeded the hop limit. */
+        HOP_LIMIT,
+        /** A link's outbound queue was full. */
+        QUEUE_OVERFLOW,
+        /** Directed traffic with no route that is not worth holding. */
+        NO_ROUTE,
+        /** Missing type or unparseable content. */
+        MALFORMED,
+        /** Shed by a rate limit, ours or one a neighbour asked for. */
+        RATE_LIMITED
+    }
+
+    /**
+     * Fixed-bucket histogram of non-negative values.
+     */
+    public static final class Histogram {
+        private final long[] bounds;
+        private final LongAdder[] buckets;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+
+        Histogram(long[] bounds) {
+            this.bounds = bounds;
+            this.buckets = new LongAdder[bounds.length + 1];
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        public void record(long value) {
+            int index = 0;
+            while (index < bounds.length && value > bounds[index]) {
+                index++;
+            }
+            buckets[index].increment();
+            count.increment();
+            sum.add(value);
+        }
+
+        HistogramSnapshot snapshot() {
+            HistogramSnapshot snapshot = new HistogramSnapshot();
+            snapshot.bounds = bounds.clone();
+            snapshot.counts = new long[buckets.length];
+            for (int i = 0; i < buckets.length; i++) {
+                snapshot.counts[i] = buckets[i].sum();
+            }
+            snapshot.count = count.sum();
+            snapshot.sum = sum.sum();
+            return snapshot;
+        }
+
+        void reset() {
+            for (LongAdder bucket : buckets) {
+                bucket.reset();
+            }
+            count.reset();
+            sum.reset();
+        }
+    }
+
+    private static final class LinkCounters {
+        final LongAdder framesIn = new LongAdder();
+        final LongAdder framesOut = new LongAdder();
+        final LongAdder bytesIn = new LongAdder();
+        final LongAdder bytesOut = new LongAdder();
+        final LongAdder dropped = new LongAdder();
+    }
+
+    private static final class TypeCounters {
+        final LongAdder framesIn = new LongAdder();
+        final LongAdder framesOut = new LongAdder();
+        final LongAdder bytesIn = new LongAdder();
+        final LongAdder bytesOut = new LongAdder();
+        final Histogram latency = new Histogram(LATENCY_BOUNDS_MS);
+    }
+
+    private final ConcurrentHashMap<String, LinkCounters> links = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, TypeCounters> types = new ConcurrentHashMap<>();
+    private final LinkCounters totals = new LinkCounters();
+    private final LongAdder[] drops = new LongAdder[Drop.values().length];
+    private final Histogram fanOut = new Histogram(FAN_OUT_BOUNDS);
+    private final Histogram heartbeatRtt = new Histogram(LATENCY_BOUNDS_MS);
+    private final Histogram[] priorityLatency = new Histogram[PRIORITY_NAMES.length];
+    private volatile long since = System.currentTimeMillis();
+
+    public MeshMetrics() {
+        for (int i = 0; i < drops.length; i++) {
+            drops[i] = new LongAdder();
+        }
+        for (int i = BluetoothMeshMessage.PRIORITY_BULK; i < priorityLatency.length; i++) {
+            priorityLatency[i] = new Histogram(LATENCY_BOUNDS_MS);
+        }
+    }
+
+    // ---- Recording ----
+
+    public void onFrameIn(String linkId, String type, int length) {
+        count(totals.framesIn, totals.bytesIn, length);
+        LinkCounters link = link(linkId);
+        if (link != null) {
+            count(link.framesIn, link.bytesIn, length);
+        }
+        TypeCounters counters = type(type);
+        if (counters != null) {
+            count(counters.framesIn, counters.bytesIn, length);
+        }
+    }
+
+    public void onFrameOut(String linkId, String type, int length) {
+        count(totals.framesOut, totals.bytesOut, length);
+        LinkCounters link = link(linkId);
+        if (link != null) {
+            count(link.framesOut, link.bytesOut, length);
+        }
+        TypeCounters counters = type(type);
+        if (counters != null) {
+            count(counters.framesOut, counters.bytesOut, length);
+        }
+    }
+
+    public void onDrop(Drop reason) {
+        drops[reason.ordinal()].increment();
+    }
+
+    /**
+     * A frame could not be queued on a link, or was pushed out of its queue
+     * to make room for another.
+     */
+    public void onLinkDrop(String linkId) {
+        onDrop(Drop.QUEUE_OVERFLOW);
+        totals.dropped.increment();
+        LinkCounters link = link(linkId);
+        if (link != null) {
+            link.dropped.increment();
+        }
+    }
+
+    /** A flooded message was relayed to this many links. */
+    public void onForward(int links) {
+        fanOut.record(links);
+    }
+
+    public void onHeartbeatRtt(long millis) {
+        heartbeatRtt.record(Math.max(0, millis));
+    }
+
+    /**
+     * Time from origin to first reception here, by the origin's clock, per
+     * message type and per priority class. Phones keep network time, so
+     * skew is usually small next to the bucket widths; negative values are
+     * clamped to zero.
+     */
+    public void onFirstReception(String type, int priorityClass, long latencyMillis) {
+        long latency = Math.max(0, latencyMillis);
+        TypeCounters counters = type(type);
+        if (counters != null) {
+            counters.latency.record(latency);
+        }
+        if (priorityClass >= BluetoothMeshMessage.PRIORITY_BULK && priorityClass < priorityLatency.length) {
+            priorityLatency[priorityClass].record(latency);
+        }
+    }
+
+    public void reset() {
+        links.clear();
+        types.clear();
+        for (LongAdder adder : new LongAdder[]{totals.framesIn, totals.framesOut, totals.bytesIn,
+                totals.bytesOut, totals.dropped}) {
+            adder.reset();
+        }
+        for (LongAdder drop : drops) {
+            drop.reset();
+        }
+        fanOut.reset();
+        heartbeatRtt.reset();
+        for (int i = BluetoothMeshMessage.PRIORITY_BULK; i < priorityLatency.length; i++) {
+            priorityLatency[i].reset();
+        }
+        since = System.currentTimeMillis();
+    }
+
+    // ---- Reading ----
+
+    /**
+     * Copy every value. Queue depths are read from {@code transport} at the
+     * same moment; pass null to leave them out.
+     */
+    public Snapshot snapshot(MeshTransport transport) {
+        Snapshot snapshot = new Snapshot();
+        snapshot.since = since;
+        snapshot.takenAt = System.currentTimeMillis();
+        snapshot.total = copy(totals);
+        for (Map.Entry<String, LinkCounters> entry : links.entrySet()) {
+            LinkSnapshot link = copy(entry.getValue());
+            link.queueDepth = transport != null ? transport.getQueueDepth(entry.getKey()) : -1;
+            snapshot.links.put(entry.getKey(), link);
+        }
+        for (Map.Entry<String, TypeCounters> entry : types.entrySet()) {
+            TypeCounters counters = entry.getValue();
+            TypeSnapshot type = new TypeSnapshot();
+            type.framesIn = counters.framesIn.sum();
+            type.framesOut = counters.framesOut.sum();
+            type.bytesIn = counters.bytesIn.sum();
+            type.bytesOut = counters.bytesOut.sum();
+            type.latency = counters.latency.snapshot();
+            snapshot.types.put(entry.getKey(), type);
+        }
+        for (Drop drop : Drop.values()) {
+            snapshot.drops.put(drop.name(), drops[drop.ordinal()].sum());
+        }
+        for (int i = BluetoothMeshMessage.PRIORITY_BULK; i < priorityLatency.length; i++) {
+            snapshot.priorityLatency.put(PRIORITY_NAMES[i], priorityLatency[i].snapshot());
+        }
+        snapshot.fanOut = fanOut.snapshot();
+        snapshot.heartbeatRtt = heartbeatRtt.snapshot();
+        return snapshot;
+    }
+
+    /**
+     * Write a snapshot to {@code file} as pretty-printed JSON.
+     */
+    public void export(File file, MeshTransport transport) throws IOException {
+        Gson gson = new GsonBuilder().setPrettyPrinting().create();
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            gson.toJson(snapshot(transport), writer);
+        }
+    }
+
+    // ---- Snapshots ----
+
+    public static final class Snapshot {
+        long since;
+        long takenAt;
+        LinkSnapshot total;
+        final Map<String, LinkSnapshot> links = new TreeMap<>();
+        final Map<String, TypeSnapshot> types = new TreeMap<>();
+        final Map<String, Long> drops = new TreeMap<>();
+        final Map<String, HistogramSnapshot> priorityLatency = new TreeMap<>();
+        HistogramSnapshot fanOut;
+        HistogramSnapshot heartbeatRtt;
+
+        public long getSince() {
+            return since;
+        }
+
+        public long getTakenAt() {
+            return takenAt;
+        }
+
+        public LinkSnapshot getTotal() {
+            return total;
+        }
+
+        public Map<String, LinkSnapshot> getLinks() {
+            return links;
+        }
+
+        public Map<String, TypeSnapshot> getTypes() {
+            return types;
+        }
+
+        public long getDrops(Drop reason) {
+            Long value = drops.get(reason.name());
+            return value != null ? value : 0;
+        }
+
+        /**
+         * Origin-to-first-reception latency of one priority class, e.g.
+         * {@link BluetoothMeshMessage#PRIORITY_EMERGENCY}.
+         */
+        public HistogramSnapshot getPriorityLatency(int priorityClass) {
+            return priorityLatency.get(PRIORITY_NAMES[priorityClass]);
+        }
+
+        public HistogramSnapshot getFanOut() {
+            return fanOut;
+        }
+
+        public HistogramSnapshot getHeartbeatRtt() {
+            return heartbeatRtt;
+        }
+    }
+
+    public static final class LinkSnapshot {
+        long framesIn;
+        long framesOut;
+        long bytesIn;
+        long bytesOut;
+        long dropped;
+        int queueDepth;
+
+        public long getFramesIn() {
+            return framesIn;
+        }
+
+        public long getFramesOut() {
+            return framesOut;
+        }
+
+        public long getBytesIn() {
+            return bytesIn;
+        }
+
+        public long getBytesOut() {
+            return bytesOut;
+        }
+
+        public long getDropped() {
+            return dropped;
+        }
+
+        /** Frames waiting to be written, -1 if unknown. */
+        public int getQueueDepth() {
+            return queueDepth;
+        }
+    }
+
+    public static final class TypeSnapshot {
+        long framesIn;
+        long framesOut;
+        long bytesIn;
+        long bytesOut;
+        HistogramSnapshot latency;
+
+        public long getFramesIn() {
+            return framesIn;
+        }
+
+        public long getFramesOut() {
+            return framesOut;
+        }
+
+        public long getBytesIn() {
+            return bytesIn;
+        }
+
+        public long getBytesOut() {
+            return bytesOut;
+        }
+
+        public HistogramSnapshot getLatency() {
+            return latency;
+        }
+    }
+
+    public static final class HistogramSnapshot {
+        long[] bounds;
+        long[] counts;
+        long count;
+        long sum;
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /**
+         * Upper bound of the bucket holding the given percentile, or
+         * {@link Long#MAX_VALUE} if it falls in the open-ended bucket.
+         */
+        public long getPercentileBound(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(percentile / 100 * count);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return i < bounds.length ? bounds[i] : Long.MAX_VALUE;
+                }
+            }
+            return Long.MAX_VALUE;
+        }
+    }
+
+    // ---- Internals ----
+
+    private static void count(LongAdder frames, LongAdder bytes, int length) {
+        frames.increment();
+        bytes.add(length);
+    }
+
+    private LinkCounters link(String linkId) {
+        if (linkId == null) {
+            return null;
+        }
+        LinkCounters counters = links.get(linkId);
+        if (counters == null && links.size() < MAX_LINKS) {
+            counters = links.computeIfAbsent(linkId, id -> new LinkCounters());
+        }
+        return counters;
+    }
+
+    private TypeCounters type(String type) {
+        if (type == null) {
+            return null;
+        }
+        TypeCounters counters = types.get(type);
+        if (counters == null && types.size() < MAX_TYPES) {
+            counters = types.computeIfAbsent(type, id -> new TypeCounters());
+        }
+        return counters;
+    }
+
+    private static LinkSnapshot copy(LinkCounters counters) {
+        LinkSnapshot snapshot = new LinkSnapshot();
+        snapshot.framesIn = counters.framesIn.sum();
+        snapshot.framesOut = counters.framesOut.sum();
+        snapshot.bytesIn = counters.bytesIn.sum();
+        snapshot.bytesOut = counters.bytesOut.sum();
+        snapshot.dropped = counters.dropped.sum();
+        snapshot.queueDepth = -1;
+        return snapshot;
+    }
+}
@@ -0,0 +1,381 @@
+package com.example.hello.services.mesh;
+
+import com.example.hello.models.BluetoothMeshMessage;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * MeshOutboundQueue - Bounded queue of encoded frames waiting for one link
+ *
+ * Producers never block: when the queue is over its frame or byte limit the
+ * configured {@link OverflowPolicy} decides what gets dropped. The link's
+ * writer thread drains it with {@link #poll()}, so a peer that stops reading
+ * only ever fills its own queue.
+ *
+ * Every priority class waits in a lane of its own, and the most urgent
+ * waiting lane is served first. So that urgent traffic cannot shut anything
+ * out, a waiting lane gets the next turn once its limit in
+ * {@link #STARVATION_LIMITS} of more urgent frames has gone ahead of it: two
+ * for control frames, four for normal traffic and for bulk frames (file
+ * chunks). A transfer keeps moving without adding more than a few chunks of
+ * delay to chat, and an emergency message never waits behind more than one
+ * frame of each other class.
+ *
+ * Under congestion the least urgent traffic goes first. Bulk frames may use
+ * at most half of the byte budget, never push anything out and are the first
+ * to be dropped; the transfer re-requests them. Heartbeats and discovery
+ * announcements are superseded by the next ones, so they go next, even
+ * though they are control frames and the frame making room may be ordinary
+ * chat. After that goes the oldest frame of the least urgent class; apart
+ * from those expendable control frames, a frame never pushes out one that
+ * is more urgent than itself, and an expendable frame never pushes out
+ * anything else.
+ */
+public class MeshOutboundQueue {
+    public static final int DEFAULT_MAX_FRAMES = 256;
+    public static final int DEFAULT_MAX_BYTES = 512 * 1024;
+
+    // Frames from more urgent lanes a waiting lane lets past before it gets a
+    // turn, indexed by priority class; emergency frames never wait for others
+    static final int[] STARVATION_LIMITS = {0, 4, 4, 2, 0};
+
+    public enum OverflowPolicy {
+        /** Reject the frame being offered. */
+        DROP_NEWEST,
+        /** Drop the oldest queued frame of the least urgent class. */
+        DROP_OLDEST,
+        /** Drop the oldest expendable frame (heartbeats, then discovery), else as DROP_OLDEST. */
+        DROP_OLDEST_EXPENDABLE
+    }
+
+    public interface EvictionListener {
+        /**
+         * A queued frame was dropped to make room for another. Called with
+         * the queue locked, so it must not block or use the queue.
+         */
+        void onEvicted(OutboundFrame frame);
+    }
+
+    private final int maxFrames;
+    private final int maxBytes;
+    private final OverflowPolicy overflowPolicy;
+    // One lane per priority class, indexed by class; index 0 is unused
+    private final List<ArrayDeque<OutboundFrame>> lanes = new ArrayList<>();
+    private final int[] skipped = new int[BluetoothMeshMessage.PRIORITY_EMERGENCY + 1];
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final LongAdder droppedFrames = new LongAdder();
+    private volatile EvictionListener evictionListener;
+
+    private int queuedFrames;
+    private int queuedBytes;
+    private int bulkBytes;
+    private boolean closed;
+
+    public MeshOutboundQueue() {
+        this(DEFAULT_MAX_FRAMES, DEFAULT_MAX_BYTES, OverflowPolicy.DROP_OLDEST_EXPENDABLE);
+    }
+
+    public MeshOutboundQueue(int maxFrames, int maxBytes, OverflowPolicy overflowPolicy) {
+        this.maxFrames = maxFrames;
+        this.maxBytes = maxBytes;
+        this.overflowPolicy = overflowPolicy;
+        for (int i = 0; i <= BluetoothMeshMessage.PRIORITY_EMERGENCY; i++) {
+            lanes.add(new ArrayDeque<>());
+        }
+    }
+
+    /**
+     * Report frames dropped from the queue; the frame being offered is
+     * reported by {@link #offer} returning false instead.
+     */
+    public void setEvictionListener(EvictionListener listener) {
+        evictionListener = listener;
+    }
+
+    /**
+     * Queue a frame without blocking.
+     *
+     * @return false if the queue is closed or the frame itself was dropped
+     */
+    public boolean offer(OutboundFrame frame) {
+        lock.lock();
+        try {
+            if (closed) {
+                return false;
+            }
+
+            if (frame.isBulk()) {
+                // Bulk never pushes anything out; a rejected chunk is re-requested later
+                if (!isEmpty() && (isFullWith(frame) || bulkBytes + frame.getLength() > maxBytes / 2)) {
+                    droppedFrames.increment();
+                    return false;
+                }
+                bulkBytes += frame.getLength();
+                enqueue(frame);
+                return true;
+            }
+
+            while (!isEmpty() && isFullWith(frame)) {
+                if (!makeRoom(frame)) {
+                    droppedFrames.increment();
+                    return false;
+                }
+            }
+
+            enqueue(frame);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Next frame without waiting.
+     *
+     * @return the frame, or null if the queue is empty or closed
+     */
+    public OutboundFrame poll() {
+        lock.lock();
+        try {
+            return closed || isEmpty() ? null : removeNext();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait for the next frame.
+     *
+     * @return the frame, or null once the queue has been closed
+     */
+    public OutboundFrame take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (isEmpty() && !closed) {
+                notEmpty.await();
+            }
+            return closed ? null : removeNext();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait up to {@code timeout} for the next frame.
+     *
+     * @return the frame, or null on timeout or once closed
+     */
+    public OutboundFrame poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long remaining = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (isEmpty() && !closed) {
+                if (remaining <= 0) {
+                    return null;
+                }
+                remaining = notEmpty.awaitNanos(remaining);
+            }
+            return closed ? null : removeNext();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait until a frame is queued, the queue is closed or
+     * {@code timeoutNanos} has passed, without taking anything.
+     *
+     * @return whether a frame is waiting
+     */
+    public boolean awaitFrame(long timeoutNanos) throws InterruptedException {
+        long remaining = timeoutNanos;
+        lock.lockInterruptibly();
+        try {
+            while (isEmpty() && !closed && remaining > 0) {
+                remaining = notEmpty.awaitNanos(remaining);
+            }
+            return !closed && !isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Discard pending frames and release any waiting writer.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            for (ArrayDeque<OutboundFrame> lane : lanes) {
+                lane.clear();
+            }
+            queuedFrames = 0;
+            queuedBytes = 0;
+            bulkBytes = 0;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return queuedFrames;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getBulkSize() {
+        return size(BluetoothMeshMessage.PRIORITY_BULK);
+    }
+
+    /**
+     * Frames waiting in one priority class.
+     */
+    public int size(int priorityClass) {
+        lock.lock();
+        try {
+            return lanes.get(priorityClass).size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getQueuedBytes() {
+        lock.lock();
+        try {
+            return queuedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getDroppedCount() {
+        return droppedFrames.sum();
+    }
+
+    private boolean isEmpty() {
+        return queuedFrames == 0;
+    }
+
+    private boolean isFullWith(OutboundFrame frame) {
+        return queuedFrames >= maxFrames || queuedBytes + frame.getLength() > maxBytes;
+    }
+
+    private void enqueue(OutboundFrame frame) {
+        lanes.get(frame.getPriorityClass()).addLast(frame);
+        queuedFrames++;
+        queuedBytes += frame.getLength();
+        notEmpty.signal();
+    }
+
+    // Drops one queued frame according to the policy; false means drop the new one instead
+    private boolean makeRoom(OutboundFrame incoming) {
+        if (overflowPolicy != OverflowPolicy.DROP_NEWEST && dropOldest(BluetoothMeshMessage.PRIORITY_BULK)) {
+            return true;
+        }
+        switch (overflowPolicy) {
+            case DROP_NEWEST:
+                return false;
+            case DROP_OLDEST:
+                return dropLeastUrgent(incoming.getPriorityClass());
+            case DROP_OLDEST_EXPENDABLE:
+            default:
+                for (int rank = OutboundFrame.RANK_HEARTBEAT; rank >= OutboundFrame.RANK_DISCOVERY; rank--) {
+                    if (dropOldestWithRank(rank)) {
+                        return true;
+                    }
+                }
+                if (incoming.getExpendableRank() > 0) {
+                    // Never push out real traffic to make room for a control frame
+                    return false;
+                }
+                return dropLeastUrgent(incoming.getPriorityClass());
+        }
+    }
+
+    private boolean dropOldestWithRank(int rank) {
+        for (ArrayDeque<OutboundFrame> lane : lanes) {
+            Iterator<OutboundFrame> iterator = lane.iterator();
+            while (iterator.hasNext()) {
+                OutboundFrame frame = iterator.next();
+                if (frame.getExpendableRank() == rank) {
+                    iterator.remove();
+                    dropped(frame);
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // Oldest frame of the least urgent class no more urgent than maxClass
+    private boolean dropLeastUrgent(int maxClass) {
+        for (int priorityClass = BluetoothMeshMessage.PRIORITY_BULK; priorityClass <= maxClass; priorityClass++) {
+            if (dropOldest(priorityClass)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean dropOldest(int priorityClass) {
+        OutboundFrame frame = lanes.get(priorityClass).pollFirst();
+        if (frame == null) {
+            return false;
+        }
+        dropped(frame);
+        return true;
+    }
+
+    private void dropped(OutboundFrame frame) {
+        removed(frame);
+        droppedFrames.increment();
+        EvictionListener listener = evictionListener;
+        if (listener != null) {
+            listener.onEvicted(frame);
+        }
+    }
+
+    private void removed(OutboundFrame frame) {
+        queuedFrames--;
+        queuedBytes -= frame.getLength();
+        if (frame.isBulk()) {
+            bulkBytes -= frame.getLength();
+        }
+    }
+
+    // Most urgent lane first, unless a waiting lane has reached its starvation limit
+    private OutboundFrame removeNext() {
+        int top = BluetoothMeshMessage.PRIORITY_EMERGENCY;
+        while (lanes.get(top).isEmpty()) {
+            top--;
+        }
+        int served = top;
+        for (int priorityClass = top - 1; priorityClass >= BluetoothMeshMessage.PRIORITY_BULK; priorityClass--) {
+            if (!lanes.get(priorityClass).isEmpty() && skipped[priorityClass] >= STARVATION_LIMITS[priorityClass]) {
+                served = priorityClass;
+                break;
+            }
+        }
+
+        OutboundFrame frame = lanes.get(served).pollFirst();
+        removed(frame);
+        for (int priorityClass = BluetoothMeshMessage.PRIORITY_BULK; priorityClass < served; priorityClass++) {
+            skipped[priorityClass] = lanes.get(priorityClass).isEmpty() ? 0 : skipped[priorityClass] + 1;
+        }
+        skipped[served] = 0;
+        return frame;
+    }
+}
@@ -0,0 +1,277 @@
+package com.example.hello.services.mesh;
+
+import com.example.hello.models.BluetoothMeshMessage;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * MeshRateLimiter - Token buckets that stop one neighbour or one origin from swamping a relay
+ *
+ * Every inbound frame takes a token from the bucket of the link it arrived
+ * on, and every flooded chat or bulk frame also from the bucket of the node
+ * that originated it, so a chatty node is held to its share no matter how
+ * many neighbours relay it. Directed and control traffic is only limited
+ * per link; flooding is what multiplies a single sender's cost across the
+ * mesh.
+ *
+ * Buckets degrade by priority class rather than all at once: a class is
+ * only admitted while the bucket holds more than that class's reserve, so
+ * bulk traffic is shed first, then ordinary chat, then control traffic, and
+ * emergency frames get the last tokens.
+ *
+ * A link that had to shed traffic, or a relay whose outbound queues are
+ * backing up, asks its neighbours to slow down with a BACKPRESSURE frame.
+ * A neighbour that receives one relays to that link through a bucket at a
+ * fraction of the normal rate for {@link #PRESSURE_HOLD_MS}, shedding its
+ * least urgent relayed traffic first instead of queueing it there. Repeated
+ * requests keep the pressure on; when they stop it lapses by itself.
+ *
+ * All methods are synchronized.
+ */
+public class MeshRateLimiter {
+    public static final double DEFAULT_LINK_FRAMES_PER_SECOND = 40;
+    public static final int DEFAULT_LINK_BURST = 80;
+    public static final double DEFAULT_SOURCE_FRAMES_PER_SECOND = 8;
+    public static final int DEFAULT_SOURCE_BURST = 24;
+
+    public static final long PRESSURE_HOLD_MS = 2000;
+    public static final int MAX_PRESSURE_LEVEL = 3;
+    // At most one BACKPRESSURE per link in this interval
+    static final long PRESSURE_SIGNAL_INTERVAL_MS = PRESSURE_HOLD_MS / 2;
+
+    // Per-origin buckets are kept for the most recently active nodes only
+    static final int MAX_SOURCES = 256;
+
+    // Share of a bucket that must remain for each class to be admitted,
+    // indexed by priority class; the least urgent give way first
+    private static final double[] RESERVE = {0, 0.5, 0.25, 0.1, 0};
+
+    // BACKPRESSURE payload carried as JSON in message content
+    static final class Backpressure {
+        // 1 to MAX_PRESSURE_LEVEL; each level halves the rate relayed to the sender
+        int level;
+        long holdMillis;
+    }
+
+    static final class TokenBucket {
+        private final double perMillis;
+        private final double capacity;
+        private double tokens;
+        private long updatedAt;
+
+        TokenBucket(double framesPerSecond, int burst, long now) {
+            this.perMillis = framesPerSecond / 1000;
+            this.capacity = burst;
+            this.tokens = burst;
+            this.updatedAt = now;
+        }
+
+        /**
+         * Take one token if at least the reserve for {@code priorityClass}
+         * would be left.
+         */
+        boolean tryTake(int priorityClass, long now) {
+            if (now > updatedAt) {
+                tokens = Math.min(capacity, tokens + (now - updatedAt) * perMillis);
+                updatedAt = now;
+            }
+            if (tokens - 1 < capacity * RESERVE[priorityClass]) {
+                return false;
+            }
+            tokens -= 1;
+            return true;
+        }
+    }
+
+    private static final class Pressure {
+        final int level;
+        final TokenBucket bucket;
+        final long until;
+
+        Pressure(int level, TokenBucket bucket, long until) {
+            this.level = level;
+            this.bucket = bucket;
+            this.until = until;
+        }
+    }
+
+    private final Map<String, TokenBucket> linkBuckets = new HashMap<>();
+    // Access ordered so the least recently heard origin is evicted first
+    private final LinkedHashMap<String, TokenBucket> sourceBuckets = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Pressure> pressureByLink = new HashMap<>();
+    private final Map<String, Long> lastSignalByLink = new HashMap<>();
+    private final Map<String, Integer> shedLevelByLink = new HashMap<>();
+
+    private double linkFramesPerSecond = DEFAULT_LINK_FRAMES_PER_SECOND;
+    private int linkBurst = DEFAULT_LINK_BURST;
+    private double sourceFramesPerSecond = DEFAULT_SOURCE_FRAMES_PER_SECOND;
+    private int sourceBurst = DEFAULT_SOURCE_BURST;
+    private boolean enabled = true;
+
+    // ---- Configuration ----
+
+    public synchronized void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /** Applies to buckets created from now on. */
+    public synchronized void setLinkRate(double framesPerSecond, int burst) {
+        this.linkFramesPerSecond = framesPerSecond;
+        this.linkBurst = burst;
+        linkBuckets.clear();
+    }
+
+    /** Applies to buckets created from now on. */
+    public synchronized void setSourceRate(double framesPerSecond, int burst) {
+        this.sourceFramesPerSecond = framesPerSecond;
+        this.sourceBurst = burst;
+        sourceBuckets.clear();
+    }
+
+    // ---- Inbound ----
+
+    /**
+     * Decide whether a frame that just arrived on {@code linkId} is handled
+     * at all. A refused frame is not marked as seen, so a copy relayed by
+     * another neighbour later still gets through.
+     */
+    public synchronized boolean admit(BluetoothMeshMessage message, String linkId) {
+        if (!enabled) {
+            return true;
+        }
+        long now = now();
+        int priorityClass = OutboundFrame.priorityClass(message.getType(), message.getPriority());
+
+        TokenBucket link = linkBuckets.get(linkId);
+        if (link == null) {
+            link = new TokenBucket(linkFramesPerSecond, linkBurst, now);
+            linkBuckets.put(linkId, link);
+        }
+        if (!link.tryTake(priorityClass, now)) {
+            onShed(linkId, priorityClass);
+            return false;
+        }
+
+        String sourceNodeId = message.getSourceNodeId();
+        if (message.getTargetNodeId() != null || sourceNodeId == null
+                || priorityClass > BluetoothMeshMessage.PRIORITY_NORMAL) {
+            return true;
+        }
+        TokenBucket source = sourceBuckets.get(sourceNodeId);
+        if (source == null) {
+            source = new TokenBucket(sourceFramesPerSecond, sourceBurst, now);
+            sourceBuckets.put(sourceNodeId, source);
+            if (sourceBuckets.size() > MAX_SOURCES) {
+                Iterator<String> eldest = sourceBuckets.keySet().iterator();
+                eldest.next();
+                eldest.remove();
+            }
+        }
+        if (!source.tryTake(priorityClass, now)) {
+            onShed(linkId, priorityClass);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * If traffic on {@code linkId} has been shed, or the relay asks for it
+     * because it is congested, the level to send the neighbour in a
+     * BACKPRESSURE frame now. Rate limited per link.
+     *
+     * @param congested true if this node's own outbound queues are filling
+     * @return the level, or 0 if nothing should be sent
+     */
+    public synchronized int takeSignal(String linkId, boolean congested) {
+        Integer shedLevel = shedLevelByLink.get(linkId);
+        int level = Math.max(shedLevel == null ? 0 : shedLevel, congested ? 1 : 0);
+        if (level == 0) {
+            return 0;
+        }
+        long now = now();
+        Long last = lastSignalByLink.get(linkId);
+        if (last != null && now - last < PRESSURE_SIGNAL_INTERVAL_MS) {
+            return 0;
+        }
+        lastSignalByLink.put(linkId, now);
+        shedLevelByLink.remove(linkId);
+        return level;
+    }
+
+    // ---- Outbound ----
+
+    /**
+     * The neighbour on {@code linkId} asked us to slow down.
+     */
+    public synchronized void onPressure(String linkId, Backpressure request) {
+        if (request == null || request.level <= 0) {
+            return;
+        }
+        int level = Math.min(request.level, MAX_PRESSURE_LEVEL);
+        long hold = request.holdMillis > 0 ? Math.min(request.holdMillis, 4 * PRESSURE_HOLD_MS) : PRESSURE_HOLD_MS;
+        long now = now();
+        Pressure current = pressureByLink.get(linkId);
+        // Keep the bucket while the level stays the same, so repeats cannot refill it
+        TokenBucket bucket = current != null && current.until > now && current.level == level
+                ? current.bucket
+                : new TokenBucket(linkFramesPerSecond / (1 << level), Math.max(1, linkBurst >> level), now);
+        pressureByLink.put(linkId, new Pressure(level, bucket, now + hold));
+    }
+
+    /**
+     * Whether a relayed frame of {@code priorityClass} may be queued on
+     * {@code linkId}. Always true unless the neighbour asked us to slow down.
+     */
+    public synchronized boolean allowRelay(String linkId, int priorityClass) {
+        Pressure pressure = pressureByLink.get(linkId);
+        if (pressure == null) {
+            return true;
+        }
+        long now = now();
+        if (now >= pressure.until) {
+            pressureByLink.remove(linkId);
+            return true;
+        }
+        return pressure.bucket.tryTake(priorityClass, now);
+    }
+
+    public synchronized boolean isUnderPressure(String linkId) {
+        Pressure pressure = pressureByLink.get(linkId);
+        return pressure != null && now() < pressure.until;
+    }
+
+    // ---- Bookkeeping ----
+
+    public synchronized void onLinkLost(String linkId) {
+        linkBuckets.remove(linkId);
+        pressureByLink.remove(linkId);
+        lastSignalByLink.remove(linkId);
+        shedLevelByLink.remove(linkId);
+    }
+
+    public synchronized void clear() {
+        linkBuckets.clear();
+        sourceBuckets.clear();
+        pressureByLink.clear();
+        lastSignalByLink.clear();
+        shedLevelByLink.clear();
+    }
+
+    // Shedding bulk asks for a little less; shedding control traffic for much less
+    private void onShed(String linkId, int priorityClass) {
+        int level = priorityClass <= BluetoothMeshMessage.PRIORITY_BULK ? 1
+                : priorityClass == BluetoothMeshMessage.PRIORITY_NORMAL ? 2 : MAX_PRESSURE_LEVEL;
+        Integer previous = shedLevelByLink.get(linkId);
+        if (previous == null || previous < level) {
+            shedLevelByLink.put(linkId, level);
+        }
+    }
+
+    // Overridable for tests
+    long now() {
+        return System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,287 @@
+package com.example.hello.services.mesh;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * MeshReconnectSupervisor - Re-establishes links to peers we recently lost
+ *
+ * Every peer that has been linked is remembered. When its link drops, or
+ * an attempt to reach it fails, the next attempt is scheduled after a
+ * capped exponential backoff with jitter, so a peer that has walked away
+ * costs less and less and many phones losing the same relay don't page it
+ * in lockstep. Peers whose link came in from the other side start one step
+ * further back, which usually lets the side that dialled first reconnect
+ * without the two attempts colliding.
+ *
+ * Only {@link #DEFAULT_MAX_CONCURRENT_ATTEMPTS} attempts run at once, since
+ * paging competes with live links for the radio. When more peers are due
+ * than that, the ones that would make the most unreachable nodes reachable
+ * again go first. Peers not linked for {@link #PEER_EXPIRY_MS} are
+ * forgotten. All methods run on the mesh thread.
+ */
+public class MeshReconnectSupervisor {
+    private static final String TAG = "MeshReconnect";
+
+    public static final long INITIAL_BACKOFF_MS = 2000;
+    public static final long MAX_BACKOFF_MS = 5 * 60 * 1000;
+    public static final long ATTEMPT_TIMEOUT_MS = 30000;
+    public static final long PEER_EXPIRY_MS = 60 * 60 * 1000;
+    public static final int DEFAULT_MAX_CONCURRENT_ATTEMPTS = 2;
+    public static final int MAX_PEERS = 32;
+    private static final double JITTER = 0.3;
+    private static final int MAX_BACKOFF_STEP = 16;
+
+    /**
+     * Operations the supervisor needs from the service that owns the links.
+     */
+    public interface ReconnectActions {
+        /** Start a connection attempt; false if it could not be started. */
+        boolean connect(String address);
+        boolean isLinked(String address);
+        /** Nodes that would become reachable again through this peer's node. */
+        int countRestoredBy(String nodeId);
+        /** Run a task later on the mesh thread. */
+        void schedule(Runnable task, long delayMillis);
+    }
+
+    private static final class Peer {
+        final String address;
+        String nodeId;
+        int failures;
+        long nextAttemptAt;
+        long attemptStartedAt = -1;
+        long lastLinkedAt;
+        boolean linked;
+
+        Peer(String address) {
+            this.address = address;
+        }
+    }
+
+    private final ReconnectActions actions;
+    private final Random random;
+    // Access order, so the least recently touched peer is dropped first
+    private final LinkedHashMap<String, Peer> peers = new LinkedHashMap<>(16, 0.75f, true);
+    private int maxConcurrentAttempts = DEFAULT_MAX_CONCURRENT_ATTEMPTS;
+    private long tickScheduledFor = Long.MAX_VALUE;
+    private int tickGeneration;
+    private boolean enabled = true;
+
+    public MeshReconnectSupervisor(ReconnectActions actions) {
+        this(actions, new Random());
+    }
+
+    public MeshReconnectSupervisor(ReconnectActions actions, Random random) {
+        this.actions = actions;
+        this.random = random;
+    }
+
+    // ---- Link events ----
+
+    public synchronized void onLinkUp(String address, boolean outbound) {
+        Peer peer = peers.get(address);
+        if (peer == null) {
+            peer = new Peer(address);
+            peers.put(address, peer);
+            trim();
+        }
+        peer.linked = true;
+        peer.attemptStartedAt = -1;
+        peer.lastLinkedAt = now();
+        // Leave re-dialling an inbound peer to the side that dialled us
+        peer.failures = outbound ? 0 : 1;
+    }
+
+    /**
+     * The node ID behind a link became known; used to rank attempts.
+     */
+    public synchronized void onPeerIdentified(String address, String nodeId) {
+        Peer peer = peers.get(address);
+        if (peer != null) {
+            peer.nodeId = nodeId;
+        }
+    }
+
+    public synchronized void onLinkDown(String address) {
+        Peer peer = peers.get(address);
+        if (peer == null || !enabled) {
+            return;
+        }
+        peer.linked = false;
+        peer.lastLinkedAt = now();
+        scheduleAttempt(peer);
+    }
+
+    public synchronized void onConnectFailed(String address) {
+        Peer peer = peers.get(address);
+        if (peer == null || peer.linked || !enabled) {
+            return;
+        }
+        peer.attemptStartedAt = -1;
+        peer.failures = Math.min(peer.failures + 1, MAX_BACKOFF_STEP);
+        scheduleAttempt(peer);
+    }
+
+    /**
+     * Stop reconnecting to a peer, e.g. after the user disconnected it.
+     */
+    public synchronized void forget(String address) {
+        peers.remove(address);
+    }
+
+    /**
+     * Pause or resume reconnection; pending peers are kept either way.
+     */
+    public synchronized void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        if (enabled) {
+            scheduleTick(0);
+        }
+    }
+
+    public synchronized void setMaxConcurrentAttempts(int maxConcurrentAttempts) {
+        this.maxConcurrentAttempts = maxConcurrentAttempts;
+    }
+
+    public synchronized int getPeerCount() {
+        return peers.size();
+    }
+
+    public synchronized int getAttemptsInProgress() {
+        int count = 0;
+        for (Peer peer : peers.values()) {
+            if (peer.attemptStartedAt >= 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public synchronized void clear() {
+        peers.clear();
+        tickScheduledFor = Long.MAX_VALUE;
+        tickGeneration++;
+    }
+
+    // Overridable for tests
+    long now() {
+        return System.currentTimeMillis();
+    }
+
+    // ---- Internals ----
+
+    private void scheduleAttempt(Peer peer) {
+        long backoff = Math.min(MAX_BACKOFF_MS, INITIAL_BACKOFF_MS << Math.min(peer.failures, MAX_BACKOFF_STEP));
+        double jitter = 1 + JITTER * (2 * random.nextDouble() - 1);
+        long delay = (long) (backoff * jitter);
+        peer.nextAttemptAt = now() + delay;
+        scheduleTick(delay);
+    }
+
+    private void scheduleTick(long delay) {
+        long at = now() + delay;
+        if (at >= tickScheduledFor) {
+            return;
+        }
+        tickScheduledFor = at;
+        int generation = ++tickGeneration;
+        actions.schedule(() -> tick(generation), delay);
+    }
+
+    private synchronized void tick(int generation) {
+        if (generation != tickGeneration) {
+            // Superseded by a tick scheduled for earlier
+            return;
+        }
+        tickScheduledFor = Long.MAX_VALUE;
+        long now = now();
+        if (!enabled) {
+            return;
+        }
+
+        int inProgress = 0;
+        long nextDue = Long.MAX_VALUE;
+        List<Peer> due = new ArrayList<>();
+        Iterator<Peer> iterator = peers.values().iterator();
+        while (iterator.hasNext()) {
+            Peer peer = iterator.next();
+            if (peer.linked) {
+                continue;
+            }
+            if (actions.isLinked(peer.address)) {
+                // Came back by itself, most likely dialled from the other side
+                continue;
+            }
+            if (now - peer.lastLinkedAt > PEER_EXPIRY_MS) {
+                Log.d(TAG, "Forgetting " + peer.address);
+                iterator.remove();
+                continue;
+            }
+            if (peer.attemptStartedAt >= 0) {
+                if (now - peer.attemptStartedAt < ATTEMPT_TIMEOUT_MS) {
+                    inProgress++;
+                    nextDue = Math.min(nextDue, peer.attemptStartedAt + ATTEMPT_TIMEOUT_MS);
+                    continue;
+                }
+                // The attempt ended without a word, e.g. a duplicate socket was closed
+                peer.attemptStartedAt = -1;
+            }
+            if (peer.nextAttemptAt <= now) {
+                due.add(peer);
+            } else {
+                nextDue = Math.min(nextDue, peer.nextAttemptAt);
+            }
+        }
+
+        if (due.size() > 1) {
+            // Most reachability restored first, then the peer that has failed least
+            final Map<Peer, Integer> gain = new LinkedHashMap<>();
+            for (Peer peer : due) {
+                gain.put(peer, peer.nodeId != null ? actions.countRestoredBy(peer.nodeId) : 0);
+            }
+            Collections.sort(due, (a, b) -> {
+                int byGain = Integer.compare(gain.get(b), gain.get(a));
+                return byGain != 0 ? byGain : Integer.compare(a.failures, b.failures);
+            });
+        }
+
+        for (Peer peer : due) {
+            if (inProgress >= maxConcurrentAttempts) {
+                // Retry as soon as a slot is likely to be free
+                nextDue = Math.min(nextDue, now + INITIAL_BACKOFF_MS);
+                break;
+            }
+            if (actions.connect(peer.address)) {
+                Log.d(TAG, "Reconnecting to " + peer.address + " (attempt " + (peer.failures + 1) + ")");
+                peer.attemptStartedAt = now;
+                inProgress++;
+                nextDue = Math.min(nextDue, now + ATTEMPT_TIMEOUT_MS);
+            } else {
+                // Already connecting, at maximum degree, or the radio is off
+                peer.failures = Math.min(peer.failures + 1, MAX_BACKOFF_STEP);
+                scheduleAttempt(peer);
+            }
+        }
+
+        if (nextDue != Long.MAX_VALUE) {
+            scheduleTick(Math.max(0, nextDue - now));
+        }
+    }
+
+    private void trim() {
+        Iterator<Peer> iterator = peers.values().iterator();
+        while (peers.size() > MAX_PEERS && iterator.hasNext()) {
+            if (!iterator.next().linked) {
+                iterator.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,413 @@
+package com.example.hello.services.mesh;
+
+import android.util.Log;
+
+import com.example.hello.models.BluetoothMeshMessage;
+import com.example.hello.services.BluetoothMeshService;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * MeshReliableDelivery - End-to-end acknowledgements for directed messages
+ *
+ * The receiver of a directed CHAT message answers with an ACK naming the
+ * message ID. ACKs for the same origin are held briefly and sent together,
+ * and ACKs for direct neighbours ride along on the next heartbeat when one
+ * goes out first. The sender keeps each reliable message until it is
+ * acknowledged, retransmitting on a timeout derived from the measured round
+ * trip time to that destination (RFC 6298 smoothing, Karn's rule), doubled
+ * on every attempt and jittered so retries from many nodes don't line up.
+ *
+ * Relays drop message IDs they have already seen, so each retransmission
+ * travels under a new ID of the form {@code <id>#<attempt>}. Receivers
+ * acknowledge and deduplicate by the original ID.
+ *
+ * Heartbeats also echo the timestamp of the last heartbeat heard from each
+ * neighbour together with how long it was held, which gives the link round
+ * trip time without any extra frames.
+ *
+ * Outstanding messages, pending ACKs and RTT estimates are all bounded, so
+ * a partitioned mesh cannot grow this state without limit. All methods run
+ * on the mesh thread.
+ */
+public class MeshReliableDelivery {
+    private static final String TAG = "MeshReliableDelivery";
+
+    public static final long ACK_DELAY_MS = 250;
+    public static final int MAX_IDS_PER_ACK = 64;
+    public static final int MAX_PENDING_ACKS = 256;
+    public static final int MAX_OUTSTANDING = 128;
+    public static final int MAX_ATTEMPTS = 5;
+    public static final long INITIAL_RTO_MS = 3000;
+    public static final long MIN_RTO_MS = 500;
+    public static final long MAX_RTO_MS = 30000;
+    public static final int MAX_RTT_ENTRIES = 64;
+    private static final double JITTER = 0.2;
+    private static final char ATTEMPT_SEPARATOR = '#';
+
+    public enum DeliveryStatus {
+        SENT,
+        RETRYING,
+        DELIVERED,
+        FAILED
+    }
+
+    /**
+     * Operations the delivery layer needs from the service that owns the links.
+     */
+    public interface DeliveryActions {
+        /** Send a directed message along its route, discovering one if needed. */
+        void transmit(BluetoothMeshMessage message);
+        /** Run a task later on the mesh thread. */
+        void schedule(Runnable task, long delayMillis);
+        String newMessageId();
+        void onStatusChanged(String messageId, String targetNodeId, DeliveryStatus status);
+    }
+
+    // ACK payload carried as JSON in message content
+    static final class AckPayload {
+        List<String> ids;
+    }
+
+    // Heartbeat payload: ACKs for neighbours and echoes of their last heartbeat
+    // as [their timestamp, millis held here], both keyed by the node they are for
+    static final class HeartbeatPayload {
+        Map<String, List<String>> acks;
+        Map<String, long[]> echoes;
+    }
+
+    private static final class Outstanding {
+        final BluetoothMeshMessage message;
+        int attempts;
+        long sentAt;
+
+        Outstanding(BluetoothMeshMessage message) {
+            this.message = message;
+        }
+    }
+
+    private static final class RttEstimate {
+        double smoothed;
+        double variance;
+    }
+
+    private final String localNodeId;
+    private final DeliveryActions actions;
+    private final Gson gson;
+    private final Random random;
+
+    // Insertion order is send order, so the oldest is evicted first
+    private final LinkedHashMap<String, Outstanding> outstanding = new LinkedHashMap<>();
+    private final LinkedHashMap<String, List<String>> pendingAcks = new LinkedHashMap<>();
+    private final LinkedHashMap<String, RttEstimate> rtt = new LinkedHashMap<String, RttEstimate>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, RttEstimate> eldest) {
+            return size() > MAX_RTT_ENTRIES;
+        }
+    };
+    // Neighbour -> [timestamp of its last heartbeat, when it arrived]
+    private final LinkedHashMap<String, long[]> heardHeartbeats = new LinkedHashMap<String, long[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, long[]> eldest) {
+            return size() > MAX_RTT_ENTRIES;
+        }
+    };
+    private final MessageIdCache delivered = new MessageIdCache(32 * 1024, MessageIdCache.DEFAULT_TTL_MS);
+    private int pendingAckCount;
+    private boolean ackFlushScheduled;
+
+    public MeshReliableDelivery(String localNodeId, DeliveryActions actions, Gson gson) {
+        this(localNodeId, actions, gson, new Random());
+    }
+
+    public MeshReliableDelivery(String localNodeId, DeliveryActions actions, Gson gson, Random random) {
+        this.localNodeId = localNodeId;
+        this.actions = actions;
+        this.gson = gson;
+        this.random = random;
+    }
+
+    // ---- Sender side ----
+
+    /**
+     * Send a directed message and keep retransmitting it until acknowledged
+     * or {@link #MAX_ATTEMPTS} is reached.
+     */
+    public synchronized void send(BluetoothMeshMessage message) {
+        if (outstanding.size() >= MAX_OUTSTANDING) {
+            Iterator<Outstanding> oldest = outstanding.values().iterator();
+            Outstanding evicted = oldest.next();
+            oldest.remove();
+            Log.w(TAG, "Too many unacknowledged messages, giving up on " + evicted.message.getMessageId());
+            actions.onStatusChanged(evicted.message.getMessageId(), evicted.message.getTargetNodeId(),
+                    DeliveryStatus.FAILED);
+        }
+
+        Outstanding entry = new Outstanding(message);
+        outstanding.put(message.getMessageId(), entry);
+        transmitAttempt(entry);
+        actions.onStatusChanged(message.getMessageId(), message.getTargetNodeId(), DeliveryStatus.SENT);
+    }
+
+    /**
+     * An ACK addressed to this node arrived.
+     */
+    public synchronized void handleAck(BluetoothMeshMessage message) {
+        AckPayload payload = parse(message.getContent(), AckPayload.class);
+        if (payload != null && payload.ids != null) {
+            acknowledge(payload.ids);
+        }
+    }
+
+    /**
+     * Pick up ACKs piggybacked on a neighbour's heartbeat and remember it so
+     * the next heartbeat from here can echo it back.
+     *
+     * @return round trip time to the neighbour in milliseconds, or -1 if the
+     *         heartbeat did not echo one of ours
+     */
+    public synchronized long onHeartbeat(BluetoothMeshMessage heartbeat) {
+        long now = now();
+        if (heartbeat.getSourceNodeId() != null) {
+            heardHeartbeats.put(heartbeat.getSourceNodeId(), new long[]{heartbeat.getTimestamp(), now});
+        }
+
+        String content = heartbeat.getContent();
+        if (content == null || content.isEmpty()) {
+            return -1;
+        }
+        HeartbeatPayload payload = parse(content, HeartbeatPayload.class);
+        if (payload == null) {
+            return -1;
+        }
+        if (payload.acks != null) {
+            List<String> ids = payload.acks.get(localNodeId);
+            if (ids != null) {
+                acknowledge(ids);
+            }
+        }
+        long[] echo = payload.echoes != null ? payload.echoes.get(localNodeId) : null;
+        if (echo == null || echo.length != 2) {
+            return -1;
+        }
+        long rtt = now - echo[0] - echo[1];
+        return rtt >= 0 ? rtt : -1;
+    }
+
+    public synchronized int getOutstandingCount() {
+        return outstanding.size();
+    }
+
+    /**
+     * Current retransmission timeout towards a destination.
+     */
+    public synchronized long getRetransmissionTimeout(String destinationNodeId) {
+        RttEstimate estimate = rtt.get(destinationNodeId);
+        if (estimate == null) {
+            return INITIAL_RTO_MS;
+        }
+        long rto = (long) (estimate.smoothed + Math.max(10, 4 * estimate.variance));
+        return Math.max(MIN_RTO_MS, Math.min(MAX_RTO_MS, rto));
+    }
+
+    // ---- Receiver side ----
+
+    /**
+     * A directed message for this node arrived. Queues its ACK and restores
+     * the original message ID on retransmitted copies.
+     *
+     * @return true the first time this message is seen, false for copies
+     */
+    public synchronized boolean onReceivedForUs(BluetoothMeshMessage message) {
+        String id = originalId(message.getMessageId());
+        message.setMessageId(id);
+        queueAck(message.getSourceNodeId(), id);
+        return !delivered.markSeen(id);
+    }
+
+    /**
+     * Remove ACKs owed to direct neighbours, and the heartbeats heard from
+     * them, for sending on a heartbeat.
+     *
+     * @return heartbeat content, empty when there is nothing to carry
+     */
+    public synchronized String takeHeartbeatAcks(Collection<String> neighbourNodeIds) {
+        long now = now();
+        Map<String, List<String>> acks = new HashMap<>();
+        Map<String, long[]> echoes = new HashMap<>();
+        for (String neighbour : neighbourNodeIds) {
+            List<String> ids = pendingAcks.remove(neighbour);
+            if (ids != null) {
+                acks.put(neighbour, ids);
+                pendingAckCount -= ids.size();
+            }
+            long[] heard = heardHeartbeats.remove(neighbour);
+            if (heard != null) {
+                echoes.put(neighbour, new long[]{heard[0], now - heard[1]});
+            }
+        }
+        if (acks.isEmpty() && echoes.isEmpty()) {
+            return "";
+        }
+        HeartbeatPayload payload = new HeartbeatPayload();
+        payload.acks = acks.isEmpty() ? null : acks;
+        payload.echoes = echoes.isEmpty() ? null : echoes;
+        return gson.toJson(payload);
+    }
+
+    public synchronized void clear() {
+        for (Outstanding entry : outstanding.values()) {
+            actions.onStatusChanged(entry.message.getMessageId(), entry.message.getTargetNodeId(),
+                    DeliveryStatus.FAILED);
+        }
+        outstanding.clear();
+        pendingAcks.clear();
+        pendingAckCount = 0;
+        heardHeartbeats.clear();
+        delivered.clear();
+    }
+
+    /**
+     * The ID a message was first sent under, without any retransmission suffix.
+     */
+    public static String originalId(String messageId) {
+        if (messageId == null) {
+            return null;
+        }
+        int separator = messageId.lastIndexOf(ATTEMPT_SEPARATOR);
+        return separator > 0 ? messageId.substring(0, separator) : messageId;
+    }
+
+    // ---- Internals ----
+
+    private void transmitAttempt(Outstanding entry) {
+        entry.attempts++;
+        entry.sentAt = now();
+
+        BluetoothMeshMessage original = entry.message;
+        BluetoothMeshMessage copy = new BluetoothMeshMessage(
+                entry.attempts == 1 ? original.getMessageId()
+                        : original.getMessageId() + ATTEMPT_SEPARATOR + entry.attempts,
+                original.getType(), original.getSourceNodeId(), original.getTargetNodeId(),
+                original.getContent(), original.getTimestamp(), 0);
+        copy.setSenderName(original.getSenderName());
+        copy.setSenderAddress(original.getSenderAddress());
+        copy.setPriority(original.getPriority());
+        actions.transmit(copy);
+
+        // Exponential backoff with jitter
+        long timeout = getRetransmissionTimeout(original.getTargetNodeId()) << (entry.attempts - 1);
+        timeout = Math.min(MAX_RTO_MS, timeout);
+        timeout += (long) (timeout * JITTER * (2 * random.nextDouble() - 1));
+
+        String id = original.getMessageId();
+        int attempt = entry.attempts;
+        actions.schedule(() -> onTimeout(id, attempt), timeout);
+    }
+
+    private synchronized void onTimeout(String messageId, int attempt) {
+        Outstanding entry = outstanding.get(messageId);
+        if (entry == null || entry.attempts != attempt) {
+            return;
+        }
+        if (entry.attempts >= MAX_ATTEMPTS) {
+            outstanding.remove(messageId);
+            Log.w(TAG, "No ACK for " + messageId + " after " + entry.attempts + " attempts");
+            actions.onStatusChanged(messageId, entry.message.getTargetNodeId(), DeliveryStatus.FAILED);
+            return;
+        }
+        actions.onStatusChanged(messageId, entry.message.getTargetNodeId(), DeliveryStatus.RETRYING);
+        transmitAttempt(entry);
+    }
+
+    private void acknowledge(List<String> ids) {
+        long now = now();
+        for (String id : ids) {
+            Outstanding entry = outstanding.remove(originalId(id));
+            if (entry == null) {
+                continue;
+            }
+            // Karn: an ACK after a retransmission can't be matched to one attempt
+            if (entry.attempts == 1) {
+                sampleRtt(entry.message.getTargetNodeId(), now - entry.sentAt);
+            }
+            actions.onStatusChanged(entry.message.getMessageId(), entry.message.getTargetNodeId(),
+                    DeliveryStatus.DELIVERED);
+        }
+    }
+
+    private void sampleRtt(String destinationNodeId, long sample) {
+        RttEstimate estimate = rtt.get(destinationNodeId);
+        if (estimate == null) {
+            estimate = new RttEstimate();
+            estimate.smoothed = sample;
+            estimate.variance = sample / 2.0;
+            rtt.put(destinationNodeId, estimate);
+            return;
+        }
+        estimate.variance = 0.75 * estimate.variance + 0.25 * Math.abs(estimate.smoothed - sample);
+        estimate.smoothed = 0.875 * estimate.smoothed + 0.125 * sample;
+    }
+
+    private void queueAck(String originNodeId, String messageId) {
+        if (originNodeId == null) {
+            return;
+        }
+        List<String> ids = pendingAcks.get(originNodeId);
+        if (ids == null) {
+            ids = new ArrayList<>();
+            pendingAcks.put(originNodeId, ids);
+        }
+        if (!ids.contains(messageId)) {
+            ids.add(messageId);
+            pendingAckCount++;
+        }
+
+        if (ids.size() >= MAX_IDS_PER_ACK || pendingAckCount >= MAX_PENDING_ACKS) {
+            flushAcks();
+        } else if (!ackFlushScheduled) {
+            ackFlushScheduled = true;
+            actions.schedule(this::onAckTimer, ACK_DELAY_MS);
+        }
+    }
+
+    private synchronized void onAckTimer() {
+        ackFlushScheduled = false;
+        flushAcks();
+    }
+
+    private void flushAcks() {
+        for (Map.Entry<String, List<String>> entry : pendingAcks.entrySet()) {
+            AckPayload payload = new AckPayload();
+            payload.ids = entry.getValue();
+            BluetoothMeshMessage ack = new BluetoothMeshMessage(actions.newMessageId(),
+                    BluetoothMeshService.MSG_TYPE_ACK, localNodeId, entry.getKey(),
+                    gson.toJson(payload), now(), 0);
+            actions.transmit(ack);
+        }
+        pendingAcks.clear();
+        pendingAckCount = 0;
+    }
+
+    private <T> T parse(String content, Class<T> type) {
+        try {
+            return gson.fromJson(content, type);
+        } catch (JsonParseException e) {
+            Log.e(TAG, "Malformed acknowledgement payload", e);
+            return null;
+        }
+    }
+
+    long now() {
+        return System.currentTimeMillis();
+    }
+}
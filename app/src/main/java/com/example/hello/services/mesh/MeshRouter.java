@@ -0,0 +1,551 @@
+package com.example.hello.services.mesh;
+
+import android.util.Log;
+
+import com.example.hello.models.BluetoothMeshMessage;
+import com.example.hello.services.BluetoothMeshService;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * MeshRouter - On-demand (AODV-style) unicast routing for the mesh
+ *
+ * Routes are only discovered when a directed message needs one. The source
+ * floods a ROUTE_REQ; every relay records a reverse route towards the
+ * originator, and the destination (or a relay holding a fresher route)
+ * answers with a ROUTE_REPLY that travels back along those reverse routes,
+ * installing the forward route as it goes. Destination sequence numbers
+ * decide which of two routes is fresher, and routes expire when unused.
+ * A request is handled once however many neighbours relay it to us; it is
+ * known by its originator and the originator's sequence number.
+ *
+ * Routes are also learnt passively from any traffic: a message from S that
+ * arrives with hop count h over the link to neighbour N means S is reachable
+ * through N in h + 1 hops.
+ *
+ * When a link drops, the routes that used it are withdrawn with a
+ * ROUTE_ERR to the remaining neighbours, which pass it on only if they were
+ * routing through us, so nodes upstream stop sending into a dead end.
+ *
+ * Messages waiting for a route are held in a small bounded buffer per
+ * destination and handed back through {@link RouteActions#onUndeliverable}
+ * if discovery gives up.
+ */
+public class MeshRouter {
+    private static final String TAG = "MeshRouter";
+
+    public static final long ACTIVE_ROUTE_TIMEOUT_MS = 60000;
+    public static final long DISCOVERY_TIMEOUT_MS = 4000;
+    public static final int DISCOVERY_RETRIES = 2;
+    public static final int MAX_BUFFERED_PER_DESTINATION = 16;
+    public static final int MAX_BUFFERED_DESTINATIONS = 32;
+    // Long enough to outlast every relayed copy of a request, including retries
+    static final long REQUEST_MEMORY_MS = DISCOVERY_TIMEOUT_MS << DISCOVERY_RETRIES;
+
+    /**
+     * Operations the router needs from the service that owns the links.
+     */
+    public interface RouteActions {
+        /** Send a message on the link with the given device address. */
+        void sendOnLink(String linkId, BluetoothMeshMessage message);
+        /** Flood a control message to every link. */
+        void broadcast(BluetoothMeshMessage message);
+        /** Run a task later on the mesh thread. */
+        void schedule(Runnable task, long delayMillis);
+        String newMessageId();
+        /** A route was added, changed or invalidated; {@code route} is null when removed. */
+        void onRouteChanged(String destinationNodeId, Route route);
+        /** Directed messages the router gave up on, e.g. for store-and-forward. */
+        void onUndeliverable(List<BluetoothMeshMessage> messages);
+    }
+
+    public static final class Route {
+        final String destinationNodeId;
+        String nextHopNodeId;
+        int hopCount;
+        int destinationSeq;
+        boolean validSeq;
+        long expiresAt;
+
+        Route(String destinationNodeId) {
+            this.destinationNodeId = destinationNodeId;
+        }
+
+        public String getDestinationNodeId() {
+            return destinationNodeId;
+        }
+
+        public String getNextHopNodeId() {
+            return nextHopNodeId;
+        }
+
+        public int getHopCount() {
+            return hopCount;
+        }
+
+        public int getDestinationSeq() {
+            return destinationSeq;
+        }
+    }
+
+    // ROUTE_REQ / ROUTE_REPLY payloads carried as JSON in message content
+    static final class RouteRequest {
+        String destinationNodeId;
+        int destinationSeq;
+        boolean unknownSeq;
+        int originatorSeq;
+    }
+
+    static final class RouteReply {
+        String destinationNodeId;
+        int destinationSeq;
+        // Hops from the replying node to the destination (0 when the destination replies)
+        int hopsToDestination;
+    }
+
+    static final class RouteError {
+        List<String> destinations;
+    }
+
+    private static final class Discovery {
+        final ArrayDeque<BluetoothMeshMessage> buffered = new ArrayDeque<>();
+        int attempts;
+    }
+
+    private final String localNodeId;
+    private final RouteActions actions;
+    private final Gson gson;
+
+    private final Map<String, Route> routes = new HashMap<>();
+    private final Map<String, String> neighbourByLink = new HashMap<>();
+    private final Map<String, String> linkByNeighbour = new HashMap<>();
+    private final Map<String, Discovery> discoveries = new HashMap<>();
+    // "originator/originatorSeq" of requests already handled, oldest first, to when they are forgotten
+    private final LinkedHashMap<String, Long> seenRequests = new LinkedHashMap<>();
+    private int localSeq;
+
+    public MeshRouter(String localNodeId, RouteActions actions, Gson gson) {
+        this.localNodeId = localNodeId;
+        this.actions = actions;
+        this.gson = gson;
+    }
+
+    // ---- Neighbour tracking ----
+
+    /**
+     * Every message observed on a link lets us learn about its sender.
+     */
+    public synchronized void onMessageObserved(BluetoothMeshMessage message, String linkId) {
+        String source = message.getSourceNodeId();
+        if (source == null || localNodeId.equals(source)) {
+            return;
+        }
+
+        if (message.getHopCount() == 0) {
+            // Sent by the neighbour itself
+            String previous = neighbourByLink.put(linkId, source);
+            if (previous != null && !previous.equals(source)) {
+                linkByNeighbour.remove(previous);
+                invalidateRoutesThrough(previous);
+            }
+            linkByNeighbour.put(source, linkId);
+            updateRoute(source, source, 1, 0, false);
+        } else {
+            String neighbour = neighbourByLink.get(linkId);
+            if (neighbour != null) {
+                updateRoute(source, neighbour, message.getHopCount() + 1, 0, false);
+            }
+        }
+    }
+
+    public synchronized void onLinkLost(String linkId) {
+        String neighbour = neighbourByLink.remove(linkId);
+        if (neighbour != null) {
+            linkByNeighbour.remove(neighbour);
+            sendRouteError(invalidateRoutesThrough(neighbour));
+        }
+    }
+
+    public synchronized String getNeighbourForLink(String linkId) {
+        return neighbourByLink.get(linkId);
+    }
+
+    // ---- Forwarding ----
+
+    /**
+     * Look up the link a directed message should leave on.
+     *
+     * @return the link ID, or null if there is no valid route
+     */
+    public synchronized String resolveLink(String destinationNodeId) {
+        Route route = validRoute(destinationNodeId);
+        if (route == null) {
+            return null;
+        }
+        // Using a route keeps it alive
+        route.expiresAt = now() + ACTIVE_ROUTE_TIMEOUT_MS;
+        return linkByNeighbour.get(route.nextHopNodeId);
+    }
+
+    /**
+     * Hold a directed message until a route is found, starting discovery if
+     * none is in progress.
+     */
+    public synchronized void bufferUntilRouted(BluetoothMeshMessage message) {
+        String destination = message.getTargetNodeId();
+        Discovery discovery = discoveries.get(destination);
+        if (discovery == null) {
+            if (discoveries.size() >= MAX_BUFFERED_DESTINATIONS) {
+                Log.w(TAG, "Too many pending route discoveries for " + message.getMessageId());
+                actions.onUndeliverable(Collections.singletonList(message));
+                return;
+            }
+            discovery = new Discovery();
+            discoveries.put(destination, discovery);
+            startDiscovery(destination, discovery);
+        }
+
+        if (discovery.buffered.size() >= MAX_BUFFERED_PER_DESTINATION) {
+            BluetoothMeshMessage overflow = discovery.buffered.pollFirst();
+            Log.w(TAG, "Route buffer full for " + destination + ", giving up on " + overflow.getMessageId());
+            actions.onUndeliverable(Collections.singletonList(overflow));
+        }
+        discovery.buffered.addLast(message);
+    }
+
+    /**
+     * Start route discovery without a message waiting on it, e.g. to find a
+     * path for messages sitting in the store-and-forward queue.
+     */
+    public synchronized void requestRoute(String destinationNodeId) {
+        if (localNodeId.equals(destinationNodeId) || discoveries.containsKey(destinationNodeId)
+                || validRoute(destinationNodeId) != null
+                || discoveries.size() >= MAX_BUFFERED_DESTINATIONS) {
+            return;
+        }
+        Discovery discovery = new Discovery();
+        discoveries.put(destinationNodeId, discovery);
+        startDiscovery(destinationNodeId, discovery);
+    }
+
+    public synchronized Route getRoute(String destinationNodeId) {
+        return validRoute(destinationNodeId);
+    }
+
+    public synchronized List<Route> getRoutes() {
+        List<Route> result = new ArrayList<>();
+        for (Route route : routes.values()) {
+            if (isValid(route)) {
+                result.add(route);
+            }
+        }
+        return result;
+    }
+
+    public synchronized void clear() {
+        routes.clear();
+        neighbourByLink.clear();
+        linkByNeighbour.clear();
+        discoveries.clear();
+        seenRequests.clear();
+    }
+
+    // ---- Control messages ----
+
+    public synchronized void handleRouteRequest(BluetoothMeshMessage message, String linkId) {
+        RouteRequest request = parse(message, RouteRequest.class);
+        String originator = message.getSourceNodeId();
+        String neighbour = neighbourByLink.get(linkId);
+        if (request == null || originator == null || neighbour == null
+                || localNodeId.equals(originator) || !markRequestSeen(originator, request.originatorSeq)) {
+            return;
+        }
+
+        // Reverse route back to the originator
+        updateRoute(originator, neighbour, message.getHopCount() + 1, request.originatorSeq, true);
+
+        if (localNodeId.equals(request.destinationNodeId)) {
+            if (!request.unknownSeq && seqNewer(request.destinationSeq, localSeq)) {
+                localSeq = request.destinationSeq;
+            }
+            localSeq++;
+            sendReply(originator, localNodeId, localSeq, 0);
+            return;
+        }
+
+        // A route leading back through the requester is the one it just lost;
+        // answering with it would make a loop
+        Route known = validRoute(request.destinationNodeId);
+        if (known != null && known.validSeq && !neighbour.equals(known.nextHopNodeId)
+                && (request.unknownSeq || !seqNewer(request.destinationSeq, known.destinationSeq))) {
+            // Intermediate reply from a fresh enough cached route
+            sendReply(originator, request.destinationNodeId, known.destinationSeq, known.hopCount);
+            return;
+        }
+
+        // Keep flooding the request
+        BluetoothMeshMessage relay = copyOf(message);
+        relay.setHopCount(message.getHopCount() + 1);
+        if (relay.getHopCount() <= BluetoothMeshService.MAX_HOP_COUNT) {
+            actions.broadcast(relay);
+        }
+    }
+
+    public synchronized void handleRouteReply(BluetoothMeshMessage message, String linkId) {
+        RouteReply reply = parse(message, RouteReply.class);
+        String neighbour = neighbourByLink.get(linkId);
+        if (reply == null || neighbour == null) {
+            return;
+        }
+
+        int hops = message.getHopCount() + 1 + reply.hopsToDestination;
+        updateRoute(reply.destinationNodeId, neighbour, hops, reply.destinationSeq, true);
+
+        if (localNodeId.equals(message.getTargetNodeId())) {
+            flushBuffered(reply.destinationNodeId);
+            return;
+        }
+
+        // Pass the reply on towards the originator
+        String nextLink = resolveLink(message.getTargetNodeId());
+        if (nextLink != null) {
+            BluetoothMeshMessage relay = copyOf(message);
+            relay.setHopCount(message.getHopCount() + 1);
+            actions.sendOnLink(nextLink, relay);
+        } else {
+            Log.w(TAG, "No reverse route for ROUTE_REPLY to " + message.getTargetNodeId());
+        }
+    }
+
+    /**
+     * A neighbour withdrew routes. Drop the ones we had through it and tell
+     * our own neighbours in turn.
+     */
+    public synchronized void handleRouteError(BluetoothMeshMessage message, String linkId) {
+        RouteError error = parse(message, RouteError.class);
+        String neighbour = neighbourByLink.get(linkId);
+        if (error == null || error.destinations == null || neighbour == null) {
+            return;
+        }
+
+        List<String> withdrawn = new ArrayList<>();
+        for (String destination : error.destinations) {
+            Route route = routes.get(destination);
+            if (route != null && neighbour.equals(route.nextHopNodeId)) {
+                routes.remove(destination);
+                actions.onRouteChanged(destination, null);
+                withdrawn.add(destination);
+            }
+        }
+        sendRouteError(withdrawn);
+    }
+
+    // ---- Internals ----
+
+    // False if this request was handled already
+    private boolean markRequestSeen(String originator, int originatorSeq) {
+        long now = now();
+        Iterator<Long> oldest = seenRequests.values().iterator();
+        while (oldest.hasNext() && oldest.next() <= now) {
+            oldest.remove();
+        }
+        String key = originator + "/" + originatorSeq;
+        if (seenRequests.containsKey(key)) {
+            return false;
+        }
+        seenRequests.put(key, now + REQUEST_MEMORY_MS);
+        return true;
+    }
+
+    private void startDiscovery(String destination, Discovery discovery) {
+        discovery.attempts++;
+        localSeq++;
+
+        RouteRequest request = new RouteRequest();
+        request.destinationNodeId = destination;
+        request.originatorSeq = localSeq;
+        Route stale = routes.get(destination);
+        if (stale != null && stale.validSeq) {
+            request.destinationSeq = stale.destinationSeq;
+        } else {
+            request.unknownSeq = true;
+        }
+
+        actions.broadcast(new BluetoothMeshMessage(actions.newMessageId(),
+                BluetoothMeshService.MSG_TYPE_ROUTE_REQUEST, localNodeId, null,
+                gson.toJson(request), now(), 0));
+
+        // Wait longer on each retry
+        actions.schedule(() -> onDiscoveryTimeout(destination, discovery),
+                DISCOVERY_TIMEOUT_MS << (discovery.attempts - 1));
+    }
+
+    private synchronized void onDiscoveryTimeout(String destination, Discovery discovery) {
+        if (discoveries.get(destination) != discovery) {
+            return; // Already resolved
+        }
+        if (discovery.attempts <= DISCOVERY_RETRIES) {
+            startDiscovery(destination, discovery);
+            return;
+        }
+        discoveries.remove(destination);
+        if (!discovery.buffered.isEmpty()) {
+            Log.w(TAG, "Route discovery to " + destination + " failed, handing off "
+                    + discovery.buffered.size() + " messages");
+            actions.onUndeliverable(new ArrayList<>(discovery.buffered));
+        }
+    }
+
+    private void flushBuffered(String destination) {
+        Discovery discovery = discoveries.remove(destination);
+        if (discovery == null) {
+            return;
+        }
+        String link = resolveLink(destination);
+        if (link == null) {
+            return;
+        }
+        for (BluetoothMeshMessage message : discovery.buffered) {
+            actions.sendOnLink(link, message);
+        }
+    }
+
+    private void sendReply(String originator, String destination, int destinationSeq, int hopsToDestination) {
+        RouteReply reply = new RouteReply();
+        reply.destinationNodeId = destination;
+        reply.destinationSeq = destinationSeq;
+        reply.hopsToDestination = hopsToDestination;
+
+        String link = resolveLink(originator);
+        if (link == null) {
+            return;
+        }
+        actions.sendOnLink(link, new BluetoothMeshMessage(actions.newMessageId(),
+                BluetoothMeshService.MSG_TYPE_ROUTE_REPLY, localNodeId, originator,
+                gson.toJson(reply), now(), 0));
+    }
+
+    /**
+     * Install or refresh a route if it is fresher (higher sequence number) or,
+     * at equal freshness, shorter than what we have.
+     */
+    private void updateRoute(String destination, String nextHop, int hopCount, int seq, boolean seqKnown) {
+        if (localNodeId.equals(destination)) {
+            return;
+        }
+
+        Route route = routes.get(destination);
+        long expiresAt = now() + ACTIVE_ROUTE_TIMEOUT_MS;
+
+        if (route == null) {
+            route = new Route(destination);
+            routes.put(destination, route);
+        } else if (isValid(route)) {
+            boolean fresher = seqKnown && (!route.validSeq || seqNewer(seq, route.destinationSeq));
+            boolean sameSeq = !seqKnown || (route.validSeq && seq == route.destinationSeq);
+            boolean better = fresher || (sameSeq && hopCount < route.hopCount);
+            if (!better) {
+                if (nextHop.equals(route.nextHopNodeId) && hopCount == route.hopCount) {
+                    route.expiresAt = expiresAt;
+                }
+                return;
+            }
+        }
+
+        boolean changed = !nextHop.equals(route.nextHopNodeId) || hopCount != route.hopCount || !isValid(route);
+        route.nextHopNodeId = nextHop;
+        route.hopCount = hopCount;
+        if (seqKnown) {
+            route.destinationSeq = seq;
+            route.validSeq = true;
+        }
+        route.expiresAt = expiresAt;
+
+        if (changed) {
+            actions.onRouteChanged(destination, route);
+        }
+        if (discoveries.containsKey(destination) && linkByNeighbour.containsKey(nextHop)) {
+            flushBuffered(destination);
+        }
+    }
+
+    private List<String> invalidateRoutesThrough(String neighbour) {
+        List<String> invalidated = new ArrayList<>();
+        Iterator<Map.Entry<String, Route>> iterator = routes.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Route route = iterator.next().getValue();
+            if (neighbour.equals(route.nextHopNodeId)) {
+                iterator.remove();
+                actions.onRouteChanged(route.destinationNodeId, null);
+                invalidated.add(route.destinationNodeId);
+            }
+        }
+        return invalidated;
+    }
+
+    private void sendRouteError(List<String> destinations) {
+        // The neighbour itself is gone from the list along with its link
+        if (destinations.isEmpty() || neighbourByLink.isEmpty()) {
+            return;
+        }
+        RouteError error = new RouteError();
+        error.destinations = destinations;
+        actions.broadcast(new BluetoothMeshMessage(actions.newMessageId(),
+                BluetoothMeshService.MSG_TYPE_ROUTE_ERROR, localNodeId, null,
+                gson.toJson(error), now(), 0));
+    }
+
+    private Route validRoute(String destination) {
+        Route route = routes.get(destination);
+        if (route == null) {
+            return null;
+        }
+        if (!isValid(route)) {
+            routes.remove(destination);
+            actions.onRouteChanged(destination, null);
+            return null;
+        }
+        return route;
+    }
+
+    private boolean isValid(Route route) {
+        return route.expiresAt > now() && linkByNeighbour.containsKey(route.nextHopNodeId);
+    }
+
+    private <T> T parse(BluetoothMeshMessage message, Class<T> type) {
+        try {
+            return gson.fromJson(message.getContent(), type);
+        } catch (JsonParseException e) {
+            Log.e(TAG, "Malformed " + message.getType() + " payload", e);
+            return null;
+        }
+    }
+
+    private static BluetoothMeshMessage copyOf(BluetoothMeshMessage message) {
+        BluetoothMeshMessage copy = new BluetoothMeshMessage(message.getMessageId(), message.getType(),
+                message.getSourceNodeId(), message.getTargetNodeId(), message.getContent(),
+                message.getTimestamp(), message.getHopCount());
+        copy.setSenderName(message.getSenderName());
+        copy.setSenderAddress(message.getSenderAddress());
+        copy.setPriority(message.getPriority());
+        return copy;
+    }
+
+    // Sequence number comparison that survives wrap-around
+    private static boolean seqNewer(int a, int b) {
+        return a - b > 0;
+    }
+
+    long now() {
+        return System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,228 @@
+package com.example.hello.services.mesh;
+
+import android.util.Log;
+
+import com.example.hello.models.BluetoothMeshMessage;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * MeshScheduler - Single thread that owns all mesh routing and topology state
+ *
+ * Maintenance timers, route discovery timeouts and message handling all run
+ * here, one task at a time, so that state needs no further locking and none
+ * of it runs on the UI thread. Link reader threads hand decoded messages over
+ * through a lock-free queue that is drained in batches by a single task.
+ *
+ * The inbound queue can be bounded so a traffic spike cannot grow memory
+ * without limit: once the backlog is full, chat and bulk frames are shed
+ * on arrival while control and emergency frames are still queued.
+ *
+ * Blocking work the mesh state must not wait for, such as hashing a file
+ * being transferred, runs on a second background thread.
+ */
+public class MeshScheduler implements MeshExecutor {
+    private static final String TAG = "MeshScheduler";
+
+    public static final int DEFAULT_MAX_INBOUND_BACKLOG = 4096;
+
+    public interface InboundHandler {
+        void onInbound(BluetoothMeshMessage message, String linkId);
+    }
+
+    private static final class Inbound {
+        final BluetoothMeshMessage message;
+        final String linkId;
+
+        Inbound(BluetoothMeshMessage message, String linkId) {
+            this.message = message;
+            this.linkId = linkId;
+        }
+    }
+
+    private final InboundHandler inboundHandler;
+    private final int maxInboundBacklog;
+    private final ConcurrentLinkedQueue<Inbound> inbound = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger inboundBacklog = new AtomicInteger();
+    private final AtomicLong inboundShed = new AtomicLong();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private final Runnable drainTask = this::drainInbound;
+
+    private volatile ScheduledExecutorService executor;
+    private volatile Thread schedulerThread;
+    private volatile ExecutorService background;
+
+    public MeshScheduler(InboundHandler inboundHandler) {
+        this(inboundHandler, 0);
+    }
+
+    /**
+     * @param maxInboundBacklog messages waiting to be handled before chat and
+     *                          bulk frames are shed; 0 for no limit
+     */
+    public MeshScheduler(InboundHandler inboundHandler, int maxInboundBacklog) {
+        this.inboundHandler = inboundHandler;
+        this.maxInboundBacklog = maxInboundBacklog;
+    }
+
+    public synchronized void start() {
+        if (executor != null && !executor.isShutdown()) {
+            return;
+        }
+        ScheduledThreadPoolExecutor pool = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "MeshScheduler");
+            schedulerThread = thread;
+            return thread;
+        });
+        pool.setRemoveOnCancelPolicy(true);
+        // Pending timers belong to the session being stopped
+        pool.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        pool.setContinueExistingPeriodicTasksAfterShutdownPolicy(false);
+        drainScheduled.set(false);
+        executor = pool;
+        background = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "MeshBackground"));
+    }
+
+    /**
+     * Let already queued work finish, then stop the thread.
+     */
+    public synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+        if (background != null) {
+            background.shutdown();
+        }
+        inbound.clear();
+        inboundBacklog.set(0);
+    }
+
+    public boolean isSchedulerThread() {
+        return Thread.currentThread() == schedulerThread;
+    }
+
+    public void execute(Runnable task) {
+        ScheduledExecutorService current = executor;
+        if (current == null) {
+            Log.w(TAG, "Dropping task, scheduler not started");
+            return;
+        }
+        try {
+            current.execute(guard(task));
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Dropping task, scheduler shut down");
+        }
+    }
+
+    public ScheduledFuture<?> schedule(Runnable task, long delayMillis) {
+        ScheduledExecutorService current = executor;
+        if (current == null) {
+            return null;
+        }
+        try {
+            return current.schedule(guard(task), delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Dropping scheduled task, scheduler shut down");
+            return null;
+        }
+    }
+
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable task, long initialDelayMillis, long periodMillis) {
+        ScheduledExecutorService current = executor;
+        if (current == null) {
+            return null;
+        }
+        try {
+            return current.scheduleAtFixedRate(guard(task), initialDelayMillis, periodMillis,
+                    TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Dropping periodic task, scheduler shut down");
+            return null;
+        }
+    }
+
+    public void executeInBackground(Runnable task) {
+        ExecutorService current = background;
+        if (current == null) {
+            Log.w(TAG, "Dropping background task, scheduler not started");
+            return;
+        }
+        try {
+            current.execute(guard(task));
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Dropping background task, scheduler shut down");
+        }
+    }
+
+    /**
+     * Called from link reader threads. Never blocks.
+     */
+    public void submitInbound(BluetoothMeshMessage message, String linkId) {
+        if (maxInboundBacklog > 0 && inboundBacklog.get() >= maxInboundBacklog
+                && OutboundFrame.priorityClass(message.getType(), message.getPriority())
+                < BluetoothMeshMessage.PRIORITY_CONTROL) {
+            inboundShed.incrementAndGet();
+            return;
+        }
+        inboundBacklog.incrementAndGet();
+        inbound.offer(new Inbound(message, linkId));
+        if (drainScheduled.compareAndSet(false, true)) {
+            execute(drainTask);
+        }
+    }
+
+    public long now() {
+        return System.currentTimeMillis();
+    }
+
+    public int getInboundBacklog() {
+        return inboundBacklog.get();
+    }
+
+    /** Inbound messages shed because the backlog was full. */
+    public long getInboundShed() {
+        return inboundShed.get();
+    }
+
+    private void drainInbound() {
+        while (true) {
+            Inbound next;
+            while ((next = inbound.poll()) != null) {
+                inboundBacklog.decrementAndGet();
+                try {
+                    inboundHandler.onInbound(next.message, next.linkId);
+                } catch (RuntimeException e) {
+                    // One bad message must not stop the drain, or every later one would wait forever
+                    Log.e(TAG, "Dropping inbound message " + next.message.getMessageId()
+                            + " from " + next.linkId, e);
+                }
+            }
+            drainScheduled.set(false);
+            // A producer may have queued after our last poll but before the flag was cleared
+            if (inbound.isEmpty() || !drainScheduled.compareAndSet(false, true)) {
+                return;
+            }
+        }
+    }
+
+    // An exception must not kill the thread or cancel a periodic task
+    private static Runnable guard(Runnable task) {
+        return () -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Mesh task failed", e);
+            }
+        };
+    }
+}
@@ -0,0 +1,488 @@
+package com.example.hello.services.mesh;
+
+import android.util.Log;
+
+import com.example.hello.models.BluetoothMeshMessage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * MeshStoreForwardQueue - Disk-backed queue for messages whose target is unreachable
+ *
+ * Messages are appended to a log file as encoded frames; removals append a
+ * tombstone. Only a compact index (ID, target, file offset, expiry) is kept
+ * in memory and it is capped at {@code maxEntries}, so memory stays bounded no
+ * matter how much is queued. The index is rebuilt by scanning the log when
+ * the queue is opened, which is how queued messages survive a restart. The
+ * log is rewritten once more than half of it is dead records.
+ *
+ * Record layout: {@code type(1) length(4) crc32(4) payload(length)}, where a
+ * PUT payload is {@code expiresAt(8) frame} and a REMOVE payload is the UTF-8
+ * message ID. A torn record at the tail is truncated on open.
+ *
+ * All methods are synchronized and never call out to other components while
+ * holding the lock.
+ */
+public class MeshStoreForwardQueue {
+    private static final String TAG = "MeshStoreForwardQueue";
+
+    public static final long DEFAULT_TTL_MS = 24 * 60 * 60 * 1000L;
+    public static final int DEFAULT_MAX_ENTRIES = 1000;
+    public static final long DEFAULT_MAX_LOG_BYTES = 8 * 1024 * 1024;
+
+    private static final byte RECORD_PUT = 1;
+    private static final byte RECORD_REMOVE = 2;
+    private static final int RECORD_HEADER_SIZE = 9;
+    private static final long COMPACT_MIN_DEAD_BYTES = 64 * 1024;
+
+    private static final class Entry {
+        final String messageId;
+        final String targetNodeId;
+        final long expiresAt;
+        long payloadOffset;
+        int payloadLength;
+
+        Entry(String messageId, String targetNodeId, long expiresAt) {
+            this.messageId = messageId;
+            this.targetNodeId = targetNodeId;
+            this.expiresAt = expiresAt;
+        }
+
+        int recordLength() {
+            return RECORD_HEADER_SIZE + payloadLength;
+        }
+    }
+
+    private final File logFile;
+    private final MeshFrameCodec codec;
+    private final int maxEntries;
+    private final long maxLogBytes;
+
+    // Insertion ordered so the oldest message is evicted first
+    private final LinkedHashMap<String, Entry> index = new LinkedHashMap<>();
+    private final CRC32 crc = new CRC32();
+    private RandomAccessFile log;
+    private long liveBytes;
+
+    public MeshStoreForwardQueue(File directory, MeshFrameCodec codec) {
+        this(directory, codec, DEFAULT_MAX_ENTRIES, DEFAULT_MAX_LOG_BYTES);
+    }
+
+    public MeshStoreForwardQueue(File directory, MeshFrameCodec codec, int maxEntries, long maxLogBytes) {
+        this.logFile = new File(directory, "store_forward.log");
+        this.codec = codec;
+        this.maxEntries = maxEntries;
+        this.maxLogBytes = maxLogBytes;
+    }
+
+    /**
+     * Open the log and rebuild the index from it.
+     */
+    public synchronized void open() throws IOException {
+        if (log != null) {
+            return;
+        }
+        File directory = logFile.getParentFile();
+        if (directory != null && !directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        log = new RandomAccessFile(logFile, "rw");
+        rebuildIndex();
+        purgeExpired();
+        Log.d(TAG, "Opened store-and-forward queue with " + index.size() + " messages");
+    }
+
+    public synchronized void close() {
+        if (log == null) {
+            return;
+        }
+        try {
+            log.close();
+        } catch (IOException e) {
+            Log.e(TAG, "close() of store-and-forward log failed", e);
+        }
+        log = null;
+        index.clear();
+        liveBytes = 0;
+    }
+
+    /**
+     * Queue a directed message until its target becomes reachable.
+     *
+     * @return false if the message could not be persisted
+     */
+    public synchronized boolean store(BluetoothMeshMessage message, long ttlMillis) {
+        if (log == null || message.getMessageId() == null || message.getTargetNodeId() == null) {
+            return false;
+        }
+        if (index.containsKey(message.getMessageId())) {
+            return true;
+        }
+
+        try {
+            byte[] frame = codec.encode(message);
+            while (index.size() >= maxEntries || liveBytes + frame.length > maxLogBytes) {
+                if (!evictOldest()) {
+                    break;
+                }
+            }
+
+            Entry entry = new Entry(message.getMessageId(), message.getTargetNodeId(),
+                    now() + ttlMillis);
+            appendPut(entry, frame);
+            index.put(entry.messageId, entry);
+            liveBytes += entry.recordLength();
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to persist message " + message.getMessageId(), e);
+            return false;
+        }
+    }
+
+    public synchronized boolean contains(String messageId) {
+        return index.containsKey(messageId);
+    }
+
+    public synchronized int size() {
+        return index.size();
+    }
+
+    public synchronized Set<String> getPendingTargets() {
+        Set<String> targets = new HashSet<>();
+        for (Entry entry : index.values()) {
+            targets.add(entry.targetNodeId);
+        }
+        return targets;
+    }
+
+    /**
+     * Remove and return up to {@code limit} messages addressed to any of
+     * {@code reachableTargets}.
+     */
+    public synchronized List<BluetoothMeshMessage> takeForTargets(Set<String> reachableTargets, int limit) {
+        List<BluetoothMeshMessage> result = new ArrayList<>();
+        if (log == null) {
+            return result;
+        }
+
+        long now = now();
+        List<Entry> taken = new ArrayList<>();
+        for (Entry entry : index.values()) {
+            if (result.size() >= limit) {
+                break;
+            }
+            if (entry.expiresAt <= now || !reachableTargets.contains(entry.targetNodeId)) {
+                continue;
+            }
+            BluetoothMeshMessage message = read(entry);
+            if (message != null) {
+                result.add(message);
+            }
+            taken.add(entry);
+        }
+
+        for (Entry entry : taken) {
+            remove(entry);
+        }
+        maybeCompact();
+        return result;
+    }
+
+    /**
+     * Serialise queued messages for a bulk hand-off to a newly connected
+     * peer. Messages stay queued here; the receiver deduplicates by ID.
+     *
+     * Batch layout: repeated {@code remainingTtl(8) frameLength(4) frame}.
+     */
+    public synchronized byte[] exportBatch(int maxBytes) {
+        if (log == null) {
+            return new byte[0];
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        long now = now();
+        try {
+            for (Entry entry : index.values()) {
+                int frameLength = entry.payloadLength - 8;
+                if (entry.expiresAt <= now) {
+                    continue;
+                }
+                if (out.size() + 12 + frameLength > maxBytes) {
+                    break;
+                }
+                byte[] frame = readFrame(entry);
+                out.writeLong(entry.expiresAt - now);
+                out.writeInt(frame.length);
+                out.write(frame);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to export store-and-forward batch", e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Merge a batch received from a peer. Messages this node has already
+     * handled (per {@code seenMessages}) are skipped, messages addressed to
+     * {@code localNodeId} are returned for delivery, and everything else is
+     * queued with the TTL the peer had left.
+     */
+    public synchronized List<BluetoothMeshMessage> importBatch(byte[] batch, String localNodeId,
+                                                               MessageIdCache seenMessages) {
+        List<BluetoothMeshMessage> forUs = new ArrayList<>();
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(batch));
+        try {
+            while (in.available() > 0) {
+                long remainingTtl = in.readLong();
+                int frameLength = in.readInt();
+                if (frameLength < MeshFrameCodec.HEADER_SIZE || frameLength > in.available()) {
+                    throw new MeshFrameException("Bad batch entry length: " + frameLength);
+                }
+                byte[] frame = new byte[frameLength];
+                in.readFully(frame);
+
+                BluetoothMeshMessage message = codec.decode(frame);
+                if (seenMessages.markSeen(message.getMessageId(), now())) {
+                    continue;
+                }
+                if (localNodeId.equals(message.getTargetNodeId())) {
+                    forUs.add(message);
+                } else if (remainingTtl > 0) {
+                    store(message, remainingTtl);
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Malformed store-and-forward batch", e);
+        }
+        return forUs;
+    }
+
+    /**
+     * Drop messages whose TTL has passed.
+     *
+     * @return the number of messages removed
+     */
+    public synchronized int purgeExpired() {
+        if (log == null) {
+            return 0;
+        }
+        long now = now();
+        List<Entry> expired = new ArrayList<>();
+        for (Entry entry : index.values()) {
+            if (entry.expiresAt <= now) {
+                expired.add(entry);
+            }
+        }
+        for (Entry entry : expired) {
+            remove(entry);
+        }
+        maybeCompact();
+        return expired.size();
+    }
+
+    // ---- Log handling ----
+
+    private void rebuildIndex() throws IOException {
+        index.clear();
+        liveBytes = 0;
+
+        long length = log.length();
+        long position = 0;
+        byte[] header = new byte[RECORD_HEADER_SIZE];
+
+        while (position + RECORD_HEADER_SIZE <= length) {
+            log.seek(position);
+            log.readFully(header);
+            byte type = header[0];
+            int payloadLength = MeshFrameCodec.readInt(header, 1);
+            int storedCrc = MeshFrameCodec.readInt(header, 5);
+
+            if ((type != RECORD_PUT && type != RECORD_REMOVE) || payloadLength < 0
+                    || position + RECORD_HEADER_SIZE + payloadLength > length) {
+                break;
+            }
+            byte[] payload = new byte[payloadLength];
+            log.readFully(payload);
+            if (checksum(payload, 0, payloadLength) != storedCrc) {
+                break;
+            }
+
+            long payloadOffset = position + RECORD_HEADER_SIZE;
+            if (type == RECORD_PUT) {
+                indexPut(payload, payloadOffset);
+            } else {
+                Entry removed = index.remove(new String(payload, StandardCharsets.UTF_8));
+                if (removed != null) {
+                    liveBytes -= removed.recordLength();
+                }
+            }
+            position = payloadOffset + payloadLength;
+        }
+
+        if (position < length) {
+            Log.w(TAG, "Truncating " + (length - position) + " bytes of torn store-and-forward log");
+            log.setLength(position);
+        }
+
+        // Enforce limits in case they were lowered since the log was written
+        while (index.size() > maxEntries && evictOldest()) {
+            // keep evicting
+        }
+    }
+
+    private void indexPut(byte[] payload, long payloadOffset) {
+        long expiresAt = 0;
+        for (int i = 0; i < 8; i++) {
+            expiresAt = (expiresAt << 8) | (payload[i] & 0xFF);
+        }
+        byte[] frame = new byte[payload.length - 8];
+        System.arraycopy(payload, 8, frame, 0, frame.length);
+        try {
+            BluetoothMeshMessage message = codec.decode(frame);
+            Entry entry = new Entry(message.getMessageId(), message.getTargetNodeId(), expiresAt);
+            entry.payloadOffset = payloadOffset;
+            entry.payloadLength = payload.length;
+            Entry previous = index.put(entry.messageId, entry);
+            if (previous != null) {
+                liveBytes -= previous.recordLength();
+            }
+            liveBytes += entry.recordLength();
+        } catch (MeshFrameException e) {
+            Log.w(TAG, "Skipping undecodable stored frame", e);
+        }
+    }
+
+    private void appendPut(Entry entry, byte[] frame) throws IOException {
+        byte[] payload = new byte[8 + frame.length];
+        for (int i = 0; i < 8; i++) {
+            payload[i] = (byte) (entry.expiresAt >>> (56 - 8 * i));
+        }
+        System.arraycopy(frame, 0, payload, 8, frame.length);
+
+        entry.payloadOffset = append(RECORD_PUT, payload);
+        entry.payloadLength = payload.length;
+    }
+
+    private long append(byte type, byte[] payload) throws IOException {
+        byte[] header = new byte[RECORD_HEADER_SIZE];
+        header[0] = type;
+        MeshFrameCodec.writeInt(header, 1, payload.length);
+        MeshFrameCodec.writeInt(header, 5, checksum(payload, 0, payload.length));
+
+        long position = log.length();
+        log.seek(position);
+        log.write(header);
+        log.write(payload);
+        return position + RECORD_HEADER_SIZE;
+    }
+
+    private void remove(Entry entry) {
+        if (index.remove(entry.messageId) == null) {
+            return;
+        }
+        liveBytes -= entry.recordLength();
+        try {
+            append(RECORD_REMOVE, entry.messageId.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to record removal of " + entry.messageId, e);
+        }
+    }
+
+    private boolean evictOldest() {
+        Iterator<Map.Entry<String, Entry>> iterator = index.entrySet().iterator();
+        if (!iterator.hasNext()) {
+            return false;
+        }
+        Entry oldest = iterator.next().getValue();
+        Log.w(TAG, "Store-and-forward queue full, evicting " + oldest.messageId);
+        remove(oldest);
+        return true;
+    }
+
+    private BluetoothMeshMessage read(Entry entry) {
+        try {
+            return codec.decode(readFrame(entry));
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read stored message " + entry.messageId, e);
+            return null;
+        }
+    }
+
+    private byte[] readFrame(Entry entry) throws IOException {
+        byte[] frame = new byte[entry.payloadLength - 8];
+        log.seek(entry.payloadOffset + 8);
+        log.readFully(frame);
+        return frame;
+    }
+
+    // Rewrite the log with only live records once dead records dominate
+    private void maybeCompact() {
+        try {
+            long length = log.length();
+            long dead = length - liveBytes;
+            if (dead < COMPACT_MIN_DEAD_BYTES || dead < liveBytes) {
+                return;
+            }
+
+            File compacted = new File(logFile.getPath() + ".compact");
+            try (RandomAccessFile out = new RandomAccessFile(compacted, "rw")) {
+                out.setLength(0);
+                for (Entry entry : index.values()) {
+                    byte[] record = new byte[entry.recordLength()];
+                    log.seek(entry.payloadOffset - RECORD_HEADER_SIZE);
+                    log.readFully(record);
+                    entry.payloadOffset = out.getFilePointer() + RECORD_HEADER_SIZE;
+                    out.write(record);
+                }
+                out.getFD().sync();
+            }
+
+            log.close();
+            if (!compacted.renameTo(logFile)) {
+                throw new IOException("Cannot replace " + logFile);
+            }
+            log = new RandomAccessFile(logFile, "rw");
+            Log.d(TAG, "Compacted store-and-forward log from " + length + " to " + log.length() + " bytes");
+        } catch (IOException e) {
+            Log.e(TAG, "Store-and-forward compaction failed, reloading log", e);
+            try {
+                if (log != null) {
+                    log.close();
+                }
+                log = new RandomAccessFile(logFile, "rw");
+                rebuildIndex();
+            } catch (IOException reopenError) {
+                Log.e(TAG, "Unable to reopen store-and-forward log", reopenError);
+                log = null;
+                index.clear();
+            }
+        }
+    }
+
+    private int checksum(byte[] data, int offset, int length) {
+        crc.reset();
+        crc.update(data, offset, length);
+        return (int) crc.getValue();
+    }
+
+    // Overridable for tests
+    long now() {
+        return System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,553 @@
+package com.example.hello.services.mesh;
+
+import android.util.Log;
+
+import com.example.hello.models.BluetoothMeshMessage;
+import com.example.hello.services.BluetoothMeshService;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * MeshTopology - Link-state view of the whole mesh, built from gossip
+ *
+ * Every node owns a sequence number for its own neighbour set. When that set
+ * changes it floods a TOPOLOGY delta carrying the new sequence number and the
+ * neighbours added and removed, so steady-state control traffic is
+ * proportional to the number of changes, not the number of nodes. Receivers
+ * apply a delta only if it is the next one they expect from that origin; on
+ * a gap they ask the neighbour that relayed it for a snapshot.
+ *
+ * Full snapshots of the graph are only sent to a neighbour when it first
+ * appears on a link. A node also re-floods its own neighbour set at a long
+ * interval, so a lost final delta cannot leave the graph wrong forever, and
+ * origins that stop refreshing are eventually dropped.
+ *
+ * Hop distances from the local node are kept up to date incrementally: added
+ * edges relax distances outwards from the affected node, and only removing
+ * an edge that lies on a shortest path triggers a full breadth-first pass.
+ */
+public class MeshTopology {
+    private static final String TAG = "MeshTopology";
+
+    public static final long REFRESH_INTERVAL_MS = 5 * 60 * 1000;
+    public static final long ORIGIN_EXPIRY_MS = 3 * REFRESH_INTERVAL_MS;
+    public static final long SNAPSHOT_REQUEST_INTERVAL_MS = 5000;
+    public static final int MAX_NODES = 256;
+    public static final int UNREACHABLE = Integer.MAX_VALUE;
+
+    /**
+     * Operations the topology needs from the service that owns the links.
+     */
+    public interface TopologyActions {
+        void sendOnLink(String linkId, BluetoothMeshMessage message);
+        /** Flood a control message to every link. */
+        void broadcast(BluetoothMeshMessage message);
+        String newMessageId();
+        /** Neighbour sets or hop distances of these nodes changed. */
+        void onTopologyChanged(Set<String> nodeIds);
+    }
+
+    // TOPOLOGY payload carried as JSON in message content
+    static final class TopologyUpdate {
+        static final int KIND_DELTA = 0;
+        static final int KIND_SNAPSHOT = 1;
+        static final int KIND_SNAPSHOT_REQUEST = 2;
+
+        int kind;
+        // Delta: the origin's new sequence number and what changed since seq - 1
+        long seq;
+        String name;
+        List<String> added;
+        List<String> removed;
+        // Periodic refresh: replace the origin's whole set instead
+        boolean full;
+        // Snapshot: every origin we know about
+        List<NodeState> nodes;
+    }
+
+    static final class NodeState {
+        String nodeId;
+        String name;
+        long seq;
+        List<String> neighbours;
+    }
+
+    private static final class Origin {
+        long seq;
+        String name;
+        final Set<String> neighbours = new HashSet<>();
+        long updatedAt;
+    }
+
+    private final String localNodeId;
+    private final TopologyActions actions;
+    private final Gson gson;
+
+    private final Map<String, Origin> origins = new HashMap<>();
+    private final Map<String, String> neighbourByLink = new HashMap<>();
+    private final Map<String, Long> lastSnapshotRequest = new HashMap<>();
+    private final Map<String, Integer> distances = new HashMap<>();
+    private final Origin local = new Origin();
+    private boolean distancesDirty;
+    private long lastRefresh;
+
+    public MeshTopology(String localNodeId, String localName, TopologyActions actions, Gson gson) {
+        this.localNodeId = localNodeId;
+        this.actions = actions;
+        this.gson = gson;
+        local.name = localName;
+        origins.put(localNodeId, local);
+        lastRefresh = now();
+        distances.put(localNodeId, 0);
+    }
+
+    // ---- Local neighbour changes ----
+
+    /**
+     * A neighbour has been identified on a link. The first time this happens
+     * for a link the neighbour is sent a snapshot of the graph.
+     */
+    public synchronized void onNeighbourIdentified(String linkId, String nodeId) {
+        String previous = neighbourByLink.put(linkId, nodeId);
+        if (nodeId.equals(previous)) {
+            return;
+        }
+
+        List<String> added = new ArrayList<>();
+        List<String> removed = new ArrayList<>();
+        if (previous != null && !neighbourByLink.containsValue(previous)) {
+            removed.add(previous);
+        }
+        if (!local.neighbours.contains(nodeId)) {
+            added.add(nodeId);
+        }
+        changeLocal(added, removed);
+
+        sendSnapshot(linkId);
+    }
+
+    public synchronized void onLinkLost(String linkId) {
+        String neighbour = neighbourByLink.remove(linkId);
+        lastSnapshotRequest.remove(linkId);
+        if (neighbour == null || neighbourByLink.containsValue(neighbour)) {
+            return;
+        }
+        changeLocal(Collections.<String>emptyList(), Collections.singletonList(neighbour));
+    }
+
+    // ---- Control messages ----
+
+    /**
+     * Apply a TOPOLOGY message received on a link.
+     *
+     * @return true if it is a delta that should be flooded further
+     */
+    public synchronized boolean handleUpdate(BluetoothMeshMessage message, String linkId) {
+        TopologyUpdate update = parse(message);
+        if (update == null) {
+            return false;
+        }
+
+        switch (update.kind) {
+            case TopologyUpdate.KIND_DELTA:
+                return applyDelta(message.getSourceNodeId(), update, linkId);
+            case TopologyUpdate.KIND_SNAPSHOT:
+                applySnapshot(update);
+                return false;
+            case TopologyUpdate.KIND_SNAPSHOT_REQUEST:
+                sendSnapshot(linkId);
+                return false;
+            default:
+                Log.w(TAG, "Unknown topology update kind " + update.kind);
+                return false;
+        }
+    }
+
+    /**
+     * Periodic upkeep: re-flood our own neighbour set when due and forget
+     * origins that have stopped refreshing and are no longer reachable.
+     */
+    public synchronized void maintain() {
+        long now = now();
+        if (now - lastRefresh >= REFRESH_INTERVAL_MS) {
+            lastRefresh = now;
+            TopologyUpdate refresh = new TopologyUpdate();
+            refresh.kind = TopologyUpdate.KIND_DELTA;
+            refresh.full = true;
+            refresh.seq = ++local.seq;
+            refresh.name = local.name;
+            refresh.added = new ArrayList<>(local.neighbours);
+            actions.broadcast(newMessage(refresh));
+        }
+
+        Set<String> changed = new HashSet<>();
+        Iterator<Map.Entry<String, Origin>> iterator = origins.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Origin> entry = iterator.next();
+            if (entry.getValue() != local && now - entry.getValue().updatedAt > ORIGIN_EXPIRY_MS
+                    && !distances.containsKey(entry.getKey())) {
+                iterator.remove();
+                changed.add(entry.getKey());
+            }
+        }
+        if (!changed.isEmpty()) {
+            distancesDirty = true;
+        }
+        finish(changed);
+    }
+
+    // ---- Queries ----
+
+    /**
+     * Hops from this node, or {@link #UNREACHABLE}.
+     */
+    public synchronized int getHopDistance(String nodeId) {
+        Integer distance = distances.get(nodeId);
+        return distance != null ? distance : UNREACHABLE;
+    }
+
+    /**
+     * Neighbours advertised by {@code nodeId}, plus any node that advertises
+     * {@code nodeId} itself (links are symmetric, the adverts may not be yet).
+     */
+    public synchronized List<String> getNeighbours(String nodeId) {
+        Set<String> result = new HashSet<>();
+        Origin origin = origins.get(nodeId);
+        if (origin != null) {
+            result.addAll(origin.neighbours);
+        }
+        for (Map.Entry<String, Origin> entry : origins.entrySet()) {
+            if (entry.getValue().neighbours.contains(nodeId)) {
+                result.add(entry.getKey());
+            }
+        }
+        return new ArrayList<>(result);
+    }
+
+    public synchronized String getName(String nodeId) {
+        Origin origin = origins.get(nodeId);
+        return origin != null ? origin.name : null;
+    }
+
+    /**
+     * Every node currently reachable from this one, including itself.
+     */
+    public synchronized Set<String> getReachableNodes() {
+        return new HashSet<>(distances.keySet());
+    }
+
+    /**
+     * How many nodes that are unreachable now would become reachable again
+     * through a direct link to {@code nodeId}, counting {@code nodeId}
+     * itself. Zero if it is already reachable another way.
+     */
+    public synchronized int countRestoredBy(String nodeId) {
+        if (distances.containsKey(nodeId)) {
+            return 0;
+        }
+        Set<String> visited = new HashSet<>();
+        ArrayDeque<String> queue = new ArrayDeque<>();
+        visited.add(nodeId);
+        queue.add(nodeId);
+        while (!queue.isEmpty()) {
+            Origin origin = origins.get(queue.poll());
+            if (origin == null) {
+                continue;
+            }
+            for (String neighbour : origin.neighbours) {
+                if (!distances.containsKey(neighbour) && visited.add(neighbour)) {
+                    queue.add(neighbour);
+                }
+            }
+        }
+        return visited.size();
+    }
+
+    public synchronized long getLocalSeq() {
+        return local.seq;
+    }
+
+    public synchronized void clear() {
+        origins.clear();
+        neighbourByLink.clear();
+        lastSnapshotRequest.clear();
+        distances.clear();
+        local.neighbours.clear();
+        origins.put(localNodeId, local);
+        distances.put(localNodeId, 0);
+        distancesDirty = false;
+    }
+
+    // ---- Internals ----
+
+    private void changeLocal(List<String> added, List<String> removed) {
+        if (added.isEmpty() && removed.isEmpty()) {
+            return;
+        }
+        Set<String> changed = new HashSet<>();
+        for (String nodeId : removed) {
+            removeEdge(localNodeId, local, nodeId, changed);
+        }
+        for (String nodeId : added) {
+            addEdge(localNodeId, local, nodeId, changed);
+        }
+        local.seq++;
+        local.updatedAt = now();
+
+        TopologyUpdate delta = new TopologyUpdate();
+        delta.kind = TopologyUpdate.KIND_DELTA;
+        delta.seq = local.seq;
+        delta.name = local.name;
+        delta.added = added;
+        delta.removed = removed;
+        actions.broadcast(newMessage(delta));
+
+        finish(changed);
+    }
+
+    private boolean applyDelta(String originId, TopologyUpdate update, String linkId) {
+        if (originId == null || localNodeId.equals(originId)) {
+            return false;
+        }
+
+        Origin origin = origins.get(originId);
+        long known = origin != null ? origin.seq : 0;
+        if (update.seq <= known) {
+            return false;
+        }
+        if (origin == null) {
+            if (origins.size() >= MAX_NODES) {
+                Log.w(TAG, "Topology full, ignoring " + originId);
+                return false;
+            }
+            origin = new Origin();
+            origins.put(originId, origin);
+        }
+
+        Set<String> changed = new HashSet<>();
+        changed.add(originId);
+        if (update.full) {
+            replaceNeighbours(originId, origin, update.added, changed);
+        } else if (update.seq == known + 1) {
+            if (update.removed != null) {
+                for (String nodeId : update.removed) {
+                    removeEdge(originId, origin, nodeId, changed);
+                }
+            }
+            if (update.added != null) {
+                for (String nodeId : update.added) {
+                    addEdge(originId, origin, nodeId, changed);
+                }
+            }
+        } else {
+            // Missed at least one delta from this origin: resynchronise from
+            // the neighbour that relayed it, and keep relaying the delta so
+            // nodes that are in step still get it
+            requestSnapshot(linkId);
+            return true;
+        }
+
+        origin.seq = update.seq;
+        if (update.name != null) {
+            origin.name = update.name;
+        }
+        origin.updatedAt = now();
+        finish(changed);
+        return true;
+    }
+
+    private void applySnapshot(TopologyUpdate snapshot) {
+        if (snapshot.nodes == null) {
+            return;
+        }
+        Set<String> changed = new HashSet<>();
+        long now = now();
+        for (NodeState state : snapshot.nodes) {
+            if (state.nodeId == null || localNodeId.equals(state.nodeId)) {
+                continue;
+            }
+            Origin origin = origins.get(state.nodeId);
+            if (origin != null && state.seq <= origin.seq) {
+                continue;
+            }
+            if (origin == null) {
+                if (origins.size() >= MAX_NODES) {
+                    continue;
+                }
+                origin = new Origin();
+                origins.put(state.nodeId, origin);
+            }
+            replaceNeighbours(state.nodeId, origin, state.neighbours, changed);
+            origin.seq = state.seq;
+            if (state.name != null) {
+                origin.name = state.name;
+            }
+            origin.updatedAt = now;
+            changed.add(state.nodeId);
+        }
+        finish(changed);
+    }
+
+    private void replaceNeighbours(String originId, Origin origin, List<String> neighbours, Set<String> changed) {
+        Set<String> next = neighbours != null ? new HashSet<>(neighbours) : new HashSet<String>();
+        for (String nodeId : new ArrayList<>(origin.neighbours)) {
+            if (!next.contains(nodeId)) {
+                removeEdge(originId, origin, nodeId, changed);
+            }
+        }
+        for (String nodeId : next) {
+            addEdge(originId, origin, nodeId, changed);
+        }
+    }
+
+    private void sendSnapshot(String linkId) {
+        TopologyUpdate snapshot = new TopologyUpdate();
+        snapshot.kind = TopologyUpdate.KIND_SNAPSHOT;
+        snapshot.nodes = new ArrayList<>();
+        for (Map.Entry<String, Origin> entry : origins.entrySet()) {
+            NodeState state = new NodeState();
+            state.nodeId = entry.getKey();
+            state.name = entry.getValue().name;
+            state.seq = entry.getValue().seq;
+            state.neighbours = new ArrayList<>(entry.getValue().neighbours);
+            snapshot.nodes.add(state);
+        }
+        actions.sendOnLink(linkId, newMessage(snapshot));
+    }
+
+    private void requestSnapshot(String linkId) {
+        long now = now();
+        Long last = lastSnapshotRequest.get(linkId);
+        if (last != null && now - last < SNAPSHOT_REQUEST_INTERVAL_MS) {
+            return;
+        }
+        lastSnapshotRequest.put(linkId, now);
+        TopologyUpdate request = new TopologyUpdate();
+        request.kind = TopologyUpdate.KIND_SNAPSHOT_REQUEST;
+        actions.sendOnLink(linkId, newMessage(request));
+    }
+
+    private void addEdge(String fromId, Origin from, String toId, Set<String> changed) {
+        if (toId == null || toId.equals(fromId) || !from.neighbours.add(toId)) {
+            return;
+        }
+        changed.add(toId);
+        Integer fromDistance = distances.get(fromId);
+        if (fromDistance != null && !distancesDirty) {
+            relax(toId, fromDistance + 1, changed);
+        }
+    }
+
+    private void removeEdge(String fromId, Origin from, String toId, Set<String> changed) {
+        if (!from.neighbours.remove(toId)) {
+            return;
+        }
+        changed.add(toId);
+        Integer fromDistance = distances.get(fromId);
+        Integer toDistance = distances.get(toId);
+        // Only an edge on a shortest path can make anything further away
+        if (fromDistance != null && toDistance != null && toDistance == fromDistance + 1) {
+            distancesDirty = true;
+        }
+    }
+
+    // Decrease-only breadth-first propagation from a node that got closer
+    private void relax(String nodeId, int distance, Set<String> changed) {
+        Integer current = distances.get(nodeId);
+        if (current != null && current <= distance) {
+            return;
+        }
+        ArrayDeque<String> queue = new ArrayDeque<>();
+        distances.put(nodeId, distance);
+        changed.add(nodeId);
+        queue.add(nodeId);
+        while (!queue.isEmpty()) {
+            String next = queue.poll();
+            Origin origin = origins.get(next);
+            if (origin == null) {
+                continue;
+            }
+            int nextDistance = distances.get(next) + 1;
+            for (String neighbour : origin.neighbours) {
+                Integer known = distances.get(neighbour);
+                if (known == null || known > nextDistance) {
+                    distances.put(neighbour, nextDistance);
+                    changed.add(neighbour);
+                    queue.add(neighbour);
+                }
+            }
+        }
+    }
+
+    private void recomputeDistances(Set<String> changed) {
+        Map<String, Integer> previous = new HashMap<>(distances);
+        distances.clear();
+        distances.put(localNodeId, 0);
+        ArrayDeque<String> queue = new ArrayDeque<>();
+        queue.add(localNodeId);
+        while (!queue.isEmpty()) {
+            String next = queue.poll();
+            Origin origin = origins.get(next);
+            if (origin == null) {
+                continue;
+            }
+            int nextDistance = distances.get(next) + 1;
+            for (String neighbour : origin.neighbours) {
+                if (!distances.containsKey(neighbour)) {
+                    distances.put(neighbour, nextDistance);
+                    queue.add(neighbour);
+                }
+            }
+        }
+
+        for (Map.Entry<String, Integer> entry : previous.entrySet()) {
+            if (!entry.getValue().equals(distances.get(entry.getKey()))) {
+                changed.add(entry.getKey());
+            }
+        }
+        for (String nodeId : distances.keySet()) {
+            if (!previous.containsKey(nodeId)) {
+                changed.add(nodeId);
+            }
+        }
+    }
+
+    private void finish(Set<String> changed) {
+        if (distancesDirty) {
+            distancesDirty = false;
+            recomputeDistances(changed);
+        }
+        changed.remove(localNodeId);
+        if (!changed.isEmpty()) {
+            actions.onTopologyChanged(changed);
+        }
+    }
+
+    private BluetoothMeshMessage newMessage(TopologyUpdate update) {
+        return new BluetoothMeshMessage(actions.newMessageId(), BluetoothMeshService.MSG_TYPE_TOPOLOGY,
+                localNodeId, null, gson.toJson(update), now(), 0);
+    }
+
+    private TopologyUpdate parse(BluetoothMeshMessage message) {
+        try {
+            return gson.fromJson(message.getContent(), TopologyUpdate.class);
+        } catch (JsonParseException e) {
+            Log.e(TAG, "Malformed " + message.getType() + " payload", e);
+            return null;
+        }
+    }
+
+    long now() {
+        return System.currentTimeMillis();
+    }
+}
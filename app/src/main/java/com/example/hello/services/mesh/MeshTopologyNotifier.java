@@ -0,0 +1,183 @@
+package com.example.hello.services.mesh;
+
+import com.example.hello.models.BluetoothMeshNode;
+import com.example.hello.models.MeshNodeSnapshot;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * MeshTopologyNotifier - Debounces node changes into one diff per interval
+ *
+ * Joins, departures, route changes and topology gossip can touch dozens of
+ * nodes in a burst; a mass disconnect used to post one full node list per
+ * stale node. Instead, the engine marks the topology as changed, and the
+ * first mark schedules a flush after the interval. The flush snapshots every
+ * node, compares the snapshots with the ones last published and reports
+ * only the nodes that were added, removed or changed, so the UI rebinds
+ * just those rows.
+ *
+ * The published list keeps its order: nodes that stay keep their position
+ * and new ones are appended, so an adapter applying the diff in order
+ * (removals, changes, then additions) ends up with {@link TopologyDiff#getNodes()}.
+ *
+ * All methods are synchronized; the listener is called without the lock held.
+ */
+public class MeshTopologyNotifier {
+    public static final long DEFAULT_INTERVAL_MS = 250;
+
+    /**
+     * Operations the notifier needs from the engine.
+     */
+    public interface NotifierActions {
+        /** The current nodes; only called from a scheduled flush or {@link #flush()}. */
+        Collection<BluetoothMeshNode> getNodes();
+        void schedule(Runnable task, long delayMillis);
+        void onTopologyChanged(TopologyDiff diff);
+    }
+
+    /**
+     * What changed since the last diff. All lists are immutable.
+     */
+    public static final class TopologyDiff {
+        private final List<MeshNodeSnapshot> added;
+        private final List<MeshNodeSnapshot> removed;
+        private final List<MeshNodeSnapshot> changed;
+        private final List<MeshNodeSnapshot> nodes;
+
+        TopologyDiff(List<MeshNodeSnapshot> added, List<MeshNodeSnapshot> removed,
+                     List<MeshNodeSnapshot> changed, List<MeshNodeSnapshot> nodes) {
+            this.added = Collections.unmodifiableList(added);
+            this.removed = Collections.unmodifiableList(removed);
+            this.changed = Collections.unmodifiableList(changed);
+            this.nodes = Collections.unmodifiableList(nodes);
+        }
+
+        /** Nodes that are new since the last diff, in the order they were appended. */
+        public List<MeshNodeSnapshot> getAdded() {
+            return added;
+        }
+
+        /** Nodes that have gone, as they were last published. */
+        public List<MeshNodeSnapshot> getRemoved() {
+            return removed;
+        }
+
+        /** Nodes that are still there but look different. */
+        public List<MeshNodeSnapshot> getChanged() {
+            return changed;
+        }
+
+        /** Every node after this diff. */
+        public List<MeshNodeSnapshot> getNodes() {
+            return nodes;
+        }
+
+        public boolean isEmpty() {
+            return added.isEmpty() && removed.isEmpty() && changed.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            return "TopologyDiff{added=" + added.size() + ", removed=" + removed.size()
+                    + ", changed=" + changed.size() + ", nodes=" + nodes.size() + '}';
+        }
+    }
+
+    private final NotifierActions actions;
+    private Map<String, MeshNodeSnapshot> published = new LinkedHashMap<>();
+    private long intervalMillis = DEFAULT_INTERVAL_MS;
+    private boolean flushPending;
+    private int diffCount;
+
+    public MeshTopologyNotifier(NotifierActions actions) {
+        this.actions = actions;
+    }
+
+    /**
+     * How long changes are gathered before they are reported. 0 reports
+     * every change as soon as it is marked.
+     */
+    public synchronized void setInterval(long intervalMillis) {
+        this.intervalMillis = Math.max(0, intervalMillis);
+    }
+
+    public synchronized long getInterval() {
+        return intervalMillis;
+    }
+
+    /**
+     * Note that some node may have changed; a diff follows within the
+     * interval. Cheap to call repeatedly.
+     */
+    public void markChanged() {
+        synchronized (this) {
+            if (flushPending) {
+                return;
+            }
+            flushPending = true;
+            if (intervalMillis > 0) {
+                actions.schedule(this::flush, intervalMillis);
+                return;
+            }
+        }
+        flush();
+    }
+
+    /**
+     * Compare the nodes with what was last reported and report the
+     * difference now, if there is any.
+     */
+    public void flush() {
+        TopologyDiff diff;
+        synchronized (this) {
+            flushPending = false;
+            Map<String, MeshNodeSnapshot> current = new LinkedHashMap<>();
+            for (BluetoothMeshNode node : actions.getNodes()) {
+                current.put(node.getNodeId(), new MeshNodeSnapshot(node));
+            }
+
+            List<MeshNodeSnapshot> removed = new ArrayList<>();
+            List<MeshNodeSnapshot> changed = new ArrayList<>();
+            Map<String, MeshNodeSnapshot> next = new LinkedHashMap<>();
+            for (MeshNodeSnapshot previous : published.values()) {
+                MeshNodeSnapshot now = current.remove(previous.getNodeId());
+                if (now == null) {
+                    removed.add(previous);
+                    continue;
+                }
+                if (!now.equals(previous)) {
+                    changed.add(now);
+                }
+                next.put(now.getNodeId(), now);
+            }
+            // What is left in current is new
+            List<MeshNodeSnapshot> added = new ArrayList<>(current.values());
+            next.putAll(current);
+
+            diff = new TopologyDiff(added, removed, changed, new ArrayList<>(next.values()));
+            if (diff.isEmpty()) {
+                return;
+            }
+            published = next;
+            diffCount++;
+        }
+        actions.onTopologyChanged(diff);
+    }
+
+    /**
+     * The nodes as last reported.
+     */
+    public synchronized List<MeshNodeSnapshot> getNodes() {
+        return new ArrayList<>(published.values());
+    }
+
+    /** Number of diffs reported so far. */
+    public synchronized int getDiffCount() {
+        return diffCount;
+    }
+}
@@ -0,0 +1,73 @@
+package com.example.hello.services.mesh;
+
+import com.example.hello.models.BluetoothMeshMessage;
+
+import java.util.List;
+
+/**
+ * MeshTransport - Point-to-point links to neighbouring nodes
+ *
+ * The engine only ever sees links identified by an opaque ID (the peer's
+ * Bluetooth address on a phone) that carry encoded frames. How links are
+ * discovered, accepted, dialled and pumped is up to the implementation:
+ * RFCOMM sockets in the app, an in-memory network in the simulator.
+ *
+ * Listener callbacks may arrive on any thread; the engine moves them onto
+ * its executor.
+ */
+public interface MeshTransport {
+
+    interface Listener {
+        void onLinkUp(String linkId, boolean outbound);
+        void onFrame(BluetoothMeshMessage message, String linkId);
+        void onLinkDown(String linkId);
+        void onConnectFailed(String address);
+        /** A peer in range turned up during discovery. */
+        void onPeerDiscovered(String address, int rssi);
+        /**
+         * A queued frame was dropped to make room for another. Called on the
+         * sending thread with the link's queue locked.
+         */
+        void onFrameEvicted(String linkId, OutboundFrame frame);
+    }
+
+    /** Start accepting links and reporting them to {@code listener}. */
+    void start(Listener listener);
+
+    /**
+     * Start dialling a peer in the background.
+     *
+     * @return false if the attempt could not be started
+     */
+    boolean connect(String address);
+
+    /** Close one link; {@link Listener#onLinkDown} follows. */
+    void disconnect(String linkId);
+
+    /**
+     * Look for peers in range, reporting each through
+     * {@link Listener#onPeerDiscovered}. Slows live links while it runs.
+     *
+     * @return false if discovery could not be started
+     */
+    boolean startDiscovery();
+
+    /**
+     * Queue a frame on one link. Never blocks.
+     *
+     * @return false if there is no such link or the frame was dropped
+     */
+    boolean send(String linkId, OutboundFrame frame);
+
+    List<String> getLinkIds();
+
+    int getLinkCount();
+
+    boolean isLinked(String linkId);
+
+    /** Frames waiting to be written on a link, or -1 if there is no such link. */
+    int getQueueDepth(String linkId);
+
+    /** Close every link; no callbacks are made afterwards. */
+    void stop();
+}
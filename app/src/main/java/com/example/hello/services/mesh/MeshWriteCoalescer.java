@@ -0,0 +1,148 @@
+package com.example.hello.services.mesh;
+
+import com.example.hello.models.BluetoothMeshMessage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * MeshWriteCoalescer - Packs small queued frames into fewer socket writes
+ *
+ * Every write on an RFCOMM socket costs a trip through the Bluetooth stack
+ * and usually a partly filled baseband packet, so a burst of heartbeats,
+ * announcements and chat lines written one by one spends much of the link
+ * on overhead. When enabled, frames drained from a link's queue are copied
+ * into one batch and written together once the batch reaches
+ * {@code maxBatchBytes} or its first frame has waited {@code maxDelayNanos}.
+ *
+ * Holding a batch only pays when more frames are coming, so it adapts: a
+ * partial batch is only held back when the previous write carried more
+ * than one frame. A lone message on a quiet link goes out at once. Emergency
+ * frames are never held and push out whatever is batched ahead of them, and
+ * frames that fill a batch on their own are written straight from their
+ * array.
+ *
+ * Frames stay in order and each is written whole. With batching disabled
+ * every frame is written on its own, as before. Only the thread that owns
+ * the link may use it.
+ */
+final class MeshWriteCoalescer {
+    static final int DEFAULT_MAX_BATCH_BYTES = 4096;
+    static final long DEFAULT_MAX_DELAY_MS = 4;
+
+    private final MeshBufferPool bufferPool;
+    private final int maxBatchBytes;
+    private final long maxDelayNanos;
+
+    private byte[] batch;
+    private int batchBytes;
+    private int batchFrames;
+    private long batchStartNanos;
+    private int lastWriteFrames;
+    private long writes;
+
+    /**
+     * @param maxBatchBytes largest batch written at once; 0 disables batching
+     */
+    MeshWriteCoalescer(MeshBufferPool bufferPool, int maxBatchBytes, long maxDelayNanos) {
+        this.bufferPool = bufferPool;
+        this.maxBatchBytes = maxBatchBytes;
+        this.maxDelayNanos = maxDelayNanos;
+    }
+
+    boolean isEnabled() {
+        return maxBatchBytes > 0;
+    }
+
+    /**
+     * Move up to {@code maxFrames} frames from {@code queue} towards
+     * {@code out}, writing whatever is due. Does not flush the stream.
+     *
+     * @return frames taken from the queue
+     */
+    int drain(MeshOutboundQueue queue, int maxFrames, long nowNanos, OutputStream out) throws IOException {
+        int taken = 0;
+        OutboundFrame frame;
+        while (taken < maxFrames && (frame = queue.poll()) != null) {
+            taken++;
+            if (!isEnabled() || frame.getLength() >= maxBatchBytes) {
+                flushBatch(out);
+                write(out, frame.getBytes(), frame.getLength(), 1);
+                continue;
+            }
+            if (batchBytes + frame.getLength() > maxBatchBytes) {
+                flushBatch(out);
+            }
+            append(frame, nowNanos);
+            if (frame.getPriorityClass() == BluetoothMeshMessage.PRIORITY_EMERGENCY) {
+                flushBatch(out);
+            }
+        }
+
+        if (batchFrames > 0 && (lastWriteFrames <= 1 || nowNanos - batchStartNanos >= maxDelayNanos)) {
+            flushBatch(out);
+        }
+        return taken;
+    }
+
+    /**
+     * How long until a held batch is due, for a caller deciding how long it
+     * may sleep.
+     *
+     * @return nanoseconds, 0 if overdue, {@link Long#MAX_VALUE} if nothing is held
+     */
+    long nanosUntilDue(long nowNanos) {
+        if (batchFrames == 0) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0, batchStartNanos + maxDelayNanos - nowNanos);
+    }
+
+    boolean hasPending() {
+        return batchFrames > 0;
+    }
+
+    /** Socket writes issued so far. */
+    long getWriteCount() {
+        return writes;
+    }
+
+    /**
+     * Drop any held batch and return the buffer to the pool.
+     */
+    void release() {
+        if (batch != null) {
+            bufferPool.release(batch);
+            batch = null;
+        }
+        batchBytes = 0;
+        batchFrames = 0;
+    }
+
+    private void append(OutboundFrame frame, long nowNanos) {
+        if (batch == null) {
+            batch = bufferPool.acquire(maxBatchBytes);
+        }
+        if (batchFrames == 0) {
+            batchStartNanos = nowNanos;
+        }
+        System.arraycopy(frame.getBytes(), 0, batch, batchBytes, frame.getLength());
+        batchBytes += frame.getLength();
+        batchFrames++;
+    }
+
+    private void flushBatch(OutputStream out) throws IOException {
+        if (batchFrames == 0) {
+            return;
+        }
+        write(out, batch, batchBytes, batchFrames);
+        batchBytes = 0;
+        batchFrames = 0;
+    }
+
+    private void write(OutputStream out, byte[] bytes, int length, int frames) throws IOException {
+        out.write(bytes, 0, length);
+        lastWriteFrames = frames;
+        writes++;
+    }
+}
@@ -0,0 +1,226 @@
+package com.example.hello.services.mesh;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * MessageIdCache - Bounded, time-expiring duplicate filter for mesh message IDs
+ *
+ * Message IDs are reduced to a 64-bit hash plus an independent 32-bit check
+ * value and stored in fixed-size open-addressing tables, so memory use is set
+ * once at construction and never grows with traffic. Entries older than the
+ * TTL are treated as absent and their slots are reused in place.
+ *
+ * The table is split into independently locked segments so links can look up
+ * IDs concurrently. Each entry lives within {@link #PROBE_WINDOW} slots of its
+ * home slot; when that window is full the oldest entry in it is evicted.
+ *
+ * A "false positive" is counted when two IDs share the 64-bit hash but differ
+ * in the check value. Such a collision is resolved as a miss, so it never
+ * causes a real message to be dropped.
+ */
+public class MessageIdCache {
+    public static final long DEFAULT_TTL_MS = 5 * 60 * 1000L;
+    public static final int DEFAULT_MAX_MEMORY_BYTES = 256 * 1024;
+
+    // hash (8) + check (4) + timestamp (8)
+    static final int BYTES_PER_SLOT = 20;
+    static final int PROBE_WINDOW = 8;
+    private static final int SEGMENT_COUNT = 16;
+
+    private final long ttlMillis;
+    private final Segment[] segments;
+    private final int capacity;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder falsePositives = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public MessageIdCache() {
+        this(DEFAULT_MAX_MEMORY_BYTES, DEFAULT_TTL_MS);
+    }
+
+    /**
+     * @param maxMemoryBytes upper bound for the slot tables
+     * @param ttlMillis      how long an ID is remembered after it was last seen
+     */
+    public MessageIdCache(int maxMemoryBytes, long ttlMillis) {
+        if (ttlMillis <= 0) {
+            throw new IllegalArgumentException("ttlMillis must be positive");
+        }
+
+        int slotsPerSegment = Integer.highestOneBit(
+                Math.max(PROBE_WINDOW, maxMemoryBytes / BYTES_PER_SLOT / SEGMENT_COUNT));
+        this.ttlMillis = ttlMillis;
+        this.segments = new Segment[SEGMENT_COUNT];
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            segments[i] = new Segment(slotsPerSegment);
+        }
+        this.capacity = slotsPerSegment * SEGMENT_COUNT;
+    }
+
+    /**
+     * Record an ID as seen.
+     *
+     * @return true if the ID was already present (the message is a duplicate)
+     */
+    public boolean markSeen(String messageId) {
+        return markSeen(messageId, System.currentTimeMillis());
+    }
+
+    public boolean markSeen(String messageId, long nowMillis) {
+        if (messageId == null) {
+            return false;
+        }
+        long hash = hash64(messageId);
+        int check = messageId.hashCode();
+        boolean duplicate = segmentFor(hash).markSeen(hash, check, nowMillis);
+        if (duplicate) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        return duplicate;
+    }
+
+    /**
+     * Look up an ID without recording it.
+     */
+    public boolean contains(String messageId) {
+        return contains(messageId, System.currentTimeMillis());
+    }
+
+    public boolean contains(String messageId, long nowMillis) {
+        if (messageId == null) {
+            return false;
+        }
+        long hash = hash64(messageId);
+        return segmentFor(hash).contains(hash, messageId.hashCode(), nowMillis);
+    }
+
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getMemoryBytes() {
+        return (long) capacity * BYTES_PER_SLOT;
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getFalsePositiveCount() {
+        return falsePositives.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    private Segment segmentFor(long hash) {
+        return segments[(int) (hash >>> 60) & (SEGMENT_COUNT - 1)];
+    }
+
+    // 64-bit FNV-1a over UTF-16 code units with a final avalanche step
+    static long hash64(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        // Zero marks an empty slot
+        return hash == 0 ? 1 : hash;
+    }
+
+    private final class Segment {
+        private final long[] hashes;
+        private final int[] checks;
+        private final long[] lastSeen;
+        private final int mask;
+
+        Segment(int slots) {
+            this.hashes = new long[slots];
+            this.checks = new int[slots];
+            this.lastSeen = new long[slots];
+            this.mask = slots - 1;
+        }
+
+        synchronized boolean markSeen(long hash, int check, long now) {
+            int home = (int) hash & mask;
+            int victim = -1;
+            long victimAge = Long.MIN_VALUE;
+
+            for (int probe = 0; probe < PROBE_WINDOW; probe++) {
+                int slot = (home + probe) & mask;
+                long slotHash = hashes[slot];
+                boolean live = slotHash != 0 && now - lastSeen[slot] < ttlMillis;
+
+                if (live && slotHash == hash) {
+                    if (checks[slot] == check) {
+                        lastSeen[slot] = now;
+                        return true;
+                    }
+                    // Same 64-bit hash, different ID: take over the slot
+                    falsePositives.increment();
+                    store(slot, hash, check, now);
+                    return false;
+                }
+
+                if (!live) {
+                    if (victimAge != Long.MAX_VALUE) {
+                        victim = slot;
+                        victimAge = Long.MAX_VALUE;
+                    }
+                } else if (now - lastSeen[slot] > victimAge) {
+                    victim = slot;
+                    victimAge = now - lastSeen[slot];
+                }
+            }
+
+            if (victimAge != Long.MAX_VALUE) {
+                evictions.increment();
+            }
+            store(victim, hash, check, now);
+            return false;
+        }
+
+        synchronized boolean contains(long hash, int check, long now) {
+            int home = (int) hash & mask;
+            for (int probe = 0; probe < PROBE_WINDOW; probe++) {
+                int slot = (home + probe) & mask;
+                if (hashes[slot] == hash && checks[slot] == check
+                        && now - lastSeen[slot] < ttlMillis) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        synchronized void clear() {
+            Arrays.fill(hashes, 0L);
+            Arrays.fill(checks, 0);
+            Arrays.fill(lastSeen, 0L);
+        }
+
+        private void store(int slot, long hash, int check, long now) {
+            hashes[slot] = hash;
+            checks[slot] = check;
+            lastSeen[slot] = now;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.example.hello.services.mesh;
+
+import com.example.hello.models.BluetoothMeshMessage;
+import com.example.hello.services.BluetoothMeshService;
+
+/**
+ * OutboundFrame - An encoded mesh frame ready to be written to one or more links
+ *
+ * The byte array is produced once per fan-out and shared by every link queue
+ * it is offered to, so it must never be modified after construction.
+ */
+public final class OutboundFrame {
+    // Higher rank is dropped first when a queue overflows; 0 is never expendable
+    static final int RANK_NONE = 0;
+    static final int RANK_DISCOVERY = 1;
+    static final int RANK_HEARTBEAT = 2;
+
+    private final byte[] bytes;
+    private final String messageType;
+    private final int priorityClass;
+    private final int expendableRank;
+    private final long createdAtNanos;
+
+    public OutboundFrame(byte[] bytes, String messageType) {
+        this(bytes, messageType, BluetoothMeshMessage.PRIORITY_DEFAULT);
+    }
+
+    /**
+     * @param priority the message's {@code PRIORITY_*} value, possibly the default
+     */
+    public OutboundFrame(byte[] bytes, String messageType, int priority) {
+        this.bytes = bytes;
+        this.messageType = messageType;
+        this.priorityClass = priorityClass(messageType, priority);
+        this.expendableRank = rankFor(messageType);
+        this.createdAtNanos = System.nanoTime();
+    }
+
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    public int getLength() {
+        return bytes.length;
+    }
+
+    public String getMessageType() {
+        return messageType;
+    }
+
+    /** One of {@code PRIORITY_BULK} to {@code PRIORITY_EMERGENCY}; never the default. */
+    public int getPriorityClass() {
+        return priorityClass;
+    }
+
+    public long getCreatedAtNanos() {
+        return createdAtNanos;
+    }
+
+    int getExpendableRank() {
+        return expendableRank;
+    }
+
+    /** Bulk frames (file chunks, history batches) queue behind interactive traffic and can be re-requested if dropped. */
+    boolean isBulk() {
+        return priorityClass == BluetoothMeshMessage.PRIORITY_BULK;
+    }
+
+    /**
+     * The class a message is scheduled in: its own priority if it has one,
+     * otherwise the default for its type.
+     */
+    public static int priorityClass(String messageType, int priority) {
+        if (priority > BluetoothMeshMessage.PRIORITY_DEFAULT && priority <= BluetoothMeshMessage.PRIORITY_EMERGENCY) {
+            return priority;
+        }
+        if (messageType == null) {
+            return BluetoothMeshMessage.PRIORITY_NORMAL;
+        }
+        switch (messageType) {
+            case BluetoothMeshService.MSG_TYPE_FILE_CHUNK:
+            case BluetoothMeshService.MSG_TYPE_HISTORY_BATCH:
+                return BluetoothMeshMessage.PRIORITY_BULK;
+            case BluetoothMeshService.MSG_TYPE_HEARTBEAT:
+            case BluetoothMeshService.MSG_TYPE_DISCOVERY:
+            case BluetoothMeshService.MSG_TYPE_TOPOLOGY:
+            case BluetoothMeshService.MSG_TYPE_ROUTE_REQUEST:
+            case BluetoothMeshService.MSG_TYPE_ROUTE_REPLY:
+            case BluetoothMeshService.MSG_TYPE_ROUTE_ERROR:
+            case BluetoothMeshService.MSG_TYPE_ACK:
+            case BluetoothMeshService.MSG_TYPE_FILE_NACK:
+            case BluetoothMeshService.MSG_TYPE_BACKPRESSURE:
+            case BluetoothMeshService.MSG_TYPE_LINK_PIN:
+                return BluetoothMeshMessage.PRIORITY_CONTROL;
+            default:
+                return BluetoothMeshMessage.PRIORITY_NORMAL;
+        }
+    }
+
+    private static int rankFor(String messageType) {
+        if (BluetoothMeshService.MSG_TYPE_HEARTBEAT.equals(messageType)) {
+            return RANK_HEARTBEAT;
+        }
+        if (BluetoothMeshService.MSG_TYPE_DISCOVERY.equals(messageType)) {
+            return RANK_DISCOVERY;
+        }
+        return RANK_NONE;
+    }
+}
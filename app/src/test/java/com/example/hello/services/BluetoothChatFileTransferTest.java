@@ -0,0 +1,332 @@
+package com.example.hello.services;
+
+import com.google.gson.Gson;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class BluetoothChatFileTransferTest {
+    private File senderDir;
+    private File receiverDir;
+    private Endpoint a;
+    private Endpoint b;
+
+    @Before
+    public void setUp() throws Exception {
+        senderDir = Files.createTempDirectory("chat-send").toFile();
+        receiverDir = Files.createTempDirectory("chat-receive").toFile();
+        a = new Endpoint(senderDir);
+        b = new Endpoint(receiverDir);
+    }
+
+    @After
+    public void tearDown() {
+        deleteRecursively(senderDir);
+        deleteRecursively(receiverDir);
+    }
+
+    /**
+     * One side of a session. Whatever it would write is collected the way
+     * its writer thread would: queued control frames first, then chunks.
+     * Background work runs at once unless held for {@link #runBackground}.
+     */
+    private static class Endpoint {
+        final List<BluetoothChatFrame> queued = new ArrayList<>();
+        final List<Long> progress = new ArrayList<>();
+        final Map<String, File> finished = new HashMap<>();
+        final List<Runnable> background = new ArrayList<>();
+        final BluetoothChatFileTransfer transfer;
+        BluetoothChatFileTransfer.Receiver receiver;
+        boolean holdBackground;
+        int dataFrames;
+
+        Endpoint(File directory) {
+            transfer = new BluetoothChatFileTransfer(directory, new BluetoothChatFileTransfer.TransferActions() {
+                @Override
+                public boolean send(BluetoothChatFrame frame) {
+                    queued.add(frame);
+                    return true;
+                }
+
+                @Override
+                public void wakeWriter() {
+                }
+
+                @Override
+                public void runInBackground(Runnable task) {
+                    if (holdBackground) {
+                        background.add(task);
+                    } else {
+                        task.run();
+                    }
+                }
+
+                @Override
+                public void onProgress(BluetoothChatFileTransfer.FileInfo info, long bytesDone) {
+                    progress.add(bytesDone);
+                }
+
+                @Override
+                public void onFinished(BluetoothChatFileTransfer.FileInfo info, File file) {
+                    finished.put(info.getTransferId(), file);
+                }
+            }, new Gson());
+            receiver = transfer.newReceiver();
+        }
+
+        void runBackground() {
+            List<Runnable> tasks = new ArrayList<>(background);
+            background.clear();
+            for (Runnable task : tasks) {
+                task.run();
+            }
+        }
+
+        byte[] drain(int maxWrites) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            for (BluetoothChatFrame frame : queued) {
+                frame.writeTo(out);
+            }
+            queued.clear();
+            for (int i = 0; i < maxWrites && transfer.writeNext(out); i++) {
+                // keep writing
+            }
+            out.flush();
+            return bytes.toByteArray();
+        }
+
+        void receive(byte[] bytes) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            while (in.available() > 0) {
+                int type = BluetoothChatFrame.readType(in);
+                int length = BluetoothChatFrame.readLength(in, type);
+                if (type == BluetoothChatFrame.TYPE_FILE_DATA) {
+                    dataFrames++;
+                    receiver.receiveData(in, length);
+                } else {
+                    receiver.receive(BluetoothChatFrame.readPayload(in, type, length));
+                }
+            }
+        }
+    }
+
+    // Swap everything both sides have to say, at most maxWrites offers or chunks per side
+    private int exchange(int maxWrites) throws IOException {
+        byte[] fromA = a.drain(maxWrites);
+        b.receive(fromA);
+        byte[] fromB = b.drain(maxWrites);
+        a.receive(fromB);
+        return fromA.length + fromB.length;
+    }
+
+    private void runToCompletion() throws IOException {
+        while (exchange(Integer.MAX_VALUE) > 0) {
+            // keep going
+        }
+    }
+
+    private File createFile(String name, int size) throws IOException {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        File file = new File(senderDir, name);
+        Files.write(file.toPath(), bytes);
+        return file;
+    }
+
+    private static boolean sameContent(File expected, File actual) throws IOException {
+        return Arrays.equals(Files.readAllBytes(expected.toPath()), Files.readAllBytes(actual.toPath()));
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    @Test
+    public void photo_arrivesIntactInFixedSizeChunks() throws IOException {
+        int size = 12 * BluetoothChatFileTransfer.CHUNK_SIZE + 123;
+        File photo = createFile("camp.jpg", size);
+        BluetoothChatFileTransfer.FileInfo info = a.transfer.send(photo, "image/jpeg");
+
+        runToCompletion();
+
+        File received = b.finished.get(info.getTransferId());
+        assertNotNull(received);
+        assertEquals("camp.jpg", received.getName());
+        assertTrue(sameContent(photo, received));
+        assertEquals(photo, a.finished.get(info.getTransferId()));
+        assertEquals(13, b.dataFrames);
+
+        // Progress is throttled, but both sides end on the full size
+        assertEquals(size, (long) a.progress.get(a.progress.size() - 1));
+        assertEquals(size, (long) b.progress.get(b.progress.size() - 1));
+        assertTrue(b.progress.size() <= size / BluetoothChatFileTransfer.PROGRESS_INTERVAL_BYTES + 2);
+        assertFalse(a.transfer.hasPendingWrites());
+    }
+
+    @Test
+    public void droppedSession_resumesFromTheReceiversOffset() throws IOException {
+        int size = 10 * BluetoothChatFileTransfer.CHUNK_SIZE;
+        File photo = createFile("donor.png", size);
+        BluetoothChatFileTransfer.FileInfo info = a.transfer.send(photo, "image/png");
+
+        // Offer, accept, then four chunks before the link drops with one more in flight
+        exchange(1);
+        exchange(4);
+        a.drain(1);
+        b.receiver.close();
+        b.receiver = b.transfer.newReceiver();
+        assertEquals(4L * BluetoothChatFileTransfer.CHUNK_SIZE,
+                new File(receiverDir, info.getTransferId() + ".part").length());
+
+        // Next session: re-offered and only the rest is streamed
+        a.transfer.onSessionStarted();
+        b.dataFrames = 0;
+        runToCompletion();
+
+        File received = b.finished.get(info.getTransferId());
+        assertNotNull(received);
+        assertTrue(sameContent(photo, received));
+        assertEquals(6, b.dataFrames);
+        assertEquals(photo, a.finished.get(info.getTransferId()));
+    }
+
+    @Test
+    public void changedBytes_failVerificationAtBothEnds() throws IOException {
+        File document = createFile("report.pdf", 3 * BluetoothChatFileTransfer.CHUNK_SIZE);
+        BluetoothChatFileTransfer.FileInfo info = a.transfer.send(document, "application/pdf");
+        exchange(1);
+
+        // The file changes after it was hashed and offered
+        try (RandomAccessFile file = new RandomAccessFile(document, "rw")) {
+            file.seek(BluetoothChatFileTransfer.CHUNK_SIZE + 7);
+            file.write(0x42);
+        }
+        runToCompletion();
+
+        assertTrue(b.finished.containsKey(info.getTransferId()));
+        assertNull(b.finished.get(info.getTransferId()));
+        assertNull(a.finished.get(info.getTransferId()));
+        assertTrue(a.finished.containsKey(info.getTransferId()));
+        // Neither a bad file nor a part file is left behind
+        assertEquals(0, receiverDir.listFiles().length);
+    }
+
+    @Test
+    public void cancelledTransfer_stopsStreamingAndDropsThePartFile() throws IOException {
+        File video = createFile("clip.mp4", 20 * BluetoothChatFileTransfer.CHUNK_SIZE);
+        BluetoothChatFileTransfer.FileInfo info = a.transfer.send(video, "video/mp4");
+        exchange(1);
+        exchange(3);
+
+        a.transfer.cancel(info.getTransferId());
+        assertFalse(a.transfer.hasPendingWrites());
+        runToCompletion();
+
+        assertTrue(a.finished.containsKey(info.getTransferId()));
+        assertNull(b.finished.get(info.getTransferId()));
+        assertTrue(b.finished.containsKey(info.getTransferId()));
+        assertEquals(0, receiverDir.listFiles().length);
+    }
+
+    @Test
+    public void queuedFiles_goOneAfterAnother() throws IOException {
+        File first = createFile("first.jpg", 2 * BluetoothChatFileTransfer.CHUNK_SIZE + 1);
+        File second = createFile("second.jpg", BluetoothChatFileTransfer.CHUNK_SIZE / 2);
+        BluetoothChatFileTransfer.FileInfo firstInfo = a.transfer.send(first, "image/jpeg");
+        BluetoothChatFileTransfer.FileInfo secondInfo = a.transfer.send(second, "image/jpeg");
+
+        runToCompletion();
+
+        assertTrue(sameContent(first, b.finished.get(firstInfo.getTransferId())));
+        assertTrue(sameContent(second, b.finished.get(secondInfo.getTransferId())));
+    }
+
+    @Test
+    public void hashing_runsInTheBackgroundAtBothEnds() throws IOException {
+        a.holdBackground = true;
+        b.holdBackground = true;
+        File photo = createFile("beach.jpg", 3 * BluetoothChatFileTransfer.CHUNK_SIZE);
+        BluetoothChatFileTransfer.FileInfo info = a.transfer.send(photo, "image/jpeg");
+
+        // The writer has nothing to offer until the hash is back
+        assertFalse(a.transfer.hasPendingWrites());
+        assertEquals(0, exchange(Integer.MAX_VALUE));
+        assertEquals(1, a.background.size());
+        a.runBackground();
+        assertTrue(a.transfer.hasPendingWrites());
+
+        // Every byte arrives, but nothing is handed over until it is verified
+        runToCompletion();
+        assertFalse(b.finished.containsKey(info.getTransferId()));
+        assertEquals(1, b.background.size());
+
+        // A repeated offer meanwhile is not accepted a second time
+        a.transfer.onSessionStarted();
+        exchange(1);
+        assertEquals(0, b.queued.size());
+
+        b.runBackground();
+        runToCompletion();
+        assertTrue(sameContent(photo, b.finished.get(info.getTransferId())));
+        assertEquals(photo, a.finished.get(info.getTransferId()));
+    }
+
+    @Test
+    public void oldSessionEndingLate_leavesTheNewSessionsFilesAlone() throws IOException {
+        File photo = createFile("late.jpg", 6 * BluetoothChatFileTransfer.CHUNK_SIZE);
+        BluetoothChatFileTransfer.FileInfo info = a.transfer.send(photo, "image/jpeg");
+        exchange(1);
+        exchange(2);
+
+        // Reconnected before the old reader got round to winding down
+        BluetoothChatFileTransfer.Receiver old = b.receiver;
+        b.receiver = b.transfer.newReceiver();
+        a.transfer.onSessionStarted();
+        exchange(1);
+        old.close();
+
+        runToCompletion();
+        assertTrue(sameContent(photo, b.finished.get(info.getTransferId())));
+        assertEquals(photo, a.finished.get(info.getTransferId()));
+    }
+
+    @Test
+    public void offerWithAPath_isSavedUnderItsBareName() {
+        // An empty file, so the offer alone completes it
+        BluetoothChatFrame offer = BluetoothChatFrame.text("{\"id\":\"x1\",\"name\":\"../../shared_prefs/evil.xml\","
+                + "\"size\":0,\"sha256\":\"e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855\"}");
+        offer = new BluetoothChatFrame(BluetoothChatFrame.TYPE_FILE_OFFER, offer.getPayload());
+
+        b.receiver.receive(offer);
+
+        File received = b.finished.get("x1");
+        assertNotNull(received);
+        assertEquals(receiverDir, received.getParentFile());
+        assertEquals("evil.xml", received.getName());
+    }
+}
@@ -0,0 +1,68 @@
+package com.example.hello.services;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class BluetoothChatFrameTest {
+
+    private static byte[] encode(BluetoothChatFrame... frames) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (BluetoothChatFrame frame : frames) {
+            frame.writeTo(out);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static DataInputStream streamOf(byte[] bytes) {
+        return new DataInputStream(new ByteArrayInputStream(bytes));
+    }
+
+    @Test
+    public void backToBackFrames_keepTheirBoundaries() throws IOException {
+        byte[] bytes = encode(BluetoothChatFrame.text("first"), BluetoothChatFrame.text(""),
+                BluetoothChatFrame.text("Blood needed: O− at camp 3 ✓"));
+        DataInputStream in = streamOf(bytes);
+
+        assertEquals("first", BluetoothChatFrame.readFrom(in).getText());
+        assertEquals("", BluetoothChatFrame.readFrom(in).getText());
+        BluetoothChatFrame last = BluetoothChatFrame.readFrom(in);
+        assertEquals(BluetoothChatFrame.TYPE_TEXT, last.getType());
+        assertEquals("Blood needed: O− at camp 3 ✓", last.getText());
+        assertEquals(-1, in.read());
+    }
+
+    @Test(expected = EOFException.class)
+    public void truncatedFrame_isEndOfStream() throws IOException {
+        byte[] bytes = encode(BluetoothChatFrame.text("cut short"));
+        BluetoothChatFrame.readFrom(streamOf(Arrays.copyOf(bytes, bytes.length - 3)));
+    }
+
+    @Test
+    public void oversizedLength_isRejectedBeforeAllocating() {
+        byte[] bytes = {BluetoothChatFrame.TYPE_TEXT, 0x7f, 0, 0, 0};
+        try {
+            BluetoothChatFrame.readFrom(streamOf(bytes));
+            fail("Expected an IOException");
+        } catch (EOFException e) {
+            fail("Length should be checked before reading the payload");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("length"));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void oversizedPayload_cannotBeSent() {
+        new BluetoothChatFrame(BluetoothChatFrame.TYPE_TEXT, new byte[BluetoothChatFrame.MAX_PAYLOAD + 1]);
+    }
+}
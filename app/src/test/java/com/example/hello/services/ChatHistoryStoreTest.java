@@ -0,0 +1,271 @@
+package com.example.hello.services;
+
+import com.example.hello.models.BluetoothMeshMessage;
+import com.example.hello.models.BluetoothMessage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class ChatHistoryStoreTest {
+    private File directory;
+    private File logFile;
+    // Runs the store's background work only when the test says so
+    private final List<Runnable> tasks = new ArrayList<>();
+    private final Executor executor = tasks::add;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("chat-history").toFile();
+        logFile = new File(directory, "history.log");
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private ChatHistoryStore<BluetoothMessage> openStore(int maxPerConversation) {
+        ChatHistoryStore<BluetoothMessage> store = new ChatHistoryStore<>(logFile,
+                ChatHistoryStore.BLUETOOTH_MESSAGES, executor, maxPerConversation);
+        store.open();
+        runTasks();
+        return store;
+    }
+
+    private void runTasks() {
+        while (!tasks.isEmpty()) {
+            tasks.remove(0).run();
+        }
+    }
+
+    private static BluetoothMessage message(int i) {
+        return new BluetoothMessage("message " + i, i % 2 == 0, 1000L + i);
+    }
+
+    private static List<String> contents(List<BluetoothMessage> messages) {
+        List<String> contents = new ArrayList<>();
+        for (BluetoothMessage message : messages) {
+            contents.add(message.getContent());
+        }
+        return contents;
+    }
+
+    @Test
+    public void burstOfAppends_isOneBatchedWrite() {
+        ChatHistoryStore<BluetoothMessage> store = openStore(ChatHistoryStore.DEFAULT_MAX_PER_CONVERSATION);
+        for (int i = 0; i < 100; i++) {
+            store.append("peer", message(i));
+        }
+
+        // Visible at once, before anything reached the disk
+        assertEquals(0, store.getWriteCount());
+        assertEquals(1, tasks.size());
+        assertEquals("[message 98, message 99]", contents(store.getPage("peer", 0, 2)).toString());
+
+        runTasks();
+        assertEquals(1, store.getWriteCount());
+        assertEquals("[message 98, message 99]", contents(store.getPage("peer", 0, 2)).toString());
+        assertTrue(logFile.length() > 0);
+    }
+
+    @Test
+    public void history_survivesReopenAndIsReadInPages() {
+        ChatHistoryStore<BluetoothMessage> store = openStore(ChatHistoryStore.DEFAULT_MAX_PER_CONVERSATION);
+        for (int i = 0; i < 120; i++) {
+            store.append("a", message(i));
+            if (i < 5) {
+                store.append("b", message(i));
+            }
+        }
+        store.close();
+        runTasks();
+
+        ChatHistoryStore<BluetoothMessage> reopened = openStore(ChatHistoryStore.DEFAULT_MAX_PER_CONVERSATION);
+        assertEquals(120, reopened.size("a"));
+        assertEquals(5, reopened.size("b"));
+
+        List<BluetoothMessage> latest = reopened.getPage("a", 0, 50);
+        assertEquals(50, latest.size());
+        assertEquals("message 70", latest.get(0).getContent());
+        assertEquals("message 119", latest.get(49).getContent());
+        assertEquals(message(119).isOutgoing(), latest.get(49).isOutgoing());
+
+        List<Boolean> hasMore = new ArrayList<>();
+        List<BluetoothMessage> oldest = new ArrayList<>();
+        reopened.loadPage("a", 100, 50, (messages, more) -> {
+            oldest.addAll(messages);
+            hasMore.add(more);
+        });
+        runTasks();
+        assertEquals(20, oldest.size());
+        assertEquals("message 0", oldest.get(0).getContent());
+        assertEquals("[false]", hasMore.toString());
+    }
+
+    @Test
+    public void lateArrivals_areIndexedByTimestamp() {
+        ChatHistoryStore<BluetoothMessage> store = openStore(ChatHistoryStore.DEFAULT_MAX_PER_CONVERSATION);
+        store.append("mesh", message(1));
+        store.append("mesh", message(3));
+        store.append("mesh", message(2));
+        runTasks();
+
+        assertEquals("[message 1, message 2, message 3]", contents(store.getPage("mesh", 0, 10)).toString());
+    }
+
+    @Test
+    public void appendsAfterAPageRequest_doNotShiftIt() {
+        ChatHistoryStore<BluetoothMessage> store = openStore(ChatHistoryStore.DEFAULT_MAX_PER_CONVERSATION);
+        for (int i = 0; i < 10; i++) {
+            store.append("peer", message(i));
+        }
+        runTasks();
+
+        // The screen shows the newest five and asks for the five before them
+        List<BluetoothMessage> page = new ArrayList<>();
+        store.loadPage("peer", 5, 5, (messages, more) -> page.addAll(messages));
+        store.append("peer", message(10));
+        store.append("peer", message(11));
+        runTasks();
+
+        assertEquals("[message 0, message 1, message 2, message 3, message 4]", contents(page).toString());
+    }
+
+    @Test
+    public void appendsBeforeOpen_areKept() {
+        ChatHistoryStore<BluetoothMessage> store = new ChatHistoryStore<>(logFile,
+                ChatHistoryStore.BLUETOOTH_MESSAGES, executor, ChatHistoryStore.DEFAULT_MAX_PER_CONVERSATION);
+        store.open();
+        store.append("peer", message(1));
+        runTasks();
+
+        assertEquals(1, store.size("peer"));
+        assertEquals(1, store.getWriteCount());
+    }
+
+    @Test
+    public void appendsWhileTheLogIsRead_areKept() throws Exception {
+        ChatHistoryStore<BluetoothMessage> store = openStore(ChatHistoryStore.DEFAULT_MAX_PER_CONVERSATION);
+        for (int i = 0; i < 5000; i++) {
+            store.append("old", message(i));
+        }
+        store.close();
+        runTasks();
+
+        ChatHistoryStore<BluetoothMessage> reopened = new ChatHistoryStore<>(logFile,
+                ChatHistoryStore.BLUETOOTH_MESSAGES, executor, Integer.MAX_VALUE);
+        Thread opener = new Thread(() -> {
+            try {
+                reopened.openNow();
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        });
+        opener.start();
+        // Appends go on while the scan runs, not after it
+        int appended = 0;
+        while (opener.isAlive() || appended < 10) {
+            reopened.append("new", message(appended++));
+        }
+        opener.join();
+
+        assertEquals(5000, reopened.size("old"));
+        assertEquals(appended, reopened.size("new"));
+        runTasks();
+        assertEquals("message " + (appended - 1), reopened.getPage("new", 0, 1).get(0).getContent());
+
+        reopened.close();
+        runTasks();
+        ChatHistoryStore<BluetoothMessage> again = openStore(Integer.MAX_VALUE);
+        assertEquals(appended, again.size("new"));
+    }
+
+    @Test
+    public void tornTail_isTruncatedOnOpen() throws IOException {
+        ChatHistoryStore<BluetoothMessage> store = openStore(ChatHistoryStore.DEFAULT_MAX_PER_CONVERSATION);
+        for (int i = 0; i < 10; i++) {
+            store.append("peer", message(i));
+        }
+        store.close();
+        runTasks();
+        long intactLength = logFile.length();
+
+        // Half a record, as if the process died mid-write
+        try (RandomAccessFile file = new RandomAccessFile(logFile, "rw")) {
+            file.seek(intactLength);
+            file.write(new byte[]{1, 0, 0, 0, 40, 7, 7});
+        }
+
+        ChatHistoryStore<BluetoothMessage> reopened = openStore(ChatHistoryStore.DEFAULT_MAX_PER_CONVERSATION);
+        assertEquals(10, reopened.size("peer"));
+        assertEquals(intactLength, logFile.length());
+        assertEquals("message 9", reopened.getPage("peer", 0, 1).get(0).getContent());
+    }
+
+    @Test
+    public void longSession_staysWithinTheCapAndTheLogIsCompacted() {
+        ChatHistoryStore<BluetoothMessage> store = openStore(100);
+        StringBuilder padding = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            padding.append('x');
+        }
+        for (int i = 0; i < 5000; i++) {
+            store.append("peer", new BluetoothMessage(i + padding.toString(), false, 1000L + i));
+            if (i % 10 == 9) {
+                runTasks();
+            }
+        }
+
+        assertEquals(100, store.size("peer"));
+        assertTrue(store.getPage("peer", 99, 1).get(0).getContent().startsWith("4900x"));
+        // 5000 records of ~300 bytes would be ~1.5 MB without compaction
+        assertTrue("log is " + logFile.length() + " bytes", logFile.length() < 600 * 1024);
+
+        ChatHistoryStore<BluetoothMessage> reopened = openStore(100);
+        assertEquals(100, reopened.size("peer"));
+        assertTrue(reopened.getPage("peer", 0, 1).get(0).getContent().startsWith("4999x"));
+    }
+
+    @Test
+    public void replayedMeshMessages_areStoredOnce() {
+        ChatHistoryStore<BluetoothMeshMessage> store = new ChatHistoryStore<>(logFile,
+                ChatHistoryStore.MESH_MESSAGES, executor, ChatHistoryStore.DEFAULT_MAX_PER_CONVERSATION);
+        store.open();
+        runTasks();
+        assertTrue(store.append("mesh", new BluetoothMeshMessage("m1", "CHAT", "node-a", null, "hi", 1000L, 0)));
+        assertFalse(store.append("mesh", new BluetoothMeshMessage("m1", "CHAT", "node-a", null, "hi", 1000L, 1)));
+        store.close();
+        runTasks();
+
+        // The mesh replays its history on start, sometimes before the store has opened
+        ChatHistoryStore<BluetoothMeshMessage> reopened = new ChatHistoryStore<>(logFile,
+                ChatHistoryStore.MESH_MESSAGES, executor, ChatHistoryStore.DEFAULT_MAX_PER_CONVERSATION);
+        reopened.open();
+        reopened.append("mesh", new BluetoothMeshMessage("m1", "CHAT", "node-a", null, "hi", 1000L, 0));
+        reopened.append("mesh", new BluetoothMeshMessage("m2", "CHAT", "node-b", null, "hey", 2000L, 2));
+        runTasks();
+        assertFalse(reopened.append("mesh", new BluetoothMeshMessage("m2", "CHAT", "node-b", null, "hey", 2000L, 2)));
+
+        List<BluetoothMeshMessage> page = reopened.getPage("mesh", 0, 10);
+        assertEquals(2, page.size());
+        assertEquals("m1", page.get(0).getMessageId());
+        assertEquals("node-b", page.get(1).getSourceNodeId());
+    }
+}
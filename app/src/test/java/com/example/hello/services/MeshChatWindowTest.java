@@ -0,0 +1,167 @@
+package com.example.hello.services;
+
+import com.example.hello.models.BluetoothMeshMessage;
+import com.example.hello.models.MeshMessageSnapshot;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class MeshChatWindowTest {
+    private static final String LOCAL_NODE = "node-local";
+
+    private File directory;
+    private final List<Runnable> tasks = new ArrayList<>();
+    private final Executor executor = tasks::add;
+    private ChatHistoryStore<BluetoothMeshMessage> history;
+    private MeshChatWindow window;
+    private List<MeshMessageSnapshot> shown = new ArrayList<>();
+    private boolean scrolledToNewest;
+    private int changes;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("mesh-window").toFile();
+        history = new ChatHistoryStore<>(new File(directory, "mesh.log"), ChatHistoryStore.MESH_MESSAGES,
+                executor, ChatHistoryStore.DEFAULT_MAX_PER_CONVERSATION);
+        history.open();
+        window = new MeshChatWindow(history, "mesh", LOCAL_NODE, executor, (messages, showNewest) -> {
+            shown = messages;
+            scrolledToNewest = showNewest;
+            changes++;
+        }, 100, 50);
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private void runTasks() {
+        while (!tasks.isEmpty()) {
+            tasks.remove(0).run();
+        }
+    }
+
+    private static BluetoothMeshMessage chat(int i, String sourceNodeId) {
+        BluetoothMeshMessage message = new BluetoothMeshMessage("m" + i, "CHAT", sourceNodeId, null,
+                "message " + i, 1000L * i, i % 3);
+        message.setSenderName(sourceNodeId.equals(LOCAL_NODE) ? null : "Phone " + i);
+        return message;
+    }
+
+    private void storeHistory(int count) {
+        for (int i = 0; i < count; i++) {
+            history.append("mesh", chat(i, "node-remote"));
+        }
+        runTasks();
+    }
+
+    @Test
+    public void ownMessages_areOutgoing_withTheirTextWorkedOutUpFront() {
+        window.loadLatest();
+        window.add(chat(1, LOCAL_NODE));
+        window.add(chat(2, "node-remote"));
+        runTasks();
+
+        assertEquals(2, shown.size());
+        MeshMessageSnapshot own = shown.get(0);
+        assertTrue(own.isOutgoing());
+        assertEquals("1 hop", own.getHopText());
+        MeshMessageSnapshot other = shown.get(1);
+        assertFalse(other.isOutgoing());
+        assertEquals("via 2 hops", other.getHopText());
+        assertEquals("Phone 2", other.getSenderText());
+        assertEquals(5, other.getTimeText().length());
+        assertTrue(scrolledToNewest);
+    }
+
+    @Test
+    public void longHistory_isShownThroughABoundedWindow() {
+        storeHistory(1000);
+
+        window.loadLatest();
+        runTasks();
+        assertEquals(50, shown.size());
+        assertEquals("message 950", shown.get(0).getText());
+
+        // Scrolling up keeps at most 100, dropping the newest
+        window.loadOlder();
+        window.loadOlder();
+        runTasks();
+        assertEquals(100, shown.size());
+        assertEquals("message 850", shown.get(0).getText());
+        assertEquals("message 949", shown.get(99).getText());
+        assertFalse(scrolledToNewest);
+
+        // And back down again
+        window.loadNewer();
+        runTasks();
+        assertEquals(100, shown.size());
+        assertEquals("message 900", shown.get(0).getText());
+        assertEquals("message 999", shown.get(99).getText());
+    }
+
+    @Test
+    public void messagesOutsideTheWindow_arePagedInLater() {
+        storeHistory(300);
+        window.loadLatest();
+        window.loadOlder();
+        window.loadOlder();
+        runTasks();
+        assertEquals("message 249", shown.get(99).getText());
+
+        // Arrives while older history is on screen
+        window.add(chat(500, "node-remote"));
+        // Synced late, older than anything shown
+        window.add(chat(-1, "node-remote"));
+        int before = changes;
+        runTasks();
+        assertEquals(before, changes);
+
+        window.loadNewer();
+        window.loadNewer();
+        window.loadNewer();
+        runTasks();
+        assertEquals("message 500", shown.get(shown.size() - 1).getText());
+        assertEquals(302, history.size("mesh"));
+    }
+
+    @Test
+    public void ownMessagesFromAnEarlierStart_areStillOutgoing() {
+        MeshChatWindow restarted = new MeshChatWindow(history, "mesh", "A1B2C3D4E5F6_2000", executor,
+                (messages, showNewest) -> shown = messages, 100, 50);
+        history.append("mesh", chat(1, "A1B2C3D4E5F6_1000"));
+        history.append("mesh", chat(2, "0F0F0F0F0F0F_1000"));
+        restarted.loadLatest();
+        runTasks();
+
+        assertTrue(shown.get(0).isOutgoing());
+        assertFalse(shown.get(1).isOutgoing());
+    }
+
+    @Test
+    public void replayedMessages_areNotShownTwice() {
+        window.loadLatest();
+        window.add(chat(1, "node-remote"));
+        window.add(chat(1, "node-remote"));
+        runTasks();
+
+        assertEquals(1, shown.size());
+        assertEquals(1, history.size("mesh"));
+    }
+}
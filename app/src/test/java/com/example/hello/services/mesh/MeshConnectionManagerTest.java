@@ -0,0 +1,355 @@
+package com.example.hello.services.mesh;
+
+import com.example.hello.models.BluetoothMeshMessage;
+import com.google.gson.Gson;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class MeshConnectionManagerTest {
+    private MeshFrameCodec codec;
+    private MeshConnectionManager manager;
+    private final Map<String, Integer> received = new ConcurrentHashMap<>();
+    private final Set<String> down = ConcurrentHashMap.newKeySet();
+    private final LinkedBlockingQueue<String> failed = new LinkedBlockingQueue<>();
+    private final LinkedBlockingQueue<String> upAndDown = new LinkedBlockingQueue<>();
+
+    @Before
+    public void setUp() {
+        codec = new MeshFrameCodec(new Gson(), new MeshBufferPool(MeshFrameCodec.DEFAULT_MAX_FRAME_SIZE * 2));
+        manager = new MeshConnectionManager(codec, new MeshConnectionManager.Callbacks() {
+            @Override
+            public void onLinkUp(String linkId, boolean outbound) {
+                if (linkId.equals("dead")) {
+                    // An engine busy with something else when the link comes up
+                    try {
+                        Thread.sleep(100);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                upAndDown.add("up " + linkId);
+            }
+
+            @Override
+            public void onFrame(BluetoothMeshMessage message, String linkId) {
+                received.merge(linkId, 1, Integer::sum);
+            }
+
+            @Override
+            public void onLinkDown(String linkId) {
+                down.add(linkId);
+                upAndDown.add("down " + linkId);
+            }
+
+            @Override
+            public void onConnectFailed(String address) {
+                failed.add(address);
+            }
+
+            @Override
+            public void onFrameEvicted(String linkId, OutboundFrame frame) {
+            }
+        }, 6, 3, 300);
+        manager.start();
+    }
+
+    @After
+    public void tearDown() {
+        manager.stop();
+    }
+
+    @Test
+    public void manyLinks_stopAtMaxDegree() throws Exception {
+        int threadsBefore = Thread.activeCount();
+        Pipe[] remotes = new Pipe[8];
+        for (int i = 0; i < remotes.length; i++) {
+            Pipe local = new Pipe();
+            remotes[i] = new Pipe();
+            String address = "peer" + i;
+            local.connectTo(remotes[i]);
+            manager.connect(address, a -> new MemorySocket(a, local));
+        }
+
+        waitFor(() -> manager.getLinkCount() == 6);
+        assertEquals(6, manager.getLinkCount());
+        assertFalse(manager.connect("peer9", a -> new MemorySocket(a, new Pipe())));
+
+        // Frames written by each remote arrive, tagged with their link
+        for (int i = 0; i < 6; i++) {
+            for (int m = 0; m < 50; m++) {
+                remotes[i].output.write(codec.encode(new BluetoothMeshMessage("p" + i + "m" + m,
+                        "CHAT", "node" + i, null, "hello", 0, 0)));
+            }
+        }
+        waitFor(() -> total() == 300);
+        assertEquals(300, total());
+        assertEquals(Integer.valueOf(50), received.get("peer3"));
+
+        // Broadcasts reach every remote
+        manager.broadcast(new OutboundFrame(codec.encode(new BluetoothMeshMessage("b1", "CHAT",
+                "local", null, "all", 0, 0)), "CHAT"), "peer0");
+        waitFor(() -> remotes[5].available() > 0 && remotes[1].available() > 0);
+        assertEquals(0, remotes[0].available());
+
+        // A reader and a writer per link and a few helpers, bounded by the degree
+        assertTrue(Thread.activeCount() - threadsBefore <= 2 * 6 + 4);
+
+        manager.disconnect("peer2");
+        waitFor(() -> down.contains("peer2"));
+        assertEquals(MeshConnectionManager.LinkState.DISCONNECTED, manager.getLinkStates().get("peer2"));
+        assertEquals(5, manager.getLinkCount());
+    }
+
+    @Test
+    public void peerThatStopsReading_onlyStallsItsOwnLink() throws Exception {
+        CountDownLatch writeStarted = new CountDownLatch(1);
+        Pipe stuck = new Pipe();
+        manager.connect("stuck", a -> new MemorySocket(a, stuck) {
+            @Override
+            public OutputStream getOutputStream() {
+                return new OutputStream() {
+                    @Override
+                    public void write(int b) throws IOException {
+                        writeStarted.countDown();
+                        // Blocks like an RFCOMM write with a full window, until the socket closes
+                        synchronized (stuck.bytes) {
+                            while (!stuck.closed) {
+                                try {
+                                    stuck.bytes.wait();
+                                } catch (InterruptedException e) {
+                                    throw new IOException(e);
+                                }
+                            }
+                        }
+                        throw new IOException("closed");
+                    }
+                };
+            }
+        });
+        Pipe local = new Pipe();
+        Pipe remote = new Pipe();
+        local.connectTo(remote);
+        manager.connect("healthy", a -> new MemorySocket(a, local));
+        waitFor(() -> manager.getLinkCount() == 2);
+
+        OutboundFrame frame = new OutboundFrame(codec.encode(new BluetoothMeshMessage("m1", "CHAT",
+                "local", null, "hello", 0, 0)), "CHAT");
+        assertTrue(manager.send("stuck", frame));
+        assertTrue(writeStarted.await(2, TimeUnit.SECONDS));
+
+        for (int i = 0; i < 20; i++) {
+            manager.send("healthy", frame);
+        }
+        int expected = 20 * frame.getLength();
+        waitFor(() -> remote.available() == expected);
+        assertEquals(expected, remote.available());
+
+        // Closing the stuck link releases its writer
+        manager.disconnect("stuck");
+        waitFor(() -> down.contains("stuck"));
+        assertTrue(down.contains("stuck"));
+        assertFalse(down.contains("healthy"));
+    }
+
+    @Test
+    public void linkThatFailsAtOnce_isReportedUpBeforeDown() throws Exception {
+        manager.connect("dead", a -> new MemorySocket(a, new Pipe()) {
+            @Override
+            public InputStream getInputStream() {
+                return new InputStream() {
+                    @Override
+                    public int read() throws IOException {
+                        throw new IOException("connection reset");
+                    }
+                };
+            }
+        });
+
+        assertEquals("up dead", upAndDown.poll(2, TimeUnit.SECONDS));
+        assertEquals("down dead", upAndDown.poll(2, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void stalledConnect_isAbortedByTimeout() throws Exception {
+        CountDownLatch never = new CountDownLatch(1);
+        manager.connect("slow", a -> new MemorySocket(a, new Pipe()) {
+            @Override
+            public void connect() throws IOException {
+                try {
+                    if (!never.await(5, TimeUnit.SECONDS) || isClosed()) {
+                        throw new IOException("closed");
+                    }
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+
+            @Override
+            public void close() {
+                super.close();
+                never.countDown();
+            }
+        });
+
+        assertEquals("slow", failed.poll(2, TimeUnit.SECONDS));
+        assertEquals(MeshConnectionManager.LinkState.FAILED, manager.getLinkStates().get("slow"));
+        assertEquals(0, manager.getLinkCount());
+    }
+
+    private int total() {
+        int sum = 0;
+        for (int count : received.values()) {
+            sum += count;
+        }
+        return sum;
+    }
+
+    private interface Condition {
+        boolean met();
+    }
+
+    private static void waitFor(Condition condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.met() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+    }
+
+    /**
+     * One direction of an in-memory connection, with a working available().
+     */
+    private static class Pipe {
+        private final ArrayDeque<Byte> bytes = new ArrayDeque<>();
+        private Pipe peer;
+        private volatile boolean closed;
+
+        final InputStream input = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                synchronized (bytes) {
+                    while (bytes.isEmpty()) {
+                        if (closed) {
+                            return -1;
+                        }
+                        try {
+                            bytes.wait();
+                        } catch (InterruptedException e) {
+                            throw new IOException(e);
+                        }
+                    }
+                    return bytes.poll() & 0xFF;
+                }
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int first = read();
+                if (first < 0) {
+                    return -1;
+                }
+                b[off] = (byte) first;
+                int count = 1;
+                synchronized (bytes) {
+                    while (count < len && !bytes.isEmpty()) {
+                        b[off + count++] = bytes.poll();
+                    }
+                }
+                return count;
+            }
+
+            @Override
+            public int available() throws IOException {
+                if (closed) {
+                    throw new IOException("closed");
+                }
+                return Pipe.this.available();
+            }
+        };
+
+        final OutputStream output = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                Pipe target = peer != null ? peer : Pipe.this;
+                if (closed) {
+                    throw new IOException("closed");
+                }
+                synchronized (target.bytes) {
+                    target.bytes.add((byte) b);
+                    target.bytes.notifyAll();
+                }
+            }
+        };
+
+        // Writes to this pipe land in the peer's input and vice versa
+        void connectTo(Pipe other) {
+            peer = other;
+            other.peer = this;
+        }
+
+        int available() {
+            synchronized (bytes) {
+                return bytes.size();
+            }
+        }
+
+        void close() {
+            closed = true;
+            synchronized (bytes) {
+                bytes.notifyAll();
+            }
+        }
+    }
+
+    private static class MemorySocket implements MeshConnectionManager.LinkSocket {
+        private final String address;
+        private final Pipe pipe;
+
+        MemorySocket(String address, Pipe pipe) {
+            this.address = address;
+            this.pipe = pipe;
+        }
+
+        boolean isClosed() {
+            return pipe.closed;
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return address;
+        }
+
+        @Override
+        public void connect() throws IOException {
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return pipe.input;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return pipe.output;
+        }
+
+        @Override
+        public void close() {
+            pipe.close();
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package com.example.hello.services.mesh;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class MeshConnectionPlannerTest {
+    private static final String LOCAL = "me";
+
+    // Undirected graph as the topology would report it; addresses are node IDs
+    private final Map<String, List<String>> graph = new HashMap<>();
+    private final List<String> dialled = new ArrayList<>();
+    private final List<String> dropped = new ArrayList<>();
+    private int discoveries;
+    private long now = 1000000;
+
+    private final MeshConnectionPlanner planner = new MeshConnectionPlanner(LOCAL,
+            new MeshConnectionPlanner.PlannerActions() {
+                @Override
+                public boolean connect(String address) {
+                    dialled.add(address);
+                    return true;
+                }
+
+                @Override
+                public void disconnect(String address) {
+                    dropped.add(address);
+                    unlink(LOCAL, address);
+                    planner.onLinkDown(address);
+                }
+
+                @Override
+                public boolean startDiscovery() {
+                    discoveries++;
+                    return true;
+                }
+
+                @Override
+                public List<String> getLinkIds() {
+                    return neighbours(LOCAL);
+                }
+
+                @Override
+                public String getNodeId(String address) {
+                    return graph.containsKey(address) ? address : null;
+                }
+
+                @Override
+                public int getHopDistance(String nodeId) {
+                    return hops(nodeId);
+                }
+
+                @Override
+                public List<String> getNeighbours(String nodeId) {
+                    return neighbours(nodeId);
+                }
+
+                @Override
+                public void schedule(Runnable task, long delayMillis) {
+                }
+            }, new Random(1)) {
+        @Override
+        long now() {
+            return now;
+        }
+    };
+
+    private List<String> neighbours(String nodeId) {
+        List<String> neighbours = graph.get(nodeId);
+        return neighbours != null ? new ArrayList<>(neighbours) : new ArrayList<String>();
+    }
+
+    private void link(String a, String b) {
+        for (String[] pair : new String[][]{{a, b}, {b, a}}) {
+            if (!graph.containsKey(pair[0])) {
+                graph.put(pair[0], new ArrayList<String>());
+            }
+            graph.get(pair[0]).add(pair[1]);
+        }
+        if (a.equals(LOCAL)) {
+            planner.onLinkUp(b);
+        }
+    }
+
+    private void unlink(String a, String b) {
+        graph.get(a).remove(b);
+        graph.get(b).remove(a);
+    }
+
+    private int hops(String nodeId) {
+        Map<String, Integer> distance = new HashMap<>();
+        ArrayDeque<String> queue = new ArrayDeque<>();
+        distance.put(LOCAL, 0);
+        queue.add(LOCAL);
+        while (!queue.isEmpty()) {
+            String current = queue.poll();
+            for (String next : neighbours(current)) {
+                if (!distance.containsKey(next)) {
+                    distance.put(next, distance.get(current) + 1);
+                    queue.add(next);
+                }
+            }
+        }
+        Integer hops = distance.get(nodeId);
+        return hops != null ? hops : MeshTopology.UNREACHABLE;
+    }
+
+    @Test
+    public void disabled_doesNothing() {
+        planner.onPeerDiscovered("x", -50);
+        planner.plan();
+
+        assertTrue(dialled.isEmpty());
+        assertEquals(0, discoveries);
+    }
+
+    @Test
+    public void candidates_rankBridgeThenShortcutAndSkipTrianglesAndHubs() {
+        planner.setEnabled(true);
+        // me - a - b - c - d, a also linked to t; h is a hub; z is in another cluster
+        link(LOCAL, "a");
+        link("a", "b");
+        link("b", "c");
+        link("c", "d");
+        link("a", "t");
+        link("z", "y");
+        for (int i = 0; i < MeshConnectionPlanner.DEFAULT_MAX_DEGREE; i++) {
+            link("h", "leaf" + i);
+        }
+        link("h", "d");
+        for (String peer : new String[]{"t", "c", "d", "h", "z"}) {
+            planner.onPeerDiscovered(peer, -60);
+        }
+
+        planner.plan();
+        assertEquals("[z]", dialled.toString());
+        assertEquals(1, discoveries);
+        link(LOCAL, "z");
+
+        // z linked: the farthest shortcut next, never the hub
+        now += 1000;
+        planner.plan();
+        assertEquals("[z, d]", dialled.toString());
+        link(LOCAL, "d");
+
+        // At the target degree; t would only close a triangle
+        now += 1000;
+        planner.plan();
+        assertEquals("[z, d]", dialled.toString());
+    }
+
+    @Test
+    public void hub_shedsTheLinkWithTheShortestDetourButNeverASolePath() {
+        planner.setEnabled(true);
+        for (int i = 0; i < 6; i++) {
+            link(LOCAL, "p" + i);
+        }
+        // p0 and p1 reach us through each other, p2 to p4 around a loop; p5 only through us
+        link("p0", "p1");
+        link("p2", "x");
+        link("x", "p3");
+        link("p3", "p4");
+
+        planner.plan();
+        assertTrue("new links are left to settle", dropped.isEmpty());
+
+        now += MeshConnectionPlanner.LINK_SETTLE_MS;
+        planner.plan();
+        // p0, p1, p3 and p4 all have a two-hop detour; p3 has the most links
+        assertEquals("[p3]", dropped.toString());
+        assertEquals(1, planner.getLinksShed());
+
+        // Down to the maximum: nothing more to shed
+        planner.plan();
+        assertEquals(1, dropped.size());
+        assertTrue(neighbours(LOCAL).contains("p5"));
+    }
+
+    @Test
+    public void hub_neverShedsALinkEitherEndPinned() {
+        planner.setEnabled(true);
+        for (int i = 0; i < 6; i++) {
+            link(LOCAL, "p" + i);
+        }
+        // Every peer has the same two-hop detour through x
+        for (int i = 0; i < 6; i++) {
+            link("p" + i, "x");
+        }
+        planner.pin("p0");
+        for (int i = 1; i < 5; i++) {
+            planner.onPeerPinned("p" + i);
+        }
+        // Not linked, so there is nothing to keep
+        planner.onPeerPinned("q");
+
+        now += MeshConnectionPlanner.LINK_SETTLE_MS;
+        planner.plan();
+        assertEquals("[p5]", dropped.toString());
+
+        // A peer's pin lapses with its link
+        unlink(LOCAL, "p1");
+        planner.onLinkDown("p1");
+        link(LOCAL, "p1");
+        link(LOCAL, "p6");
+        link("p6", "x");
+        now += MeshConnectionPlanner.LINK_SETTLE_MS;
+        planner.plan();
+        assertEquals("[p5, p1]", dropped.toString());
+    }
+
+    @Test
+    public void lostLink_isOnlyRedialledWhenNeeded() {
+        planner.setEnabled(true);
+        link(LOCAL, "a");
+        link(LOCAL, "b");
+        link(LOCAL, "c");
+        link("a", "b");
+        link("c", "d");
+
+        // Still reachable through b, but we are below the target degree
+        unlink(LOCAL, "a");
+        planner.onLinkDown("a");
+        assertTrue(planner.shouldReconnect("a"));
+
+        // Back at the target: not worth a reconnect
+        link(LOCAL, "d");
+        assertFalse(planner.shouldReconnect("a"));
+
+        // Cut off entirely, or pinned by the user: always
+        unlink("a", "b");
+        assertTrue(planner.shouldReconnect("a"));
+        planner.pin("b");
+        assertTrue(planner.shouldReconnect("b"));
+    }
+
+    @Test
+    public void unknownPeer_ranksBelowKnownBridgesAndShortcuts() {
+        planner.setEnabled(true);
+        // u has never been seen in the topology; z is in another cluster
+        link("z", "y");
+        planner.onPeerDiscovered("u", -40);
+        planner.onPeerDiscovered("z", -80);
+
+        planner.plan();
+        assertEquals("[z]", dialled.toString());
+        link(LOCAL, "z");
+
+        // Nothing better left, and still below the target
+        now += 1000;
+        planner.plan();
+        assertEquals("[z, u]", dialled.toString());
+    }
+
+    @Test
+    public void unknownPeer_isGivenUpAfterRepeatedFailures() {
+        planner.setEnabled(true);
+        for (int i = 0; i < MeshConnectionPlanner.MAX_UNKNOWN_FAILURES; i++) {
+            planner.onPeerDiscovered("u", -60);
+            planner.plan();
+            assertEquals(i + 1, dialled.size());
+            planner.onConnectFailed("u");
+            now += MeshConnectionPlanner.RETRY_BACKOFF_MS << 3;
+        }
+        assertEquals(0, planner.getCandidateCount());
+
+        // Found again by the next discovery: still ignored
+        planner.onPeerDiscovered("u", -60);
+        planner.plan();
+        assertEquals(MeshConnectionPlanner.MAX_UNKNOWN_FAILURES, dialled.size());
+
+        // Unless it turns out to be a mesh node after all
+        link(LOCAL, "u");
+        unlink(LOCAL, "u");
+        planner.onLinkDown("u");
+        planner.onPeerDiscovered("u", -60);
+        assertEquals(1, planner.getCandidateCount());
+    }
+}
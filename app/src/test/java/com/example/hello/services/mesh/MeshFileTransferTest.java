@@ -0,0 +1,329 @@
+package com.example.hello.services.mesh;
+
+import com.example.hello.models.BluetoothMeshMessage;
+import com.example.hello.services.BluetoothMeshService;
+import com.google.gson.Gson;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.*;
+
+public class MeshFileTransferTest {
+    private File senderDir;
+    private File receiverDir;
+
+    @Before
+    public void setUp() throws Exception {
+        senderDir = Files.createTempDirectory("mesh-send").toFile();
+        receiverDir = Files.createTempDirectory("mesh-receive").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        deleteRecursively(senderDir);
+        deleteRecursively(receiverDir);
+    }
+
+    /**
+     * Sender A and receiver B joined by a channel with a fixed one-way delay,
+     * driven in virtual time. Chunks can be dropped or corrupted in transit
+     * and the channel can be cut entirely. Background work runs at once
+     * unless held, in which case it waits for {@link #runBackground}.
+     */
+    private class Pair {
+        final PriorityQueue<Object[]> events = new PriorityQueue<>((a, b) -> {
+            int byTime = Long.compare((Long) a[0], (Long) b[0]);
+            return byTime != 0 ? byTime : Long.compare((Long) a[1], (Long) b[1]);
+        });
+        final Map<String, File> finished = new HashMap<>();
+        final List<Runnable> background = new ArrayList<>();
+        boolean holdBackground;
+        long now;
+        long order;
+        int ids;
+        int chunksSent;
+        int dropEveryNthChunk;
+        int corruptChunkNumber = -1;
+        boolean partitioned;
+
+        final MeshFileTransfer a = endpoint("A", senderDir, 4096);
+        final MeshFileTransfer b = endpoint("B", receiverDir, 4096);
+
+        private MeshFileTransfer endpoint(String id, File directory, int chunkSize) {
+            return new MeshFileTransfer(id, directory, new MeshFileTransfer.TransferActions() {
+                @Override
+                public void transmit(BluetoothMeshMessage message) {
+                    if (BluetoothMeshService.MSG_TYPE_FILE_CHUNK.equals(message.getType())) {
+                        int number = ++chunksSent;
+                        if (dropEveryNthChunk > 0 && number % dropEveryNthChunk == 0) {
+                            return;
+                        }
+                        if (number == corruptChunkNumber) {
+                            message.getPayload()[0] ^= 0x5A;
+                        }
+                    }
+                    if (partitioned) {
+                        return;
+                    }
+                    at(now + 20, () -> deliver(id.equals("A") ? b : a, message));
+                }
+
+                @Override
+                public void schedule(Runnable task, long delayMillis) {
+                    at(now + delayMillis, task);
+                }
+
+                @Override
+                public void runInBackground(Runnable task) {
+                    if (holdBackground) {
+                        background.add(task);
+                    } else {
+                        at(now, task);
+                    }
+                }
+
+                @Override
+                public String newMessageId() {
+                    return id + "-" + (ids++);
+                }
+
+                @Override
+                public void onProgress(MeshFileTransfer.FileInfo info, int chunksDone) {
+                }
+
+                @Override
+                public void onFinished(MeshFileTransfer.FileInfo info, File file) {
+                    finished.put(id, file);
+                }
+            }, new Gson(), chunkSize) {
+                @Override
+                long now() {
+                    return now;
+                }
+            };
+        }
+
+        private void deliver(MeshFileTransfer to, BluetoothMeshMessage message) {
+            switch (message.getType()) {
+                case BluetoothMeshService.MSG_TYPE_FILE_OFFER:
+                    to.handleOffer(message);
+                    break;
+                case BluetoothMeshService.MSG_TYPE_FILE_CHUNK:
+                    to.handleChunk(message);
+                    break;
+                default:
+                    to.handleReport(message);
+            }
+        }
+
+        void runUntil(long time) {
+            while (!events.isEmpty() && (Long) events.peek()[0] <= time) {
+                Object[] event = events.poll();
+                now = (Long) event[0];
+                ((Runnable) event[2]).run();
+            }
+            now = time;
+        }
+
+        void runBackground() {
+            List<Runnable> tasks = new ArrayList<>(background);
+            background.clear();
+            for (Runnable task : tasks) {
+                task.run();
+            }
+        }
+
+        private void at(long time, Runnable task) {
+            events.add(new Object[]{time, order++, task});
+        }
+    }
+
+    private File randomFile(String name, int size) throws Exception {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        File file = new File(senderDir, name);
+        Files.write(file.toPath(), bytes);
+        return file;
+    }
+
+    @Test
+    public void cleanChannel_deliversIdenticalFile() throws Exception {
+        Pair pair = new Pair();
+        File source = randomFile("photo.jpg", 100003);
+        MeshFileTransfer.FileInfo info = pair.a.send("t1", source, "image/jpeg", "B");
+        assertEquals(25, info.getChunkCount());
+        pair.runUntil(10000);
+
+        File received = pair.finished.get("B");
+        assertNotNull(received);
+        assertEquals("photo.jpg", received.getName());
+        assertArrayEquals(Files.readAllBytes(source.toPath()), Files.readAllBytes(received.toPath()));
+        assertEquals(source, pair.finished.get("A"));
+        assertEquals(25, pair.chunksSent);
+        assertEquals(0, pair.a.getOutgoingCount());
+        assertEquals(0, pair.b.getIncomingCount());
+    }
+
+    @Test
+    public void lossAndOutage_resumeWithOnlyMissingChunks() throws Exception {
+        Pair pair = new Pair();
+        pair.dropEveryNthChunk = 7;
+        File source = randomFile("notes.bin", 200000);
+        MeshFileTransfer.FileInfo info = pair.a.send("t1", source, null, "B");
+
+        // The link goes down mid-transfer and comes back 20 seconds later
+        pair.runUntil(100);
+        pair.partitioned = true;
+        pair.runUntil(20100);
+        assertNull(pair.finished.get("B"));
+        pair.partitioned = false;
+        pair.runUntil(120000);
+
+        File received = pair.finished.get("B");
+        assertNotNull(received);
+        assertArrayEquals(Files.readAllBytes(source.toPath()), Files.readAllBytes(received.toPath()));
+        assertTrue("chunks sent " + pair.chunksSent, pair.chunksSent < info.getChunkCount() * 3 / 2);
+    }
+
+    @Test
+    public void corruptedChunk_isRequestedAgain() throws Exception {
+        Pair pair = new Pair();
+        pair.corruptChunkNumber = 3;
+        File source = randomFile("doc.pdf", 50000);
+        pair.a.send("t1", source, "application/pdf", "B");
+        pair.runUntil(30000);
+
+        File received = pair.finished.get("B");
+        assertNotNull(received);
+        assertArrayEquals(Files.readAllBytes(source.toPath()), Files.readAllBytes(received.toPath()));
+    }
+
+    @Test
+    public void unreachableReceiver_failsAfterIdleTimeout() throws Exception {
+        Pair pair = new Pair();
+        pair.partitioned = true;
+        pair.a.send("t1", randomFile("big.bin", 1 << 20), null, "B");
+
+        // Only a window's worth of chunks goes out before the sender waits
+        pair.runUntil(MeshFileTransfer.IDLE_TIMEOUT_MS + MeshFileTransfer.OFFER_RETRY_MS);
+        assertEquals(MeshFileTransfer.WINDOW_CHUNKS, pair.chunksSent);
+        assertTrue(pair.finished.containsKey("A"));
+        assertNull(pair.finished.get("A"));
+        assertEquals(0, pair.a.getOutgoingCount());
+    }
+
+    @Test
+    public void offeredName_cannotEscapeReceiveDirectory() throws Exception {
+        Pair pair = new Pair();
+        File source = randomFile("evil.txt", 10);
+        pair.a.send("t1", source, null, "B");
+        BluetoothMeshMessage offer = new BluetoothMeshMessage("x", BluetoothMeshService.MSG_TYPE_FILE_OFFER, "A", "B",
+                "{\"id\":\"t2\",\"name\":\"../../escape.txt\",\"size\":10,\"chunkSize\":4096,\"chunks\":1}", 0, 0);
+        pair.b.handleOffer(offer);
+        pair.runUntil(1000);
+
+        File[] parts = receiverDir.listFiles();
+        assertNotNull(parts);
+        for (File file : parts) {
+            assertEquals(receiverDir, file.getParentFile());
+        }
+        assertFalse(new File(receiverDir.getParentFile(), "escape.txt").exists());
+    }
+
+    @Test
+    public void emptyFile_isReceivedWithoutAnyChunks() throws Exception {
+        Pair pair = new Pair();
+        File source = randomFile("empty.txt", 0);
+        MeshFileTransfer.FileInfo info = pair.a.send("t1", source, "text/plain", "B");
+        assertEquals(0, info.getChunkCount());
+        pair.runUntil(1000);
+
+        File received = pair.finished.get("B");
+        assertNotNull(received);
+        assertEquals("empty.txt", received.getName());
+        assertEquals(0, received.length());
+        assertEquals(source, pair.finished.get("A"));
+        assertEquals(0, pair.chunksSent);
+        assertEquals(0, pair.b.getIncomingCount());
+    }
+
+    @Test
+    public void chunkFromAnotherNode_isIgnored() throws Exception {
+        Pair pair = new Pair();
+        File source = randomFile("photo.jpg", 10000);
+        byte[] bytes = Files.readAllBytes(source.toPath());
+        CRC32 fileCrc = new CRC32();
+        fileCrc.update(bytes, 0, bytes.length);
+        pair.b.handleOffer(new BluetoothMeshMessage("x", BluetoothMeshService.MSG_TYPE_FILE_OFFER, "A", "B",
+                "{\"id\":\"t1\",\"name\":\"photo.jpg\",\"size\":10000,\"chunkSize\":4096,\"chunks\":3,"
+                        + "\"crc\":" + fileCrc.getValue() + "}", 0, 0));
+
+        // C guesses the transfer id and gets its own first chunk in ahead of A's
+        byte[] forged = new byte[4096];
+        CRC32 forgedCrc = new CRC32();
+        forgedCrc.update(forged, 0, forged.length);
+        BluetoothMeshMessage chunk = new BluetoothMeshMessage("y", BluetoothMeshService.MSG_TYPE_FILE_CHUNK, "C", "B",
+                "t1:0:" + Long.toHexString(forgedCrc.getValue()), 0, 0);
+        chunk.setPayload(forged);
+        pair.b.handleChunk(chunk);
+
+        pair.a.send("t1", source, "image/jpeg", "B");
+        pair.runUntil(10000);
+
+        File received = pair.finished.get("B");
+        assertNotNull(received);
+        assertArrayEquals(bytes, Files.readAllBytes(received.toPath()));
+    }
+
+    @Test
+    public void wholeFileChecksums_runInTheBackground() throws Exception {
+        Pair pair = new Pair();
+        pair.holdBackground = true;
+        File source = randomFile("doc.pdf", 10000);
+        pair.a.send("t1", source, "application/pdf", "B");
+
+        // Nothing is offered until the sender's hash is back
+        pair.runUntil(1000);
+        assertEquals(0, pair.chunksSent);
+        assertEquals(1, pair.a.getOutgoingCount());
+        assertEquals(1, pair.background.size());
+        pair.runBackground();
+
+        // Every chunk is in, but the file is not handed over until it is checked
+        pair.runUntil(2000);
+        assertEquals(3, pair.chunksSent);
+        assertFalse(pair.finished.containsKey("B"));
+        assertEquals(1, pair.b.getIncomingCount());
+        assertEquals(1, pair.background.size());
+        pair.runBackground();
+
+        pair.runUntil(3000);
+        File received = pair.finished.get("B");
+        assertNotNull(received);
+        assertArrayEquals(Files.readAllBytes(source.toPath()), Files.readAllBytes(received.toPath()));
+        assertEquals(source, pair.finished.get("A"));
+        assertEquals(0, pair.b.getIncomingCount());
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
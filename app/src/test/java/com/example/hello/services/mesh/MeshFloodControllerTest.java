@@ -0,0 +1,185 @@
+package com.example.hello.services.mesh;
+
+import com.example.hello.models.BluetoothMeshMessage;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class MeshFloodControllerTest {
+
+    /**
+     * Nodes connected by point-to-point links, driven in virtual time. Each
+     * link write takes 5 ms to arrive.
+     */
+    private static class Net {
+        private static final long LINK_DELAY_MS = 5;
+
+        final Map<String, MeshFloodController> controllers = new HashMap<>();
+        final Map<String, Set<String>> links = new HashMap<>();
+        final Map<String, Set<String>> seen = new HashMap<>();
+        final PriorityQueue<Object[]> events = new PriorityQueue<>((a, b) -> Long.compare((Long) a[0], (Long) b[0]));
+        final Random random = new Random(42);
+        long now;
+        long order;
+        int linkWrites;
+
+        void add(String id, MeshFloodController.FloodPolicy policy) {
+            links.put(id, new HashSet<>());
+            seen.put(id, new HashSet<>());
+            MeshFloodController controller = new MeshFloodController(new MeshFloodController.FloodActions() {
+                @Override
+                public void relay(BluetoothMeshMessage message, List<String> linkIds) {
+                    for (String linkId : linkIds) {
+                        send(id, linkId, message);
+                    }
+                }
+
+                @Override
+                public void schedule(Runnable task, long delayMillis) {
+                    at(now + delayMillis, task);
+                }
+
+                @Override
+                public List<String> getLinkIds() {
+                    return new ArrayList<>(links.get(id));
+                }
+
+                @Override
+                public String getNeighbourForLink(String linkId) {
+                    return linkId;
+                }
+
+                @Override
+                public List<String> getNeighboursOf(String nodeId) {
+                    return new ArrayList<>(links.get(nodeId));
+                }
+            }, random);
+            controller.setDefaultPolicy(policy);
+            controllers.put(id, controller);
+        }
+
+        void link(String a, String b) {
+            links.get(a).add(b);
+            links.get(b).add(a);
+        }
+
+        void originate(String id) {
+            BluetoothMeshMessage message = new BluetoothMeshMessage("m1", "TEST", id, null, "x", 0, 0);
+            seen.get(id).add("m1");
+            for (String peer : links.get(id)) {
+                send(id, peer, message);
+            }
+            while (!events.isEmpty()) {
+                Object[] event = events.poll();
+                now = (Long) event[0];
+                ((Runnable) event[2]).run();
+            }
+        }
+
+        private void send(String from, String to, BluetoothMeshMessage message) {
+            linkWrites++;
+            BluetoothMeshMessage copy = new BluetoothMeshMessage(message.getMessageId(), message.getType(),
+                    message.getSourceNodeId(), null, message.getContent(), 0, message.getHopCount());
+            at(now + LINK_DELAY_MS, () -> {
+                if (seen.get(to).add(copy.getMessageId())) {
+                    controllers.get(to).onFirstReception(copy, from);
+                } else {
+                    controllers.get(to).onDuplicate(copy.getMessageId(), from);
+                }
+            });
+        }
+
+        private void at(long time, Runnable task) {
+            events.add(new Object[]{time, order++, task});
+        }
+
+        int reached() {
+            int count = 0;
+            for (Set<String> ids : seen.values()) {
+                if (ids.contains("m1")) {
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+
+    private static Net clique(int size, MeshFloodController.FloodPolicy policy) {
+        Net net = new Net();
+        for (int i = 0; i < size; i++) {
+            net.add("n" + i, policy);
+        }
+        for (int i = 0; i < size; i++) {
+            for (int j = i + 1; j < size; j++) {
+                net.link("n" + i, "n" + j);
+            }
+        }
+        return net;
+    }
+
+    @Test
+    public void denseRoom_suppressesMostRelaysButReachesEveryone() {
+        Net full = clique(10, MeshFloodController.FloodPolicy.FULL);
+        full.originate("n0");
+        assertEquals(10, full.reached());
+        assertEquals(9 + 9 * 8, full.linkWrites);
+
+        Net counter = clique(10, MeshFloodController.FloodPolicy.COUNTER);
+        counter.originate("n0");
+        assertEquals(10, counter.reached());
+        assertTrue("counter writes " + counter.linkWrites, counter.linkWrites < full.linkWrites / 2);
+
+        Net knowledge = clique(10, MeshFloodController.FloodPolicy.NEIGHBOUR_KNOWLEDGE);
+        knowledge.originate("n0");
+        assertEquals(10, knowledge.reached());
+        // The origin's neighbours already cover everyone
+        assertEquals(9, knowledge.linkWrites);
+
+        long avoided = 0;
+        long redundant = 0;
+        for (MeshFloodController controller : counter.controllers.values()) {
+            avoided += controller.getLinkSendsAvoided();
+            redundant += controller.getRedundantReceptions();
+        }
+        assertTrue(avoided > 0);
+        assertEquals(counter.linkWrites - 9, redundant);
+    }
+
+    @Test
+    public void sparseChain_stillFloodsEndToEnd() {
+        for (MeshFloodController.FloodPolicy policy : MeshFloodController.FloodPolicy.values()) {
+            Net net = new Net();
+            for (int i = 0; i < 8; i++) {
+                net.add("n" + i, policy);
+                if (i > 0) {
+                    net.link("n" + (i - 1), "n" + i);
+                }
+            }
+            if (policy == MeshFloodController.FloodPolicy.GOSSIP) {
+                for (MeshFloodController controller : net.controllers.values()) {
+                    controller.setGossipProbability(1.0);
+                }
+            }
+            net.originate("n0");
+            assertEquals(policy.name(), 8, net.reached());
+        }
+    }
+
+    @Test
+    public void perTypePolicy_keepsFullFloodingForChosenTypes() {
+        MeshFloodController controller = new MeshFloodController(null);
+        controller.setPolicy("EMERGENCY", MeshFloodController.FloodPolicy.FULL);
+        assertEquals(MeshFloodController.FloodPolicy.FULL, controller.getPolicy("EMERGENCY"));
+        assertEquals(MeshFloodController.FloodPolicy.COUNTER, controller.getPolicy("CHAT"));
+    }
+}
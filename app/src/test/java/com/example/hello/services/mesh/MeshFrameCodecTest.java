@@ -0,0 +1,291 @@
+package com.example.hello.services.mesh;
+
+import com.example.hello.models.BluetoothMeshMessage;
+import com.google.gson.Gson;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round-trip, stream reassembly and fuzz tests for the mesh frame format,
+ * plus a rough throughput comparison against the legacy JSON path.
+ */
+public class MeshFrameCodecTest {
+    private Gson gson;
+    private MeshFrameCodec codec;
+
+    @Before
+    public void setUp() {
+        gson = new Gson();
+        codec = new MeshFrameCodec(gson, new MeshBufferPool(MeshFrameCodec.DEFAULT_MAX_FRAME_SIZE * 2));
+    }
+
+    @Test
+    public void binaryRoundTrip_preservesAllFields() throws Exception {
+        BluetoothMeshMessage original = sampleMessage("Hello mesh \u0995\u09be \uD83D\uDE00", 3);
+        original.setTargetNodeId("AABBCCDDEEFF_42");
+        original.setSenderName("Relay phone");
+        original.setSenderAddress("AA:BB:CC:DD:EE:FF");
+
+        assertMessageEquals(original, decodeSingle(codec.encode(original)));
+    }
+
+    @Test
+    public void binaryRoundTrip_handlesNullFieldsAndCustomType() throws Exception {
+        BluetoothMeshMessage original = new BluetoothMeshMessage(null, "CUSTOM_TYPE", null, null, null, 0L, 0);
+
+        assertMessageEquals(original, decodeSingle(codec.encode(original)));
+    }
+
+    @Test
+    public void binaryRoundTrip_carriesRawPayload() throws Exception {
+        BluetoothMeshMessage original = new BluetoothMeshMessage("c1", "FILE_CHUNK", "A", "B", "t:0:1f", 0L, 0);
+        byte[] payload = new byte[8192];
+        new Random(3).nextBytes(payload);
+        original.setPayload(payload);
+
+        BluetoothMeshMessage decoded = decodeSingle(codec.encode(original));
+        assertMessageEquals(original, decoded);
+        assertArrayEquals(payload, decoded.getPayload());
+    }
+
+    @Test
+    public void priority_travelsInTheHeaderByte() throws Exception {
+        BluetoothMeshMessage original = sampleMessage("blood needed", 0);
+        original.setPriority(BluetoothMeshMessage.PRIORITY_EMERGENCY);
+
+        byte[] frame = codec.encode(original);
+        assertEquals(BluetoothMeshMessage.PRIORITY_EMERGENCY, frame[3]);
+        assertEquals(BluetoothMeshMessage.PRIORITY_EMERGENCY, decodeSingle(frame).getPriority());
+
+        // Frames from builds that kept the byte reserved read as the default
+        frame[3] = 0;
+        assertEquals(BluetoothMeshMessage.PRIORITY_DEFAULT, decodeSingle(frame).getPriority());
+    }
+
+    @Test
+    public void jsonRoundTrip_isDecodedByTheSameDecoder() throws Exception {
+        codec.setWireFormat(MeshFrameCodec.FORMAT_JSON);
+        BluetoothMeshMessage original = sampleMessage("json compat", 1);
+
+        byte[] frame = codec.encode(original);
+
+        assertEquals(MeshFrameCodec.FORMAT_JSON, frame[2]);
+        assertMessageEquals(original, decodeSingle(frame));
+    }
+
+    @Test
+    public void largeMessage_spansManyReads() throws Exception {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            content.append((char) ('a' + i % 26));
+        }
+        BluetoothMeshMessage original = sampleMessage(content.toString(), 0);
+
+        // Simulates RFCOMM delivering 990 byte chunks
+        List<BluetoothMeshMessage> decoded = decodeStream(codec.encode(original), 990);
+
+        assertEquals(1, decoded.size());
+        assertMessageEquals(original, decoded.get(0));
+    }
+
+    @Test
+    public void byteAtATimeFeed_reassemblesFrames() throws Exception {
+        BluetoothMeshMessage first = sampleMessage("first", 0);
+        BluetoothMeshMessage second = sampleMessage("second", 2);
+        byte[] stream = concat(codec.encode(first), codec.encode(second));
+
+        List<BluetoothMeshMessage> decoded = decodeStream(stream, 1);
+
+        assertEquals(2, decoded.size());
+        assertMessageEquals(first, decoded.get(0));
+        assertMessageEquals(second, decoded.get(1));
+    }
+
+    @Test
+    public void coalescedFrames_areSplit() throws Exception {
+        List<BluetoothMeshMessage> originals = new ArrayList<>();
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (int i = 0; i < 50; i++) {
+            BluetoothMeshMessage message = sampleMessage("msg " + i, i % 5);
+            originals.add(message);
+            codec.writeTo(message, stream);
+        }
+
+        List<BluetoothMeshMessage> decoded = new ArrayList<>();
+        MeshFrameDecoder decoder = new MeshFrameDecoder(codec);
+        byte[] bytes = stream.toByteArray();
+        decoder.feed(bytes, 0, bytes.length, decoded::add);
+
+        assertEquals(originals.size(), decoded.size());
+        for (int i = 0; i < originals.size(); i++) {
+            assertMessageEquals(originals.get(i), decoded.get(i));
+        }
+        assertEquals(0, decoder.getBufferedBytes());
+    }
+
+    @Test
+    public void readFrom_reportsEndOfStream() throws Exception {
+        byte[] frame = codec.encode(sampleMessage("eof", 0));
+        MeshFrameDecoder decoder = new MeshFrameDecoder(codec);
+        List<BluetoothMeshMessage> decoded = new ArrayList<>();
+        ByteArrayInputStream input = new ByteArrayInputStream(frame);
+
+        int total = 0;
+        int count;
+        while ((count = decoder.readFrom(input, decoded::add)) > 0) {
+            total += count;
+        }
+
+        assertEquals(-1, count);
+        assertEquals(frame.length, total);
+        assertEquals(1, decoded.size());
+    }
+
+    @Test(expected = MeshFrameException.class)
+    public void oversizedLength_isRejectedBeforeBuffering() throws Exception {
+        byte[] header = {MeshFrameCodec.MAGIC, MeshFrameCodec.VERSION, 0, 0, 0x7F, 0, 0, 0};
+        new MeshFrameDecoder(codec).feed(header, 0, header.length, message -> fail("unexpected frame"));
+    }
+
+    @Test(expected = MeshFrameException.class)
+    public void legacyRawJson_isRejected() throws Exception {
+        byte[] legacy = gson.toJson(sampleMessage("old", 0)).getBytes(StandardCharsets.UTF_8);
+        new MeshFrameDecoder(codec).feed(legacy, 0, legacy.length, message -> fail("unexpected frame"));
+    }
+
+    @Test
+    public void fuzzedFrames_failOnlyWithFrameException() throws Exception {
+        Random random = new Random(1234);
+        byte[] valid = codec.encode(sampleMessage("fuzz target", 4));
+
+        for (int iteration = 0; iteration < 20000; iteration++) {
+            byte[] mutated = valid.clone();
+            int flips = 1 + random.nextInt(4);
+            for (int i = 0; i < flips; i++) {
+                // Keep the header valid half of the time so the body decoder is exercised
+                int from = random.nextBoolean() ? MeshFrameCodec.HEADER_SIZE : 0;
+                mutated[from + random.nextInt(mutated.length - from)] = (byte) random.nextInt(256);
+            }
+
+            MeshFrameDecoder decoder = new MeshFrameDecoder(codec);
+            try {
+                decoder.feed(mutated, 0, mutated.length, message -> { });
+            } catch (MeshFrameException expected) {
+                // Corrupt input must surface as a frame error, never anything else
+            }
+        }
+
+        for (int iteration = 0; iteration < 5000; iteration++) {
+            byte[] noise = new byte[random.nextInt(256)];
+            random.nextBytes(noise);
+            try {
+                new MeshFrameDecoder(codec).feed(noise, 0, noise.length, message -> { });
+            } catch (MeshFrameException expected) {
+                // ignore
+            }
+        }
+    }
+
+    @Test
+    public void throughput_binaryVersusLegacyJson() throws Exception {
+        BluetoothMeshMessage message = sampleMessage("Need O- blood at the camp near gate 3, please forward", 2);
+        message.setSenderName("Volunteer");
+        int iterations = 20000;
+
+        // Warm up both paths
+        runBinary(message, 2000);
+        runJson(message, 2000);
+
+        long binaryStart = System.nanoTime();
+        long binaryBytes = runBinary(message, iterations);
+        long binaryNanos = System.nanoTime() - binaryStart;
+
+        long jsonStart = System.nanoTime();
+        long jsonBytes = runJson(message, iterations);
+        long jsonNanos = System.nanoTime() - jsonStart;
+
+        System.out.println(String.format("binary: %d msgs, %d bytes/msg, %.1f us/msg",
+                iterations, binaryBytes / iterations, binaryNanos / 1000.0 / iterations));
+        System.out.println(String.format("json:   %d msgs, %d bytes/msg, %.1f us/msg",
+                iterations, jsonBytes / iterations, jsonNanos / 1000.0 / iterations));
+
+        assertTrue("binary frames should be smaller than JSON", binaryBytes < jsonBytes);
+    }
+
+    private long runBinary(BluetoothMeshMessage message, int iterations) throws Exception {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (int i = 0; i < iterations; i++) {
+            codec.writeTo(message, stream);
+        }
+        byte[] bytes = stream.toByteArray();
+        final int[] decoded = {0};
+        MeshFrameDecoder decoder = new MeshFrameDecoder(codec);
+        for (int offset = 0; offset < bytes.length; offset += 1024) {
+            decoder.feed(bytes, offset, Math.min(1024, bytes.length - offset), m -> decoded[0]++);
+        }
+        assertEquals(iterations, decoded[0]);
+        return bytes.length;
+    }
+
+    private long runJson(BluetoothMeshMessage message, int iterations) {
+        long total = 0;
+        for (int i = 0; i < iterations; i++) {
+            byte[] bytes = gson.toJson(message).getBytes();
+            total += bytes.length;
+            BluetoothMeshMessage decoded = gson.fromJson(new String(bytes, 0, bytes.length), BluetoothMeshMessage.class);
+            assertNotNull(decoded);
+        }
+        return total;
+    }
+
+    private BluetoothMeshMessage decodeSingle(byte[] frame) throws Exception {
+        List<BluetoothMeshMessage> decoded = decodeStream(frame, frame.length);
+        assertEquals(1, decoded.size());
+        return decoded.get(0);
+    }
+
+    private List<BluetoothMeshMessage> decodeStream(byte[] stream, int chunkSize) throws Exception {
+        List<BluetoothMeshMessage> decoded = new ArrayList<>();
+        MeshFrameDecoder decoder = new MeshFrameDecoder(codec);
+        for (int offset = 0; offset < stream.length; offset += chunkSize) {
+            decoder.feed(stream, offset, Math.min(chunkSize, stream.length - offset), decoded::add);
+        }
+        assertEquals(0, decoder.getBufferedBytes());
+        decoder.release();
+        return decoded;
+    }
+
+    private static BluetoothMeshMessage sampleMessage(String content, int hopCount) {
+        return new BluetoothMeshMessage("AABBCCDDEEFF_1700000000000_" + content.hashCode(), "CHAT",
+                "AABBCCDDEEFF_1700000000000", null, content, 1700000000123L, hopCount);
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] result = new byte[a.length + b.length];
+        System.arraycopy(a, 0, result, 0, a.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    private static void assertMessageEquals(BluetoothMeshMessage expected, BluetoothMeshMessage actual) {
+        assertEquals(expected.getMessageId(), actual.getMessageId());
+        assertEquals(expected.getType(), actual.getType());
+        assertEquals(expected.getSourceNodeId(), actual.getSourceNodeId());
+        assertEquals(expected.getTargetNodeId(), actual.getTargetNodeId());
+        assertEquals(expected.getContent(), actual.getContent());
+        assertEquals(expected.getTimestamp(), actual.getTimestamp());
+        assertEquals(expected.getHopCount(), actual.getHopCount());
+        assertEquals(expected.getSenderName(), actual.getSenderName());
+        assertEquals(expected.getSenderAddress(), actual.getSenderAddress());
+    }
+}
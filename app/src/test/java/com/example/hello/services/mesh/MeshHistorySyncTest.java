@@ -0,0 +1,287 @@
+package com.example.hello.services.mesh;
+
+import com.example.hello.models.BluetoothMeshMessage;
+import com.example.hello.services.BluetoothMeshService;
+import com.google.gson.Gson;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class MeshHistorySyncTest {
+    private static final long HOUR = 60 * 60 * 1000L;
+
+    private final MeshFrameCodec codec = new MeshFrameCodec(new Gson(),
+            new MeshBufferPool(MeshFrameCodec.DEFAULT_MAX_FRAME_SIZE * 2));
+    private final Map<String, Peer> peers = new HashMap<>();
+    private final ArrayDeque<Object[]> inFlight = new ArrayDeque<>();
+    private final Map<String, Integer> sentByType = new HashMap<>();
+    private File directory;
+    private long now = 48 * HOUR;
+    private int ids;
+
+    /**
+     * One node's history; its link ID for a peer is the peer's name.
+     */
+    private class Peer implements MeshHistorySync.SyncActions {
+        final String name;
+        final MeshHistorySync history;
+        final Set<String> seen = new HashSet<>();
+        final List<BluetoothMeshMessage> synced = new ArrayList<>();
+
+        Peer(String name, int maxMessages) {
+            this.name = name;
+            this.history = new MeshHistorySync(name, new File(directory, name), codec, this, new Gson(),
+                    MeshHistorySync.DEFAULT_WINDOW_MS, maxMessages) {
+                @Override
+                long now() {
+                    return now;
+                }
+            };
+        }
+
+        @Override
+        public void sendOnLink(String linkId, BluetoothMeshMessage message) {
+            Integer count = sentByType.get(message.getType());
+            sentByType.put(message.getType(), count == null ? 1 : count + 1);
+            inFlight.add(new Object[]{linkId, message, name});
+        }
+
+        @Override
+        public String newMessageId() {
+            return name + "-ctl-" + (ids++);
+        }
+
+        @Override
+        public boolean onSynced(BluetoothMeshMessage message) {
+            if (!seen.add(message.getMessageId())) {
+                return false;
+            }
+            synced.add(message);
+            return true;
+        }
+
+        void chat(String id, long timestamp) {
+            BluetoothMeshMessage message = new BluetoothMeshMessage(id, BluetoothMeshService.MSG_TYPE_CHAT,
+                    name, null, "text " + id, timestamp, 0);
+            seen.add(id);
+            assertTrue(history.record(message));
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("history").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        for (Peer peer : peers.values()) {
+            peer.history.close();
+        }
+        deleteRecursively(directory);
+    }
+
+    private Peer peer(String name, int maxMessages) throws Exception {
+        Peer peer = new Peer(name, maxMessages);
+        peer.history.open();
+        peers.put(name, peer);
+        return peer;
+    }
+
+    private void deliverAll() {
+        while (!inFlight.isEmpty()) {
+            Object[] item = inFlight.poll();
+            Peer to = peers.get((String) item[0]);
+            BluetoothMeshMessage message = (BluetoothMeshMessage) item[1];
+            String from = (String) item[2];
+            switch (message.getType()) {
+                case BluetoothMeshService.MSG_TYPE_HISTORY_DIGEST:
+                    to.history.handleDigest(message, from);
+                    break;
+                case BluetoothMeshService.MSG_TYPE_HISTORY_REQUEST:
+                    to.history.handleRequest(message, from);
+                    break;
+                default:
+                    to.history.handleBatch(message);
+            }
+        }
+    }
+
+    private int sent(String type) {
+        Integer count = sentByType.get(type);
+        return count == null ? 0 : count;
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    @Test
+    public void round_transfersOnlyWhatEachSideIsMissing() throws Exception {
+        Peer a = peer("a", 500);
+        Peer b = peer("b", 500);
+        for (int i = 0; i < 40; i++) {
+            long timestamp = now - 3 * HOUR + i * 60000;
+            a.chat("m" + i, timestamp);
+            if (i % 10 != 3) {
+                b.chat("m" + i, timestamp);
+            }
+        }
+        b.chat("only-b", now - HOUR);
+
+        a.history.startRound("b");
+        deliverAll();
+
+        assertEquals(41, a.history.size());
+        assertEquals(41, b.history.size());
+        assertEquals(1, a.synced.size());
+        assertEquals("only-b", a.synced.get(0).getMessageId());
+        assertEquals(4, b.synced.size());
+        // One batch each way, and the reply digest does not start another round
+        assertEquals(2, sent(BluetoothMeshService.MSG_TYPE_HISTORY_DIGEST));
+        assertEquals(2, sent(BluetoothMeshService.MSG_TYPE_HISTORY_BATCH));
+    }
+
+    @Test
+    public void round_betweenMatchingHistories_isJustOneDigest() throws Exception {
+        Peer a = peer("a", 500);
+        Peer b = peer("b", 500);
+        // Same messages recorded in a different order
+        for (int i = 0; i < 20; i++) {
+            a.chat("m" + i, now - HOUR + i * 1000);
+            b.chat("m" + (19 - i), now - HOUR + (19 - i) * 1000);
+        }
+
+        a.history.startRound("b");
+        deliverAll();
+
+        assertEquals(1, sent(BluetoothMeshService.MSG_TYPE_HISTORY_DIGEST));
+        assertEquals(0, sent(BluetoothMeshService.MSG_TYPE_HISTORY_REQUEST));
+        assertEquals(0, sent(BluetoothMeshService.MSG_TYPE_HISTORY_BATCH));
+    }
+
+    @Test
+    public void historiesAtTheCap_converge() throws Exception {
+        Peer a = peer("a", 50);
+        Peer b = peer("b", 50);
+        // Overlapping, all in one bucket, and recorded in opposite orders
+        for (int i = 0; i < 80; i++) {
+            int j = 79 - i;
+            if (i % 3 != 0) {
+                a.history.record(new BluetoothMeshMessage("m" + i, BluetoothMeshService.MSG_TYPE_CHAT,
+                        "a", null, "text", now - 2 * HOUR + i * 5000, 0));
+            }
+            if (j % 3 != 1) {
+                b.history.record(new BluetoothMeshMessage("m" + j, BluetoothMeshService.MSG_TYPE_CHAT,
+                        "b", null, "text", now - 2 * HOUR + j * 5000, 0));
+            }
+        }
+        assertEquals(50, a.history.size());
+        assertEquals(50, b.history.size());
+
+        a.history.startRound("b");
+        deliverAll();
+        List<String> kept = new ArrayList<>();
+        for (BluetoothMeshMessage message : a.history.getMessages()) {
+            kept.add(message.getMessageId());
+        }
+        List<String> keptByB = new ArrayList<>();
+        for (BluetoothMeshMessage message : b.history.getMessages()) {
+            keptByB.add(message.getMessageId());
+        }
+        assertEquals(kept, keptByB);
+        assertEquals("m30", kept.get(0));
+
+        // Nothing left to send on the next round
+        sentByType.clear();
+        b.history.startRound("a");
+        deliverAll();
+        assertEquals(1, sent(BluetoothMeshService.MSG_TYPE_HISTORY_DIGEST));
+        assertEquals(0, sent(BluetoothMeshService.MSG_TYPE_HISTORY_REQUEST));
+    }
+
+    @Test
+    public void lateJoiner_catchesUpAcrossSeveralBatches() throws Exception {
+        Peer a = peer("a", 500);
+        Peer late = peer("late", 500);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            text.append("0123456789");
+        }
+        for (int i = 0; i < 200; i++) {
+            BluetoothMeshMessage message = new BluetoothMeshMessage("m" + i, BluetoothMeshService.MSG_TYPE_CHAT,
+                    "a", null, text.toString(), now - 20 * HOUR + i * 60000, 0);
+            a.history.record(message);
+        }
+
+        late.history.startRound("a");
+        deliverAll();
+
+        assertEquals(200, late.synced.size());
+        assertTrue(sent(BluetoothMeshService.MSG_TYPE_HISTORY_BATCH) > 1);
+        List<BluetoothMeshMessage> messages = late.history.getMessages();
+        for (int i = 1; i < messages.size(); i++) {
+            assertTrue(messages.get(i - 1).getTimestamp() <= messages.get(i).getTimestamp());
+        }
+    }
+
+    @Test
+    public void onlyRecentBroadcastChatIsKept() throws Exception {
+        Peer a = peer("a", 500);
+
+        assertFalse(a.history.record(new BluetoothMeshMessage("direct", BluetoothMeshService.MSG_TYPE_CHAT,
+                "a", "b", "hi", now, 0)));
+        assertFalse(a.history.record(new BluetoothMeshMessage("beat", BluetoothMeshService.MSG_TYPE_HEARTBEAT,
+                "a", null, "", now, 0)));
+        assertFalse(a.history.record(new BluetoothMeshMessage("old", BluetoothMeshService.MSG_TYPE_CHAT,
+                "a", null, "hi", now - 25 * HOUR, 0)));
+        assertTrue(a.history.record(new BluetoothMeshMessage("new", BluetoothMeshService.MSG_TYPE_CHAT,
+                "a", null, "hi", now, 0)));
+        assertFalse(a.history.record(new BluetoothMeshMessage("new", BluetoothMeshService.MSG_TYPE_CHAT,
+                "a", null, "hi", now, 0)));
+        assertEquals(1, a.history.size());
+    }
+
+    @Test
+    public void history_isBoundedAndSurvivesReopening() throws Exception {
+        Peer a = peer("a", 50);
+        for (int i = 0; i < 80; i++) {
+            a.chat("m" + i, now - 10 * HOUR + i * 60000);
+        }
+        assertEquals(50, a.history.size());
+        assertFalse(a.history.contains("m29", now - 10 * HOUR + 29 * 60000));
+        assertTrue(a.history.contains("m30", now - 10 * HOUR + 30 * 60000));
+
+        a.history.close();
+        a.history.open();
+        assertEquals(50, a.history.size());
+        assertEquals("m30", a.history.getMessages().get(0).getMessageId());
+
+        // A day later, everything has left the window
+        now += 24 * HOUR;
+        a.history.maintain();
+        assertEquals(0, a.history.size());
+        a.history.close();
+        a.history.open();
+        assertEquals(0, a.history.size());
+    }
+}
@@ -0,0 +1,123 @@
+package com.example.hello.services.mesh;
+
+import com.example.hello.models.BluetoothMeshMessage;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+public class MeshMetricsTest {
+
+    @Test
+    public void frames_areCountedPerLinkPerTypeAndInTotal() {
+        MeshMetrics metrics = new MeshMetrics();
+        metrics.onFrameIn("L1", "CHAT", 100);
+        metrics.onFrameIn("L2", "CHAT", 50);
+        metrics.onFrameOut("L1", "HEARTBEAT", 30);
+        metrics.onFrameOut("L1", "CHAT", 100);
+
+        MeshMetrics.Snapshot snapshot = metrics.snapshot(null);
+        assertEquals(2, snapshot.getTotal().getFramesIn());
+        assertEquals(150, snapshot.getTotal().getBytesIn());
+        assertEquals(130, snapshot.getTotal().getBytesOut());
+        assertEquals(1, snapshot.getLinks().get("L1").getFramesIn());
+        assertEquals(2, snapshot.getLinks().get("L1").getFramesOut());
+        assertEquals(-1, snapshot.getLinks().get("L1").getQueueDepth());
+        assertEquals(150, snapshot.getTypes().get("CHAT").getBytesIn());
+        assertEquals(1, snapshot.getTypes().get("HEARTBEAT").getFramesOut());
+    }
+
+    @Test
+    public void drops_areCountedByReason() {
+        MeshMetrics metrics = new MeshMetrics();
+        metrics.onDrop(MeshMetrics.Drop.DUPLICATE);
+        metrics.onDrop(MeshMetrics.Drop.DUPLICATE);
+        metrics.onLinkDrop("L1");
+
+        MeshMetrics.Snapshot snapshot = metrics.snapshot(null);
+        assertEquals(2, snapshot.getDrops(MeshMetrics.Drop.DUPLICATE));
+        assertEquals(1, snapshot.getDrops(MeshMetrics.Drop.QUEUE_OVERFLOW));
+        assertEquals(0, snapshot.getDrops(MeshMetrics.Drop.HOP_LIMIT));
+        assertEquals(1, snapshot.getLinks().get("L1").getDropped());
+        assertEquals(1, snapshot.getTotal().getDropped());
+    }
+
+    @Test
+    public void histogram_percentileBoundsFollowBuckets() {
+        MeshMetrics metrics = new MeshMetrics();
+        for (int i = 0; i < 90; i++) {
+            metrics.onFirstReception("CHAT", BluetoothMeshMessage.PRIORITY_NORMAL, 40);
+        }
+        for (int i = 0; i < 10; i++) {
+            metrics.onFirstReception("CHAT", BluetoothMeshMessage.PRIORITY_NORMAL, 700);
+        }
+        // Clock skew must not produce negative latencies
+        metrics.onHeartbeatRtt(-5);
+
+        MeshMetrics.HistogramSnapshot latency = metrics.snapshot(null).getTypes().get("CHAT").getLatency();
+        assertEquals(100, latency.getCount());
+        assertEquals(106, latency.getMean(), 0.001);
+        assertEquals(50, latency.getPercentileBound(50));
+        assertEquals(50, latency.getPercentileBound(90));
+        assertEquals(1000, latency.getPercentileBound(99));
+        MeshMetrics.Snapshot snapshot = metrics.snapshot(null);
+        assertEquals(100, snapshot.getPriorityLatency(BluetoothMeshMessage.PRIORITY_NORMAL).getCount());
+        assertEquals(0, snapshot.getPriorityLatency(BluetoothMeshMessage.PRIORITY_EMERGENCY).getCount());
+        assertEquals(10, metrics.snapshot(null).getHeartbeatRtt().getPercentileBound(100));
+
+        metrics.onFirstReception("CHAT", BluetoothMeshMessage.PRIORITY_NORMAL, 10 * 60 * 1000);
+        latency = metrics.snapshot(null).getTypes().get("CHAT").getLatency();
+        assertEquals(Long.MAX_VALUE, latency.getPercentileBound(100));
+    }
+
+    @Test
+    public void links_areCappedButTotalsKeepCounting() {
+        MeshMetrics metrics = new MeshMetrics();
+        for (int i = 0; i < MeshMetrics.MAX_LINKS + 10; i++) {
+            metrics.onFrameIn("L" + i, "CHAT", 1);
+        }
+
+        MeshMetrics.Snapshot snapshot = metrics.snapshot(null);
+        assertEquals(MeshMetrics.MAX_LINKS, snapshot.getLinks().size());
+        assertEquals(MeshMetrics.MAX_LINKS + 10, snapshot.getTotal().getFramesIn());
+    }
+
+    @Test
+    public void reset_clearsEverything() {
+        MeshMetrics metrics = new MeshMetrics();
+        metrics.onFrameIn("L1", "CHAT", 10);
+        metrics.onDrop(MeshMetrics.Drop.HOP_LIMIT);
+        metrics.onForward(3);
+        metrics.reset();
+
+        MeshMetrics.Snapshot snapshot = metrics.snapshot(null);
+        assertEquals(0, snapshot.getTotal().getFramesIn());
+        assertTrue(snapshot.getLinks().isEmpty());
+        assertEquals(0, snapshot.getDrops(MeshMetrics.Drop.HOP_LIMIT));
+        assertEquals(0, snapshot.getFanOut().getCount());
+    }
+
+    @Test
+    public void export_writesJson() throws Exception {
+        MeshMetrics metrics = new MeshMetrics();
+        metrics.onFrameOut("L1", "CHAT", 42);
+        metrics.onForward(2);
+
+        File file = File.createTempFile("metrics", ".json");
+        try {
+            metrics.export(file, null);
+            String json = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+            JsonObject root = new Gson().fromJson(json, JsonObject.class);
+            assertEquals(42, root.getAsJsonObject("links").getAsJsonObject("L1").get("bytesOut").getAsLong());
+            assertEquals(1, root.getAsJsonObject("fanOut").get("count").getAsLong());
+        } finally {
+            file.delete();
+        }
+    }
+}
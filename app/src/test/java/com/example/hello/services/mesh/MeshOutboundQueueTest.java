@@ -0,0 +1,245 @@
+package com.example.hello.services.mesh;
+
+import com.example.hello.models.BluetoothMeshMessage;
+import com.example.hello.services.BluetoothMeshService;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MeshOutboundQueueTest {
+
+    private static OutboundFrame frame(String type, int length) {
+        return new OutboundFrame(new byte[length], type);
+    }
+
+    private static OutboundFrame emergency(int length) {
+        return new OutboundFrame(new byte[length], BluetoothMeshService.MSG_TYPE_CHAT,
+                BluetoothMeshMessage.PRIORITY_EMERGENCY);
+    }
+
+    private static char code(OutboundFrame frame) {
+        switch (frame.getPriorityClass()) {
+            case BluetoothMeshMessage.PRIORITY_EMERGENCY:
+                return 'E';
+            case BluetoothMeshMessage.PRIORITY_CONTROL:
+                return 'k';
+            case BluetoothMeshMessage.PRIORITY_BULK:
+                return 'B';
+            default:
+                return 'c';
+        }
+    }
+
+    @Test
+    public void bulkFrames_interleaveBehindChat() {
+        MeshOutboundQueue queue = new MeshOutboundQueue();
+        for (int i = 0; i < 10; i++) {
+            assertTrue(queue.offer(frame(BluetoothMeshService.MSG_TYPE_FILE_CHUNK, 4096)));
+        }
+        for (int i = 0; i < 10; i++) {
+            assertTrue(queue.offer(frame(BluetoothMeshService.MSG_TYPE_CHAT, 100)));
+        }
+
+        // Chat first, with one chunk after every burst of interactive frames
+        StringBuilder order = new StringBuilder();
+        OutboundFrame next;
+        while ((next = queue.poll()) != null) {
+            order.append(next.isBulk() ? 'B' : 'c');
+        }
+        assertEquals("ccccBccccBccBBBBBBBB", order.toString());
+    }
+
+    @Test
+    public void bulkFrames_neverPushOutChat() {
+        MeshOutboundQueue queue = new MeshOutboundQueue(8, 64 * 1024, MeshOutboundQueue.OverflowPolicy.DROP_OLDEST_EXPENDABLE);
+        for (int i = 0; i < 8; i++) {
+            assertTrue(queue.offer(frame(BluetoothMeshService.MSG_TYPE_CHAT, 100)));
+        }
+        assertFalse(queue.offer(frame(BluetoothMeshService.MSG_TYPE_FILE_CHUNK, 4096)));
+        assertEquals(0, queue.getBulkSize());
+    }
+
+    @Test
+    public void chat_evictsBulkWhenFull() {
+        MeshOutboundQueue queue = new MeshOutboundQueue(8, 64 * 1024, MeshOutboundQueue.OverflowPolicy.DROP_OLDEST_EXPENDABLE);
+        // Bulk may only take half of the byte budget
+        int accepted = 0;
+        for (int i = 0; i < 8; i++) {
+            if (queue.offer(frame(BluetoothMeshService.MSG_TYPE_FILE_CHUNK, 8 * 1024))) {
+                accepted++;
+            }
+        }
+        assertEquals(4, accepted);
+
+        for (int i = 0; i < 6; i++) {
+            assertTrue(queue.offer(frame(BluetoothMeshService.MSG_TYPE_CHAT, 100)));
+        }
+        assertEquals(8, queue.size());
+        assertEquals(2, queue.getBulkSize());
+        assertEquals(6, queue.getDroppedCount());
+    }
+
+    @Test
+    public void emergency_overtakesQueuedTraffic() {
+        MeshOutboundQueue queue = new MeshOutboundQueue();
+        for (int i = 0; i < 5; i++) {
+            queue.offer(frame(BluetoothMeshService.MSG_TYPE_FILE_CHUNK, 4096));
+            queue.offer(frame(BluetoothMeshService.MSG_TYPE_CHAT, 100));
+        }
+        queue.offer(emergency(100));
+
+        assertEquals(BluetoothMeshMessage.PRIORITY_EMERGENCY, queue.poll().getPriorityClass());
+    }
+
+    @Test
+    public void everyClass_getsAShareUnderEmergencyLoad() {
+        MeshOutboundQueue queue = new MeshOutboundQueue();
+        for (int i = 0; i < 12; i++) {
+            queue.offer(emergency(100));
+        }
+        for (int i = 0; i < 3; i++) {
+            queue.offer(frame(BluetoothMeshService.MSG_TYPE_ACK, 50));
+            queue.offer(frame(BluetoothMeshService.MSG_TYPE_CHAT, 100));
+            queue.offer(frame(BluetoothMeshService.MSG_TYPE_FILE_CHUNK, 4096));
+        }
+
+        StringBuilder order = new StringBuilder();
+        OutboundFrame next;
+        while ((next = queue.poll()) != null) {
+            order.append(code(next));
+        }
+        // Control after every two emergency frames, chat and bulk after four
+        assertEquals("EEkEcBEkEEkcBEEEEcBEE", order.toString());
+    }
+
+    @Test
+    public void congestion_dropsLeastUrgentFirst() {
+        MeshOutboundQueue queue = new MeshOutboundQueue(4, 64 * 1024, MeshOutboundQueue.OverflowPolicy.DROP_OLDEST_EXPENDABLE);
+        queue.offer(frame(BluetoothMeshService.MSG_TYPE_ACK, 50));
+        queue.offer(frame(BluetoothMeshService.MSG_TYPE_CHAT, 100));
+        queue.offer(frame(BluetoothMeshService.MSG_TYPE_HEARTBEAT, 50));
+        queue.offer(emergency(100));
+
+        // The heartbeat goes first, then chat; the ACK outranks both
+        assertTrue(queue.offer(emergency(100)));
+        assertTrue(queue.offer(emergency(100)));
+        assertEquals(0, queue.size(BluetoothMeshMessage.PRIORITY_NORMAL));
+        assertEquals(1, queue.size(BluetoothMeshMessage.PRIORITY_CONTROL));
+
+        // Nothing less urgent is left, so plain chat cannot get in
+        assertFalse(queue.offer(frame(BluetoothMeshService.MSG_TYPE_CHAT, 100)));
+        assertEquals(3, queue.size(BluetoothMeshMessage.PRIORITY_EMERGENCY));
+        assertEquals(3, queue.getDroppedCount());
+    }
+
+    @Test
+    public void byteBudget_boundsTheQueueAsWellAsFrameCount() {
+        MeshOutboundQueue queue = new MeshOutboundQueue(100, 1000, MeshOutboundQueue.OverflowPolicy.DROP_NEWEST);
+        assertTrue(queue.offer(frame(BluetoothMeshService.MSG_TYPE_CHAT, 400)));
+        assertTrue(queue.offer(frame(BluetoothMeshService.MSG_TYPE_CHAT, 400)));
+        assertFalse(queue.offer(frame(BluetoothMeshService.MSG_TYPE_CHAT, 400)));
+        // A smaller frame still fits
+        assertTrue(queue.offer(frame(BluetoothMeshService.MSG_TYPE_CHAT, 200)));
+
+        assertEquals(3, queue.size());
+        assertEquals(1000, queue.getQueuedBytes());
+        assertEquals(1, queue.getDroppedCount());
+
+        queue.poll();
+        assertEquals(600, queue.getQueuedBytes());
+        assertTrue(queue.offer(frame(BluetoothMeshService.MSG_TYPE_CHAT, 400)));
+    }
+
+    @Test
+    public void dropNewest_keepsWhatIsQueued() {
+        MeshOutboundQueue queue = new MeshOutboundQueue(3, 64 * 1024, MeshOutboundQueue.OverflowPolicy.DROP_NEWEST);
+        queue.offer(frame(BluetoothMeshService.MSG_TYPE_CHAT, 1));
+        queue.offer(frame(BluetoothMeshService.MSG_TYPE_HEARTBEAT, 2));
+        queue.offer(frame(BluetoothMeshService.MSG_TYPE_FILE_CHUNK, 3));
+
+        // Not even bulk or a heartbeat makes way for an emergency
+        assertFalse(queue.offer(emergency(4)));
+        assertEquals(3, queue.size());
+        assertEquals(1, queue.getBulkSize());
+        assertEquals(1, queue.getDroppedCount());
+    }
+
+    @Test
+    public void dropOldest_takesTheOldestOfTheLeastUrgentClass() {
+        MeshOutboundQueue queue = new MeshOutboundQueue(3, 64 * 1024, MeshOutboundQueue.OverflowPolicy.DROP_OLDEST);
+        queue.offer(frame(BluetoothMeshService.MSG_TYPE_CHAT, 1));
+        queue.offer(frame(BluetoothMeshService.MSG_TYPE_CHAT, 2));
+        queue.offer(frame(BluetoothMeshService.MSG_TYPE_HEARTBEAT, 3));
+
+        // The heartbeat is no more expendable than anything else under this policy
+        assertTrue(queue.offer(frame(BluetoothMeshService.MSG_TYPE_CHAT, 4)));
+        assertEquals(3, queue.size());
+        assertEquals(3, queue.poll().getLength());
+        assertEquals(2, queue.poll().getLength());
+        assertEquals(4, queue.poll().getLength());
+        assertEquals(1, queue.getDroppedCount());
+    }
+
+    @Test
+    public void dropOldestExpendable_givesUpHeartbeatsThenDiscovery() {
+        MeshOutboundQueue queue = new MeshOutboundQueue(3, 64 * 1024, MeshOutboundQueue.OverflowPolicy.DROP_OLDEST_EXPENDABLE);
+        queue.offer(frame(BluetoothMeshService.MSG_TYPE_DISCOVERY, 1));
+        queue.offer(frame(BluetoothMeshService.MSG_TYPE_HEARTBEAT, 2));
+        queue.offer(frame(BluetoothMeshService.MSG_TYPE_CHAT, 3));
+
+        assertTrue(queue.offer(frame(BluetoothMeshService.MSG_TYPE_CHAT, 4)));
+        assertTrue(queue.offer(frame(BluetoothMeshService.MSG_TYPE_CHAT, 5)));
+        assertEquals(2, queue.getDroppedCount());
+        assertEquals(12, queue.getQueuedBytes());
+
+        // A heartbeat never pushes out real traffic
+        assertFalse(queue.offer(frame(BluetoothMeshService.MSG_TYPE_HEARTBEAT, 6)));
+        assertEquals(3, queue.size(BluetoothMeshMessage.PRIORITY_NORMAL));
+    }
+
+    @Test
+    public void evictedFrames_areReportedButRejectedOnesAreNot() {
+        MeshOutboundQueue queue = new MeshOutboundQueue(2, 64 * 1024, MeshOutboundQueue.OverflowPolicy.DROP_OLDEST_EXPENDABLE);
+        StringBuilder evicted = new StringBuilder();
+        queue.setEvictionListener(frame -> evicted.append(frame.getLength()).append(' '));
+        queue.offer(frame(BluetoothMeshService.MSG_TYPE_HEARTBEAT, 1));
+        queue.offer(frame(BluetoothMeshService.MSG_TYPE_CHAT, 2));
+
+        assertTrue(queue.offer(frame(BluetoothMeshService.MSG_TYPE_CHAT, 3)));
+        assertTrue(queue.offer(frame(BluetoothMeshService.MSG_TYPE_CHAT, 4)));
+        assertFalse(queue.offer(frame(BluetoothMeshService.MSG_TYPE_HEARTBEAT, 5)));
+
+        assertEquals("1 2 ", evicted.toString());
+        assertEquals(3, queue.getDroppedCount());
+    }
+
+    @Test
+    public void chat_getsATurnBehindASteadyStreamOfControlFrames() {
+        MeshOutboundQueue queue = new MeshOutboundQueue();
+        queue.offer(frame(BluetoothMeshService.MSG_TYPE_CHAT, 100));
+        queue.offer(frame(BluetoothMeshService.MSG_TYPE_CHAT, 100));
+        for (int i = 0; i < 10; i++) {
+            queue.offer(frame(BluetoothMeshService.MSG_TYPE_ACK, 50));
+        }
+
+        StringBuilder order = new StringBuilder();
+        OutboundFrame next;
+        while ((next = queue.poll()) != null) {
+            order.append(code(next));
+        }
+        assertEquals("kkkkckkkkckk", order.toString());
+    }
+
+    @Test
+    public void closedQueue_rejectsAndReturnsNothing() {
+        MeshOutboundQueue queue = new MeshOutboundQueue();
+        queue.offer(frame(BluetoothMeshService.MSG_TYPE_CHAT, 100));
+        queue.close();
+
+        assertFalse(queue.offer(frame(BluetoothMeshService.MSG_TYPE_CHAT, 100)));
+        assertNull(queue.poll());
+        assertEquals(0, queue.size());
+        assertEquals(0, queue.getQueuedBytes());
+    }
+}
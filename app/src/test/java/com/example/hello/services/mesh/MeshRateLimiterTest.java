@@ -0,0 +1,103 @@
+package com.example.hello.services.mesh;
+
+import com.example.hello.models.BluetoothMeshMessage;
+import com.example.hello.services.BluetoothMeshService;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MeshRateLimiterTest {
+    private long now = 1000;
+    private int ids;
+
+    private final MeshRateLimiter limiter = new MeshRateLimiter() {
+        @Override
+        long now() {
+            return now;
+        }
+    };
+
+    private BluetoothMeshMessage message(String type, String source, String target, int priority) {
+        BluetoothMeshMessage message = new BluetoothMeshMessage("m" + (ids++), type, source, target, "", now, 0);
+        message.setPriority(priority);
+        return message;
+    }
+
+    private int admitted(String type, String source, String target, int priority, String linkId) {
+        int count = 0;
+        while (limiter.admit(message(type, source, target, priority), linkId)) {
+            count++;
+        }
+        return count;
+    }
+
+    @Test
+    public void linkBucket_shedsLeastUrgentFirst() {
+        // Directed, so only the link bucket applies
+        assertEquals(40, admitted("FILE_CHUNK", "a", "me", 0, "L1"));
+        assertEquals(20, admitted("CHAT", "a", "me", 0, "L1"));
+        assertEquals(12, admitted("HEARTBEAT", "a", null, 0, "L1"));
+        assertEquals(8, admitted("CHAT", "a", "me", BluetoothMeshMessage.PRIORITY_EMERGENCY, "L1"));
+
+        // Other links have their own budget, and the bucket refills over time
+        assertTrue(limiter.admit(message("CHAT", "a", "me", 0), "L2"));
+        now += 1000;
+        assertEquals(20, admitted("CHAT", "a", "me", 0, "L1"));
+    }
+
+    @Test
+    public void sourceBucket_limitsFloodsFromOneOrigin() {
+        assertEquals(18, admitted("CHAT", "chatty", null, 0, "L1") + admitted("CHAT", "chatty", null, 0, "L2"));
+
+        // Other origins, directed traffic and control traffic from the same origin still pass
+        assertTrue(limiter.admit(message("CHAT", "quiet", null, 0), "L1"));
+        assertTrue(limiter.admit(message("CHAT", "chatty", "me", 0), "L1"));
+        assertTrue(limiter.admit(message("TOPOLOGY", "chatty", null, 0), "L1"));
+        assertTrue(limiter.admit(message("CHAT", "chatty", null, BluetoothMeshMessage.PRIORITY_EMERGENCY), "L1"));
+    }
+
+    @Test
+    public void shedding_asksTheNeighbourToSlowDownOncePerInterval() {
+        assertEquals(0, limiter.takeSignal("L1", false));
+        admitted("CHAT", "a", "me", 0, "L1");
+
+        assertEquals(2, limiter.takeSignal("L1", false));
+        assertEquals(0, limiter.takeSignal("L1", true));
+        now += MeshRateLimiter.PRESSURE_SIGNAL_INTERVAL_MS;
+        assertEquals(1, limiter.takeSignal("L1", true));
+    }
+
+    @Test
+    public void pressure_throttlesRelaysToThatLinkUntilItLapses() {
+        MeshRateLimiter.Backpressure request = new MeshRateLimiter.Backpressure();
+        request.level = 2;
+        limiter.onPressure("L1", request);
+        assertTrue(limiter.isUnderPressure("L1"));
+
+        // A quarter of the link rate: burst 20, bulk keeps half of it in reserve
+        int bulk = 0;
+        while (limiter.allowRelay("L1", BluetoothMeshMessage.PRIORITY_BULK)) {
+            bulk++;
+        }
+        assertEquals(10, bulk);
+        assertTrue(limiter.allowRelay("L1", BluetoothMeshMessage.PRIORITY_CONTROL));
+        assertTrue(limiter.allowRelay("L2", BluetoothMeshMessage.PRIORITY_BULK));
+
+        // Repeating the request does not refill the bucket
+        limiter.onPressure("L1", request);
+        assertFalse(limiter.allowRelay("L1", BluetoothMeshMessage.PRIORITY_BULK));
+
+        now += MeshRateLimiter.PRESSURE_HOLD_MS;
+        assertFalse(limiter.isUnderPressure("L1"));
+        assertTrue(limiter.allowRelay("L1", BluetoothMeshMessage.PRIORITY_BULK));
+    }
+
+    @Test
+    public void disabled_admitsEverything() {
+        limiter.setEnabled(false);
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(limiter.admit(message(BluetoothMeshService.MSG_TYPE_CHAT, "a", null, 0), "L1"));
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package com.example.hello.services.mesh;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class MeshReconnectSupervisorTest {
+
+    /**
+     * Drives a supervisor in virtual time. Connection attempts take
+     * {@code connectMillis} and succeed only for peers marked reachable.
+     */
+    private static class Harness {
+        final PriorityQueue<Object[]> events = new PriorityQueue<>((a, b) -> {
+            int byTime = Long.compare((Long) a[0], (Long) b[0]);
+            return byTime != 0 ? byTime : Long.compare((Long) a[1], (Long) b[1]);
+        });
+        final Set<String> reachable = new HashSet<>();
+        final Set<String> linked = new HashSet<>();
+        final Map<String, Integer> restoredBy = new HashMap<>();
+        final List<String> attempts = new ArrayList<>();
+        final List<Long> attemptTimes = new ArrayList<>();
+        long connectMillis = 1000;
+        int concurrent;
+        int maxConcurrent;
+        long now;
+        long order;
+
+        final MeshReconnectSupervisor supervisor = new MeshReconnectSupervisor(
+                new MeshReconnectSupervisor.ReconnectActions() {
+                    @Override
+                    public boolean connect(String address) {
+                        attempts.add(address);
+                        attemptTimes.add(now);
+                        concurrent++;
+                        maxConcurrent = Math.max(maxConcurrent, concurrent);
+                        at(now + connectMillis, () -> {
+                            concurrent--;
+                            if (reachable.contains(address)) {
+                                linkUp(address, true);
+                            } else {
+                                supervisor().onConnectFailed(address);
+                            }
+                        });
+                        return true;
+                    }
+
+                    @Override
+                    public boolean isLinked(String address) {
+                        return linked.contains(address);
+                    }
+
+                    @Override
+                    public int countRestoredBy(String nodeId) {
+                        Integer count = restoredBy.get(nodeId);
+                        return count != null ? count : 0;
+                    }
+
+                    @Override
+                    public void schedule(Runnable task, long delayMillis) {
+                        at(now + delayMillis, task);
+                    }
+                }, new Random(5)) {
+            @Override
+            long now() {
+                return now;
+            }
+        };
+
+        MeshReconnectSupervisor supervisor() {
+            return supervisor;
+        }
+
+        void linkUp(String address, boolean outbound) {
+            linked.add(address);
+            supervisor.onLinkUp(address, outbound);
+            supervisor.onPeerIdentified(address, "node-" + address);
+        }
+
+        void linkDown(String address) {
+            linked.remove(address);
+            supervisor.onLinkDown(address);
+        }
+
+        void runUntil(long time) {
+            while (!events.isEmpty() && (Long) events.peek()[0] <= time) {
+                Object[] event = events.poll();
+                now = (Long) event[0];
+                ((Runnable) event[2]).run();
+            }
+            now = time;
+        }
+
+        private void at(long time, Runnable task) {
+            events.add(new Object[]{time, order++, task});
+        }
+    }
+
+    @Test
+    public void droppedLink_isRestoredQuickly() {
+        Harness harness = new Harness();
+        harness.reachable.add("relay");
+        harness.linkUp("relay", true);
+        harness.linkDown("relay");
+
+        harness.runUntil(10000);
+        assertEquals(1, harness.attempts.size());
+        assertTrue(harness.linked.contains("relay"));
+        assertEquals(0, harness.supervisor.getAttemptsInProgress());
+    }
+
+    @Test
+    public void departedPeer_isRetriedWithGrowingBackoff() {
+        Harness harness = new Harness();
+        harness.linkUp("gone", true);
+        harness.linkDown("gone");
+
+        harness.runUntil(30 * 60 * 1000);
+        List<Long> times = harness.attemptTimes;
+        assertTrue("attempts " + times.size(), times.size() >= 5 && times.size() <= 15);
+        for (int i = 2; i < times.size(); i++) {
+            long gap = times.get(i) - times.get(i - 1);
+            assertTrue("gap " + gap, gap <= MeshReconnectSupervisor.MAX_BACKOFF_MS * 1.3 + 1000);
+        }
+        // Later gaps are far longer than the first
+        assertTrue(times.get(times.size() - 1) - times.get(times.size() - 2) > 10 * (times.get(1) - times.get(0)));
+
+        // Forgotten once it has been gone long enough
+        harness.runUntil(MeshReconnectSupervisor.PEER_EXPIRY_MS + 10 * 60 * 1000);
+        assertEquals(0, harness.supervisor.getPeerCount());
+    }
+
+    @Test
+    public void concurrentAttempts_areCappedAndRankedByRestoredReach() {
+        Harness harness = new Harness();
+        harness.connectMillis = 5000;
+        String[] peers = {"p0", "p1", "p2", "p3", "p4", "p5"};
+        for (String peer : peers) {
+            harness.reachable.add(peer);
+            harness.linkUp(peer, true);
+        }
+        harness.restoredBy.put("node-p4", 12);
+        harness.restoredBy.put("node-p2", 5);
+
+        // Everything drops at once; the first attempts fill both slots and the
+        // rest are all due by the time a slot frees up
+        for (String peer : peers) {
+            harness.linkDown(peer);
+        }
+        harness.runUntil(60000);
+
+        assertEquals(MeshReconnectSupervisor.DEFAULT_MAX_CONCURRENT_ATTEMPTS, harness.maxConcurrent);
+        assertEquals(peers.length, harness.linked.size());
+        List<String> queued = new ArrayList<>(harness.attempts.subList(2, harness.attempts.size()));
+        queued.retainAll(Arrays.asList("p4", "p2", "p0"));
+        assertTrue("queued " + queued, queued.size() >= 2);
+        List<String> expected = new ArrayList<>(Arrays.asList("p4", "p2", "p0"));
+        expected.retainAll(queued);
+        assertEquals(expected, queued);
+    }
+
+    @Test
+    public void inboundPeer_waitsLongerThanTheSideThatDialled() {
+        Harness harness = new Harness();
+        harness.linkUp("out", true);
+        harness.linkUp("in", false);
+        harness.linkDown("out");
+        harness.linkDown("in");
+
+        harness.runUntil(MeshReconnectSupervisor.INITIAL_BACKOFF_MS * 13 / 10 + 1);
+        assertEquals(1, harness.attempts.size());
+        assertEquals("out", harness.attempts.get(0));
+    }
+
+    @Test
+    public void peerReturningOnItsOwn_isNotDialled() {
+        Harness harness = new Harness();
+        harness.linkUp("peer", false);
+        harness.linkDown("peer");
+        harness.linkUp("peer", false);
+
+        harness.runUntil(60000);
+        assertTrue(harness.attempts.isEmpty());
+    }
+}
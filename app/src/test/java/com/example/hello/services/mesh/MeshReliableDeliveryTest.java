@@ -0,0 +1,211 @@
+package com.example.hello.services.mesh;
+
+import com.example.hello.models.BluetoothMeshMessage;
+import com.example.hello.services.BluetoothMeshService;
+import com.google.gson.Gson;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class MeshReliableDeliveryTest {
+
+    /**
+     * Two endpoints joined by a channel with a fixed one-way delay that can
+     * drop messages or be cut entirely, driven in virtual time.
+     */
+    private static class Pair {
+        final PriorityQueue<Object[]> events = new PriorityQueue<>((a, b) -> {
+            int byTime = Long.compare((Long) a[0], (Long) b[0]);
+            return byTime != 0 ? byTime : Long.compare((Long) a[1], (Long) b[1]);
+        });
+        final Map<String, MeshReliableDelivery.DeliveryStatus> statuses = new HashMap<>();
+        final List<String> shownAtB = new ArrayList<>();
+        final List<BluetoothMeshMessage> acksSent = new ArrayList<>();
+        long now;
+        long order;
+        long oneWayDelay = 50;
+        int dropNextToB;
+        boolean partitioned;
+        int ids;
+
+        final MeshReliableDelivery a = endpoint("A");
+        final MeshReliableDelivery b = endpoint("B");
+
+        private MeshReliableDelivery endpoint(String id) {
+            return new MeshReliableDelivery(id, new MeshReliableDelivery.DeliveryActions() {
+                @Override
+                public void transmit(BluetoothMeshMessage message) {
+                    if (BluetoothMeshService.MSG_TYPE_ACK.equals(message.getType())) {
+                        acksSent.add(message);
+                    }
+                    if (partitioned) {
+                        return;
+                    }
+                    if (id.equals("A") && dropNextToB > 0) {
+                        dropNextToB--;
+                        return;
+                    }
+                    at(now + oneWayDelay, () -> deliver(id.equals("A") ? "B" : "A", message));
+                }
+
+                @Override
+                public void schedule(Runnable task, long delayMillis) {
+                    at(now + delayMillis, task);
+                }
+
+                @Override
+                public String newMessageId() {
+                    return id + "-ack-" + (ids++);
+                }
+
+                @Override
+                public void onStatusChanged(String messageId, String targetNodeId,
+                                            MeshReliableDelivery.DeliveryStatus status) {
+                    statuses.put(messageId, status);
+                }
+            }, new Gson(), new Random(7)) {
+                @Override
+                long now() {
+                    return now;
+                }
+            };
+        }
+
+        private void deliver(String to, BluetoothMeshMessage message) {
+            MeshReliableDelivery endpoint = to.equals("A") ? a : b;
+            if (BluetoothMeshService.MSG_TYPE_ACK.equals(message.getType())) {
+                endpoint.handleAck(message);
+            } else if (endpoint.onReceivedForUs(message)) {
+                shownAtB.add(message.getMessageId());
+            }
+        }
+
+        void send(String id) {
+            a.send(new BluetoothMeshMessage(id, "CHAT", "A", "B", "hi", 0, 0));
+        }
+
+        void runUntil(long time) {
+            while (!events.isEmpty() && (Long) events.peek()[0] <= time) {
+                Object[] event = events.poll();
+                now = (Long) event[0];
+                ((Runnable) event[2]).run();
+            }
+            now = time;
+        }
+
+        private void at(long time, Runnable task) {
+            events.add(new Object[]{time, order++, task});
+        }
+    }
+
+    @Test
+    public void burst_isAcknowledgedWithOneAggregatedAck() {
+        Pair pair = new Pair();
+        pair.send("m1");
+        pair.send("m2");
+        pair.send("m3");
+        pair.runUntil(1000);
+
+        assertEquals(MeshReliableDelivery.DeliveryStatus.DELIVERED, pair.statuses.get("m2"));
+        assertEquals(3, pair.shownAtB.size());
+        assertEquals(1, pair.acksSent.size());
+        assertEquals(0, pair.a.getOutstandingCount());
+    }
+
+    @Test
+    public void lostTransmission_isRetriedAndShownOnce() {
+        Pair pair = new Pair();
+        pair.dropNextToB = 1;
+        pair.send("m1");
+        pair.runUntil(MeshReliableDelivery.INITIAL_RTO_MS * 3);
+
+        assertEquals(MeshReliableDelivery.DeliveryStatus.DELIVERED, pair.statuses.get("m1"));
+        assertEquals(Collections.singletonList("m1"), pair.shownAtB);
+    }
+
+    @Test
+    public void duplicateRetransmission_isAcknowledgedButShownOnce() {
+        Pair pair = new Pair();
+        // Slower than the first timeout, so a retransmission races the ACK
+        pair.oneWayDelay = 2000;
+        pair.send("m1");
+        pair.runUntil(60000);
+
+        assertEquals(MeshReliableDelivery.DeliveryStatus.DELIVERED, pair.statuses.get("m1"));
+        assertEquals(Collections.singletonList("m1"), pair.shownAtB);
+    }
+
+    @Test
+    public void measuredRtt_shortensRetransmissionTimeout() {
+        Pair pair = new Pair();
+        for (int i = 0; i < 10; i++) {
+            pair.send("m" + i);
+            pair.runUntil(pair.now + 1000);
+        }
+        long rto = pair.a.getRetransmissionTimeout("B");
+        assertTrue("rto " + rto, rto < MeshReliableDelivery.INITIAL_RTO_MS);
+        assertTrue("rto " + rto, rto >= MeshReliableDelivery.MIN_RTO_MS);
+    }
+
+    @Test
+    public void partition_failsAfterRetriesAndStaysBounded() {
+        Pair pair = new Pair();
+        pair.partitioned = true;
+        for (int i = 0; i < MeshReliableDelivery.MAX_OUTSTANDING + 20; i++) {
+            pair.send("m" + i);
+        }
+        assertEquals(MeshReliableDelivery.MAX_OUTSTANDING, pair.a.getOutstandingCount());
+        assertEquals(MeshReliableDelivery.DeliveryStatus.FAILED, pair.statuses.get("m0"));
+
+        pair.runUntil(10 * 60 * 1000);
+        assertEquals(0, pair.a.getOutstandingCount());
+        assertEquals(MeshReliableDelivery.DeliveryStatus.FAILED, pair.statuses.get("m140"));
+    }
+
+    @Test
+    public void heartbeat_carriesAcksForNeighbours() {
+        Pair pair = new Pair();
+        pair.partitioned = true;
+        pair.send("m1");
+        pair.b.onReceivedForUs(new BluetoothMeshMessage("m1", "CHAT", "A", "B", "hi", 0, 0));
+
+        String content = pair.b.takeHeartbeatAcks(Collections.singletonList("A"));
+        assertFalse(content.isEmpty());
+        pair.a.onHeartbeat(new BluetoothMeshMessage("hb", "HEARTBEAT", "B", null, content, 0, 0));
+        assertEquals(MeshReliableDelivery.DeliveryStatus.DELIVERED, pair.statuses.get("m1"));
+
+        // Nothing left to send separately once the timer fires
+        pair.runUntil(MeshReliableDelivery.ACK_DELAY_MS * 2);
+        assertTrue(pair.acksSent.isEmpty());
+    }
+
+    @Test
+    public void heartbeat_echoMeasuresRoundTripMinusHoldTime() {
+        Pair pair = new Pair();
+        pair.now = 1000;
+        String fromA = pair.a.takeHeartbeatAcks(Collections.singletonList("B"));
+        assertEquals("", fromA);
+
+        // A's heartbeat takes 40 ms to reach B, which sends its own 5 s later
+        pair.now = 1040;
+        assertEquals(-1, pair.b.onHeartbeat(new BluetoothMeshMessage("hbA", "HEARTBEAT", "A", null, fromA, 1000, 0)));
+        pair.now = 6040;
+        String fromB = pair.b.takeHeartbeatAcks(Collections.singletonList("A"));
+        assertFalse(fromB.isEmpty());
+
+        pair.now = 6100;
+        assertEquals(100, pair.a.onHeartbeat(new BluetoothMeshMessage("hbB", "HEARTBEAT", "B", null, fromB, 6040, 0)));
+
+        // Each heartbeat is echoed once
+        assertTrue(pair.b.takeHeartbeatAcks(Collections.singletonList("A")).isEmpty());
+    }
+}
@@ -0,0 +1,196 @@
+package com.example.hello.services.mesh;
+
+import com.example.hello.models.BluetoothMeshMessage;
+import com.example.hello.services.BluetoothMeshService;
+import com.google.gson.Gson;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MeshRouterTest {
+    private final Gson gson = new Gson();
+    private final List<BluetoothMeshMessage> broadcasts = new ArrayList<>();
+    private final List<String> sentOnLinks = new ArrayList<>();
+    private final List<String> withdrawn = new ArrayList<>();
+    private long now = 1000;
+    private int ids;
+    private MeshRouter router;
+
+    @Before
+    public void setUp() {
+        router = new MeshRouter("self", new MeshRouter.RouteActions() {
+            @Override
+            public void sendOnLink(String linkId, BluetoothMeshMessage message) {
+                sentOnLinks.add(linkId + ":" + message.getType());
+            }
+
+            @Override
+            public void broadcast(BluetoothMeshMessage message) {
+                broadcasts.add(message);
+            }
+
+            @Override
+            public void schedule(Runnable task, long delayMillis) {
+            }
+
+            @Override
+            public String newMessageId() {
+                return "self-" + (ids++);
+            }
+
+            @Override
+            public void onRouteChanged(String destinationNodeId, MeshRouter.Route route) {
+                if (route == null) {
+                    withdrawn.add(destinationNodeId);
+                }
+            }
+
+            @Override
+            public void onUndeliverable(List<BluetoothMeshMessage> messages) {
+            }
+        }, gson) {
+            @Override
+            long now() {
+                return now;
+            }
+        };
+
+        // Neighbours A and B, each heard directly on its own link
+        router.onMessageObserved(heartbeat("A"), "linkA");
+        router.onMessageObserved(heartbeat("B"), "linkB");
+    }
+
+    private static BluetoothMeshMessage heartbeat(String nodeId) {
+        return new BluetoothMeshMessage(nodeId + "-beat", BluetoothMeshService.MSG_TYPE_HEARTBEAT,
+                nodeId, null, "", 0, 0);
+    }
+
+    private BluetoothMeshMessage reply(String destination, int seq, int hopsToDestination, int hopCount) {
+        MeshRouter.RouteReply reply = new MeshRouter.RouteReply();
+        reply.destinationNodeId = destination;
+        reply.destinationSeq = seq;
+        reply.hopsToDestination = hopsToDestination;
+        return new BluetoothMeshMessage("reply-" + (ids++), BluetoothMeshService.MSG_TYPE_ROUTE_REPLY,
+                destination, "self", gson.toJson(reply), now, hopCount);
+    }
+
+    private BluetoothMeshMessage request(String id, String originator, int originatorSeq, String destination) {
+        MeshRouter.RouteRequest request = new MeshRouter.RouteRequest();
+        request.destinationNodeId = destination;
+        request.unknownSeq = true;
+        request.originatorSeq = originatorSeq;
+        return new BluetoothMeshMessage(id, BluetoothMeshService.MSG_TYPE_ROUTE_REQUEST,
+                originator, null, gson.toJson(request), now, 1);
+    }
+
+    private BluetoothMeshMessage routeError(String from, String... destinations) {
+        MeshRouter.RouteError error = new MeshRouter.RouteError();
+        error.destinations = new ArrayList<>(Arrays.asList(destinations));
+        return new BluetoothMeshMessage("err-" + (ids++), BluetoothMeshService.MSG_TYPE_ROUTE_ERROR,
+                from, null, gson.toJson(error), now, 0);
+    }
+
+    @Test
+    public void fresherSequenceNumber_winsOverAShorterPath() {
+        router.handleRouteReply(reply("D", 5, 0, 2), "linkA");
+        assertEquals("A", router.getRoute("D").getNextHopNodeId());
+        assertEquals(3, router.getRoute("D").getHopCount());
+
+        // Shorter, but older: ignored
+        router.handleRouteReply(reply("D", 4, 0, 0), "linkB");
+        assertEquals("A", router.getRoute("D").getNextHopNodeId());
+
+        // Same freshness and shorter: taken
+        router.handleRouteReply(reply("D", 5, 0, 0), "linkB");
+        assertEquals("B", router.getRoute("D").getNextHopNodeId());
+        assertEquals(1, router.getRoute("D").getHopCount());
+
+        // Fresher, even though longer: taken
+        router.handleRouteReply(reply("D", 6, 0, 4), "linkA");
+        assertEquals("A", router.getRoute("D").getNextHopNodeId());
+        assertEquals(6, router.getRoute("D").getDestinationSeq());
+    }
+
+    @Test
+    public void unusedRoutes_expire_andUseKeepsThemAlive() {
+        router.handleRouteReply(reply("D", 1, 0, 1), "linkA");
+        router.handleRouteReply(reply("E", 1, 0, 1), "linkB");
+
+        now += MeshRouter.ACTIVE_ROUTE_TIMEOUT_MS - 1;
+        assertEquals("linkA", router.resolveLink("D"));
+
+        now += 2;
+        // E was never used; D was refreshed by the lookup above
+        assertNull(router.resolveLink("E"));
+        assertTrue(withdrawn.contains("E"));
+        assertEquals("linkA", router.resolveLink("D"));
+
+        now += MeshRouter.ACTIVE_ROUTE_TIMEOUT_MS;
+        assertNull(router.getRoute("D"));
+    }
+
+    @Test
+    public void routeError_onlyWithdrawsRoutesThroughItsSender() {
+        router.handleRouteReply(reply("D", 1, 0, 1), "linkA");
+        router.handleRouteReply(reply("E", 1, 0, 1), "linkB");
+
+        // B cannot withdraw a route we hold through A
+        router.handleRouteError(routeError("B", "D"), "linkB");
+        assertNotNull(router.getRoute("D"));
+        assertTrue(broadcasts.isEmpty());
+
+        // A can, and we pass the withdrawal on
+        router.handleRouteError(routeError("A", "D", "E"), "linkA");
+        assertNull(router.getRoute("D"));
+        assertNotNull(router.getRoute("E"));
+        assertEquals(1, broadcasts.size());
+        MeshRouter.RouteError passedOn = gson.fromJson(broadcasts.get(0).getContent(), MeshRouter.RouteError.class);
+        assertEquals(Arrays.asList("D"), passedOn.destinations);
+    }
+
+    @Test
+    public void lostLink_withdrawsItsRoutesWithARouteError() {
+        router.handleRouteReply(reply("D", 1, 0, 1), "linkA");
+
+        router.onLinkLost("linkA");
+
+        assertNull(router.getRoute("D"));
+        assertNull(router.getRoute("A"));
+        assertTrue(withdrawn.contains("D"));
+        assertEquals(BluetoothMeshService.MSG_TYPE_ROUTE_ERROR, broadcasts.get(0).getType());
+    }
+
+    @Test
+    public void duplicateRouteRequests_areRelayedOnce() {
+        router.handleRouteRequest(request("req-1", "S", 7, "Z"), "linkA");
+        // The same request relayed by another neighbour, under a different message id
+        router.handleRouteRequest(request("req-1-copy", "S", 7, "Z"), "linkB");
+        assertEquals(1, broadcasts.size());
+        assertEquals(2, broadcasts.get(0).getHopCount());
+        // Reverse route towards the originator, through whoever relayed it first
+        assertEquals("A", router.getRoute("S").getNextHopNodeId());
+
+        // A new discovery from the same originator is a new request
+        router.handleRouteRequest(request("req-2", "S", 8, "Z"), "linkB");
+        assertEquals(2, broadcasts.size());
+
+        // Forgotten once every copy would have arrived
+        now += MeshRouter.REQUEST_MEMORY_MS;
+        router.handleRouteRequest(request("req-1-late", "S", 7, "Z"), "linkA");
+        assertEquals(3, broadcasts.size());
+    }
+
+    @Test
+    public void requestForUs_isAnsweredOnTheReverseRoute() {
+        router.handleRouteRequest(request("req-1", "S", 3, "self"), "linkB");
+
+        assertTrue(broadcasts.isEmpty());
+        assertEquals(Arrays.asList("linkB:" + BluetoothMeshService.MSG_TYPE_ROUTE_REPLY), sentOnLinks);
+    }
+}
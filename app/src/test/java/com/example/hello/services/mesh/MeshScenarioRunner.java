@@ -0,0 +1,156 @@
+package com.example.hello.services.mesh;
+
+import com.example.hello.models.BluetoothMeshMessage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * MeshScenarioRunner - Drives traffic through a simulator and measures it
+ *
+ * Messages are sent at a fixed interval between randomly chosen nodes,
+ * then the network is left to drain. Every first reception is timed and
+ * its hop count recorded. Bytes and airtime cover everything sent during
+ * the run, heartbeats and route discovery included, so they show what each
+ * delivered message really cost.
+ */
+class MeshScenarioRunner {
+
+    static final class Report {
+        final String name;
+        int sent;
+        int expected;
+        int delivered;
+        long bytes;
+        long airtimeMillis;
+        final List<Long> latencies = new ArrayList<>();
+        final TreeMap<Integer, Integer> hopHistogram = new TreeMap<>();
+
+        Report(String name) {
+            this.name = name;
+        }
+
+        double deliveryRatio() {
+            return expected == 0 ? 0 : (double) delivered / expected;
+        }
+
+        /** Latency in milliseconds at percentile {@code p} of 100. */
+        long latencyPercentile(int p) {
+            if (latencies.isEmpty()) {
+                return -1;
+            }
+            List<Long> sorted = new ArrayList<>(latencies);
+            Collections.sort(sorted);
+            int index = (int) Math.ceil(p / 100.0 * sorted.size()) - 1;
+            return sorted.get(Math.max(0, index));
+        }
+
+        long bytesPerDelivered() {
+            return delivered == 0 ? -1 : bytes / delivered;
+        }
+
+        long airtimeMillisPerDelivered() {
+            return delivered == 0 ? -1 : airtimeMillis / delivered;
+        }
+
+        @Override
+        public String toString() {
+            return name
+                    + ": delivered " + delivered + "/" + expected
+                    + String.format(" (%.3f)", deliveryRatio())
+                    + ", latency p50/p90/p99 " + latencyPercentile(50) + "/" + latencyPercentile(90)
+                    + "/" + latencyPercentile(99) + " ms"
+                    + ", " + bytesPerDelivered() + " B and " + airtimeMillisPerDelivered()
+                    + " ms airtime per delivery"
+                    + ", hops " + hopHistogram;
+        }
+    }
+
+    private final MeshSimulator simulator;
+    private final Map<String, Long> sentAt = new HashMap<>();
+    private final Set<String> received = new HashSet<>();
+    private Report current;
+
+    MeshScenarioRunner(MeshSimulator simulator) {
+        this.simulator = simulator;
+        simulator.addObserver(this::onMessageReceived);
+    }
+
+    /**
+     * Reliable direct messages between random pairs of distinct nodes.
+     */
+    Report runDirected(String name, int messages, long intervalMillis, long drainMillis) {
+        List<MeshSimulator.Node> nodes = simulator.getNodes();
+        return run(name, messages, intervalMillis, drainMillis, () -> {
+            MeshSimulator.Node from = pick(nodes);
+            MeshSimulator.Node to = pick(nodes);
+            while (to == from) {
+                to = pick(nodes);
+            }
+            current.expected++;
+            return from.engine.sendDirectMessage(to.name, "hello " + to.name, true);
+        });
+    }
+
+    /**
+     * Chat floods from random nodes; every other node should receive each.
+     */
+    Report runBroadcast(String name, int messages, long intervalMillis, long drainMillis) {
+        List<MeshSimulator.Node> nodes = simulator.getNodes();
+        return run(name, messages, intervalMillis, drainMillis, () -> {
+            current.expected += nodes.size() - 1;
+            return pick(nodes).engine.sendChatMessage("hello everyone");
+        });
+    }
+
+    private interface Sender {
+        String send();
+    }
+
+    private Report run(String name, int messages, long intervalMillis, long drainMillis, Sender sender) {
+        current = new Report(name);
+        sentAt.clear();
+        received.clear();
+        long bytesBefore = simulator.getBytesSent();
+        long airtimeBefore = simulator.getAirtimeMillis();
+
+        for (int i = 0; i < messages; i++) {
+            sentAt.put(sender.send(), simulator.now());
+            current.sent++;
+            simulator.runFor(intervalMillis);
+        }
+        simulator.runFor(drainMillis);
+
+        current.bytes = simulator.getBytesSent() - bytesBefore;
+        current.airtimeMillis = simulator.getAirtimeMillis() - airtimeBefore;
+        Report report = current;
+        current = null;
+        return report;
+    }
+
+    private void onMessageReceived(MeshSimulator.Node node, BluetoothMeshMessage message) {
+        Long sent = sentAt.get(message.getMessageId());
+        // The sender's own copy is echoed to its listener too
+        if (current == null || sent == null || node.name.equals(message.getSourceNodeId())) {
+            return;
+        }
+        if (!received.add(message.getMessageId() + "@" + node.name)) {
+            return;
+        }
+        current.delivered++;
+        current.latencies.add(simulator.now() - sent);
+        int hops = message.getHopCount() + 1;
+        Integer count = current.hopHistogram.get(hops);
+        current.hopHistogram.put(hops, count == null ? 1 : count + 1);
+    }
+
+    private MeshSimulator.Node pick(List<MeshSimulator.Node> nodes) {
+        return nodes.get(simulator.random().nextInt(nodes.size()));
+    }
+}
@@ -0,0 +1,120 @@
+package com.example.hello.services.mesh;
+
+import com.example.hello.models.BluetoothMeshMessage;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class MeshSchedulerTest {
+
+    @Test
+    public void inboundFromManyLinks_isHandledOnceEachOnTheSchedulerThread() throws Exception {
+        final int links = 4;
+        final int perLink = 5000;
+        CountDownLatch done = new CountDownLatch(links * perLink);
+        AtomicBoolean wrongThread = new AtomicBoolean();
+        List<String> handled = new ArrayList<>();
+        MeshScheduler[] holder = new MeshScheduler[1];
+        holder[0] = new MeshScheduler((message, linkId) -> {
+            if (!holder[0].isSchedulerThread()) {
+                wrongThread.set(true);
+            }
+            // Only ever touched by the scheduler thread, so no locking
+            handled.add(message.getMessageId());
+            done.countDown();
+        });
+        MeshScheduler scheduler = holder[0];
+        scheduler.start();
+
+        List<Thread> readers = new ArrayList<>();
+        for (int l = 0; l < links; l++) {
+            String linkId = "link" + l;
+            Thread reader = new Thread(() -> {
+                for (int i = 0; i < perLink; i++) {
+                    scheduler.submitInbound(new BluetoothMeshMessage(linkId + "_" + i, "CHAT",
+                            linkId, null, "", 0, 0), linkId);
+                }
+            });
+            readers.add(reader);
+            reader.start();
+        }
+        for (Thread reader : readers) {
+            reader.join();
+        }
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        scheduler.shutdown();
+        assertFalse(wrongThread.get());
+        assertEquals(links * perLink, handled.size());
+        assertEquals(0, scheduler.getInboundBacklog());
+    }
+
+    @Test
+    public void throwingHandler_doesNotStopLaterInbound() throws Exception {
+        CountDownLatch handled = new CountDownLatch(5);
+        MeshScheduler scheduler = new MeshScheduler((message, linkId) -> {
+            if ("bad".equals(message.getMessageId())) {
+                throw new NullPointerException("malformed payload");
+            }
+            handled.countDown();
+        });
+        scheduler.start();
+
+        scheduler.submitInbound(new BluetoothMeshMessage("bad", "DISCOVERY", "a", null, null, 0, 0), "link");
+        assertTrue(awaitIdle(scheduler));
+        for (int i = 0; i < 5; i++) {
+            scheduler.submitInbound(new BluetoothMeshMessage("ok" + i, "CHAT", "a", null, "", 0, 0), "link");
+        }
+
+        assertTrue(handled.await(2, TimeUnit.SECONDS));
+        scheduler.shutdown();
+    }
+
+    private static boolean awaitIdle(MeshScheduler scheduler) throws InterruptedException {
+        CountDownLatch idle = new CountDownLatch(1);
+        scheduler.execute(idle::countDown);
+        return idle.await(2, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void fullBacklog_shedsChatButKeepsControlTraffic() {
+        // Never started, so nothing drains and the backlog only grows
+        MeshScheduler scheduler = new MeshScheduler((message, linkId) -> { }, 10);
+        for (int i = 0; i < 12; i++) {
+            scheduler.submitInbound(new BluetoothMeshMessage("chat" + i, "CHAT", "a", null, "", 0, 0), "link");
+        }
+        BluetoothMeshMessage emergency = new BluetoothMeshMessage("sos", "CHAT", "a", null, "", 0, 0);
+        emergency.setPriority(BluetoothMeshMessage.PRIORITY_EMERGENCY);
+        scheduler.submitInbound(emergency, "link");
+        scheduler.submitInbound(new BluetoothMeshMessage("beat", "HEARTBEAT", "a", null, "", 0, 0), "link");
+
+        assertEquals(12, scheduler.getInboundBacklog());
+        assertEquals(2, scheduler.getInboundShed());
+    }
+
+    @Test
+    public void shutdown_cancelsPendingTimers() throws Exception {
+        MeshScheduler scheduler = new MeshScheduler((message, linkId) -> { });
+        scheduler.start();
+        AtomicBoolean fired = new AtomicBoolean();
+        scheduler.schedule(() -> fired.set(true), 200);
+        scheduler.shutdown();
+
+        Thread.sleep(400);
+        assertFalse(fired.get());
+
+        // A stopped scheduler can be started again for the next session
+        CountDownLatch ran = new CountDownLatch(1);
+        scheduler.start();
+        scheduler.execute(ran::countDown);
+        assertTrue(ran.await(2, TimeUnit.SECONDS));
+        scheduler.shutdown();
+    }
+}
@@ -0,0 +1,656 @@
+package com.example.hello.services.mesh;
+
+import com.example.hello.models.BluetoothMeshMessage;
+import com.example.hello.models.BluetoothMeshNode;
+import com.google.gson.Gson;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * MeshSimulator - Many mesh engines on one virtual clock
+ *
+ * Every node runs a real {@link MeshEngine} over an in-memory transport.
+ * Frames go through the real codec and a real {@link MeshOutboundQueue} per
+ * link direction, and each link has its own latency, bandwidth and loss
+ * rate, so queueing, serialisation delay and retransmission all show up in
+ * the results. Nothing sleeps: events run in time order on the calling
+ * thread, and runs are repeatable for a given seed.
+ *
+ * Peers "in range" of each other may link; the initial links are made by
+ * the topology builders and later ones only when an engine dials a peer.
+ */
+class MeshSimulator {
+
+    /**
+     * Physical properties of one link, the same in both directions.
+     */
+    static final class LinkProfile {
+        final long latencyMillis;
+        final long bytesPerSecond;
+        final double lossRate;
+
+        LinkProfile(long latencyMillis, long bytesPerSecond, double lossRate) {
+            this.latencyMillis = latencyMillis;
+            this.bytesPerSecond = bytesPerSecond;
+            this.lossRate = lossRate;
+        }
+
+        // Roughly what an RFCOMM link between two phones manages
+        static LinkProfile rfcomm() {
+            return new LinkProfile(30, 80 * 1024, 0);
+        }
+    }
+
+    interface Observer {
+        /** A message reached the listener of {@code node}'s engine. */
+        void onMessageReceived(Node node, BluetoothMeshMessage message);
+    }
+
+    private static final long CONNECT_MILLIS = 1500;
+    private static final long DISCOVERY_MILLIS = 10000;
+    private static final int RSSI = -60;
+
+    private final PriorityQueue<Object[]> events = new PriorityQueue<>((a, b) -> {
+        int byTime = Long.compare((Long) a[0], (Long) b[0]);
+        return byTime != 0 ? byTime : Long.compare((Long) a[1], (Long) b[1]);
+    });
+    private final Map<String, Node> nodes = new LinkedHashMap<>();
+    private final Map<String, LinkProfile> inRange = new HashMap<>();
+    private final Random random;
+    private final File dataRoot;
+    private final List<Observer> observers = new ArrayList<>();
+    private long now;
+    private long order;
+    private long bytesSent;
+    private long airtimeMillis;
+    private long framesLost;
+
+    MeshSimulator(long seed) throws Exception {
+        this.random = new Random(seed);
+        this.dataRoot = Files.createTempDirectory("mesh-sim").toFile();
+    }
+
+    // ---- Topologies ----
+
+    static MeshSimulator line(int count, LinkProfile profile, long seed) throws Exception {
+        MeshSimulator simulator = new MeshSimulator(seed);
+        simulator.addNodes(count);
+        for (int i = 1; i < count; i++) {
+            simulator.link(name(i - 1), name(i), profile);
+        }
+        return simulator;
+    }
+
+    static MeshSimulator ring(int count, LinkProfile profile, long seed) throws Exception {
+        MeshSimulator simulator = line(count, profile, seed);
+        simulator.link(name(count - 1), name(0), profile);
+        return simulator;
+    }
+
+    static MeshSimulator grid(int width, int height, LinkProfile profile, long seed) throws Exception {
+        MeshSimulator simulator = new MeshSimulator(seed);
+        simulator.addNodes(width * height);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if (x + 1 < width) {
+                    simulator.link(name(y * width + x), name(y * width + x + 1), profile);
+                }
+                if (y + 1 < height) {
+                    simulator.link(name(y * width + x), name((y + 1) * width + x), profile);
+                }
+            }
+        }
+        return simulator;
+    }
+
+    /**
+     * Nodes scattered over a unit square, in range of everything within
+     * {@code radius}. Each node links to at most {@code maxDegree} of its
+     * nearest neighbours, like phones hitting their connection limit.
+     */
+    static MeshSimulator randomGeometric(int count, double radius, int maxDegree, LinkProfile profile,
+                                         long seed) throws Exception {
+        MeshSimulator simulator = new MeshSimulator(seed);
+        simulator.addNodes(count);
+        double[][] positions = new double[count][2];
+        for (double[] position : positions) {
+            position[0] = simulator.random.nextDouble();
+            position[1] = simulator.random.nextDouble();
+        }
+
+        int[] degree = new int[count];
+        for (int i = 0; i < count; i++) {
+            List<double[]> candidates = new ArrayList<>();
+            for (int j = 0; j < count; j++) {
+                double distance = Math.hypot(positions[i][0] - positions[j][0], positions[i][1] - positions[j][1]);
+                if (j != i && distance <= radius) {
+                    candidates.add(new double[]{distance, j});
+                    simulator.inRange.put(pairKey(name(i), name(j)), profile);
+                }
+            }
+            Collections.sort(candidates, (a, b) -> Double.compare(a[0], b[0]));
+            for (double[] candidate : candidates) {
+                int j = (int) candidate[1];
+                if (degree[i] >= maxDegree) {
+                    break;
+                }
+                if (j > i && degree[j] < maxDegree) {
+                    simulator.link(name(i), name(j), profile);
+                    degree[i]++;
+                    degree[j]++;
+                }
+            }
+        }
+        return simulator;
+    }
+
+    static String name(int index) {
+        return "n" + index;
+    }
+
+    // ---- Setup ----
+
+    void addNodes(int count) throws Exception {
+        for (int i = 0; i < count; i++) {
+            addNode(name(nodes.size()));
+        }
+    }
+
+    Node addNode(String name) throws Exception {
+        File directory = new File(dataRoot, name);
+        if (!directory.mkdirs()) {
+            throw new IllegalStateException("Cannot create " + directory);
+        }
+        Node node = new Node(name, directory);
+        nodes.put(name, node);
+        return node;
+    }
+
+    /**
+     * Add a node to a running simulation and have it dial {@code neighbours}.
+     */
+    Node join(String name, LinkProfile profile, String... neighbours) throws Exception {
+        Node node = addNode(name);
+        node.engine.start();
+        node.started = true;
+        for (String neighbour : neighbours) {
+            link(name, neighbour, profile);
+        }
+        return node;
+    }
+
+    /**
+     * Put two nodes in range of each other and link them now.
+     */
+    void link(String from, String to, LinkProfile profile) {
+        inRange.put(pairKey(from, to), profile);
+        Node a = nodes.get(from);
+        Node b = nodes.get(to);
+        if (a.started) {
+            connectNow(a, b);
+        } else {
+            a.initialLinks.add(to);
+        }
+    }
+
+    /**
+     * Put two nodes in range of each other without linking them; they link
+     * only if one of them dials the other.
+     */
+    void putInRange(String from, String to, LinkProfile profile) {
+        inRange.put(pairKey(from, to), profile);
+    }
+
+    /**
+     * Break a link and take the two nodes out of range of each other.
+     */
+    void cut(String from, String to) {
+        inRange.remove(pairKey(from, to));
+        Node a = nodes.get(from);
+        Node b = nodes.get(to);
+        a.transport.drop(to);
+        b.transport.drop(from);
+    }
+
+    /**
+     * Hand {@code message} to {@code to} as if {@code from} had sent it over
+     * their link.
+     */
+    void inject(String from, String to, BluetoothMeshMessage message) {
+        nodes.get(to).transport.listener.onFrame(message, from);
+    }
+
+    void addObserver(Observer observer) {
+        observers.add(observer);
+    }
+
+    /**
+     * Start every engine and run until the initial links are up.
+     */
+    void start() {
+        for (Node node : nodes.values()) {
+            node.engine.start();
+            node.started = true;
+        }
+        for (Node node : nodes.values()) {
+            for (String peer : node.initialLinks) {
+                connectNow(node, nodes.get(peer));
+            }
+            node.initialLinks.clear();
+        }
+        runFor(0);
+    }
+
+    void stop() {
+        for (Node node : nodes.values()) {
+            node.engine.stop();
+        }
+        runFor(0);
+        deleteRecursively(dataRoot);
+    }
+
+    // ---- Running ----
+
+    void runFor(long millis) {
+        long until = now + millis;
+        while (!events.isEmpty() && (Long) events.peek()[0] <= until) {
+            Object[] event = events.poll();
+            now = (Long) event[0];
+            ((Runnable) event[2]).run();
+        }
+        now = until;
+    }
+
+    long now() {
+        return now;
+    }
+
+    Random random() {
+        return random;
+    }
+
+    Node node(String name) {
+        return nodes.get(name);
+    }
+
+    List<Node> getNodes() {
+        return new ArrayList<>(nodes.values());
+    }
+
+    /** Frame bytes put on the air by every node so far. */
+    long getBytesSent() {
+        return bytesSent;
+    }
+
+    /** Sum over all links of the time spent transmitting. */
+    long getAirtimeMillis() {
+        return airtimeMillis;
+    }
+
+    long getFramesLost() {
+        return framesLost;
+    }
+
+    int getMaxDegree() {
+        int max = 0;
+        for (Node node : nodes.values()) {
+            max = Math.max(max, node.transport.getLinkCount());
+        }
+        return max;
+    }
+
+    double getMeanDegree() {
+        int sum = 0;
+        for (Node node : nodes.values()) {
+            sum += node.transport.getLinkCount();
+        }
+        return (double) sum / nodes.size();
+    }
+
+    /**
+     * Longest shortest path between two nodes over the current links, or
+     * -1 if some node cannot reach another.
+     */
+    int getDiameter() {
+        int diameter = 0;
+        for (Node from : nodes.values()) {
+            Map<String, Integer> distance = new HashMap<>();
+            ArrayDeque<String> queue = new ArrayDeque<>();
+            distance.put(from.name, 0);
+            queue.add(from.name);
+            while (!queue.isEmpty()) {
+                String current = queue.poll();
+                for (String next : nodes.get(current).transport.getLinkIds()) {
+                    if (!distance.containsKey(next)) {
+                        distance.put(next, distance.get(current) + 1);
+                        diameter = Math.max(diameter, distance.get(next));
+                        queue.add(next);
+                    }
+                }
+            }
+            if (distance.size() < nodes.size()) {
+                return -1;
+            }
+        }
+        return diameter;
+    }
+
+    private void at(long time, Runnable task) {
+        events.add(new Object[]{time, order++, task});
+    }
+
+    private void connectNow(Node a, Node b) {
+        if (a.transport.links.containsKey(b.name)) {
+            return;
+        }
+        LinkProfile profile = inRange.get(pairKey(a.name, b.name));
+        a.transport.links.put(b.name, new Direction(a, b, profile));
+        b.transport.links.put(a.name, new Direction(b, a, profile));
+        a.transport.listener.onLinkUp(b.name, true);
+        b.transport.listener.onLinkUp(a.name, false);
+    }
+
+    private static String pairKey(String a, String b) {
+        return a.compareTo(b) < 0 ? a + "|" + b : b + "|" + a;
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    // ---- Nodes ----
+
+    final class Node implements MeshEngine.Listener {
+        final String name;
+        final MeshEngine engine;
+        final NodeExecutor executor = new NodeExecutor(this);
+        final SimulatedTransport transport = new SimulatedTransport(this);
+        final MeshFrameCodec codec = new MeshFrameCodec(new Gson(),
+                new MeshBufferPool(MeshFrameCodec.DEFAULT_MAX_FRAME_SIZE * 2));
+        private final List<String> initialLinks = new ArrayList<>();
+        private boolean started;
+        int linkCount;
+        final List<MeshTopologyNotifier.TopologyDiff> topologyDiffs = new ArrayList<>();
+
+        Node(String name, File directory) {
+            this.name = name;
+            BluetoothMeshNode local = new BluetoothMeshNode(name, name, name, 0);
+            this.engine = new MeshEngine(local, directory, codec, transport, executor, this,
+                    new Random(random.nextLong()));
+        }
+
+        @Override
+        public void onMessageReceived(BluetoothMeshMessage message) {
+            for (Observer observer : observers) {
+                observer.onMessageReceived(this, message);
+            }
+        }
+
+        @Override
+        public void onTopologyChanged(MeshTopologyNotifier.TopologyDiff diff) {
+            topologyDiffs.add(diff);
+        }
+
+        @Override
+        public void onLinkCountChanged(int linkCount) {
+            this.linkCount = linkCount;
+        }
+
+        @Override
+        public void onDeliveryStatusChanged(String messageId, MeshReliableDelivery.DeliveryStatus status) {
+        }
+
+        @Override
+        public void onFileTransferProgress(MeshFileTransfer.FileInfo info, int chunksDone) {
+        }
+
+        @Override
+        public void onFileTransferFinished(MeshFileTransfer.FileInfo info, File file) {
+        }
+    }
+
+    // Runs a node's tasks as events on the shared clock
+    private final class NodeExecutor implements MeshExecutor {
+        private final Node node;
+
+        NodeExecutor(Node node) {
+            this.node = node;
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            at(now, task);
+        }
+
+        @Override
+        public Future<?> schedule(Runnable task, long delayMillis) {
+            FutureTask<Void> future = new FutureTask<>(task, null);
+            at(now + delayMillis, future);
+            return future;
+        }
+
+        @Override
+        public Future<?> scheduleAtFixedRate(Runnable task, long initialDelayMillis, long periodMillis) {
+            // Cancelling the returned future stops every later run
+            FutureTask<Void> periodic = new FutureTask<>(task, null);
+            at(now + initialDelayMillis, new Runnable() {
+                @Override
+                public void run() {
+                    if (periodic.isCancelled()) {
+                        return;
+                    }
+                    task.run();
+                    at(now + periodMillis, this);
+                }
+            });
+            return periodic;
+        }
+
+        @Override
+        public void submitInbound(BluetoothMeshMessage message, String linkId) {
+            at(now, () -> node.engine.onInbound(message, linkId));
+        }
+
+        @Override
+        public void executeInBackground(Runnable task) {
+            at(now, task);
+        }
+
+        @Override
+        public long now() {
+            return now;
+        }
+    }
+
+    // ---- Links ----
+
+    // One direction of a link: a real outbound queue drained at the link's bandwidth
+    private final class Direction {
+        final Node from;
+        final Node to;
+        final LinkProfile profile;
+        final MeshOutboundQueue queue = new MeshOutboundQueue();
+        boolean transmitting;
+        boolean closed;
+
+        Direction(Node from, Node to, LinkProfile profile) {
+            this.from = from;
+            this.to = to;
+            this.profile = profile;
+            queue.setEvictionListener(frame -> {
+                if (from.transport.listener != null) {
+                    from.transport.listener.onFrameEvicted(to.name, frame);
+                }
+            });
+        }
+
+        boolean offer(OutboundFrame frame) {
+            if (closed || !queue.offer(frame)) {
+                return false;
+            }
+            if (!transmitting) {
+                transmitNext();
+            }
+            return true;
+        }
+
+        private void transmitNext() {
+            OutboundFrame frame = queue.poll();
+            if (frame == null || closed) {
+                transmitting = false;
+                return;
+            }
+            transmitting = true;
+            long serialisation = Math.max(1, frame.getLength() * 1000L / profile.bytesPerSecond);
+            bytesSent += frame.getLength();
+            airtimeMillis += serialisation;
+            at(now + serialisation, this::transmitNext);
+
+            if (random.nextDouble() < profile.lossRate) {
+                framesLost++;
+                return;
+            }
+            byte[] bytes = frame.getBytes();
+            at(now + serialisation + profile.latencyMillis, () -> deliver(bytes));
+        }
+
+        private void deliver(byte[] bytes) {
+            if (closed) {
+                return;
+            }
+            try {
+                to.transport.listener.onFrame(to.codec.decode(bytes), from.name);
+            } catch (MeshFrameException e) {
+                throw new AssertionError("Undecodable frame from " + from.name, e);
+            }
+        }
+    }
+
+    final class SimulatedTransport implements MeshTransport {
+        private final Node node;
+        private final Map<String, Direction> links = new LinkedHashMap<>();
+        private Listener listener;
+        int discoveries;
+
+        SimulatedTransport(Node node) {
+            this.node = node;
+        }
+
+        @Override
+        public void start(Listener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public boolean connect(String address) {
+            if (listener == null || links.containsKey(address) || !nodes.containsKey(address)) {
+                return false;
+            }
+            Node peer = nodes.get(address);
+            at(now + CONNECT_MILLIS, () -> {
+                if (listener == null) {
+                    return;
+                }
+                if (inRange.containsKey(pairKey(node.name, address)) && peer.transport.listener != null) {
+                    connectNow(node, peer);
+                } else {
+                    listener.onConnectFailed(address);
+                }
+            });
+            return true;
+        }
+
+        @Override
+        public void disconnect(String linkId) {
+            Node peer = nodes.get(linkId);
+            if (links.containsKey(linkId)) {
+                peer.transport.drop(node.name);
+                drop(linkId);
+            }
+        }
+
+        @Override
+        public boolean startDiscovery() {
+            if (listener == null) {
+                return false;
+            }
+            discoveries++;
+            // Every running peer in range answers by the end of the inquiry
+            at(now + DISCOVERY_MILLIS, () -> {
+                for (Node peer : nodes.values()) {
+                    if (listener != null && peer != node && peer.transport.listener != null
+                            && inRange.containsKey(pairKey(node.name, peer.name))) {
+                        listener.onPeerDiscovered(peer.name, RSSI);
+                    }
+                }
+            });
+            return true;
+        }
+
+        @Override
+        public boolean send(String linkId, OutboundFrame frame) {
+            Direction direction = links.get(linkId);
+            return direction != null && direction.offer(frame);
+        }
+
+        @Override
+        public List<String> getLinkIds() {
+            return new ArrayList<>(links.keySet());
+        }
+
+        @Override
+        public int getLinkCount() {
+            return links.size();
+        }
+
+        @Override
+        public boolean isLinked(String linkId) {
+            return links.containsKey(linkId);
+        }
+
+        @Override
+        public int getQueueDepth(String linkId) {
+            Direction direction = links.get(linkId);
+            return direction != null ? direction.queue.size() : -1;
+        }
+
+        @Override
+        public void stop() {
+            for (String peer : new ArrayList<>(links.keySet())) {
+                nodes.get(peer).transport.drop(node.name);
+                drop(peer);
+            }
+            listener = null;
+        }
+
+        void drop(String peer) {
+            Direction direction = links.remove(peer);
+            if (direction == null) {
+                return;
+            }
+            direction.closed = true;
+            direction.queue.close();
+            if (listener != null) {
+                listener.onLinkDown(peer);
+            }
+        }
+    }
+}
@@ -0,0 +1,408 @@
+package com.example.hello.services.mesh;
+
+import com.example.hello.models.BluetoothMeshMessage;
+import com.example.hello.models.BluetoothMeshNode;
+import com.example.hello.models.MeshNodeSnapshot;
+import com.example.hello.services.BluetoothMeshService;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class MeshSimulatorTest {
+    private MeshSimulator simulator;
+
+    @After
+    public void tearDown() {
+        if (simulator != null) {
+            simulator.stop();
+        }
+    }
+
+    @Test
+    public void line_directMessagesCrossEveryHop() throws Exception {
+        simulator = MeshSimulator.line(6, MeshSimulator.LinkProfile.rfcomm(), 1);
+        simulator.start();
+        simulator.runFor(15000);
+
+        MeshScenarioRunner.Report report = new MeshScenarioRunner(simulator)
+                .runDirected("line", 20, 500, 30000);
+        System.out.println(report);
+
+        assertEquals(1.0, report.deliveryRatio(), 0);
+        assertTrue(report.hopHistogram.lastKey() <= 5);
+        assertTrue(report.latencyPercentile(50) > 0);
+
+        // Heartbeats echo each other, so every node with neighbours knows its link RTT
+        MeshMetrics.Snapshot metrics = simulator.node("n2").engine.getMetricsSnapshot();
+        assertTrue(metrics.getHeartbeatRtt().getCount() > 0);
+        assertTrue(metrics.getHeartbeatRtt().getPercentileBound(50) >= 2 * 30);
+        assertEquals(0, metrics.getDrops(MeshMetrics.Drop.HOP_LIMIT));
+        assertEquals(2, metrics.getLinks().size());
+        assertTrue(metrics.getTotal().getBytesOut() > 0);
+    }
+
+    @Test
+    public void saturatedLine_emergencyOvertakesChatOnEveryHop() throws Exception {
+        // Slow links so ordinary chat alone is more than they can carry
+        simulator = MeshSimulator.line(6, new MeshSimulator.LinkProfile(30, 16 * 1024, 0), 5);
+        simulator.start();
+        simulator.runFor(15000);
+
+        StringBuilder filler = new StringBuilder();
+        for (int i = 0; i < 150; i++) {
+            filler.append("blood bank");
+        }
+        for (int tick = 0; tick < 200; tick++) {
+            MeshSimulator.Node from = simulator.getNodes().get(simulator.random().nextInt(6));
+            from.engine.sendChatMessage(filler.toString());
+            if (tick % 20 == 10) {
+                simulator.node("n0").engine.sendChatMessage("O- donor needed",
+                        BluetoothMeshMessage.PRIORITY_EMERGENCY);
+            }
+            simulator.runFor(50);
+        }
+        simulator.runFor(60000);
+
+        MeshMetrics.Snapshot metrics = simulator.node("n5").engine.getMetricsSnapshot();
+        MeshMetrics.HistogramSnapshot emergency = metrics.getPriorityLatency(BluetoothMeshMessage.PRIORITY_EMERGENCY);
+        MeshMetrics.HistogramSnapshot normal = metrics.getPriorityLatency(BluetoothMeshMessage.PRIORITY_NORMAL);
+        System.out.println("5 hops, saturated: emergency mean " + (long) emergency.getMean() + " ms, p100 <= "
+                + emergency.getPercentileBound(100) + " ms; chat mean " + (long) normal.getMean() + " ms, p50 <= "
+                + normal.getPercentileBound(50) + " ms");
+
+        assertEquals(10, emergency.getCount());
+        assertTrue(emergency.getPercentileBound(100) <= 1000);
+        assertTrue(normal.getMean() > 4 * emergency.getMean());
+    }
+
+    @Test
+    public void lossyGrid_reliableDeliveryStillArrives() throws Exception {
+        simulator = MeshSimulator.grid(5, 5, new MeshSimulator.LinkProfile(40, 40 * 1024, 0.05), 2);
+        simulator.start();
+        simulator.runFor(20000);
+
+        MeshScenarioRunner.Report report = new MeshScenarioRunner(simulator)
+                .runDirected("grid 5x5, 5% loss", 50, 400, 60000);
+        System.out.println(report);
+
+        assertEquals(1.0, report.deliveryRatio(), 0);
+        assertTrue(report.latencyPercentile(99) >= report.latencyPercentile(50));
+        assertTrue(report.hopHistogram.lastKey() <= 8);
+    }
+
+    @Test
+    public void ring_routesAroundACutLink() throws Exception {
+        simulator = MeshSimulator.ring(8, MeshSimulator.LinkProfile.rfcomm(), 3);
+        simulator.start();
+        simulator.runFor(15000);
+        simulator.cut("n0", "n1");
+        simulator.runFor(5000);
+
+        MeshScenarioRunner.Report report = new MeshScenarioRunner(simulator)
+                .runDirected("ring, one link cut", 30, 500, 60000);
+        System.out.println(report);
+
+        // Out of range, so the reconnect attempts keep failing
+        assertFalse(simulator.node("n0").transport.isLinked("n1"));
+        assertEquals(1.0, report.deliveryRatio(), 0);
+        // Stale routes towards the cut are withdrawn, not retried into
+        assertTrue(report.latencyPercentile(99) < MeshReliableDelivery.INITIAL_RTO_MS);
+    }
+
+    @Test
+    public void shortcut_turnsAMultiHopRouteDirect() throws Exception {
+        simulator = MeshSimulator.line(3, MeshSimulator.LinkProfile.rfcomm(), 4);
+        simulator.start();
+        simulator.runFor(15000);
+
+        BluetoothMeshNode far = networkNode(simulator.node("n0"), "n2");
+        assertEquals(2, far.getHopDistance());
+        assertEquals("n1", far.getNextHopNodeId());
+
+        simulator.link("n0", "n2", MeshSimulator.LinkProfile.rfcomm());
+        simulator.runFor(15000);
+
+        far = networkNode(simulator.node("n0"), "n2");
+        assertTrue(far.isDirectlyConnected());
+        assertEquals(1, far.getHopDistance());
+        assertNull(far.getNextHopNodeId());
+    }
+
+    @Test
+    public void framesWithoutContent_areDroppedAsMalformed() throws Exception {
+        simulator = MeshSimulator.line(2, MeshSimulator.LinkProfile.rfcomm(), 5);
+        simulator.start();
+        simulator.runFor(5000);
+
+        simulator.inject("n0", "n1", new BluetoothMeshMessage("batch-1",
+                BluetoothMeshService.MSG_TYPE_STORE_BATCH, "n0", null, null, simulator.now(), 0));
+        simulator.inject("n0", "n1", new BluetoothMeshMessage("pressure-1",
+                BluetoothMeshService.MSG_TYPE_BACKPRESSURE, "n0", null, null, simulator.now(), 0));
+        simulator.inject("n0", "n1", new BluetoothMeshMessage("pressure-2",
+                BluetoothMeshService.MSG_TYPE_BACKPRESSURE, "n0", null, "{}", simulator.now(), 0));
+        simulator.runFor(1000);
+
+        MeshMetrics.Snapshot metrics = simulator.node("n1").engine.getMetricsSnapshot();
+        assertEquals(3, metrics.getDrops(MeshMetrics.Drop.MALFORMED));
+        assertTrue(simulator.node("n1").transport.isLinked("n0"));
+    }
+
+    @Test
+    public void lateJoiner_catchesUpOnHistoryWithoutAReflood() throws Exception {
+        simulator = MeshSimulator.line(4, MeshSimulator.LinkProfile.rfcomm(), 6);
+        Map<String, Set<String>> received = new HashMap<>();
+        simulator.addObserver((node, message) -> {
+            if (!received.containsKey(node.name)) {
+                received.put(node.name, new HashSet<>());
+            }
+            assertTrue("shown twice on " + node.name, received.get(node.name).add(message.getMessageId()));
+        });
+        simulator.start();
+        simulator.runFor(15000);
+        for (int i = 0; i < 30; i++) {
+            simulator.getNodes().get(simulator.random().nextInt(4)).engine.sendChatMessage("before " + i);
+            simulator.runFor(200);
+        }
+        simulator.runFor(10000);
+        assertEquals(30, received.get("n0").size());
+        long floodedBefore = simulator.node("n0").engine.getMetricsSnapshot().getTypes().get("CHAT").getFramesIn();
+
+        MeshSimulator.Node late = simulator.join("late", MeshSimulator.LinkProfile.rfcomm(), "n3");
+        simulator.runFor(10000);
+
+        assertEquals(30, received.get("late").size());
+        assertEquals(30, late.engine.getChatHistory().size());
+        // Nothing was flooded again to get it there
+        assertEquals(floodedBefore,
+                simulator.node("n0").engine.getMetricsSnapshot().getTypes().get("CHAT").getFramesIn());
+        long fullSync = late.engine.getMetricsSnapshot().getTypes().get("HISTORY_BATCH").getBytesIn();
+
+        // Out of range for a while, then back: only what was missed is sent
+        simulator.cut("late", "n3");
+        for (int i = 0; i < 3; i++) {
+            simulator.node("n0").engine.sendChatMessage("while away " + i);
+            simulator.runFor(200);
+        }
+        simulator.runFor(5000);
+        simulator.link("n3", "late", MeshSimulator.LinkProfile.rfcomm());
+        simulator.runFor(10000);
+
+        long catchUp = late.engine.getMetricsSnapshot().getTypes().get("HISTORY_BATCH").getBytesIn() - fullSync;
+        System.out.println("late joiner: 30 messages in " + fullSync + " B, 3 missed in " + catchUp + " B");
+        assertEquals(33, received.get("late").size());
+        assertTrue(catchUp > 0 && catchUp * 5 < fullSync);
+    }
+
+    @Test
+    public void chattyNode_isHeldToItsShareAndToldToSlowDown() throws Exception {
+        simulator = MeshSimulator.line(4, MeshSimulator.LinkProfile.rfcomm(), 7);
+        Map<String, Set<String>> received = new HashMap<>();
+        simulator.addObserver((node, message) -> {
+            String key = node.name + "<" + message.getSourceNodeId();
+            if (!received.containsKey(key)) {
+                received.put(key, new HashSet<>());
+            }
+            received.get(key).add(message.getMessageId());
+        });
+        simulator.start();
+        simulator.runFor(15000);
+
+        // n0 floods 30 messages a second for five seconds; n3 chats normally
+        for (int tick = 0; tick < 150; tick++) {
+            simulator.node("n0").engine.sendChatMessage("spam " + tick);
+            if (tick % 15 == 0) {
+                simulator.node("n3").engine.sendChatMessage("hello " + tick);
+            }
+            simulator.runFor(33);
+        }
+        simulator.runFor(10000);
+
+        int spamAtFarEnd = received.get("n3<n0").size();
+        MeshMetrics.Snapshot relay = simulator.node("n1").engine.getMetricsSnapshot();
+        System.out.println("chatty node: 150 sent, " + spamAtFarEnd + " reached n3, "
+                + relay.getDrops(MeshMetrics.Drop.RATE_LIMITED) + " shed at n1");
+
+        assertEquals(10, received.get("n0<n3").size());
+        assertEquals(10, received.get("n1<n3").size());
+        assertTrue(spamAtFarEnd < 100);
+        assertTrue(relay.getDrops(MeshMetrics.Drop.RATE_LIMITED) > 0);
+        assertTrue(simulator.node("n0").engine.getMetricsSnapshot().getTypes().get("BACKPRESSURE").getFramesIn() > 0);
+    }
+
+    @Test
+    public void partition_reachesTheUiAsAFewSmallDiffs() throws Exception {
+        simulator = MeshSimulator.line(6, MeshSimulator.LinkProfile.rfcomm(), 8);
+        simulator.start();
+        simulator.runFor(15000);
+        MeshSimulator.Node n0 = simulator.node("n0");
+        int diffsBefore = n0.topologyDiffs.size();
+
+        // n3, n4 and n5 drop out of range of n0's side at once
+        simulator.cut("n2", "n3");
+        simulator.runFor(2 * MeshEngine.STALE_NODE_MS);
+
+        List<MeshTopologyNotifier.TopologyDiff> diffs = n0.topologyDiffs.subList(diffsBefore, n0.topologyDiffs.size());
+        int removed = 0;
+        for (MeshTopologyNotifier.TopologyDiff diff : diffs) {
+            removed += diff.getRemoved().size();
+            assertTrue(diff.getAdded().isEmpty());
+        }
+        System.out.println("partition: " + diffs.size() + " diffs, " + removed + " nodes removed");
+        assertEquals(3, removed);
+        assertTrue(diffs.size() <= 4);
+
+        // Replaying every diff in order gives what the engine holds
+        List<String> shown = new ArrayList<>();
+        for (MeshTopologyNotifier.TopologyDiff diff : n0.topologyDiffs) {
+            for (MeshNodeSnapshot node : diff.getRemoved()) {
+                assertTrue(shown.remove(node.getNodeId()));
+            }
+            for (MeshNodeSnapshot node : diff.getChanged()) {
+                assertTrue(shown.contains(node.getNodeId()));
+            }
+            for (MeshNodeSnapshot node : diff.getAdded()) {
+                assertFalse(shown.contains(node.getNodeId()));
+                shown.add(node.getNodeId());
+            }
+        }
+        Collections.sort(shown);
+        assertEquals("[n0, n1, n2]", shown.toString());
+        assertEquals(3, n0.engine.getNetworkNodes().size());
+    }
+
+    @Test
+    public void planner_growsAConnectedMeshWithoutHubsFromDiscovery() throws Exception {
+        // Everyone in range of many others, but nothing linked yet
+        simulator = MeshSimulator.randomGeometric(40, 0.3, 0, MeshSimulator.LinkProfile.rfcomm(), 9);
+        for (MeshSimulator.Node node : simulator.getNodes()) {
+            node.engine.getConnectionPlanner().setEnabled(true);
+        }
+        simulator.start();
+        simulator.runFor(5 * 60 * 1000);
+
+        int diameter = simulator.getDiameter();
+        MeshScenarioRunner.Report report = new MeshScenarioRunner(simulator)
+                .runBroadcast("40 nodes, planned links", 10, 1000, 20000);
+        System.out.println(report);
+        System.out.println(String.format("planned: max degree %d, mean %.1f, diameter %d",
+                simulator.getMaxDegree(), simulator.getMeanDegree(), diameter));
+
+        // Linking every peer in range up to the connection limit instead
+        MeshSimulator greedy = MeshSimulator.randomGeometric(40, 0.3,
+                MeshConnectionManager.DEFAULT_MAX_DEGREE, MeshSimulator.LinkProfile.rfcomm(), 9);
+        try {
+            greedy.start();
+            greedy.runFor(30000);
+            MeshScenarioRunner.Report greedyReport = new MeshScenarioRunner(greedy)
+                    .runBroadcast("40 nodes, greedy links", 10, 1000, 20000);
+            System.out.println(greedyReport);
+            System.out.println(String.format("greedy:  max degree %d, mean %.1f, diameter %d",
+                    greedy.getMaxDegree(), greedy.getMeanDegree(), greedy.getDiameter()));
+            assertTrue(simulator.getMaxDegree() < greedy.getMaxDegree());
+            // Hubs with a full set of links drop floods the planned mesh delivers
+            assertTrue(report.deliveryRatio() >= greedyReport.deliveryRatio());
+        } finally {
+            greedy.stop();
+        }
+
+        assertTrue("diameter " + diameter, diameter > 0 && diameter <= 8);
+        assertTrue(simulator.getMaxDegree() <= MeshConnectionPlanner.DEFAULT_MAX_DEGREE);
+        assertTrue(report.deliveryRatio() >= 0.99);
+    }
+
+    @Test
+    public void planner_shedsAHubsRedundantLinks() throws Exception {
+        // n0 is linked to every leaf; the leaves sit in a ring, in range of their neighbours
+        simulator = new MeshSimulator(10);
+        simulator.addNodes(11);
+        for (int i = 1; i <= 10; i++) {
+            simulator.link("n0", MeshSimulator.name(i), MeshSimulator.LinkProfile.rfcomm());
+            simulator.putInRange(MeshSimulator.name(i), MeshSimulator.name(i % 10 + 1),
+                    MeshSimulator.LinkProfile.rfcomm());
+        }
+        for (MeshSimulator.Node node : simulator.getNodes()) {
+            node.engine.getConnectionPlanner().setEnabled(true);
+        }
+        simulator.start();
+        assertEquals(10, simulator.node("n0").transport.getLinkCount());
+
+        simulator.runFor(10 * 60 * 1000);
+        MeshScenarioRunner.Report report = new MeshScenarioRunner(simulator)
+                .runBroadcast("hub rebalanced", 10, 1000, 20000);
+        System.out.println(report);
+        System.out.println(String.format("hub: %d links, %d shed, diameter %d",
+                simulator.node("n0").transport.getLinkCount(),
+                simulator.node("n0").engine.getConnectionPlanner().getLinksShed(), simulator.getDiameter()));
+
+        assertTrue(simulator.node("n0").transport.getLinkCount() <= MeshConnectionPlanner.DEFAULT_MAX_DEGREE);
+        assertTrue(simulator.getDiameter() > 0);
+        assertEquals(1.0, report.deliveryRatio(), 0);
+    }
+
+    @Test
+    public void planner_keepsTheLinksLeavesPinnedToAHub() throws Exception {
+        simulator = new MeshSimulator(10);
+        simulator.addNodes(11);
+        for (int i = 1; i <= 10; i++) {
+            simulator.link("n0", MeshSimulator.name(i), MeshSimulator.LinkProfile.rfcomm());
+            simulator.putInRange(MeshSimulator.name(i), MeshSimulator.name(i % 10 + 1),
+                    MeshSimulator.LinkProfile.rfcomm());
+        }
+        for (MeshSimulator.Node node : simulator.getNodes()) {
+            node.engine.getConnectionPlanner().setEnabled(true);
+        }
+        simulator.start();
+        // Half the leaves' users chose the hub by hand
+        for (int i = 1; i <= 5; i++) {
+            simulator.node(MeshSimulator.name(i)).engine.connect("n0");
+        }
+
+        simulator.runFor(10 * 60 * 1000);
+
+        MeshSimulator.Node hub = simulator.node("n0");
+        for (int i = 1; i <= 5; i++) {
+            assertTrue(hub.transport.isLinked(MeshSimulator.name(i)));
+        }
+        // Only the unpinned leaves were shed, once each, rather than pinned ones over and over
+        assertEquals(5, hub.transport.getLinkCount());
+        assertEquals(5, hub.engine.getConnectionPlanner().getLinksShed());
+    }
+
+    @Test
+    public void hundredsOfNodes_floodReachesAlmostEveryone() throws Exception {
+        simulator = MeshSimulator.randomGeometric(200, 0.2, 7, MeshSimulator.LinkProfile.rfcomm(), 4);
+        simulator.start();
+        simulator.runFor(30000);
+
+        MeshScenarioRunner.Report report = new MeshScenarioRunner(simulator)
+                .runBroadcast("200 nodes, random geometric", 10, 1000, 20000);
+        System.out.println(report);
+
+        assertTrue("delivery " + report.deliveryRatio(), report.deliveryRatio() > 0.9);
+        assertTrue(report.bytesPerDelivered() > 0);
+        int total = 0;
+        for (int count : report.hopHistogram.values()) {
+            total += count;
+        }
+        assertEquals(report.delivered, total);
+    }
+
+    private static BluetoothMeshNode networkNode(MeshSimulator.Node node, String nodeId) {
+        for (BluetoothMeshNode candidate : node.engine.getNetworkNodes()) {
+            if (candidate.getNodeId().equals(nodeId)) {
+                return candidate;
+            }
+        }
+        throw new AssertionError(nodeId + " unknown to " + node.name);
+    }
+}
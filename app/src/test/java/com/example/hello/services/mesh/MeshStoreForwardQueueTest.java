@@ -0,0 +1,175 @@
+package com.example.hello.services.mesh;
+
+import com.example.hello.models.BluetoothMeshMessage;
+import com.google.gson.Gson;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MeshStoreForwardQueueTest {
+    private File directory;
+    private MeshFrameCodec codec;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("mesh-store").toFile();
+        codec = new MeshFrameCodec(new Gson(), new MeshBufferPool(MeshFrameCodec.DEFAULT_MAX_FRAME_SIZE * 2));
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void queuedMessages_surviveReopen() throws Exception {
+        MeshStoreForwardQueue queue = new MeshStoreForwardQueue(directory, codec);
+        queue.open();
+        queue.store(message("m1", "nodeB"), 60000);
+        queue.store(message("m2", "nodeC"), 60000);
+        queue.close();
+
+        MeshStoreForwardQueue reopened = new MeshStoreForwardQueue(directory, codec);
+        reopened.open();
+
+        assertEquals(2, reopened.size());
+        List<BluetoothMeshMessage> taken = reopened.takeForTargets(Collections.singleton("nodeB"), 10);
+        assertEquals(1, taken.size());
+        assertEquals("m1", taken.get(0).getMessageId());
+        assertEquals("payload m1", taken.get(0).getContent());
+        reopened.close();
+
+        MeshStoreForwardQueue third = new MeshStoreForwardQueue(directory, codec);
+        third.open();
+        assertEquals(1, third.size());
+        assertTrue(third.contains("m2"));
+        third.close();
+    }
+
+    @Test
+    public void tornTail_isTruncatedOnOpen() throws Exception {
+        MeshStoreForwardQueue queue = new MeshStoreForwardQueue(directory, codec);
+        queue.open();
+        queue.store(message("m1", "nodeB"), 60000);
+        queue.store(message("m2", "nodeB"), 60000);
+        queue.close();
+
+        File log = new File(directory, "store_forward.log");
+        try (RandomAccessFile file = new RandomAccessFile(log, "rw")) {
+            file.setLength(file.length() - 3);
+        }
+
+        MeshStoreForwardQueue reopened = new MeshStoreForwardQueue(directory, codec);
+        reopened.open();
+        assertEquals(1, reopened.size());
+        assertTrue(reopened.contains("m1"));
+        reopened.close();
+    }
+
+    @Test
+    public void indexAndLog_stayBounded() throws Exception {
+        MeshStoreForwardQueue queue = new MeshStoreForwardQueue(directory, codec, 50, 1024 * 1024);
+        queue.open();
+        for (int i = 0; i < 5000; i++) {
+            queue.store(message("m" + i, "node" + (i % 7)), 60000);
+            if (i % 3 == 0) {
+                queue.takeForTargets(Collections.singleton("node" + (i % 7)), 5);
+            }
+        }
+
+        assertTrue(queue.size() <= 50);
+        assertTrue(new File(directory, "store_forward.log").length() < 256 * 1024);
+        assertTrue(queue.contains("m4999"));
+        queue.close();
+    }
+
+    @Test
+    public void batchExchange_deliversLocalAndQueuesTheRest() throws Exception {
+        MeshStoreForwardQueue sender = new MeshStoreForwardQueue(new File(directory, "a"), codec);
+        sender.open();
+        sender.store(message("m1", "nodeB"), 60000);
+        sender.store(message("m2", "nodeC"), 60000);
+
+        MeshStoreForwardQueue receiver = new MeshStoreForwardQueue(new File(directory, "b"), codec);
+        receiver.open();
+        MessageIdCache seen = new MessageIdCache();
+        List<BluetoothMeshMessage> forUs = receiver.importBatch(sender.exportBatch(64 * 1024), "nodeB", seen);
+
+        assertEquals(1, forUs.size());
+        assertEquals("m1", forUs.get(0).getMessageId());
+        assertTrue(receiver.contains("m2"));
+
+        // A second hand-off of the same messages is ignored
+        assertTrue(receiver.importBatch(sender.exportBatch(64 * 1024), "nodeB", seen).isEmpty());
+        assertEquals(1, receiver.size());
+
+        sender.close();
+        receiver.close();
+        deleteRecursively(new File(directory, "a"));
+        deleteRecursively(new File(directory, "b"));
+    }
+
+    @Test
+    public void ttlAndExports_followTheInjectedClock() throws Exception {
+        long[] clock = {1000};
+        MeshStoreForwardQueue queue = new MeshStoreForwardQueue(directory, codec) {
+            @Override
+            long now() {
+                return clock[0];
+            }
+        };
+        queue.open();
+        queue.store(message("m1", "nodeB"), 5000);
+
+        clock[0] = 5999;
+        assertEquals(0, queue.purgeExpired());
+        // Exported with what is left of its TTL on this clock
+        MeshStoreForwardQueue receiver = new MeshStoreForwardQueue(new File(directory, "b"), codec) {
+            @Override
+            long now() {
+                return clock[0];
+            }
+        };
+        receiver.open();
+        receiver.importBatch(queue.exportBatch(64 * 1024), "nodeC", new MessageIdCache());
+        assertTrue(receiver.contains("m1"));
+
+        clock[0] = 6000;
+        assertEquals(1, queue.purgeExpired());
+        assertEquals(1, receiver.purgeExpired());
+
+        queue.close();
+        receiver.close();
+        deleteRecursively(new File(directory, "b"));
+    }
+
+    private static BluetoothMeshMessage message(String id, String target) {
+        return new BluetoothMeshMessage(id, "CHAT", "nodeA", target, "payload " + id,
+                System.currentTimeMillis(), 0);
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,148 @@
+package com.example.hello.services.mesh;
+
+import com.example.hello.models.BluetoothMeshNode;
+import com.example.hello.models.MeshNodeSnapshot;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class MeshTopologyNotifierTest {
+    private final Map<String, BluetoothMeshNode> nodes = new LinkedHashMap<>();
+    private final List<Runnable> scheduled = new ArrayList<>();
+    private final List<Long> delays = new ArrayList<>();
+    private final List<MeshTopologyNotifier.TopologyDiff> diffs = new ArrayList<>();
+
+    private final MeshTopologyNotifier notifier = new MeshTopologyNotifier(new MeshTopologyNotifier.NotifierActions() {
+        @Override
+        public Collection<BluetoothMeshNode> getNodes() {
+            return nodes.values();
+        }
+
+        @Override
+        public void schedule(Runnable task, long delayMillis) {
+            scheduled.add(task);
+            delays.add(delayMillis);
+        }
+
+        @Override
+        public void onTopologyChanged(MeshTopologyNotifier.TopologyDiff diff) {
+            diffs.add(diff);
+        }
+    });
+
+    private BluetoothMeshNode add(String nodeId, int hops) {
+        BluetoothMeshNode node = new BluetoothMeshNode(nodeId, "name " + nodeId, null, 0);
+        node.setHopDistance(hops);
+        nodes.put(nodeId, node);
+        return node;
+    }
+
+    private void runScheduled() {
+        List<Runnable> tasks = new ArrayList<>(scheduled);
+        scheduled.clear();
+        for (Runnable task : tasks) {
+            task.run();
+        }
+    }
+
+    private static String ids(List<MeshNodeSnapshot> snapshots) {
+        List<String> ids = new ArrayList<>();
+        for (MeshNodeSnapshot snapshot : snapshots) {
+            ids.add(snapshot.getNodeId());
+        }
+        return ids.toString();
+    }
+
+    @Test
+    public void burstOfChanges_isReportedOnceAfterTheInterval() {
+        notifier.setInterval(500);
+        for (int i = 0; i < 20; i++) {
+            add("n" + i, 2);
+            notifier.markChanged();
+        }
+
+        assertEquals(1, scheduled.size());
+        assertEquals(500L, (long) delays.get(0));
+        assertTrue(diffs.isEmpty());
+
+        runScheduled();
+        assertEquals(1, diffs.size());
+        assertEquals(20, diffs.get(0).getAdded().size());
+        assertEquals(20, diffs.get(0).getNodes().size());
+    }
+
+    @Test
+    public void massDeparture_isOneDiffListingOnlyWhatChanged() {
+        notifier.setInterval(0);
+        for (int i = 0; i < 10; i++) {
+            add("n" + i, 2);
+        }
+        notifier.markChanged();
+        assertEquals(1, diffs.size());
+
+        nodes.remove("n3");
+        nodes.remove("n4");
+        nodes.remove("n7");
+        nodes.get("n5").setHopDistance(3);
+        notifier.markChanged();
+
+        assertEquals(2, diffs.size());
+        MeshTopologyNotifier.TopologyDiff diff = diffs.get(1);
+        assertEquals("[n3, n4, n7]", ids(diff.getRemoved()));
+        assertEquals("[n5]", ids(diff.getChanged()));
+        assertTrue(diff.getAdded().isEmpty());
+        assertEquals("[n0, n1, n2, n5, n6, n8, n9]", ids(diff.getNodes()));
+        assertEquals(3, diff.getChanged().get(0).getHopDistance());
+    }
+
+    @Test
+    public void heartbeatsAlone_doNotProduceADiff() {
+        notifier.setInterval(0);
+        BluetoothMeshNode node = add("n0", 1);
+        notifier.markChanged();
+
+        node.setLastSeen(60000);
+        notifier.markChanged();
+
+        assertEquals(1, diffs.size());
+        assertEquals(1, notifier.getDiffCount());
+    }
+
+    @Test
+    public void newNodes_areAppendedAndSurvivorsKeepTheirPlace() {
+        notifier.setInterval(0);
+        add("b", 1);
+        add("a", 1);
+        notifier.markChanged();
+
+        nodes.clear();
+        add("c", 2);
+        add("a", 1);
+        notifier.markChanged();
+
+        assertEquals("[a, c]", ids(diffs.get(1).getNodes()));
+        assertEquals("[a, c]", ids(notifier.getNodes()));
+    }
+
+    @Test
+    public void snapshots_doNotFollowLaterChanges() {
+        notifier.setInterval(0);
+        BluetoothMeshNode node = add("n0", 2);
+        node.addConnectedNode("n1");
+        notifier.markChanged();
+
+        node.addConnectedNode("n2");
+        node.setHopDistance(4);
+
+        MeshNodeSnapshot shown = diffs.get(0).getAdded().get(0);
+        assertEquals(2, shown.getHopDistance());
+        assertEquals(1, shown.getConnectedNodes().size());
+    }
+}
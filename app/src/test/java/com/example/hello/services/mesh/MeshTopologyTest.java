@@ -0,0 +1,184 @@
+package com.example.hello.services.mesh;
+
+import com.example.hello.models.BluetoothMeshMessage;
+import com.google.gson.Gson;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class MeshTopologyTest {
+
+    /**
+     * Delivers messages between topologies synchronously, flooding deltas
+     * the way the service does and counting what goes over the air.
+     */
+    private static class Net {
+        final Map<String, MeshTopology> nodes = new HashMap<>();
+        final Map<String, Set<String>> links = new HashMap<>();
+        final Map<String, Set<String>> seen = new HashMap<>();
+        final ArrayDeque<Object[]> inFlight = new ArrayDeque<>();
+        int transmissions;
+        int ids;
+
+        MeshTopology add(String id) {
+            links.put(id, new HashSet<>());
+            seen.put(id, new HashSet<>());
+            MeshTopology topology = new MeshTopology(id, "name-" + id, new MeshTopology.TopologyActions() {
+                @Override
+                public void sendOnLink(String linkId, BluetoothMeshMessage message) {
+                    transmissions++;
+                    inFlight.add(new Object[]{linkId, message, id});
+                }
+
+                @Override
+                public void broadcast(BluetoothMeshMessage message) {
+                    seen.get(id).add(message.getMessageId());
+                    for (String peer : links.get(id)) {
+                        sendOnLink(peer, message);
+                    }
+                }
+
+                @Override
+                public String newMessageId() {
+                    return id + "-" + (ids++);
+                }
+
+                @Override
+                public void onTopologyChanged(Set<String> nodeIds) {
+                }
+            }, new Gson());
+            nodes.put(id, topology);
+            return topology;
+        }
+
+        void connect(String a, String b) {
+            links.get(a).add(b);
+            links.get(b).add(a);
+            // Link IDs are the peer's node ID here
+            nodes.get(a).onNeighbourIdentified(b, b);
+            nodes.get(b).onNeighbourIdentified(a, a);
+            run();
+        }
+
+        void disconnect(String a, String b) {
+            links.get(a).remove(b);
+            links.get(b).remove(a);
+            nodes.get(a).onLinkLost(b);
+            nodes.get(b).onLinkLost(a);
+            run();
+        }
+
+        void run() {
+            while (!inFlight.isEmpty()) {
+                Object[] next = inFlight.poll();
+                String to = (String) next[0];
+                BluetoothMeshMessage message = (BluetoothMeshMessage) next[1];
+                String from = (String) next[2];
+                if (!links.get(from).contains(to) || !seen.get(to).add(message.getMessageId())) {
+                    continue;
+                }
+                if (nodes.get(to).handleUpdate(message, from)) {
+                    for (String peer : links.get(to)) {
+                        if (!peer.equals(from)) {
+                            transmissions++;
+                            inFlight.add(new Object[]{peer, message, to});
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void chain_learnsFullGraphAndHopDistances() {
+        Net net = new Net();
+        for (String id : new String[]{"A", "B", "C", "D", "E"}) {
+            net.add(id);
+        }
+        net.connect("A", "B");
+        net.connect("B", "C");
+        net.connect("C", "D");
+        net.connect("D", "E");
+
+        MeshTopology a = net.nodes.get("A");
+        assertEquals(1, a.getHopDistance("B"));
+        assertEquals(4, a.getHopDistance("E"));
+        assertTrue(a.getNeighbours("D").contains("C"));
+        assertTrue(a.getNeighbours("D").contains("E"));
+        assertEquals("name-E", a.getName("E"));
+
+        // A shortcut shrinks distances incrementally
+        net.connect("A", "D");
+        assertEquals(2, a.getHopDistance("E"));
+        assertEquals(2, net.nodes.get("E").getHopDistance("A"));
+
+        // Losing it brings the longer path back
+        net.disconnect("A", "D");
+        assertEquals(4, a.getHopDistance("E"));
+
+        // Splitting the chain makes the far side unreachable
+        net.disconnect("B", "C");
+        assertEquals(MeshTopology.UNREACHABLE, a.getHopDistance("D"));
+        assertEquals(1, net.nodes.get("E").getHopDistance("D"));
+
+        // A link from A straight to C would bring back C, D and E
+        assertEquals(3, a.countRestoredBy("C"));
+        assertEquals(0, a.countRestoredBy("B"));
+    }
+
+    @Test
+    public void steadyChanges_costDeltasNotSnapshots() {
+        Net net = new Net();
+        for (int i = 0; i < 12; i++) {
+            net.add("n" + i);
+        }
+        for (int i = 1; i < 12; i++) {
+            net.connect("n" + (i - 1), "n" + i);
+        }
+
+        // One more edge in an established mesh: two small deltas flooded,
+        // plus one snapshot each way over the new link
+        net.transmissions = 0;
+        net.connect("n0", "n11");
+        assertTrue("transmissions " + net.transmissions, net.transmissions <= 2 * 13 + 2);
+        assertEquals(1, net.nodes.get("n5").getHopDistance("n4"));
+        assertEquals(3, net.nodes.get("n1").getHopDistance("n10"));
+    }
+
+    @Test
+    public void missedDelta_isRepairedFromNeighbourSnapshot() {
+        Net net = new Net();
+        net.add("A");
+        net.add("B");
+        net.add("C");
+        net.connect("A", "B");
+        net.connect("B", "C");
+
+        // C changes its neighbours while its deltas never reach B
+        Set<String> cLinks = net.links.get("C");
+        cLinks.clear();
+        net.add("D");
+        net.links.get("C").add("D");
+        net.links.get("D").add("C");
+        net.nodes.get("C").onNeighbourIdentified("D", "D");
+        net.nodes.get("D").onNeighbourIdentified("C", "C");
+        net.run();
+        net.nodes.get("C").onNeighbourIdentified("X", "X");
+        net.run();
+        cLinks.add("B");
+        assertEquals(MeshTopology.UNREACHABLE, net.nodes.get("A").getHopDistance("D"));
+
+        // The next delta shows B a gap; B asks C for a snapshot and catches up
+        net.nodes.get("C").onLinkLost("X");
+        net.run();
+        assertEquals(2, net.nodes.get("B").getHopDistance("D"));
+        assertEquals(3, net.nodes.get("A").getHopDistance("D"));
+    }
+}
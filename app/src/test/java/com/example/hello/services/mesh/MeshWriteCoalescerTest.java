@@ -0,0 +1,253 @@
+package com.example.hello.services.mesh;
+
+import com.example.hello.models.BluetoothMeshMessage;
+import com.example.hello.services.BluetoothMeshService;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class MeshWriteCoalescerTest {
+    private static final int FRAME_SIZE = 120;
+    private static final long DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(MeshWriteCoalescer.DEFAULT_MAX_DELAY_MS);
+
+    private final MeshBufferPool pool = new MeshBufferPool(64 * 1024);
+
+    private static OutboundFrame frame(int index, int priority) {
+        byte[] bytes = new byte[FRAME_SIZE];
+        MeshFrameCodec.writeInt(bytes, 0, index);
+        return new OutboundFrame(bytes, BluetoothMeshService.MSG_TYPE_CHAT, priority);
+    }
+
+    private static OutboundFrame frame(int index) {
+        return frame(index, BluetoothMeshMessage.PRIORITY_DEFAULT);
+    }
+
+    /**
+     * Records each write and the frame indexes it carried.
+     */
+    private static class RecordingStream extends OutputStream {
+        final List<int[]> writes = new ArrayList<>();
+
+        @Override
+        public void write(int b) {
+            throw new UnsupportedOperationException("frames are written whole");
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            assertEquals(0, len % FRAME_SIZE);
+            int[] indexes = new int[len / FRAME_SIZE];
+            for (int i = 0; i < indexes.length; i++) {
+                indexes[i] = MeshFrameCodec.readInt(b, off + i * FRAME_SIZE);
+            }
+            writes.add(indexes);
+        }
+    }
+
+    @Test
+    public void disabled_writesEveryFrameOnItsOwn() throws Exception {
+        MeshWriteCoalescer coalescer = new MeshWriteCoalescer(pool, 0, 0);
+        MeshOutboundQueue queue = new MeshOutboundQueue();
+        RecordingStream out = new RecordingStream();
+        for (int i = 0; i < 5; i++) {
+            queue.offer(frame(i));
+        }
+
+        assertEquals(5, coalescer.drain(queue, 8, 0, out));
+        assertEquals(5, out.writes.size());
+        assertFalse(coalescer.hasPending());
+    }
+
+    @Test
+    public void burst_isWrittenTogetherAndTheTailHeldBriefly() throws Exception {
+        MeshWriteCoalescer coalescer = new MeshWriteCoalescer(pool, 4 * FRAME_SIZE, DELAY_NANOS);
+        MeshOutboundQueue queue = new MeshOutboundQueue();
+        RecordingStream out = new RecordingStream();
+        for (int i = 0; i < 6; i++) {
+            queue.offer(frame(i));
+        }
+
+        // A full batch goes at once; the rest waits because traffic is busy
+        coalescer.drain(queue, 8, 0, out);
+        assertEquals(1, out.writes.size());
+        assertEquals("[0, 1, 2, 3]", Arrays.toString(out.writes.get(0)));
+        assertTrue(coalescer.hasPending());
+        assertEquals(DELAY_NANOS, coalescer.nanosUntilDue(0));
+
+        queue.offer(frame(6));
+        coalescer.drain(queue, 8, DELAY_NANOS / 2, out);
+        assertEquals(1, out.writes.size());
+
+        coalescer.drain(queue, 8, DELAY_NANOS, out);
+        assertEquals(2, out.writes.size());
+        assertEquals("[4, 5, 6]", Arrays.toString(out.writes.get(1)));
+        assertEquals(Long.MAX_VALUE, coalescer.nanosUntilDue(DELAY_NANOS));
+    }
+
+    @Test
+    public void quietLink_sendsALoneFrameAtOnce() throws Exception {
+        MeshWriteCoalescer coalescer = new MeshWriteCoalescer(pool, 4 * FRAME_SIZE, DELAY_NANOS);
+        MeshOutboundQueue queue = new MeshOutboundQueue();
+        RecordingStream out = new RecordingStream();
+
+        queue.offer(frame(0));
+        coalescer.drain(queue, 8, 0, out);
+        queue.offer(frame(1));
+        coalescer.drain(queue, 8, 1000, out);
+
+        assertEquals(2, out.writes.size());
+        assertFalse(coalescer.hasPending());
+    }
+
+    @Test
+    public void emergency_pushesOutTheHeldBatch() throws Exception {
+        MeshWriteCoalescer coalescer = new MeshWriteCoalescer(pool, 4 * FRAME_SIZE, DELAY_NANOS);
+        MeshOutboundQueue queue = new MeshOutboundQueue();
+        RecordingStream out = new RecordingStream();
+        for (int i = 0; i < 5; i++) {
+            queue.offer(frame(i));
+        }
+        coalescer.drain(queue, 8, 0, out);
+        assertTrue(coalescer.hasPending());
+
+        queue.offer(frame(5, BluetoothMeshMessage.PRIORITY_EMERGENCY));
+        coalescer.drain(queue, 8, 1000, out);
+
+        assertFalse(coalescer.hasPending());
+        assertEquals("[4, 5]", Arrays.toString(out.writes.get(1)));
+    }
+
+    @Test
+    public void largeFrame_isWrittenStraightAfterTheBatch() throws Exception {
+        MeshWriteCoalescer coalescer = new MeshWriteCoalescer(pool, 4 * FRAME_SIZE, DELAY_NANOS);
+        MeshOutboundQueue queue = new MeshOutboundQueue();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        queue.offer(frame(0));
+        OutboundFrame large = new OutboundFrame(new byte[10 * FRAME_SIZE], BluetoothMeshService.MSG_TYPE_CHAT);
+        Arrays.fill(large.getBytes(), (byte) 7);
+        queue.offer(large);
+
+        coalescer.drain(queue, 8, 0, out);
+
+        assertEquals(11 * FRAME_SIZE, out.size());
+        assertEquals(2, coalescer.getWriteCount());
+        assertEquals(7, out.toByteArray()[FRAME_SIZE]);
+    }
+
+    // ---- Benchmark ----
+
+    // Every write pays a fixed trip through the stack plus its bytes on air
+    private static final long WRITE_OVERHEAD_NANOS = TimeUnit.MICROSECONDS.toNanos(1500);
+    private static final long BYTES_PER_SECOND = 80 * 1024;
+
+    private static final class Result {
+        final double framesPerSecond;
+        final long p99Micros;
+        final long writes;
+
+        Result(double framesPerSecond, long p99Micros, long writes) {
+            this.framesPerSecond = framesPerSecond;
+            this.p99Micros = p99Micros;
+            this.writes = writes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%.0f frames/s, p99 %.1f ms, %d writes", framesPerSecond, p99Micros / 1000.0, writes);
+        }
+    }
+
+    /**
+     * One link in virtual time: small frames arrive at random at
+     * {@code framesPerSecond} and a writer drains them as the worker would,
+     * each write occupying the link for its overhead plus its bytes.
+     */
+    private Result runLink(int frames, double framesPerSecond, boolean coalesce, long seed) throws Exception {
+        Random random = new Random(seed);
+        long[] arrivals = new long[frames];
+        long t = 0;
+        for (int i = 0; i < frames; i++) {
+            t += (long) (-Math.log(1 - random.nextDouble()) / framesPerSecond * 1e9);
+            arrivals[i] = t;
+        }
+
+        long[] completions = new long[frames];
+        long[] clock = new long[1];
+        OutputStream link = new OutputStream() {
+            @Override
+            public void write(int b) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                clock[0] += WRITE_OVERHEAD_NANOS + len * 1_000_000_000L / BYTES_PER_SECOND;
+                for (int i = 0; i < len / FRAME_SIZE; i++) {
+                    completions[MeshFrameCodec.readInt(b, off + i * FRAME_SIZE)] = clock[0];
+                }
+            }
+        };
+
+        MeshWriteCoalescer coalescer = new MeshWriteCoalescer(pool,
+                coalesce ? MeshWriteCoalescer.DEFAULT_MAX_BATCH_BYTES : 0, DELAY_NANOS);
+        MeshOutboundQueue queue = new MeshOutboundQueue(frames, frames * FRAME_SIZE,
+                MeshOutboundQueue.OverflowPolicy.DROP_NEWEST);
+        int next = 0;
+        long now = 0;
+        while (next < frames || queue.size() > 0 || coalescer.hasPending()) {
+            while (next < frames && arrivals[next] <= now) {
+                assertTrue(queue.offer(frame(next++)));
+            }
+            clock[0] = now;
+            coalescer.drain(queue, 8, now, link);
+            if (clock[0] > now || queue.size() > 0) {
+                // Busy writing, or more already waiting
+                now = clock[0];
+                continue;
+            }
+            long due = coalescer.nanosUntilDue(now);
+            long nextArrival = next < frames ? arrivals[next] : Long.MAX_VALUE;
+            now = due == Long.MAX_VALUE ? nextArrival : Math.min(nextArrival, now + due);
+        }
+
+        long[] latencies = new long[frames];
+        long last = 0;
+        for (int i = 0; i < frames; i++) {
+            assertTrue("frame " + i + " never written", completions[i] > 0);
+            latencies[i] = completions[i] - arrivals[i];
+            last = Math.max(last, completions[i]);
+        }
+        Arrays.sort(latencies);
+        long p99 = latencies[(int) Math.ceil(0.99 * frames) - 1];
+        return new Result(frames / ((last - arrivals[0]) / 1e9), p99 / 1000, coalescer.getWriteCount());
+    }
+
+    @Test
+    public void benchmark_coalescingRaisesThroughputWithoutHurtingQuietLinks() throws Exception {
+        // Light load: frames rarely meet, so nothing should be held back
+        Result quietPlain = runLink(500, 50, false, 1);
+        Result quietCoalesced = runLink(500, 50, true, 1);
+        // A busy group chat: more small frames than one write per frame can carry
+        Result busyPlain = runLink(4000, 400, false, 2);
+        Result busyCoalesced = runLink(4000, 400, true, 2);
+
+        System.out.println("quiet, plain:     " + quietPlain);
+        System.out.println("quiet, coalesced: " + quietCoalesced);
+        System.out.println("busy, plain:      " + busyPlain);
+        System.out.println("busy, coalesced:  " + busyCoalesced);
+
+        assertTrue(quietCoalesced.p99Micros <= quietPlain.p99Micros + DELAY_NANOS / 1000);
+        assertTrue(busyCoalesced.framesPerSecond > 1.1 * busyPlain.framesPerSecond);
+        assertTrue(busyCoalesced.p99Micros * 10 < busyPlain.p99Micros);
+        assertTrue(busyCoalesced.writes * 2 < busyPlain.writes);
+    }
+}
@@ -0,0 +1,66 @@
+package com.example.hello.services.mesh;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MessageIdCacheTest {
+
+    @Test
+    public void markSeen_detectsDuplicatesUntilTtlExpires() {
+        MessageIdCache cache = new MessageIdCache(64 * 1024, 1000);
+
+        assertFalse(cache.markSeen("node_1_a", 0));
+        assertTrue(cache.markSeen("node_1_a", 500));
+        // TTL is measured from the last sighting
+        assertTrue(cache.markSeen("node_1_a", 1400));
+        assertFalse(cache.markSeen("node_1_a", 2500));
+
+        assertEquals(2, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    public void memoryStaysBoundedUnderLoad() {
+        MessageIdCache cache = new MessageIdCache(32 * 1024, 60000);
+        long before = cache.getMemoryBytes();
+
+        for (int i = 0; i < 200000; i++) {
+            cache.markSeen("node_" + i, i);
+        }
+
+        assertEquals(before, cache.getMemoryBytes());
+        assertTrue(cache.getMemoryBytes() <= 32 * 1024);
+        assertTrue(cache.getEvictionCount() > 0);
+        // Recent IDs survive eviction of older ones
+        assertTrue(cache.contains("node_199999", 200000));
+    }
+
+    @Test
+    public void concurrentMarkSeen_reportsEachIdAsNewExactlyOnce() throws Exception {
+        final MessageIdCache cache = new MessageIdCache(1024 * 1024, 60000);
+        final int ids = 5000;
+        Thread[] threads = new Thread[4];
+        final int[] firstSightings = new int[threads.length];
+
+        for (int t = 0; t < threads.length; t++) {
+            final int index = t;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < ids; i++) {
+                    if (!cache.markSeen("msg_" + i, 1)) {
+                        firstSightings[index]++;
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        int total = 0;
+        for (int t = 0; t < threads.length; t++) {
+            threads[t].join();
+            total += firstSightings[t];
+        }
+
+        assertEquals(ids, total);
+        assertEquals(0, cache.getFalsePositiveCount());
+    }
+}